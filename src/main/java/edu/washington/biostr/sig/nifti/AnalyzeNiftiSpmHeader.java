@@ -341,6 +341,22 @@ public class AnalyzeNiftiSpmHeader
    }
    
    
+   /**
+    * Make an independent copy of this header that can be edited without
+    * changing this one.  Extensions are not copied.
+    * @return the copy
+    */
+   public AnalyzeNiftiSpmHeader copy()
+   {
+      byte[] bytes = new byte[352];
+      ByteBuffer source = header.duplicate();
+      source.position(offset);
+      source.get(bytes, 0, Math.min(348, source.remaining()));
+      ByteBuffer copy = ByteBuffer.wrap(bytes);
+      copy.order(header.order());
+      return new AnalyzeNiftiSpmHeader(copy, 0, spm, file);
+   }
+
    public static AnalyzeNiftiSpmHeader loadHeader(URL hdr) throws IOException
    {
       URLConnection connection = hdr.openConnection();
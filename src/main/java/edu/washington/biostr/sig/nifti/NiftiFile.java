@@ -18,6 +18,7 @@
  */
 package edu.washington.biostr.sig.nifti;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
@@ -432,6 +433,143 @@ public class NiftiFile
       return answer;
    }
 
+   /**
+    * Read whole z planes straight from the image without loading the rest
+    * of it (or keeping anything).  Uncompressed files skip to the planes,
+    * compressed ones have to be decompressed up to them, so to read many
+    * planes in order use openPlanes() instead.  This doesn't touch the
+    * cache, so different planes of the same file may be read by different
+    * threads.
+    * @param z The first plane
+    * @param planes The number of planes
+    * @param t
+    * @param i5
+    * @param rv Where to put the values, at least planes * maxX * maxY long,
+    * or null to allocate one.
+    * @return rv, in x, y, z order.
+    * @throws IOException if anything goes wrong
+    */
+   public double[] readPlanes(int z, int planes, int t, int i5, double[] rv) throws IOException
+   {
+      PlaneReader reader = openPlanes();
+      try
+      {
+         return reader.read(z, planes, t, i5, rv);
+      }
+      finally
+      {
+         reader.close();
+      }
+   }
+
+   /**
+    * Open the image for reading whole z planes in the order they are stored
+    * (z, then t, then i5).  The image is opened once and each read carries
+    * on from the last one, so reading every plane of a compressed file costs
+    * one pass through it.  Like readPlanes() this doesn't touch the cache.
+    * @return The reader, which must be closed.
+    * @throws IOException if the image can't be opened.
+    * @throws IllegalArgumentException if the voxels are not whole bytes
+    * (DT_BINARY).
+    */
+   public PlaneReader openPlanes() throws IOException
+   {
+      return new PlaneReader();
+   }
+
+   /**
+    * Reads whole z planes from one open stream of the image.  Planes can
+    * only be read in file order, but planes in between are skipped.  This is
+    * not thread safe, but readers of the same file are independent.
+    */
+   public class PlaneReader implements Closeable
+   {
+      private final InputStream stream;
+      private final int bytesPerVoxel;
+      private byte[] bbuf;
+      /**
+       * The index of the next voxel in the stream.
+       */
+      private long position;
+
+      private PlaneReader() throws IOException
+      {
+         int bitpix = header.getBitpix();
+         if (bitpix <= 0 || bitpix % 8 != 0)
+            throw new IllegalArgumentException("Unsupported type " + header.getDTName(header.getDatatype()));
+         bytesPerVoxel = bitpix / 8;
+         stream = getImageStream();
+      }
+
+      /**
+       * @param z The first plane
+       * @param planes The number of planes
+       * @param t
+       * @param i5
+       * @param rv Where to put the values, at least planes * maxX * maxY
+       * long, or null to allocate one.
+       * @return rv, in x, y, z order.
+       * @throws IOException if anything goes wrong
+       * @throws IllegalArgumentException if the planes are not in the image
+       * or come before the end of the last read.
+       */
+      public double[] read(int z, int planes, int t, int i5, double[] rv) throws IOException
+      {
+         int start = getIndex(0, 0, z, t, i5);
+         if (start < 0 || planes < 0 || z + planes > maxZ)
+            throw new IllegalArgumentException("Planes " + z + " to " + (z + planes) + " are not in the image");
+         if (start < position)
+            throw new IllegalArgumentException("Plane " + z + " has already been read past");
+         int count = planes * maxX * maxY;
+         if (rv == null)
+            rv = new double[count];
+         long skip = (start - position) * bytesPerVoxel;
+         while (skip > 0)
+         {
+            long skipped = stream.skip(skip);
+            if (skipped <= 0)
+            {
+               if (stream.read() < 0)
+                  throw new IOException("The image ends before plane " + z);
+               skipped = 1;
+            }
+            skip -= skipped;
+         }
+         // read from the stream in big chunks
+         int chunk = bytesPerVoxel * Math.min(count, 1024 * 100);
+         if (bbuf == null || bbuf.length < chunk)
+            bbuf = new byte[chunk];
+         ByteBuffer buf = ByteBuffer.wrap(bbuf);
+         buf.order(header.getEndian());
+         int i = 0;
+         while (i < count)
+         {
+            int want = Math.min(chunk, (count - i) * bytesPerVoxel);
+            int len = 0;
+            while (len < want)
+            {
+               int read = stream.read(bbuf, len, want - len);
+               if (read < 0)
+                  throw new IOException("The image ends in plane " + (z + i / (maxX * maxY)));
+               len += read;
+            }
+            buf.position(0);
+            buf.limit(len);
+            while (buf.hasRemaining())
+            {
+               rv[i++] = header.readNext(buf);
+            }
+         }
+         position = start + count;
+         return rv;
+      }
+
+      public void close() throws IOException
+      {
+         stream.close();
+      }
+   }
+
    public URL getHdr()
    {
       return hdr;
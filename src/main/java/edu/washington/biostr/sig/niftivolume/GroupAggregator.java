@@ -0,0 +1,412 @@
+package edu.washington.biostr.sig.niftivolume;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.vecmath.Matrix4d;
+
+import edu.washington.biostr.sig.nifti.NiftiFile;
+import edu.washington.biostr.sig.nifti.NiftiIO;
+import edu.washington.biostr.sig.volume.VolumeArray;
+import edu.washington.biostr.sig.volume.VolumeArrayFactory;
+
+import org.eiderman.util.ParallelLoop;
+
+/**
+ * Find the voxelwise mean, variance, min, max and number of non zero values
+ * of a group of co-registered images, such as every subject of a study,
+ * without loading any of them in full.<br>
+ * The images are read a slab of z planes at a time.  Each image is opened
+ * once with NiftiFile.openPlanes() and its slabs are read from that stream
+ * in file order, so a compressed image is only decompressed once.  The reads
+ * run on their own few threads, several images at a time, so waiting on the
+ * disk doesn't hold up the shared ParallelLoop pool that adds them up.  They
+ * are added to the slab's Welford accumulators in the order the images were
+ * given, so the answer doesn't depend on the timing.  Once every image has
+ * been added the slab is copied into the results and its accumulators are
+ * reused.  So the memory used is the results plus a slab for each read in
+ * flight (and an open stream per image), however many images there are.<br>
+ * NaN voxels are left out of a voxel's statistics, and so are the voxels
+ * where the mask (if there is one) is 0.  Voxels with no values are NaN in
+ * the mean, min and max, and voxels with fewer than 2 in the variance.
+ * @author Eider Moore
+ * @version 1.0
+ */
+public class GroupAggregator {
+
+    /**
+     * The number of voxels to aim for in each slab.
+     */
+    private static final int SLAB_VOXELS = 1 << 18;
+    /**
+     * The number of threads reading the images.
+     */
+    private static final int READ_THREADS = 4;
+
+    private final List<NiftiFile> files;
+    private final int maxX;
+    private final int maxY;
+    private final int maxZ;
+    private final int maxTime;
+    private final int maxI5;
+    private final Matrix4d index2space;
+    private VolumeArray mask;
+    private VolumeArray mean;
+    private VolumeArray variance;
+    private VolumeArray min;
+    private VolumeArray max;
+    private VolumeArray nonZero;
+
+    /**
+     * @param files The images, which must all have the same dimensions.  The
+     * transform is taken from the first one.
+     * @throws IOException
+     */
+    public GroupAggregator(File... files) throws IOException {
+        this(open(files));
+    }
+
+    /**
+     * @param files The images, which must all have the same dimensions.  The
+     * transform is taken from the first one.
+     */
+    public GroupAggregator(List<NiftiFile> files) {
+        if (files.isEmpty()) {
+            throw new IllegalArgumentException("There are no images to aggregate");
+        }
+        this.files = new ArrayList<NiftiFile>(files);
+        short[] dim = dimensions(files.get(0));
+        maxX = dim[1];
+        maxY = dim[2];
+        maxZ = dim[3];
+        maxTime = dim[4];
+        maxI5 = dim[5];
+        for (NiftiFile file : files) {
+            if (!Arrays.equals(dim, dimensions(file))) {
+                throw new IllegalArgumentException(file.getHdr() + " does not have the same dimensions as " +
+                        files.get(0).getHdr());
+            }
+        }
+        index2space = new Matrix4d(files.get(0).getTransform());
+    }
+
+    private static List<NiftiFile> open(File[] files) throws IOException {
+        List<NiftiFile> rv = new ArrayList<NiftiFile>(files.length);
+        for (File file : files) {
+            rv.add(new NiftiFile(file));
+        }
+        return rv;
+    }
+
+    /**
+     * @return {0, x, y, z, t, i5} with the missing dimensions set to 1.
+     */
+    private static short[] dimensions(NiftiFile file) {
+        short[] dim = file.getHeader().getDim();
+        short[] rv = new short[6];
+        for (int i = 1; i < rv.length; i++) {
+            rv[i] = dim[0] >= i && dim[i] > 0 ? dim[i] : 1;
+        }
+        return rv;
+    }
+
+    /**
+     * Only count the voxels where mask is not 0.  If mask has a single time
+     * point (or 5th dimension) it is used for all of them.
+     * @param mask The mask, with the same x, y and z dimensions as the
+     * images, or null for every voxel.
+     */
+    public void setMask(VolumeArray mask) {
+        if (mask != null && (mask.getMaxX() != maxX || mask.getMaxY() != maxY || mask.getMaxZ() != maxZ)) {
+            throw new IllegalArgumentException("The mask does not line up with the images");
+        }
+        this.mask = mask;
+    }
+
+    /**
+     * Read every image and find the statistics.
+     * @throws IOException if any of the images can't be read.
+     */
+    public void run() throws IOException {
+        final int planeSize = maxX * maxY;
+        final int volumeSize = planeSize * maxZ * maxTime * maxI5;
+        final float[] meanData = new float[volumeSize];
+        final float[] varianceData = new float[volumeSize];
+        final float[] minData = new float[volumeSize];
+        final float[] maxData = new float[volumeSize];
+        final int[] nonZeroData = new int[volumeSize];
+
+        int depth = Math.max(1, Math.min(maxZ, SLAB_VOXELS / Math.max(1, planeSize)));
+        int slabsPerVolume = (maxZ + depth - 1) / depth;
+        int slabs = slabsPerVolume * maxTime * maxI5;
+        final Accumulator acc = new Accumulator(depth * planeSize);
+        int count = files.size();
+        int reads = slabs * count;
+        // no more reads than images are in flight, so each image's stream is used by one read at a time
+        int window = Math.min(count, READ_THREADS * 2);
+        ExecutorService io = Executors.newFixedThreadPool(Math.min(window, READ_THREADS));
+        ArrayDeque<Future<double[]>> pending = new ArrayDeque<Future<double[]>>();
+        NiftiFile.PlaneReader[] readers = new NiftiFile.PlaneReader[count];
+        try {
+            int next = 0;
+            for (int read = 0; read < reads; read++) {
+                while (next < reads && pending.size() < window) {
+                    pending.add(io.submit(read(readers, next % count, next / count, slabs, depth, slabsPerVolume)));
+                    next++;
+                }
+                int slab = read / count;
+                int z0 = (slab % slabsPerVolume) * depth;
+                int planes = Math.min(depth, maxZ - z0);
+                int t = (slab / slabsPerVolume) % maxTime;
+                int i5 = slab / (slabsPerVolume * maxTime);
+                if (read % count == 0) {
+                    acc.reset(planes * planeSize, z0, t, i5);
+                }
+                acc.add(join(pending.removeFirst()));
+                if (read % count == count - 1) {
+                    acc.finish(((i5 * maxTime + t) * maxZ + z0) * planeSize, meanData, varianceData, minData,
+                            maxData, nonZeroData);
+                }
+            }
+        } finally {
+            for (Future<double[]> task : pending) {
+                task.cancel(false);
+            }
+            close(io, readers);
+        }
+        mean = VolumeArrayFactory.getVolumeDataBuffer(new Matrix4d(index2space), meanData, maxX, maxY, maxZ,
+                maxTime, maxI5);
+        variance = VolumeArrayFactory.getVolumeDataBuffer(new Matrix4d(index2space), varianceData, maxX, maxY,
+                maxZ, maxTime, maxI5);
+        min = VolumeArrayFactory.getVolumeDataBuffer(new Matrix4d(index2space), minData, maxX, maxY, maxZ,
+                maxTime, maxI5);
+        max = VolumeArrayFactory.getVolumeDataBuffer(new Matrix4d(index2space), maxData, maxX, maxY, maxZ,
+                maxTime, maxI5);
+        nonZero = VolumeArrayFactory.getVolumeDataBuffer(new Matrix4d(index2space), nonZeroData, maxX, maxY,
+                maxZ, maxTime, maxI5);
+    }
+
+    /**
+     * Make the task that reads the given slab of image file from its reader
+     * in readers, opening it for the first slab and closing it after the
+     * last.  Slabs are numbered in file order: z, then time, then i5.
+     */
+    private Callable<double[]> read(final NiftiFile.PlaneReader[] readers, final int file, final int slab,
+            final int slabs, int depth, int slabsPerVolume) {
+        final int z0 = (slab % slabsPerVolume) * depth;
+        final int planes = Math.min(depth, maxZ - z0);
+        final int t = (slab / slabsPerVolume) % maxTime;
+        final int i5 = slab / (slabsPerVolume * maxTime);
+        return new Callable<double[]>() {
+
+            public double[] call() throws IOException {
+                if (readers[file] == null) {
+                    readers[file] = files.get(file).openPlanes();
+                }
+                double[] rv = readers[file].read(z0, planes, t, i5, null);
+                if (slab == slabs - 1) {
+                    readers[file].close();
+                    readers[file] = null;
+                }
+                return rv;
+            }
+        };
+    }
+
+    /**
+     * Shut down io and close the readers that are still open, which only
+     * happens if a read failed.  A read that is still running is waited for
+     * so its stream isn't closed under it.
+     */
+    private static void close(ExecutorService io, NiftiFile.PlaneReader[] readers) throws IOException {
+        io.shutdown();
+        try {
+            io.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (NiftiFile.PlaneReader reader : readers) {
+            if (reader != null) {
+                reader.close();
+            }
+        }
+    }
+
+    /**
+     * Wait for task, passing on the IOException if it failed with one.
+     */
+    private static double[] join(Future<double[]> task) throws IOException {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while reading the images");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * The Welford accumulators of one slab.
+     */
+    private class Accumulator {
+
+        private final int[] n;
+        private final int[] nonZero;
+        private final double[] mean;
+        private final double[] m2;
+        private final double[] min;
+        private final double[] max;
+        private final double[] maskValues;
+        private boolean[] in;
+        private int size;
+
+        Accumulator(int capacity) {
+            n = new int[capacity];
+            nonZero = new int[capacity];
+            mean = new double[capacity];
+            m2 = new double[capacity];
+            min = new double[capacity];
+            max = new double[capacity];
+            maskValues = mask == null ? null : new double[capacity];
+            in = mask == null ? null : new boolean[capacity];
+        }
+
+        void reset(int size, int z0, int t, int i5) {
+            this.size = size;
+            Arrays.fill(n, 0, size, 0);
+            Arrays.fill(nonZero, 0, size, 0);
+            Arrays.fill(mean, 0, size, 0);
+            Arrays.fill(m2, 0, size, 0);
+            Arrays.fill(min, 0, size, Double.POSITIVE_INFINITY);
+            Arrays.fill(max, 0, size, Double.NEGATIVE_INFINITY);
+            if (mask != null) {
+                mask.getSeries(maskValues, 0, 0, z0, mask.getMaxTime() > 1 ? t : 0, mask.getMaxI5() > 1 ? i5 : 0,
+                        maxX, maxY, size / (maxX * maxY), 1, 1);
+                for (int i = 0; i < size; i++) {
+                    in[i] = maskValues[i] != 0;
+                }
+            }
+        }
+
+        void add(final double[] values) {
+            ParallelLoop.run(0, size, ParallelLoop.grain(size, 1 << 14), new ParallelLoop.Body() {
+
+                public void run(int start, int end) {
+                    for (int i = start; i < end; i++) {
+                        double value = values[i];
+                        if (value != value || (in != null && !in[i])) {
+                            continue;
+                        }
+                        int count = ++n[i];
+                        double delta = value - mean[i];
+                        mean[i] += delta / count;
+                        m2[i] += delta * (value - mean[i]);
+                        if (value < min[i]) {
+                            min[i] = value;
+                        }
+                        if (value > max[i]) {
+                            max[i] = value;
+                        }
+                        if (value != 0) {
+                            nonZero[i]++;
+                        }
+                    }
+                }
+            });
+        }
+
+        void finish(int offset, float[] meanData, float[] varianceData, float[] minData, float[] maxData,
+                int[] nonZeroData) {
+            for (int i = 0; i < size; i++) {
+                int count = n[i];
+                meanData[offset + i] = count == 0 ? Float.NaN : (float) mean[i];
+                varianceData[offset + i] = count < 2 ? Float.NaN : (float) (m2[i] / (count - 1));
+                minData[offset + i] = count == 0 ? Float.NaN : (float) min[i];
+                maxData[offset + i] = count == 0 ? Float.NaN : (float) max[i];
+                nonZeroData[offset + i] = nonZero[i];
+            }
+        }
+    }
+
+    /**
+     * @return The images, in the order they are added.
+     */
+    public List<NiftiFile> getFiles() {
+        return Collections.unmodifiableList(files);
+    }
+
+    /**
+     * @return The mean of each voxel, or null before run().
+     */
+    public VolumeArray getMean() {
+        return mean;
+    }
+
+    /**
+     * @return The sample variance (dividing by n - 1) of each voxel, or null
+     * before run().
+     */
+    public VolumeArray getVariance() {
+        return variance;
+    }
+
+    /**
+     * @return The smallest value of each voxel, or null before run().
+     */
+    public VolumeArray getMin() {
+        return min;
+    }
+
+    /**
+     * @return The largest value of each voxel, or null before run().
+     */
+    public VolumeArray getMax() {
+        return max;
+    }
+
+    /**
+     * @return The number of images that are not 0 (or NaN) at each voxel,
+     * or null before run().
+     */
+    public VolumeArray getNonZeroCount() {
+        return nonZero;
+    }
+
+    /**
+     * Save the results with NiftiIO.save() as single nii files named
+     * prefix_mean.nii, prefix_variance.nii, prefix_min.nii, prefix_max.nii
+     * and prefix_nonzero.nii.
+     * @param directory Where to put the files
+     * @param prefix The start of each file name
+     * @throws IOException
+     */
+    public void save(File directory, String prefix) throws IOException {
+        if (mean == null) {
+            throw new IllegalStateException("run() has not been called");
+        }
+        NiftiIO.save(mean, new File(directory, prefix + "_mean.nii"), null, (short) 0, (short) 0);
+        NiftiIO.save(variance, new File(directory, prefix + "_variance.nii"), null, (short) 0, (short) 0);
+        NiftiIO.save(min, new File(directory, prefix + "_min.nii"), null, (short) 0, (short) 0);
+        NiftiIO.save(max, new File(directory, prefix + "_max.nii"), null, (short) 0, (short) 0);
+        NiftiIO.save(nonZero, new File(directory, prefix + "_nonzero.nii"), null, (short) 0, (short) 0);
+    }
+}
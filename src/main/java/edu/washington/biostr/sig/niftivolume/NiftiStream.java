@@ -59,6 +59,7 @@ public class NiftiStream
             out.write((short) value);
             break;
          case AnalyzeNiftiSpmHeader.DT_INT32:
+         case AnalyzeNiftiSpmHeader.DT_UINT32:
             out.write((int) value);
             break;
          case AnalyzeNiftiSpmHeader.DT_INT64:
@@ -81,6 +82,21 @@ public class NiftiStream
       }
    }
    
+   /**
+    * Write length values starting at offset, in order.
+    * @param values
+    * @param offset
+    * @param length
+    * @throws IOException
+    */
+   public void write(double[] values, int offset, int length) throws IOException
+   {
+      for (int i = offset; i < offset + length; i++)
+      {
+         write(values[i]);
+      }
+   }
+   
    public void close() throws IOException
    {
       out.close();
@@ -32,20 +32,27 @@ import edu.washington.biostr.sig.volume.AtlasCollection;
 import edu.washington.biostr.sig.volume.AtlasElement;
 import edu.washington.biostr.sig.volume.ByteEncoder;
 import edu.washington.biostr.sig.volume.IndexedAtlasVolumeArray;
+import edu.washington.biostr.sig.volume.Interpolation;
 import edu.washington.biostr.sig.volume.RGBIndexedVolumeArray;
+import edu.washington.biostr.sig.volume.Resampler;
 import edu.washington.biostr.sig.volume.UnsignedByteIndexedVolumeArray;
 import edu.washington.biostr.sig.volume.VolumeArray;
 import edu.washington.biostr.sig.volume.VolumeArrayFactory;
 import it.unimi.dsi.fastutil.io.FastBufferedOutputStream;
 import java.net.URI;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
 import org.eiderman.util.FileUtilities;
+import org.eiderman.util.ParallelLoop;
 
 /**
  * Handle IO for converting Nifti files into volumes.  This can save the volume
@@ -432,6 +439,178 @@ public class NiftiVolumeIO {
         return new NiftiStream(header, imge);
     }
 
+    /**
+     * Resample source into the grid of reference and write it out.  The
+     * output takes its header from reference (dimensions, transforms, voxel
+     * size, data type, units and intent) except for the number of time points
+     * and i5, which come from source.  cal_min and cal_max are cleared since
+     * the range isn't known until everything is written.  The values are
+     * written as they are, so scl_slope and scl_inter are reset to 1 and 0
+     * (the loaders here don't apply them either).  For an integer data type
+     * the values are rounded and clamped to the range of the type.  RGB24
+     * values are packed colors, so they are always resampled with nearest
+     * neighbor interpolation and written as they are.<br>
+     * The output is never held in memory.  It is produced a slab of z planes
+     * at a time, several slabs in parallel, and each slab is written as soon
+     * as the ones before it are, so the memory used is source plus a few
+     * slabs.
+     * @param source The volume to resample
+     * @param reference The file whose grid and header to use
+     * @param interpolation How to find values between source voxels
+     * @param hdr the target for the hdr file (or the nii for a single file)
+     * @param img the target for the img file (or null for a single file)
+     * @throws IOException
+     */
+    public static void reslice(VolumeArray source, NiftiFile reference, Interpolation interpolation,
+            OutputStream hdr, OutputStream img) throws IOException {
+        reslice(source, reference.getHeader(), new Matrix4d(reference.getTransform()), interpolation,
+                hdr, img);
+    }
+
+    /**
+     * Resample source into the grid described by reference and write it
+     * out.  See reslice(VolumeArray, NiftiFile, Interpolation, OutputStream,
+     * OutputStream).
+     * @param source The volume to resample
+     * @param reference The header whose grid to use
+     * @param interpolation How to find values between source voxels
+     * @param hdr the target for the hdr file (or the nii for a single file)
+     * @param img the target for the img file (or null for a single file)
+     * @throws IOException
+     */
+    public static void reslice(VolumeArray source, AnalyzeNiftiSpmHeader reference,
+            Interpolation interpolation, OutputStream hdr, OutputStream img) throws IOException {
+        reslice(source, reference, new Matrix4d(reference.getTransform(true)), interpolation, hdr, img);
+    }
+
+    private static void reslice(final VolumeArray source, AnalyzeNiftiSpmHeader reference,
+            final Matrix4d index2space, Interpolation interpolation,
+            OutputStream hdr, OutputStream img) throws IOException {
+        AnalyzeNiftiSpmHeader header = reference.copy();
+        header.setMagic(img == null);
+        if (!reference.isNIFTI()) {
+            header.setSTrans(getTrans(index2space));
+            header.setSformCode(AnalyzeNiftiSpmHeader.NIFTI_XFORM_SCANNER_ANAT);
+        }
+        short[] dim = header.getDim();
+        final int maxX = dim[1];
+        final int maxY = dim[2];
+        final int maxZ = dim[3];
+        final int maxTime = source.getMaxTime();
+        final int maxI5 = source.getMaxI5();
+        dim[4] = (short) maxTime;
+        dim[5] = (short) maxI5;
+        dim[0] = (short) (maxI5 > 1 ? 5 : (maxTime > 1 ? Math.max(dim[0], 4) : Math.max(dim[0], 3)));
+        header.setDim(dim);
+        header.setCalMin(0);
+        header.setCalMax(0);
+        header.setSclSlope(1);
+        header.setSclOffset(0);
+        short datatype = header.getDatatype();
+        if (datatype == AnalyzeNiftiSpmHeader.DT_RGB24) {
+            // blending packed colors as numbers mixes the channels
+            interpolation = Interpolation.NEAREST_NEIGHBOR;
+        }
+        // round like the integer VolumeArrays do, NiftiStream would truncate
+        boolean round = datatype != AnalyzeNiftiSpmHeader.DT_FLOAT32 &&
+                datatype != AnalyzeNiftiSpmHeader.DT_FLOAT64 &&
+                datatype != AnalyzeNiftiSpmHeader.DT_FLOAT128 &&
+                datatype != AnalyzeNiftiSpmHeader.DT_RGB24;
+        // and clamp, NiftiStream would wrap values that don't fit
+        double low = Double.NEGATIVE_INFINITY;
+        double high = Double.POSITIVE_INFINITY;
+        switch (datatype) {
+            case AnalyzeNiftiSpmHeader.DT_INT8:
+                low = Byte.MIN_VALUE;
+                high = Byte.MAX_VALUE;
+                break;
+            case AnalyzeNiftiSpmHeader.DT_UINT8:
+                low = 0;
+                high = 0xff;
+                break;
+            case AnalyzeNiftiSpmHeader.DT_INT16:
+                low = Short.MIN_VALUE;
+                high = Short.MAX_VALUE;
+                break;
+            case AnalyzeNiftiSpmHeader.DT_UINT16:
+                low = Character.MIN_VALUE;
+                high = Character.MAX_VALUE;
+                break;
+            case AnalyzeNiftiSpmHeader.DT_INT32:
+                low = Integer.MIN_VALUE;
+                high = Integer.MAX_VALUE;
+                break;
+            case AnalyzeNiftiSpmHeader.DT_UINT32:
+                low = 0;
+                high = 0xffffffffL;
+                break;
+            default:
+                // longs saturate in Math.round()
+                break;
+        }
+
+        final int depth = Math.max(1, Math.min(maxZ, SLAB_VOXELS / Math.max(1, maxX * maxY)));
+        final int slabsPerVolume = (maxZ + depth - 1) / depth;
+        int slabs = slabsPerVolume * maxTime * maxI5;
+        ForkJoinPool pool = ParallelLoop.getPool();
+        int window = pool.getParallelism() * 2;
+        ArrayDeque<ForkJoinTask<double[]>> pending = new ArrayDeque<ForkJoinTask<double[]>>();
+        NiftiStream stream = saveAsStream(header, hdr, img);
+        try {
+            int next = 0;
+            while (next < slabs && pending.size() < window) {
+                pending.add(pool.submit(slab(source, index2space, maxX, maxY, maxZ, depth,
+                        slabsPerVolume, maxTime, next++, interpolation)));
+            }
+            while (!pending.isEmpty()) {
+                double[] values = pending.removeFirst().join();
+                if (next < slabs) {
+                    pending.add(pool.submit(slab(source, index2space, maxX, maxY, maxZ, depth,
+                            slabsPerVolume, maxTime, next++, interpolation)));
+                }
+                if (round) {
+                    for (int i = 0; i < values.length; i++) {
+                        values[i] = Math.max(low, Math.min(high, Math.round(values[i])));
+                    }
+                }
+                stream.write(values, 0, values.length);
+            }
+        } finally {
+            for (ForkJoinTask<double[]> task : pending) {
+                task.cancel(false);
+            }
+            stream.close();
+            if (img != null) {
+                hdr.close();
+            }
+        }
+    }
+
+    /**
+     * The number of voxels to aim for in each slab written by reslice().
+     */
+    private static final int SLAB_VOXELS = 1 << 18;
+
+    /**
+     * Make the task that resamples the given slab for reslice().  Slabs are
+     * numbered in file order: z, then time, then i5.
+     */
+    private static Callable<double[]> slab(final VolumeArray source, final Matrix4d index2space,
+            final int maxX, final int maxY, int maxZ, int depth, int slabsPerVolume, int maxTime,
+            int slab, final Interpolation interpolation) {
+        final int z0 = (slab % slabsPerVolume) * depth;
+        final int planes = Math.min(depth, maxZ - z0);
+        final int t = (slab / slabsPerVolume) % maxTime;
+        final int i5 = slab / (slabsPerVolume * maxTime);
+        return new Callable<double[]>() {
+
+            public double[] call() {
+                return Resampler.resampleSlab(source, index2space, maxX, maxY, z0, planes, t, i5,
+                        interpolation, null);
+            }
+        };
+    }
+
     private static double[] getTrans(Matrix4d mat) {
         double[] trans = new double[16];
         double[] row = new double[4];
@@ -0,0 +1,326 @@
+package edu.washington.biostr.sig.volume;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.eiderman.util.ParallelLoop;
+
+/**
+ * The coefficients of the cubic B-spline that passes through every voxel of
+ * a volume, used for Interpolation.CUBIC_BSPLINE.<br>
+ * The coefficients come from running the recursive B-spline prefilter
+ * (Unser, Aldroubi and Eden) along x, then y, then z with mirrored edges.
+ * Each pass runs its lines in parallel.  Once they exist, each sample is a
+ * fixed 4 x 4 x 4 blend of coefficients.<br>
+ * The coefficients of a time point are only computed the first time it is
+ * sampled, so looking at one frame of a long series doesn't prefilter the
+ * rest.  get() caches the sampler, and each time point's coefficients under
+ * their own key, on the volume until its data changes, so look it up once and
+ * call sample() for every point.  One instance can be shared by any number
+ * of threads.
+ * @author Eider Moore
+ * @version 1.0
+ */
+public class BSplineCoefficients implements VoxelSampler {
+
+    /**
+     * The key used to cache the sampler with VolumeArray.putDerived().
+     */
+    private static final Object KEY = BSplineCoefficients.class;
+    /**
+     * The pole of the cubic B-spline prefilter.
+     */
+    private static final double POLE = Math.sqrt(3) - 2;
+    /**
+     * The gain of the cubic B-spline prefilter.
+     */
+    private static final double GAIN = (1 - POLE) * (1 - 1 / POLE);
+    /**
+     * How far the causal filter is started before the beginning of a line.
+     */
+    private static final int HORIZON = (int) Math.ceil(Math.log(1e-9) / Math.log(Math.abs(POLE)));
+    private final VolumeArray volume;
+    /**
+     * getModCount() when this was made, or -1 if the coefficients aren't
+     * cached on the volume.
+     */
+    private final int modCount;
+    /**
+     * The coefficients of each time point that has been sampled, indexed by
+     * i5 * maxTime + time.
+     */
+    private final AtomicReferenceArray<float[]> coefficients;
+    private final int maxX;
+    private final int maxY;
+    private final int maxZ;
+    private final int maxTime;
+    private final int maxI5;
+
+    /**
+     * Identifies the coefficients of one time point with
+     * VolumeArray.putDerived().
+     */
+    private static class Key {
+
+        private final int time;
+        private final int i5;
+
+        Key(int time, int i5) {
+            this.time = time;
+            this.i5 = i5;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return time == other.time && i5 == other.i5;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * time + i5 + BSplineCoefficients.class.hashCode();
+        }
+    }
+
+    private BSplineCoefficients(VolumeArray volume, int modCount) {
+        this.volume = volume;
+        this.modCount = modCount;
+        this.maxX = volume.getMaxX();
+        this.maxY = volume.getMaxY();
+        this.maxZ = volume.getMaxZ();
+        this.maxTime = volume.getMaxTime();
+        this.maxI5 = volume.getMaxI5();
+        coefficients = new AtomicReferenceArray<float[]>(maxTime * maxI5);
+    }
+
+    /**
+     * Get the sampler for volume, making a new one only if the data has
+     * changed since the last one was made.
+     * @param volume
+     * @return The sampler
+     */
+    public static BSplineCoefficients get(VolumeArray volume) {
+        BSplineCoefficients spline = (BSplineCoefficients) volume.getDerived(KEY);
+        if (spline == null) {
+            int modCount = volume.getModCount();
+            spline = new BSplineCoefficients(volume, modCount);
+            volume.putDerived(KEY, spline, modCount);
+        }
+        return spline;
+    }
+
+    /**
+     * Make a sampler for volume that neither looks at nor changes the cache.
+     * Its coefficients are still computed as each time point is sampled.
+     * @param volume
+     * @return The sampler
+     */
+    public static BSplineCoefficients compute(VolumeArray volume) {
+        return new BSplineCoefficients(volume, -1);
+    }
+
+    /**
+     * Compute the coefficients of one time point now, for instance before
+     * sampling it from several threads so they don't each compute them.
+     * @param time
+     * @param i5
+     */
+    public void prepare(int time, int i5) {
+        if (time >= 0 && time < maxTime && i5 >= 0 && i5 < maxI5) {
+            coefficients(time, i5);
+        }
+    }
+
+    /**
+     * @return The coefficients of (time, i5), from this sampler, the cache on
+     * the volume or the prefilter, in that order.
+     */
+    private float[] coefficients(int time, int i5) {
+        int index = i5 * maxTime + time;
+        float[] c = coefficients.get(index);
+        if (c == null) {
+            Key key = new Key(time, i5);
+            if (modCount >= 0) {
+                c = (float[]) volume.getDerived(key);
+            }
+            if (c == null) {
+                c = compute(volume, time, i5);
+                if (modCount >= 0) {
+                    volume.putDerived(key, c, modCount);
+                }
+            }
+            coefficients.compareAndSet(index, null, c);
+            c = coefficients.get(index);
+        }
+        return c;
+    }
+
+    /**
+     * Run the prefilter over one time point of volume.
+     * @return The coefficients, in the standard layout of one time point.
+     */
+    private static float[] compute(final VolumeArray volume, final int time, final int i5) {
+        final int maxX = volume.getMaxX();
+        final int maxY = volume.getMaxY();
+        final int maxZ = volume.getMaxZ();
+        final int planeSize = maxX * maxY;
+        final float[] c = new float[planeSize * maxZ];
+        // x and y stay inside of a plane, so do both while the plane is at hand
+        ParallelLoop.run(0, maxZ, ParallelLoop.grain(maxZ, 1), new ParallelLoop.Body() {
+
+            public void run(int start, int end) {
+                double[] plane = new double[planeSize];
+                double[] line = new double[Math.max(maxX, maxY)];
+                for (int z = start; z < end; z++) {
+                    volume.getSeries(plane, 0, 0, z, time, i5, maxX, maxY, 1, 1, 1);
+                    for (int y = 0; y < maxY; y++) {
+                        filter(plane, y * maxX, 1, maxX, line);
+                    }
+                    for (int x = 0; x < maxX; x++) {
+                        filter(plane, x, maxX, maxY, line);
+                    }
+                    int base = z * planeSize;
+                    for (int i = 0; i < planeSize; i++) {
+                        c[base + i] = (float) plane[i];
+                    }
+                }
+            }
+        });
+        // z runs across planes, so it is a second pass over the columns
+        ParallelLoop.run(0, planeSize, ParallelLoop.grain(planeSize, maxX), new ParallelLoop.Body() {
+
+            public void run(int start, int end) {
+                double[] line = new double[maxZ];
+                for (int col = start; col < end; col++) {
+                    for (int z = 0; z < maxZ; z++) {
+                        line[z] = c[col + z * planeSize];
+                    }
+                    filter(line, 0, 1, maxZ, line);
+                    for (int z = 0; z < maxZ; z++) {
+                        c[col + z * planeSize] = (float) line[z];
+                    }
+                }
+            }
+        });
+        return c;
+    }
+
+    /**
+     * Run the prefilter in place on length values of data starting at offset
+     * and stride apart.
+     * @param line scratch space at least length long.
+     */
+    private static void filter(double[] data, int offset, int stride, int length, double[] line) {
+        if (length < 2) {
+            return;
+        }
+        for (int i = 0; i < length; i++) {
+            line[i] = data[offset + i * stride] * GAIN;
+        }
+        double z = POLE;
+        line[0] = initialCausal(line, length);
+        for (int i = 1; i < length; i++) {
+            line[i] += z * line[i - 1];
+        }
+        line[length - 1] = (z / (z * z - 1)) * (z * line[length - 2] + line[length - 1]);
+        for (int i = length - 2; i >= 0; i--) {
+            line[i] = z * (line[i + 1] - line[i]);
+        }
+        for (int i = 0; i < length; i++) {
+            data[offset + i * stride] = line[i];
+        }
+    }
+
+    /**
+     * The starting value of the causal filter for a line that is mirrored
+     * about its ends.
+     */
+    private static double initialCausal(double[] line, int length) {
+        double z = POLE;
+        if (HORIZON < length) {
+            double zn = z;
+            double sum = line[0];
+            for (int i = 1; i < HORIZON; i++) {
+                sum += zn * line[i];
+                zn *= z;
+            }
+            return sum;
+        }
+        double zn = z;
+        double iz = 1 / z;
+        double z2n = Math.pow(z, length - 1);
+        double sum = line[0] + z2n * line[length - 1];
+        z2n *= z2n * iz;
+        for (int i = 1; i < length - 1; i++) {
+            sum += (zn + z2n) * line[i];
+            zn *= z;
+            z2n *= iz;
+        }
+        return sum / (1 - zn * zn);
+    }
+
+    /**
+     * Evaluate the spline at (x,y,z) in voxel coordinates.
+     * @param x
+     * @param y
+     * @param z
+     * @param time
+     * @param i5
+     * @return The value, or 0 if (x,y,z,time,i5) is outside of the volume.
+     */
+    public double sample(float x, float y, float z, int time, int i5) {
+        if (!(x >= 0 && x <= maxX - 1 && y >= 0 && y <= maxY - 1 && z >= 0 && z <= maxZ - 1) ||
+                time < 0 || time >= maxTime || i5 < 0 || i5 >= maxI5) {
+            return 0;
+        }
+        int i = (int) x;
+        int j = (int) y;
+        int k = (int) z;
+        double wx0, wx1, wx2, wx3;
+        double wy0, wy1, wy2, wy3;
+        double wz0, wz1, wz2, wz3;
+        double t = x - i;
+        double t2 = t * t;
+        double t3 = t2 * t;
+        wx0 = (1 - 3 * t + 3 * t2 - t3) / 6;
+        wx1 = (4 - 6 * t2 + 3 * t3) / 6;
+        wx2 = (1 + 3 * t + 3 * t2 - 3 * t3) / 6;
+        wx3 = t3 / 6;
+        t = y - j;
+        t2 = t * t;
+        t3 = t2 * t;
+        wy0 = (1 - 3 * t + 3 * t2 - t3) / 6;
+        wy1 = (4 - 6 * t2 + 3 * t3) / 6;
+        wy2 = (1 + 3 * t + 3 * t2 - 3 * t3) / 6;
+        wy3 = t3 / 6;
+        t = z - k;
+        t2 = t * t;
+        t3 = t2 * t;
+        wz0 = (1 - 3 * t + 3 * t2 - t3) / 6;
+        wz1 = (4 - 6 * t2 + 3 * t3) / 6;
+        wz2 = (1 + 3 * t + 3 * t2 - 3 * t3) / 6;
+        wz3 = t3 / 6;
+
+        float[] coefficients = coefficients(time, i5);
+        int x0 = Stencil.mirror(i - 1, maxX);
+        int x1 = Stencil.mirror(i, maxX);
+        int x2 = Stencil.mirror(i + 1, maxX);
+        int x3 = Stencil.mirror(i + 2, maxX);
+        double answer = 0;
+        for (int dz = 0; dz < 4; dz++) {
+            double wz = dz == 0 ? wz0 : dz == 1 ? wz1 : dz == 2 ? wz2 : wz3;
+            int plane = Stencil.mirror(k - 1 + dz, maxZ) * maxY;
+            double sum = 0;
+            for (int dy = 0; dy < 4; dy++) {
+                double wy = dy == 0 ? wy0 : dy == 1 ? wy1 : dy == 2 ? wy2 : wy3;
+                int row = (plane + Stencil.mirror(j - 1 + dy, maxY)) * maxX;
+                sum += wy * (wx0 * coefficients[row + x0] + wx1 * coefficients[row + x1] +
+                        wx2 * coefficients[row + x2] + wx3 * coefficients[row + x3]);
+            }
+            answer += wz * sum;
+        }
+        return answer;
+    }
+}
@@ -0,0 +1,365 @@
+package edu.washington.biostr.sig.volume;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+import javax.vecmath.Matrix4d;
+
+import org.eiderman.util.ParallelLoop;
+
+/**
+ * Erosion, dilation, opening and closing of binary volumes with any
+ * structuring element.<br>
+ * Each row of x is packed into 64 bit words, so one shift and one or (or and)
+ * handles 64 voxels at a time.  The offsets of the element are grouped by
+ * their y and z, so each output row combines a few shifted copies of a few
+ * input rows.  The z planes are run in parallel.<br>
+ * Voxels outside of the volume are treated as unset, so erosion eats in from
+ * the edges of the volume.  Every time point and 5th dimension is handled on
+ * its own.
+ * @author Eider Moore
+ * @version 1.0
+ */
+public class BinaryMorphology {
+
+    /**
+     * The y offset of each group of offsets.
+     */
+    private final int[] groupY;
+    /**
+     * The z offset of each group of offsets.
+     */
+    private final int[] groupZ;
+    /**
+     * The x offsets in each group.
+     */
+    private final int[][] groupX;
+
+    /**
+     * Use the voxel itself and the offsets of element as the structuring
+     * element.  The voxel itself is always included, so that dilation never
+     * removes anything and erosion never adds anything.
+     * @param element
+     */
+    public BinaryMorphology(Stencil element) {
+        List<int[]> groups = new ArrayList<int[]>();
+        List<List<Integer>> xs = new ArrayList<List<Integer>>();
+        for (int i = -1; i < element.size(); i++) {
+            int dx = i < 0 ? 0 : element.getDX(i);
+            int dy = i < 0 ? 0 : element.getDY(i);
+            int dz = i < 0 ? 0 : element.getDZ(i);
+            int group = 0;
+            while (group < groups.size() && (groups.get(group)[0] != dy || groups.get(group)[1] != dz)) {
+                group++;
+            }
+            if (group == groups.size()) {
+                groups.add(new int[]{dy, dz});
+                xs.add(new ArrayList<Integer>());
+            }
+            if (!xs.get(group).contains(dx)) {
+                xs.get(group).add(dx);
+            }
+        }
+        groupY = new int[groups.size()];
+        groupZ = new int[groups.size()];
+        groupX = new int[groups.size()][];
+        for (int g = 0; g < groups.size(); g++) {
+            groupY[g] = groups.get(g)[0];
+            groupZ[g] = groups.get(g)[1];
+            groupX[g] = new int[xs.get(g).size()];
+            for (int i = 0; i < groupX[g].length; i++) {
+                groupX[g][i] = xs.get(g).get(i);
+            }
+        }
+    }
+
+    /**
+     * The voxel and its face (6), face and edge (18) or full (26) neighbours.
+     * @param connectivity 6, 18 or 26
+     * @return The morphology
+     */
+    public static BinaryMorphology connectivity(int connectivity) {
+        return new BinaryMorphology(Stencil.connectivity(connectivity));
+    }
+
+    /**
+     * Every voxel in a width x height x depth box centered on the voxel.
+     * @param width An odd number
+     * @param height An odd number
+     * @param depth An odd number
+     * @return The morphology
+     */
+    public static BinaryMorphology box(int width, int height, int depth) {
+        return new BinaryMorphology(Stencil.box(width, height, depth));
+    }
+
+    /**
+     * Dilate mask into a new volume.
+     * @param mask
+     * @param iterations The number of times to dilate.
+     * @return The dilated mask
+     */
+    public BitIndexedVolumeArray dilate(BitIndexedVolumeArray mask, int iterations) {
+        return dilate(mask, iterations, false);
+    }
+
+    /**
+     * Dilate mask, which sets every voxel that the element centered on it
+     * reaches a set voxel from.
+     * @param mask
+     * @param iterations The number of times to dilate.
+     * @param inPlace true to replace the data of mask, false to leave it
+     * alone and return a new volume.
+     * @return The dilated mask, which is mask if inPlace is true.
+     */
+    public BitIndexedVolumeArray dilate(BitIndexedVolumeArray mask, int iterations, boolean inPlace) {
+        return apply(mask, steps(0, iterations), inPlace);
+    }
+
+    /**
+     * Erode mask into a new volume.
+     * @param mask
+     * @param iterations The number of times to erode.
+     * @return The eroded mask
+     */
+    public BitIndexedVolumeArray erode(BitIndexedVolumeArray mask, int iterations) {
+        return erode(mask, iterations, false);
+    }
+
+    /**
+     * Erode mask, which keeps only the voxels where every voxel under the
+     * element is set.
+     * @param mask
+     * @param iterations The number of times to erode.
+     * @param inPlace true to replace the data of mask, false to leave it
+     * alone and return a new volume.
+     * @return The eroded mask, which is mask if inPlace is true.
+     */
+    public BitIndexedVolumeArray erode(BitIndexedVolumeArray mask, int iterations, boolean inPlace) {
+        return apply(mask, steps(iterations, 0), inPlace);
+    }
+
+    /**
+     * Open mask into a new volume.
+     * @param mask
+     * @param iterations The number of times to erode, and then to dilate.
+     * @return The opened mask
+     */
+    public BitIndexedVolumeArray open(BitIndexedVolumeArray mask, int iterations) {
+        return open(mask, iterations, false);
+    }
+
+    /**
+     * Open mask, which erodes it and then dilates it the same number of
+     * times.  This removes specks and thin bridges.
+     * @param mask
+     * @param iterations The number of times to erode, and then to dilate.
+     * @param inPlace true to replace the data of mask, false to leave it
+     * alone and return a new volume.
+     * @return The opened mask, which is mask if inPlace is true.
+     */
+    public BitIndexedVolumeArray open(BitIndexedVolumeArray mask, int iterations, boolean inPlace) {
+        return apply(mask, steps(iterations, iterations), inPlace);
+    }
+
+    /**
+     * Close mask into a new volume.
+     * @param mask
+     * @param iterations The number of times to dilate, and then to erode.
+     * @return The closed mask
+     */
+    public BitIndexedVolumeArray close(BitIndexedVolumeArray mask, int iterations) {
+        return close(mask, iterations, false);
+    }
+
+    /**
+     * Close mask, which dilates it and then erodes it the same number of
+     * times.  This fills small holes and gaps.
+     * @param mask
+     * @param iterations The number of times to dilate, and then to erode.
+     * @param inPlace true to replace the data of mask, false to leave it
+     * alone and return a new volume.
+     * @return The closed mask, which is mask if inPlace is true.
+     */
+    public BitIndexedVolumeArray close(BitIndexedVolumeArray mask, int iterations, boolean inPlace) {
+        boolean[] steps = steps(iterations, iterations);
+        for (int i = 0; i < steps.length; i++) {
+            steps[i] = !steps[i];
+        }
+        return apply(mask, steps, inPlace);
+    }
+
+    /**
+     * @return erosions false values followed by dilations true values.
+     */
+    private static boolean[] steps(int erosions, int dilations) {
+        if (erosions < 0 || dilations < 0) {
+            throw new IllegalArgumentException("The number of iterations can't be negative");
+        }
+        boolean[] steps = new boolean[erosions + dilations];
+        for (int i = erosions; i < steps.length; i++) {
+            steps[i] = true;
+        }
+        return steps;
+    }
+
+    /**
+     * Run the steps (true to dilate, false to erode) on each time point and
+     * 5th dimension of mask.
+     */
+    private BitIndexedVolumeArray apply(BitIndexedVolumeArray mask, boolean[] steps, boolean inPlace) {
+        final int maxX = mask.getMaxX();
+        final int maxY = mask.getMaxY();
+        final int maxZ = mask.getMaxZ();
+        final int words = (maxX + 63) / 64;
+        long[] source = mask.bits.toLongArray();
+        long[] result = new long[(int) (((long) maxX * maxY * maxZ * mask.getMaxTime() * mask.getMaxI5() + 63) / 64)];
+        long[] a = new long[words * maxY * maxZ];
+        long[] b = new long[a.length];
+        for (int i5 = 0; i5 < mask.getMaxI5(); i5++) {
+            for (int t = 0; t < mask.getMaxTime(); t++) {
+                boolean empty = true;
+                for (int z = 0; z < maxZ; z++) {
+                    for (int y = 0; y < maxY; y++) {
+                        empty &= !readRow(source, mask.getIndex(0, y, z, t, i5), maxX, a, (z * maxY + y) * words);
+                    }
+                }
+                if (empty) {
+                    // every step leaves an empty volume empty
+                    continue;
+                }
+                for (boolean dilate : steps) {
+                    step(a, b, maxX, maxY, maxZ, dilate);
+                    long[] swap = a;
+                    a = b;
+                    b = swap;
+                }
+                for (int z = 0; z < maxZ; z++) {
+                    for (int y = 0; y < maxY; y++) {
+                        writeRow(a, (z * maxY + y) * words, maxX, result, mask.getIndex(0, y, z, t, i5));
+                    }
+                }
+            }
+        }
+        BitSet bits = BitSet.valueOf(result);
+        if (inPlace) {
+            mask.bits.clear();
+            mask.bits.or(bits);
+            mask.markModified();
+            return mask;
+        }
+        return new BitIndexedVolumeArray(maxX, maxY, maxZ, mask.getMaxTime(), mask.getMaxI5(),
+                new Matrix4d(mask.getIndex2Space()), bits);
+    }
+
+    /**
+     * Dilate or erode the packed rows of one volume in source into dest.
+     */
+    private void step(final long[] source, final long[] dest, final int maxX, final int maxY, final int maxZ,
+            final boolean dilate) {
+        final int words = (maxX + 63) / 64;
+        final long last = maxX % 64 == 0 ? -1L : (1L << (maxX % 64)) - 1;
+        ParallelLoop.run(0, maxZ, ParallelLoop.grain(maxZ, 1), new ParallelLoop.Body() {
+
+            public void run(int start, int end) {
+                long[] row = new long[words];
+                for (int z = start; z < end; z++) {
+                    for (int y = 0; y < maxY; y++) {
+                        boolean inside = true;
+                        Arrays.fill(row, dilate ? 0 : -1L);
+                        for (int g = 0; g < groupX.length && inside; g++) {
+                            // dilation reads from p - offset and erosion from p + offset
+                            int sy = dilate ? y - groupY[g] : y + groupY[g];
+                            int sz = dilate ? z - groupZ[g] : z + groupZ[g];
+                            if (sy < 0 || sy >= maxY || sz < 0 || sz >= maxZ) {
+                                inside = dilate;
+                                continue;
+                            }
+                            int offset = (sz * maxY + sy) * words;
+                            for (int dx : groupX[g]) {
+                                int shift = dilate ? dx : -dx;
+                                for (int w = 0; w < words; w++) {
+                                    if (dilate) {
+                                        row[w] |= shifted(source, offset, words, w, shift);
+                                    } else {
+                                        row[w] &= shifted(source, offset, words, w, shift);
+                                    }
+                                }
+                            }
+                        }
+                        int offset = (z * maxY + y) * words;
+                        if (!inside) {
+                            Arrays.fill(dest, offset, offset + words, 0);
+                            continue;
+                        }
+                        System.arraycopy(row, 0, dest, offset, words);
+                        dest[offset + words - 1] &= last;
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * @return Word w of the row of words words starting at offset, moved
+     * toward larger x by shift bits (which may be negative).  Bits that come
+     * from outside of the row are 0.
+     */
+    private static long shifted(long[] row, int offset, int words, int w, int shift) {
+        int from = w - (shift >> 6);
+        int bits = shift & 63;
+        long rv = from >= 0 && from < words ? row[offset + from] << bits : 0;
+        if (bits != 0 && from >= 1 && from <= words) {
+            rv |= row[offset + from - 1] >>> (64 - bits);
+        }
+        return rv;
+    }
+
+    /**
+     * Copy the maxX bits starting at bit start of flat into the words
+     * starting at offset of dest.
+     * @return true if any of them are set
+     */
+    private static boolean readRow(long[] flat, long start, int maxX, long[] dest, int offset) {
+        int words = (maxX + 63) / 64;
+        long any = 0;
+        for (int w = 0; w < words; w++) {
+            long bit = start + 64L * w;
+            int i = (int) (bit >>> 6);
+            int shift = (int) (bit & 63);
+            long word = i < flat.length ? flat[i] >>> shift : 0;
+            if (shift != 0 && i + 1 < flat.length) {
+                word |= flat[i + 1] << (64 - shift);
+            }
+            if (w == words - 1 && maxX % 64 != 0) {
+                word &= (1L << (maxX % 64)) - 1;
+            }
+            dest[offset + w] = word;
+            any |= word;
+        }
+        return any != 0;
+    }
+
+    /**
+     * Or the row of maxX bits in the words starting at offset of row into
+     * flat starting at bit start.
+     */
+    private static void writeRow(long[] row, int offset, int maxX, long[] flat, long start) {
+        int words = (maxX + 63) / 64;
+        for (int w = 0; w < words; w++) {
+            long word = row[offset + w];
+            if (word == 0) {
+                continue;
+            }
+            long bit = start + 64L * w;
+            int i = (int) (bit >>> 6);
+            int shift = (int) (bit & 63);
+            flat[i] |= word << shift;
+            if (shift != 0 && i + 1 < flat.length) {
+                flat[i + 1] |= word >>> (64 - shift);
+            }
+        }
+    }
+}
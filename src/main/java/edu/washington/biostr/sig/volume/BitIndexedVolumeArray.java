@@ -53,11 +53,13 @@ public class BitIndexedVolumeArray extends IndexedVolumeArray {
     @Override
     public void setData(int index, double value) {
         bits.set(index, value > 0);
+        markModified();
     }
 
     @Override
     public void setData(int index, int value) {
         bits.set(index, value > 0);
+        markModified();
     }
     
     @Override
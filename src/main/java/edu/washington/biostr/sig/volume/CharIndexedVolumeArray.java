@@ -60,13 +60,75 @@ class CharIndexedVolumeArray
     public void setData(int index, double value) {
         char v = (char) Math.round(value);
         array[index] = v;
+        markModified();
     }
 
     @Override
     public void setData(int index, int value) {
         array[index] = (char) value;
+        markModified();
     }
     
+    @Override
+    protected void getRun(int index, int stride, double[] dst, int offset, int length) {
+        for (int i = 0; i < length; i++) {
+            dst[offset + i] = array[index];
+            index += stride;
+        }
+    }
+
+    @Override
+    protected void getRun(int index, int stride, float[] dst, int offset, int length) {
+        for (int i = 0; i < length; i++) {
+            dst[offset + i] = array[index];
+            index += stride;
+        }
+    }
+
+    @Override
+    protected void getRun(int index, int stride, int[] dst, int offset, int length) {
+        for (int i = 0; i < length; i++) {
+            dst[offset + i] = array[index];
+            index += stride;
+        }
+    }
+
+    @Override
+    protected void getRun(int index, int stride, short[] dst, int offset, int length) {
+        for (int i = 0; i < length; i++) {
+            dst[offset + i] = (short) array[index];
+            index += stride;
+        }
+    }
+
+    @Override
+    protected void setRun(int index, int stride, double[] src, int offset, int length) {
+        for (int i = 0; i < length; i++) {
+            array[index] = (char) Math.round(src[offset + i]);
+            index += stride;
+        }
+        markModified();
+    }
+
+    @Override
+    protected void setRun(int index, int stride, int[] src, int offset, int length) {
+        for (int i = 0; i < length; i++) {
+            array[index] = (char) src[offset + i];
+            index += stride;
+        }
+        markModified();
+    }
+
+    @Override
+    protected void visitRow(VoxelVisitor visitor, int index, int x0, int width,
+            int y, int z, int t, int i5) {
+        int stride = xStride;
+        for (int x = x0; x < x0 + width; x++) {
+            visitor.visit(x, y, z, t, i5, index, array[index]);
+            index += stride;
+        }
+    }
+
     @Override
     public Object getDataArray() {
     	return array;
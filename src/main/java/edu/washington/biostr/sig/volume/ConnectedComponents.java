@@ -0,0 +1,317 @@
+package edu.washington.biostr.sig.volume;
+
+import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+
+import java.awt.Color;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.vecmath.Matrix4d;
+
+import org.eiderman.util.ParallelLoop;
+
+/**
+ * Find the connected clusters of voxels above a threshold and label them as
+ * an atlas.<br>
+ * The labelling is a union-find over the voxel indices.  The volume is cut
+ * into slabs of z planes, and each slab joins its voxels to their earlier
+ * neighbours inside the slab in parallel.  A merge pass then joins the
+ * voxels on either side of each cut.  Every tree is rooted at its smallest
+ * index, so a pass in index order flattens the trees and a second one
+ * numbers them, with no recursion or stack.<br>
+ * Components are numbered from 1 in order of decreasing size (ties go to the
+ * one that starts first).  Each gets an AtlasElement that records its size
+ * and peak in its info (voxels, peak, peakX, peakY, peakZ), so the result
+ * can be rendered and saved like any other atlas.  Every time point and 5th
+ * dimension is labelled on its own and numbered after the ones before it.
+ * @author Eider Moore
+ * @version 1.0
+ */
+public class ConnectedComponents {
+
+    private final IndexedAtlasVolumeArray atlas;
+    private final int[] sizes;
+    private final double[] peaks;
+    private final int[][] peakLocations;
+
+    private ConnectedComponents(IndexedAtlasVolumeArray atlas, int[] sizes, double[] peaks, int[][] peakLocations) {
+        this.atlas = atlas;
+        this.sizes = sizes;
+        this.peaks = peaks;
+        this.peakLocations = peakLocations;
+    }
+
+    /**
+     * Label the clusters of non zero voxels.
+     * @param volume A binary or thresholded volume
+     * @param connectivity 6, 18 or 26
+     * @return The components
+     */
+    public static ConnectedComponents label(VolumeArray volume, int connectivity) {
+        return label(volume, Double.NaN, connectivity);
+    }
+
+    /**
+     * Label the clusters of voxels above threshold.
+     * @param volume The data, for instance a statistical map
+     * @param threshold Voxels strictly greater than this are in a cluster.  NaN
+     * means every non zero voxel is.
+     * @param connectivity 6, 18 or 26
+     * @return The components
+     */
+    public static ConnectedComponents label(final VolumeArray volume, final double threshold, int connectivity) {
+        final int maxX = volume.getMaxX();
+        final int maxY = volume.getMaxY();
+        final int maxZ = volume.getMaxZ();
+        final int maxT = volume.getMaxTime();
+        final int maxI5 = volume.getMaxI5();
+        final int planeSize = maxX * maxY;
+        final int volumeSize = planeSize * maxZ;
+        final int[] parent = new int[volumeSize * maxT * maxI5];
+
+        // only the neighbours that come before a voxel are joined to it
+        Stencil all = Stencil.connectivity(connectivity);
+        final int[] dx = new int[connectivity / 2];
+        final int[] dy = new int[dx.length];
+        final int[] dz = new int[dx.length];
+        int n = 0;
+        for (int k = 0; k < all.size(); k++) {
+            if (all.getDZ(k) < 0 || (all.getDZ(k) == 0 && all.getDY(k) < 0) ||
+                    (all.getDZ(k) == 0 && all.getDY(k) == 0 && all.getDX(k) < 0)) {
+                dx[n] = all.getDX(k);
+                dy[n] = all.getDY(k);
+                dz[n] = all.getDZ(k);
+                n++;
+            }
+        }
+
+        final int slabDepth = ParallelLoop.grain(maxZ, 4);
+        final int slabs = (maxZ + slabDepth - 1) / slabDepth;
+        final int count = slabs * maxT * maxI5;
+        ParallelLoop.run(0, count, 1, new ParallelLoop.Body() {
+
+            public void run(int start, int end) {
+                double[] plane = new double[planeSize];
+                for (int s = start; s < end; s++) {
+                    int slab = s % slabs;
+                    int t = (s / slabs) % maxT;
+                    int i5 = s / (slabs * maxT);
+                    int base = (i5 * maxT + t) * volumeSize;
+                    int zStart = slab * slabDepth;
+                    int zEnd = Math.min(maxZ, zStart + slabDepth);
+                    for (int z = zStart; z < zEnd; z++) {
+                        volume.getSeries(plane, 0, 0, z, t, i5, maxX, maxY, 1, 1, 1);
+                        int index = base + z * planeSize;
+                        for (int y = 0; y < maxY; y++) {
+                            for (int x = 0; x < maxX; x++, index++) {
+                                double value = plane[y * maxX + x];
+                                boolean set = Double.isNaN(threshold) ? value != 0 && value == value : value > threshold;
+                                if (!set) {
+                                    parent[index] = -1;
+                                    continue;
+                                }
+                                parent[index] = index;
+                                joinEarlier(parent, index, x, y, z, zStart, maxX, maxY, dx, dy, dz);
+                            }
+                        }
+                    }
+                }
+            }
+        });
+
+        // join across the cuts between the slabs
+        for (int s = 0; s < count; s++) {
+            int slab = s % slabs;
+            if (slab == 0) {
+                continue;
+            }
+            int z = slab * slabDepth;
+            int index = ((s / slabs) * maxZ + z) * planeSize;
+            for (int y = 0; y < maxY; y++) {
+                for (int x = 0; x < maxX; x++, index++) {
+                    if (parent[index] >= 0) {
+                        joinEarlier(parent, index, x, y, z, z - 1, maxX, maxY, dx, dy, dz);
+                    }
+                }
+            }
+        }
+
+        // each voxel's parent comes before it, so in index order its parent is already flattened to the root
+        for (int i = 0; i < parent.length; i++) {
+            if (parent[i] >= 0) {
+                parent[i] = parent[parent[i]];
+            }
+        }
+        // then number the roots, reusing parent for the labels
+        final int[] labels = parent;
+        int components = 0;
+        int[] firstLabel = new int[maxT * maxI5 + 1];
+        for (int v = 0; v < maxT * maxI5; v++) {
+            firstLabel[v] = components + 1;
+            for (int i = v * volumeSize; i < (v + 1) * volumeSize; i++) {
+                int p = parent[i];
+                labels[i] = p < 0 ? 0 : (p == i ? ++components : labels[p]);
+            }
+        }
+        firstLabel[maxT * maxI5] = components + 1;
+
+        int[] sizes = new int[components + 1];
+        double[] peaks = new double[components + 1];
+        int[] peakIndex = new int[components + 1];
+        Arrays.fill(peaks, Double.NEGATIVE_INFINITY);
+        double[] plane = new double[planeSize];
+        for (int i5 = 0; i5 < maxI5; i5++) {
+            for (int t = 0; t < maxT; t++) {
+                for (int z = 0; z < maxZ; z++) {
+                    volume.getSeries(plane, 0, 0, z, t, i5, maxX, maxY, 1, 1, 1);
+                    int base = ((i5 * maxT + t) * maxZ + z) * planeSize;
+                    for (int i = 0; i < planeSize; i++) {
+                        int label = labels[base + i];
+                        if (label != 0) {
+                            sizes[label]++;
+                            if (plane[i] > peaks[label]) {
+                                peaks[label] = plane[i];
+                                peakIndex[label] = base + i;
+                            }
+                        }
+                    }
+                }
+            }
+        }
+
+        // renumber each volume's components by decreasing size, sorting the size and label packed into a long
+        final int[] order = new int[components + 1];
+        for (int v = 0; v < maxT * maxI5; v++) {
+            int first = firstLabel[v];
+            long[] keys = new long[firstLabel[v + 1] - first];
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = ((long) (Integer.MAX_VALUE - sizes[first + i]) << 32) | (first + i);
+            }
+            Arrays.sort(keys);
+            for (int i = 0; i < keys.length; i++) {
+                order[(int) keys[i]] = first + i;
+            }
+        }
+        ParallelLoop.run(0, labels.length, ParallelLoop.grain(labels.length, 1 << 16), new ParallelLoop.Body() {
+
+            public void run(int start, int end) {
+                for (int i = start; i < end; i++) {
+                    labels[i] = order[labels[i]];
+                }
+            }
+        });
+
+        int[] newSizes = new int[components + 1];
+        double[] newPeaks = new double[components + 1];
+        int[][] peakLocations = new int[components + 1][];
+        Int2ObjectMap<AtlasElement> elements = new Int2ObjectOpenHashMap<AtlasElement>(components);
+        for (int label = 1; label <= components; label++) {
+            int to = order[label];
+            int index = peakIndex[label];
+            int[] location = new int[]{index % maxX, (index / maxX) % maxY, (index / planeSize) % maxZ,
+                    (index / volumeSize) % maxT, index / (volumeSize * maxT)};
+            newSizes[to] = sizes[label];
+            newPeaks[to] = peaks[label];
+            peakLocations[to] = location;
+            Map<String, String> info = new HashMap<String, String>();
+            info.put("voxels", Integer.toString(sizes[label]));
+            info.put("peak", Double.toString(peaks[label]));
+            info.put("peakX", Integer.toString(location[0]));
+            info.put("peakY", Integer.toString(location[1]));
+            info.put("peakZ", Integer.toString(location[2]));
+            // spread the hues by the golden ratio so neighbouring numbers look different
+            int color = Color.HSBtoRGB((float) ((to * 0.6180339887) % 1), 0.8f, 1f);
+            elements.put(to, new AtlasElement(to, "C" + to, color, "Component " + to, "component" + to, info));
+        }
+        IntIndexedVolumeArray backing = new IntIndexedVolumeArray(maxX, maxY, maxZ, maxT, maxI5,
+                new Matrix4d(volume.getIndex2Space()), labels);
+        return new ConnectedComponents(new IndexedAtlasVolumeArray(backing, elements), newSizes, newPeaks,
+                peakLocations);
+    }
+
+    /**
+     * @return The labelled components.  The backing volume holds each
+     * voxel's component number, or 0.
+     */
+    public IndexedAtlasVolumeArray getAtlas() {
+        return atlas;
+    }
+
+    /**
+     * @return The number of components.
+     */
+    public int getCount() {
+        return sizes.length - 1;
+    }
+
+    /**
+     * @param label A component number, from 1 to getCount()
+     * @return The number of voxels in the component.
+     */
+    public int getSize(int label) {
+        return sizes[label];
+    }
+
+    /**
+     * @param label A component number, from 1 to getCount()
+     * @return The largest value in the component.
+     */
+    public double getPeak(int label) {
+        return peaks[label];
+    }
+
+    /**
+     * @param label A component number, from 1 to getCount()
+     * @return The x, y, z, time and i5 of the first voxel with the largest
+     * value in the component.
+     */
+    public int[] getPeakLocation(int label) {
+        return peakLocations[label].clone();
+    }
+
+    /**
+     * Join index to the neighbours before it, by dx, dy and dz, that are
+     * inside of the volume and at or after zStart.
+     */
+    private static void joinEarlier(int[] parent, int index, int x, int y, int z, int zStart, int maxX, int maxY,
+            int[] dx, int[] dy, int[] dz) {
+        for (int k = 0; k < dx.length; k++) {
+            int nx = x + dx[k];
+            int ny = y + dy[k];
+            int nz = z + dz[k];
+            if (nx < 0 || nx >= maxX || ny < 0 || ny >= maxY || nz < zStart) {
+                continue;
+            }
+            int neighbour = index + dx[k] + maxX * (dy[k] + maxY * dz[k]);
+            if (parent[neighbour] >= 0) {
+                union(parent, index, neighbour);
+            }
+        }
+    }
+
+    /**
+     * @return The root of i, halving the path on the way.
+     */
+    private static int find(int[] parent, int i) {
+        while (parent[i] != i) {
+            parent[i] = parent[parent[i]];
+            i = parent[i];
+        }
+        return i;
+    }
+
+    /**
+     * Join the trees of a and b under the smaller root.
+     */
+    private static void union(int[] parent, int a, int b) {
+        int ra = find(parent, a);
+        int rb = find(parent, b);
+        if (ra < rb) {
+            parent[rb] = ra;
+        } else if (rb < ra) {
+            parent[ra] = rb;
+        }
+    }
+}
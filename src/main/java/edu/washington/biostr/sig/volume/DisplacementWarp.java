@@ -0,0 +1,256 @@
+package edu.washington.biostr.sig.volume;
+
+import javax.vecmath.Matrix4d;
+import javax.vecmath.Point3d;
+
+import org.eiderman.util.ParallelLoop;
+
+/**
+ * Warp volumes with a dense displacement field, such as a NIfTI vector
+ * image (NIFTI_INTENT_DISPVECT or NIFTI_INTENT_VECTOR) loaded as a
+ * VolumeArray with the x, y and z components along i5.<br>
+ * For a point w in the space of the output, the value is taken from the
+ * source at w + u(w), where u is the field interpolated at w.  The
+ * displacements are in the units of the field's space (mm for NIfTI).  An
+ * absolute field (a deformation, like SPM's y_ images) holds the position
+ * itself instead, so the source is sampled at u(w).<br>
+ * Affines can be composed on either side with compose(), so a warp that is
+ * followed by a rigid registration, for example, is still a single pass.
+ * The output is produced a z slab at a time in parallel and each row of
+ * source coordinates is handed to the same samplers as Resampler, so
+ * nearest neighbor, linear, cubic B-spline and Lanczos all work.
+ * @author Eider Moore
+ * @version 1.0
+ */
+public class DisplacementWarp {
+
+    private final VolumeArray field;
+    /** field, if it can be read by index. */
+    private final IndexedVolumeArray indexedField;
+    private final boolean absolute;
+    /** Applied to output space points before the field is looked up. */
+    private final Matrix4d before;
+    /** Applied to the displaced points before the source is sampled. */
+    private final Matrix4d after;
+
+    /**
+     * Create a warp from a displacement field.
+     * @param field A volume with 3 i5 components (the x, y and z
+     * displacement) and one time point.
+     */
+    public DisplacementWarp(VolumeArray field) {
+        this(field, false);
+    }
+
+    /**
+     * Create a warp from a vector field.
+     * @param field A volume with 3 i5 components and one time point.
+     * @param absolute true if the field holds positions rather than
+     * displacements.
+     */
+    public DisplacementWarp(VolumeArray field, boolean absolute) {
+        this(field, absolute, identity(), identity());
+    }
+
+    private DisplacementWarp(VolumeArray field, boolean absolute, Matrix4d before, Matrix4d after) {
+        if (field.getMaxI5() != 3) {
+            throw new IllegalArgumentException("A displacement field needs 3 components along i5, not " +
+                    field.getMaxI5());
+        }
+        if (field.getMaxTime() != 1) {
+            throw new IllegalArgumentException("A displacement field has one time point, not " +
+                    field.getMaxTime());
+        }
+        this.field = field;
+        this.indexedField = field instanceof IndexedVolumeArray ? (IndexedVolumeArray) field : null;
+        this.absolute = absolute;
+        this.before = before;
+        this.after = after;
+    }
+
+    private static Matrix4d identity() {
+        Matrix4d m = new Matrix4d();
+        m.setIdentity();
+        return m;
+    }
+
+    /**
+     * Make a warp that maps a point w to after(warp(before(w))).
+     * @param before An affine applied to output points before the field is
+     * looked up, or null for none.
+     * @param after An affine applied to the warped points before the source
+     * is sampled, or null for none.
+     * @return The new warp.  This one is unchanged.
+     */
+    public DisplacementWarp compose(Matrix4d before, Matrix4d after) {
+        Matrix4d b = new Matrix4d(this.before);
+        if (before != null) {
+            b.mul(before);
+        }
+        Matrix4d a = new Matrix4d(this.after);
+        if (after != null) {
+            a.mul(after, a);
+        }
+        return new DisplacementWarp(field, absolute, b, a);
+    }
+
+    /**
+     * @return The vector field.
+     */
+    public VolumeArray getField() {
+        return field;
+    }
+
+    /**
+     * Warp source onto the grid of the field.
+     * @param source
+     * @param type The data type of the result
+     * @param interpolation How to find values between source voxels
+     * @return The warped volume
+     */
+    public VolumeArray apply(VolumeArray source, DataType type, Interpolation interpolation) {
+        VolumeArray target = VolumeArrayFactory.createVolumeDataBuffer(new Matrix4d(field.getIndex2Space()),
+                field.getMaxX(), field.getMaxY(), field.getMaxZ(), source.getMaxTime(), source.getMaxI5(), type);
+        applyInto(source, target, interpolation);
+        return target;
+    }
+
+    /**
+     * Warp source into target.  target may be any grid, the field is
+     * interpolated where it doesn't line up and points past its edge use
+     * the displacement at the edge.  target must have the same number of
+     * time points and i5 as source.
+     * @param source
+     * @param target
+     * @param interpolation How to find values between source voxels
+     */
+    public void applyInto(final VolumeArray source, final VolumeArray target,
+            final Interpolation interpolation) {
+        if (source.getMaxTime() != target.getMaxTime() || source.getMaxI5() != target.getMaxI5()) {
+            throw new IllegalArgumentException("The source and target must have the same time points and i5");
+        }
+        if (interpolation == null) {
+            throw new IllegalArgumentException("interpolation cannot be null");
+        }
+        // target index -> space the field is defined in
+        final Matrix4d toField = new Matrix4d();
+        toField.mul(before, target.getIndex2Space());
+        // target index -> field index
+        final Matrix4d toFieldIndex = new Matrix4d();
+        toFieldIndex.mul(field.getSpace2Index(), toField);
+        // warped space -> source index
+        final Matrix4d toSource = new Matrix4d();
+        toSource.mul(source.getSpace2Index(), after);
+        final boolean onGrid = toFieldIndex.epsilonEquals(identity(), 1e-6) &&
+                field.getMaxX() == target.getMaxX() && field.getMaxY() == target.getMaxY() &&
+                field.getMaxZ() == target.getMaxZ();
+        final int maxX = target.getMaxX();
+        final int maxY = target.getMaxY();
+        final int maxZ = target.getMaxZ();
+        final int maxTime = target.getMaxTime();
+        final int maxI5 = target.getMaxI5();
+        ParallelLoop.run(0, maxZ, ParallelLoop.grain(maxZ, 1), new ParallelLoop.Body() {
+
+            public void run(int start, int end) {
+                float[] xs = new float[maxX];
+                float[] ys = new float[maxX];
+                float[] zs = new float[maxX];
+                double[] row = new double[maxX];
+                double[][] u = new double[3][maxX];
+                double[] displacement = new double[3];
+                Point3d p = new Point3d();
+                VoxelSampler sampler = source.getSampler(interpolation);
+                for (int z = start; z < end; z++) {
+                    for (int y = 0; y < maxY; y++) {
+                        if (onGrid) {
+                            for (int c = 0; c < 3; c++) {
+                                field.getSeries(u[c], 0, y, z, 0, c, maxX, 1, 1, 1, 1);
+                            }
+                        } else {
+                            for (int x = 0; x < maxX; x++) {
+                                p.set(x, y, z);
+                                toFieldIndex.transform(p);
+                                sampleField(p.x, p.y, p.z, displacement);
+                                for (int c = 0; c < 3; c++) {
+                                    u[c][x] = displacement[c];
+                                }
+                            }
+                        }
+                        for (int x = 0; x < maxX; x++) {
+                            if (absolute) {
+                                p.set(u[0][x], u[1][x], u[2][x]);
+                            } else {
+                                p.set(x, y, z);
+                                toField.transform(p);
+                                p.x += u[0][x];
+                                p.y += u[1][x];
+                                p.z += u[2][x];
+                            }
+                            toSource.transform(p);
+                            xs[x] = (float) p.x;
+                            ys[x] = (float) p.y;
+                            zs[x] = (float) p.z;
+                        }
+                        for (int i5 = 0; i5 < maxI5; i5++) {
+                            for (int t = 0; t < maxTime; t++) {
+                                Resampler.sampleRow(source, sampler, xs, ys, zs, t, i5, interpolation, row);
+                                Resampler.writeRow(target, y, z, t, i5, row);
+                            }
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Trilinearly interpolate the 3 components of the field at (x,y,z) in
+     * field indices into dest, clamping to the edge of the field.  The corners
+     * are found once for all of the components and an indexed field is read
+     * by index.
+     */
+    private void sampleField(double x, double y, double z, double[] dest) {
+        int maxX = field.getMaxX();
+        int maxY = field.getMaxY();
+        int maxZ = field.getMaxZ();
+        x = Math.max(0, Math.min(maxX - 1, x));
+        y = Math.max(0, Math.min(maxY - 1, y));
+        z = Math.max(0, Math.min(maxZ - 1, z));
+        int i = Math.min((int) x, maxX - 2 < 0 ? 0 : maxX - 2);
+        int j = Math.min((int) y, maxY - 2 < 0 ? 0 : maxY - 2);
+        int k = Math.min((int) z, maxZ - 2 < 0 ? 0 : maxZ - 2);
+        int i1 = Math.min(i + 1, maxX - 1);
+        int j1 = Math.min(j + 1, maxY - 1);
+        int k1 = Math.min(k + 1, maxZ - 1);
+        double fx = x - i;
+        double fy = y - j;
+        double fz = z - k;
+        if (indexedField != null) {
+            IndexedVolumeArray f = indexedField;
+            int dx = (i1 - i) * f.xStride;
+            int dy = (j1 - j) * f.yStride;
+            int dz = (k1 - k) * f.zStride;
+            int index = f.getIndex(i, j, k, 0, 0);
+            for (int c = 0; c < 3; c++) {
+                double c00 = lerp(f.getDouble(index), f.getDouble(index + dx), fx);
+                double c10 = lerp(f.getDouble(index + dy), f.getDouble(index + dy + dx), fx);
+                double c01 = lerp(f.getDouble(index + dz), f.getDouble(index + dz + dx), fx);
+                double c11 = lerp(f.getDouble(index + dz + dy), f.getDouble(index + dz + dy + dx), fx);
+                dest[c] = lerp(lerp(c00, c10, fy), lerp(c01, c11, fy), fz);
+                index += f.i5Stride;
+            }
+            return;
+        }
+        for (int c = 0; c < 3; c++) {
+            double c00 = lerp(field.getDouble(i, j, k, 0, c), field.getDouble(i1, j, k, 0, c), fx);
+            double c10 = lerp(field.getDouble(i, j1, k, 0, c), field.getDouble(i1, j1, k, 0, c), fx);
+            double c01 = lerp(field.getDouble(i, j, k1, 0, c), field.getDouble(i1, j, k1, 0, c), fx);
+            double c11 = lerp(field.getDouble(i, j1, k1, 0, c), field.getDouble(i1, j1, k1, 0, c), fx);
+            dest[c] = lerp(lerp(c00, c10, fy), lerp(c01, c11, fy), fz);
+        }
+    }
+
+    private static double lerp(double a, double b, double f) {
+        return a + f * (b - a);
+    }
+}
@@ -0,0 +1,225 @@
+package edu.washington.biostr.sig.volume;
+
+import javax.vecmath.Matrix4d;
+
+import org.eiderman.util.ParallelLoop;
+
+/**
+ * Exact Euclidean distance maps of masks, in mm.<br>
+ * The squared distance is found one axis at a time (Felzenszwalb and
+ * Huttenlocher): along each line it is the lower envelope of a parabola
+ * rooted at every voxel, which takes time proportional to the length of the
+ * line.  The parabolas are scaled by the size of a voxel along the axis, so
+ * voxels that are not cubes get true distances.  The lines of each pass are
+ * run in parallel.<br>
+ * A voxel is in the mask if it is not 0 (or NaN), or if it is greater than a
+ * threshold.  Every time point and 5th dimension is handled on its own.
+ * @author Eider Moore
+ * @version 1.0
+ */
+public class DistanceTransform {
+
+    private DistanceTransform() {
+    }
+
+    /**
+     * @param mask
+     * @return The distance from each voxel to the nearest voxel in mask,
+     * which is 0 in the mask, or infinity if mask is empty.
+     */
+    public static FloatIndexedVolumeArray distance(VolumeArray mask) {
+        return distance(mask, Double.NaN);
+    }
+
+    /**
+     * @param volume
+     * @param threshold Voxels greater than this are in the mask, NaN for
+     * voxels that are not 0.
+     * @return The distance from each voxel to the nearest voxel in the mask,
+     * which is 0 in the mask, or infinity if the mask is empty.
+     */
+    public static FloatIndexedVolumeArray distance(VolumeArray volume, double threshold) {
+        float[] data = squaredDistance(volume, threshold, true);
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (float) Math.sqrt(data[i]);
+        }
+        return create(volume, data);
+    }
+
+    /**
+     * @param mask
+     * @return The signed distance to the edge of mask.
+     * @see #signedDistance(VolumeArray, double)
+     */
+    public static FloatIndexedVolumeArray signedDistance(VolumeArray mask) {
+        return signedDistance(mask, Double.NaN);
+    }
+
+    /**
+     * Outside of the mask this is the distance to the nearest voxel in the
+     * mask.  Inside it is minus the distance to the nearest voxel outside.
+     * So the voxels on either side of the edge are a voxel from 0 and the
+     * edge of the mask is the 0 level set.
+     * @param volume
+     * @param threshold Voxels greater than this are in the mask, NaN for
+     * voxels that are not 0.
+     * @return The signed distance to the edge of the mask.
+     */
+    public static FloatIndexedVolumeArray signedDistance(VolumeArray volume, double threshold) {
+        float[] outside = squaredDistance(volume, threshold, true);
+        float[] inside = squaredDistance(volume, threshold, false);
+        for (int i = 0; i < outside.length; i++) {
+            outside[i] = (float) (Math.sqrt(outside[i]) - Math.sqrt(inside[i]));
+        }
+        return create(volume, outside);
+    }
+
+    private static FloatIndexedVolumeArray create(VolumeArray volume, float[] data) {
+        return new FloatIndexedVolumeArray(volume.getMaxX(), volume.getMaxY(), volume.getMaxZ(),
+                volume.getMaxTime(), volume.getMaxI5(), new Matrix4d(volume.getIndex2Space()), data);
+    }
+
+    /**
+     * @return The squared length in mm of a step along index axis column.
+     */
+    private static double squaredLength(Matrix4d index2space, int column) {
+        double x = index2space.getElement(0, column);
+        double y = index2space.getElement(1, column);
+        double z = index2space.getElement(2, column);
+        return x * x + y * y + z * z;
+    }
+
+    /**
+     * @param inMask true for the squared distance to the mask, false for the
+     * squared distance to the voxels outside of it.
+     * @return The squared distance in mm of each voxel, in the standard
+     * layout.
+     */
+    private static float[] squaredDistance(final VolumeArray volume, final double threshold, final boolean inMask) {
+        final int maxX = volume.getMaxX();
+        final int maxY = volume.getMaxY();
+        final int maxZ = volume.getMaxZ();
+        final int maxT = volume.getMaxTime();
+        final int planeSize = maxX * maxY;
+        final int planes = maxZ * maxT * volume.getMaxI5();
+        // the spacing of each index axis is the length of its column, even when the axes are permuted or oblique
+        Matrix4d index2space = volume.getIndex2Space();
+        final double wx = squaredLength(index2space, 0);
+        final double wy = squaredLength(index2space, 1);
+        final double wz = squaredLength(index2space, 2);
+        final float[] data = new float[planeSize * planes];
+
+        // x and then y within each plane
+        ParallelLoop.run(0, planes, ParallelLoop.grain(planes, 1), new ParallelLoop.Body() {
+
+            public void run(int start, int end) {
+                Envelope envelope = new Envelope(Math.max(maxX, maxY));
+                double[] plane = new double[planeSize];
+                for (int p = start; p < end; p++) {
+                    int z = p % maxZ;
+                    int t = (p / maxZ) % maxT;
+                    int i5 = p / (maxZ * maxT);
+                    volume.getSeries(plane, 0, 0, z, t, i5, maxX, maxY, 1, 1, 1);
+                    int base = p * planeSize;
+                    for (int i = 0; i < planeSize; i++) {
+                        double value = plane[i];
+                        boolean set = Double.isNaN(threshold) ? value != 0 && value == value : value > threshold;
+                        data[base + i] = set == inMask ? 0 : Float.POSITIVE_INFINITY;
+                    }
+                    for (int y = 0; y < maxY; y++) {
+                        envelope.transform(data, base + y * maxX, 1, maxX, wx);
+                    }
+                    for (int x = 0; x < maxX; x++) {
+                        envelope.transform(data, base + x, maxX, maxY, wy);
+                    }
+                }
+            }
+        });
+
+        // then z, copying row y of every plane into a block so the lines along z are close together in memory
+        final int rows = maxY * maxT * volume.getMaxI5();
+        ParallelLoop.run(0, rows, ParallelLoop.grain(rows, 1), new ParallelLoop.Body() {
+
+            public void run(int start, int end) {
+                Envelope envelope = new Envelope(maxZ);
+                float[] block = new float[maxZ * maxX];
+                for (int r = start; r < end; r++) {
+                    int y = r % maxY;
+                    int base = (r / maxY) * maxZ * planeSize + y * maxX;
+                    for (int z = 0; z < maxZ; z++) {
+                        System.arraycopy(data, base + z * planeSize, block, z * maxX, maxX);
+                    }
+                    for (int x = 0; x < maxX; x++) {
+                        envelope.transform(block, x, maxX, maxZ, wz);
+                    }
+                    for (int z = 0; z < maxZ; z++) {
+                        System.arraycopy(block, z * maxX, data, base + z * planeSize, maxX);
+                    }
+                }
+            }
+        });
+        return data;
+    }
+
+    /**
+     * The 1D transform and the space it needs, which is reused for every
+     * line a task is handed.
+     */
+    private static class Envelope {
+
+        private final double[] f;
+        /**
+         * The positions of the parabolas in the lower envelope.
+         */
+        private final int[] v;
+        /**
+         * Where each parabola of the envelope takes over from the one before.
+         */
+        private final double[] z;
+
+        Envelope(int length) {
+            f = new double[length];
+            v = new int[length];
+            z = new double[length + 1];
+        }
+
+        /**
+         * Replace the n values of data starting at offset and stepping by
+         * stride with min over p of (weight * (q - p)^2 + data[p]).
+         */
+        void transform(float[] data, int offset, int stride, int n, double weight) {
+            int k = -1;
+            for (int q = 0; q < n; q++) {
+                f[q] = data[offset + q * stride];
+                if (f[q] == Double.POSITIVE_INFINITY) {
+                    continue;
+                }
+                // drop the parabolas that this one is below from where they take over
+                double s = Double.NEGATIVE_INFINITY;
+                while (k >= 0) {
+                    s = ((f[q] + weight * q * q) - (f[v[k]] + weight * v[k] * v[k])) / (2 * weight * (q - v[k]));
+                    if (s > z[k]) {
+                        break;
+                    }
+                    k--;
+                }
+                k++;
+                v[k] = q;
+                z[k] = k == 0 ? Double.NEGATIVE_INFINITY : s;
+                z[k + 1] = Double.POSITIVE_INFINITY;
+            }
+            if (k < 0) {
+                // nothing to measure from along this line
+                return;
+            }
+            int j = 0;
+            for (int q = 0; q < n; q++) {
+                while (z[j + 1] < q) {
+                    j++;
+                }
+                double d = q - v[j];
+                data[offset + q * stride] = (float) (weight * d * d + f[v[j]]);
+            }
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package edu.washington.biostr.sig.volume;
+
+/**
+ * How a Stencil reads neighbours that fall outside of the volume.
+ * @author Eider Moore
+ * @version 1
+ */
+public enum EdgePolicy {
+
+    /**
+     * Neighbours outside of the volume are 0.
+     */
+    ZERO,
+    /**
+     * Neighbours outside of the volume take the value of the nearest voxel
+     * on the edge.
+     */
+    CLAMP,
+    /**
+     * Neighbours outside of the volume are reflected back in about the edge
+     * voxel, so -1 reads 1 and max reads max - 2.
+     */
+    MIRROR;
+}
@@ -0,0 +1,481 @@
+package edu.washington.biostr.sig.volume;
+
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.eiderman.util.FFT;
+import org.eiderman.util.ParallelLoop;
+
+/**
+ * Applies a Kernel3D by multiplying in the frequency domain, for kernels that
+ * are wide enough that this is cheaper than adding up the taps.<br>
+ * The volume is cut into tiles that overlap by the width of the kernel
+ * (overlap-save).  Each tile is read with a margin of the kernel's radius,
+ * transformed, multiplied by the transform of the kernel and transformed
+ * back, and only the voxels whose whole neighbourhood was in the tile are
+ * kept.  So the memory used is a few tiles per thread rather than a padded
+ * copy of the whole volume, and the tiles are run in parallel.  Because the
+ * tile sides can be picked freely they are always powers of 2, which keeps
+ * every transform radix 2.  The x axis is transformed as real data, which
+ * halves the work and the size of the spectra.
+ * @author Eider Moore
+ */
+class FFTConvolution {
+
+    /**
+     * The cost of adding one tap of a 1D pass of a separable kernel to one
+     * voxel, which the other costs are measured against.
+     */
+    private static final double SEPARABLE_TAP_COST = 1;
+    /**
+     * The cost of adding one tap of a kernel to one voxel through a Stencil.
+     */
+    private static final double STENCIL_TAP_COST = 4;
+    /**
+     * The cost of one 3D transform per voxel of the tile per factor of 2 in
+     * the size of the tile.  This includes gathering the lines, reading and
+     * writing the tile and multiplying the spectra.
+     */
+    private static final double FFT_COST = 1;
+    /**
+     * The shortest side of a tile, unless the volume is shorter.  Shorter
+     * lines cost more per voxel than the model accounts for.
+     */
+    private static final int MIN_SIDE = 16;
+    /**
+     * The largest tile to use, in voxels.
+     */
+    private static final int MAX_TILE = 1 << 21;
+    private final Kernel3D kernel;
+    private final int kx;
+    private final int ky;
+    private final int kz;
+    private final int lx;
+    private final int ly;
+    private final int lz;
+    /**
+     * The number of complex values in each x row of a spectrum.
+     */
+    private final int hx;
+    private final boolean masked;
+    private double[] kernelRe;
+    private double[] kernelIm;
+    private double[] onesRe;
+    private double[] onesIm;
+
+    private FFTConvolution(Kernel3D kernel, int lx, int ly, int lz, boolean masked) {
+        this.kernel = kernel;
+        this.kx = kernel.getWidth();
+        this.ky = kernel.getHeight();
+        this.kz = kernel.getDepth();
+        this.lx = lx;
+        this.ly = ly;
+        this.lz = lz;
+        this.hx = lx / 2 + 1;
+        this.masked = masked;
+    }
+
+    /**
+     * Decide whether kernel should be applied to volume in the frequency
+     * domain.  The cost of adding up the taps of every voxel is compared with
+     * the cost of transforming the tiles for each tile size that fits in
+     * MAX_TILE.  Volumes with NaN or infinite values are always left to the
+     * direct path, since a transform would spread them over the whole tile.
+     * @param kernel
+     * @param volume
+     * @param masked true if a mask will be applied.
+     * @return The plan with the cheapest tile size, or null if it is cheaper
+     * to add up the taps.
+     */
+    static FFTConvolution plan(Kernel3D kernel, IndexedVolumeArray volume, boolean masked) {
+        int maxX = volume.getMaxX();
+        int maxY = volume.getMaxY();
+        int maxZ = volume.getMaxZ();
+        int kx = kernel.getWidth();
+        int ky = kernel.getHeight();
+        int kz = kernel.getDepth();
+
+        // the separable path filters 3 volumes with a mask and the stencil path looks up the mask for each tap
+        double voxelCost = kernel.isSeparable() ? (kx + ky + kz) * (masked ? 3 : 1) * SEPARABLE_TAP_COST :
+                kx * ky * kz * (masked ? 2 : 1) * STENCIL_TAP_COST;
+        double best = (double) maxX * maxY * maxZ * voxelCost;
+        int transforms = masked ? 5 : 2;
+        int bestX = 0;
+        int bestY = 0;
+        int bestZ = 0;
+        // a tile longer than the volume plus the kernel doesn't save anything, and x is at least 2 for FFT.Real
+        int endX = Math.max(FFT.nextPowerOfTwo(maxX + kx - 1), 2);
+        int endY = FFT.nextPowerOfTwo(maxY + ky - 1);
+        int endZ = FFT.nextPowerOfTwo(maxZ + kz - 1);
+        for (int lx = shortest(kx, endX); lx <= endX; lx *= 2) {
+            for (int ly = shortest(ky, endY); ly <= endY; ly *= 2) {
+                for (int lz = shortest(kz, endZ); lz <= endZ; lz *= 2) {
+                    long size = (long) lx * ly * lz;
+                    if (size > MAX_TILE) {
+                        break;
+                    }
+                    double tiles = tiles(maxX, lx, kx) * tiles(maxY, ly, ky) * tiles(maxZ, lz, kz);
+                    double cost = tiles * size * transforms * FFT_COST * log2(size);
+                    if (cost < best) {
+                        best = cost;
+                        bestX = lx;
+                        bestY = ly;
+                        bestZ = lz;
+                    }
+                }
+            }
+        }
+        if (bestX == 0) {
+            return null;
+        }
+        VolumeStatistics stats = VolumeStatistics.get(volume);
+        if (stats.getNaNCount() != 0 || Double.isInfinite(stats.getMin()) || Double.isInfinite(stats.getMax())) {
+            return null;
+        }
+
+        FFTConvolution rv = new FFTConvolution(kernel, bestX, bestY, bestZ, masked);
+        rv.transformKernels();
+        return rv;
+    }
+
+    private static int shortest(int kernel, int longest) {
+        return Math.max(FFT.nextPowerOfTwo(kernel), Math.min(MIN_SIDE, longest));
+    }
+
+    private static double tiles(int max, int tile, int kernel) {
+        return (max + tile - kernel) / (tile - kernel + 1);
+    }
+
+    private static double log2(long size) {
+        return Math.max(1, 63 - Long.numberOfLeadingZeros(size));
+    }
+
+    /**
+     * @return The size of the tiles in x, y and z.
+     */
+    int[] getTileSize() {
+        return new int[]{lx, ly, lz};
+    }
+
+    private void transformKernels() {
+        Transform transform = new Transform();
+        int spectrum = hx * ly * lz;
+        double[] tile = new double[lx * ly * lz];
+        float[] taps = kernel.getKernel();
+        for (int k = 0; k < kz; k++) {
+            for (int j = 0; j < ky; j++) {
+                for (int i = 0; i < kx; i++) {
+                    tile[(k * ly + j) * lx + i] = taps[i + kx * (j + ky * k)];
+                }
+            }
+        }
+        kernelRe = new double[spectrum];
+        kernelIm = new double[spectrum];
+        transform.forward(tile, kernelRe, kernelIm);
+        if (masked) {
+            Arrays.fill(tile, 0);
+            for (int k = 0; k < kz; k++) {
+                for (int j = 0; j < ky; j++) {
+                    Arrays.fill(tile, (k * ly + j) * lx, (k * ly + j) * lx + kx, 1);
+                }
+            }
+            onesRe = new double[spectrum];
+            onesIm = new double[spectrum];
+            transform.forward(tile, onesRe, onesIm);
+        }
+    }
+
+    /**
+     * Apply the kernel to volume, with the same results as Kernel3D's direct
+     * paths up to rounding.
+     * @param volume The source data
+     * @param mask The mask, or null
+     * @param policy How to read outside of the volume, or null to leave the
+     * edges at 0.  Ignored when there is a mask.
+     * @param caller The thread to watch for interrupts, or null.
+     * @param dest Where to put the result, in the standard layout.
+     * @return false if caller was interrupted
+     */
+    boolean apply(final IndexedVolumeArray volume, final IndexedVolumeArray mask, final EdgePolicy policy,
+            final Thread caller, final float[] dest) {
+        final int maxZ = volume.getMaxZ();
+        final int maxT = volume.getMaxTime();
+        final int tilesX = (int) tiles(volume.getMaxX(), lx, kx);
+        final int tilesY = (int) tiles(volume.getMaxY(), ly, ky);
+        final int tilesZ = (int) tiles(maxZ, lz, kz);
+        final int perVolume = tilesX * tilesY * tilesZ;
+        final int count = perVolume * maxT * volume.getMaxI5();
+        // a worker's buffers are tens of MB, so pieces hand them on instead of each making its own and there
+        // are only ever as many as there are pieces running at once
+        final Queue<Worker> workers = new ConcurrentLinkedQueue<Worker>();
+        ParallelLoop.run(0, count, ParallelLoop.grain(count, 1), new ParallelLoop.Body() {
+
+            public void run(int start, int end) {
+                Worker worker = workers.poll();
+                if (worker == null) {
+                    worker = new Worker(volume, mask, policy, dest);
+                }
+                for (int i = start; i < end && !(caller != null && caller.isInterrupted()); i++) {
+                    int tile = i % perVolume;
+                    int volumeIndex = i / perVolume;
+                    worker.run(tile % tilesX * (lx - kx + 1), (tile / tilesX) % tilesY * (ly - ky + 1),
+                            tile / (tilesX * tilesY) * (lz - kz + 1), volumeIndex % maxT, volumeIndex / maxT);
+                }
+                workers.add(worker);
+            }
+        });
+        return caller == null || !caller.isInterrupted();
+    }
+
+    /**
+     * 3D transforms between a real tile, x fastest, and its spectrum, which
+     * has hx complex values in each x row.  This holds the scratch space, so
+     * each thread needs its own.
+     */
+    private class Transform {
+
+        private final FFT.Real fx = new FFT.Real(lx);
+        private final FFT fy = new FFT(ly);
+        private final FFT fz = new FFT(lz);
+        private final double[] lineRe = new double[Math.max(ly, lz)];
+        private final double[] lineIm = new double[Math.max(ly, lz)];
+
+        void forward(double[] tile, double[] re, double[] im) {
+            for (int row = 0; row < ly * lz; row++) {
+                fx.forward(tile, row * lx, re, im, row * hx);
+            }
+            columns(re, im, false);
+        }
+
+        void inverse(double[] re, double[] im, double[] tile) {
+            columns(re, im, true);
+            for (int row = 0; row < ly * lz; row++) {
+                fx.inverse(re, im, row * hx, tile, row * lx);
+            }
+        }
+
+        /**
+         * Transform along y and then z, or the other way around for the
+         * inverse.
+         */
+        private void columns(double[] re, double[] im, boolean inverse) {
+            for (int pass = 0; pass < 2; pass++) {
+                boolean alongY = (pass == 0) != inverse;
+                FFT fft = alongY ? fy : fz;
+                int n = alongY ? ly : lz;
+                int stride = alongY ? hx : hx * ly;
+                int lines = alongY ? lz : ly;
+                int lineStride = alongY ? hx * ly : hx;
+                for (int line = 0; line < lines; line++) {
+                    for (int x = 0; x < hx; x++) {
+                        int start = line * lineStride + x;
+                        for (int i = 0; i < n; i++) {
+                            lineRe[i] = re[start + i * stride];
+                            lineIm[i] = im[start + i * stride];
+                        }
+                        fft.transform(lineRe, lineIm, inverse);
+                        for (int i = 0; i < n; i++) {
+                            re[start + i * stride] = lineRe[i];
+                            im[start + i * stride] = lineIm[i];
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Multiply a by the conjugate of b, which turns the product of the
+     * transforms into a correlation, the orientation Kernel3D uses.
+     */
+    private static void multiply(double[] aRe, double[] aIm, double[] bRe, double[] bIm) {
+        for (int i = 0; i < aRe.length; i++) {
+            double re = aRe[i] * bRe[i] + aIm[i] * bIm[i];
+            aIm[i] = aIm[i] * bRe[i] - aRe[i] * bIm[i];
+            aRe[i] = re;
+        }
+    }
+
+    /**
+     * Filters one tile at a time with its own buffers.
+     */
+    private class Worker {
+
+        private final IndexedVolumeArray volume;
+        private final IndexedVolumeArray mask;
+        private final EdgePolicy policy;
+        /**
+         * true if the voxels the kernel doesn't fit around stay 0.
+         */
+        private final boolean trim;
+        private final float[] dest;
+        private final int maxX;
+        private final int maxY;
+        private final int maxZ;
+        private final int maxT;
+        private final Transform transform = new Transform();
+        private final double[] tile = new double[lx * ly * lz];
+        private final double[] specRe = new double[hx * ly * lz];
+        private final double[] specIm = new double[hx * ly * lz];
+        private final double[] row;
+        private final double[] maskTile;
+        private final double[] countTile;
+        private final double[] maskRe;
+        private final double[] maskIm;
+        private final double[] maskRow;
+
+        Worker(IndexedVolumeArray volume, IndexedVolumeArray mask, EdgePolicy policy, float[] dest) {
+            this.volume = volume;
+            this.mask = mask;
+            this.policy = mask != null || policy == null ? EdgePolicy.ZERO : policy;
+            this.trim = mask == null && policy == null;
+            this.dest = dest;
+            maxX = volume.getMaxX();
+            maxY = volume.getMaxY();
+            maxZ = volume.getMaxZ();
+            maxT = volume.getMaxTime();
+            row = new double[maxX];
+            if (mask != null) {
+                maskTile = new double[tile.length];
+                countTile = new double[tile.length];
+                maskRe = new double[specRe.length];
+                maskIm = new double[specRe.length];
+                maskRow = new double[maxX];
+            } else {
+                maskTile = null;
+                countTile = null;
+                maskRe = null;
+                maskIm = null;
+                maskRow = null;
+            }
+        }
+
+        /**
+         * Filter the tile whose first output voxel is (ox, oy, oz).
+         */
+        void run(int ox, int oy, int oz, int t, int i5) {
+            int validX = Math.min(lx - kx + 1, maxX - ox);
+            int validY = Math.min(ly - ky + 1, maxY - oy);
+            int validZ = Math.min(lz - kz + 1, maxZ - oz);
+            read(ox - kx / 2, oy - ky / 2, oz - kz / 2, validX + kx - 1, validY + ky - 1, validZ + kz - 1, t, i5);
+
+            transform.forward(tile, specRe, specIm);
+            multiply(specRe, specIm, kernelRe, kernelIm);
+            transform.inverse(specRe, specIm, tile);
+            if (mask != null) {
+                transform.forward(maskTile, maskRe, maskIm);
+                System.arraycopy(maskRe, 0, specRe, 0, specRe.length);
+                System.arraycopy(maskIm, 0, specIm, 0, specIm.length);
+                multiply(specRe, specIm, kernelRe, kernelIm);
+                transform.inverse(specRe, specIm, maskTile);
+                multiply(maskRe, maskIm, onesRe, onesIm);
+                transform.inverse(maskRe, maskIm, countTile);
+            }
+            write(ox, oy, oz, validX, validY, validZ, t, i5);
+        }
+
+        /**
+         * Fill the tile with the w x h x d voxels starting at (x0, y0, z0),
+         * read according to policy where they are outside of the volume.  The
+         * rest of the tile is 0.
+         */
+        private void read(int x0, int y0, int z0, int w, int h, int d, int t, int i5) {
+            Arrays.fill(tile, 0);
+            if (mask != null) {
+                Arrays.fill(maskTile, 0);
+            }
+            int tMask = mask != null && mask.getMaxTime() > 1 ? t : 0;
+            int i5Mask = mask != null && mask.getMaxI5() > 1 ? i5 : 0;
+            // the part of the row inside the volume, which is all that is needed unless the edges are copied in
+            int lo = Math.max(0, x0);
+            int hi = Math.min(maxX, x0 + w);
+            if (policy != EdgePolicy.ZERO && (x0 < 0 || x0 + w > maxX)) {
+                lo = 0;
+                hi = maxX;
+            }
+            if (lo >= hi) {
+                return;
+            }
+            for (int z = 0; z < d; z++) {
+                int sz = map(z0 + z, maxZ);
+                for (int y = 0; y < h; y++) {
+                    int sy = map(y0 + y, maxY);
+                    if (sz < 0 || sy < 0) {
+                        continue;
+                    }
+                    volume.getSeries(row, lo, sy, sz, t, i5, hi - lo, 1, 1, 1, 1);
+                    if (mask != null) {
+                        mask.getSeries(maskRow, lo, sy, sz, tMask, i5Mask, hi - lo, 1, 1, 1, 1);
+                    }
+                    int start = (z * ly + y) * lx;
+                    for (int x = 0; x < w; x++) {
+                        int sx = map(x0 + x, maxX);
+                        if (sx < 0) {
+                            continue;
+                        }
+                        if (mask == null) {
+                            tile[start + x] = row[sx - lo];
+                        } else if (maskRow[sx - lo] != 0) {
+                            // masked out voxels are skipped, not multiplied, so NaNs there don't leak in
+                            tile[start + x] = row[sx - lo];
+                            maskTile[start + x] = 1;
+                        }
+                    }
+                }
+            }
+        }
+
+        /**
+         * @return Where to read c from, or -1 for 0.
+         */
+        private int map(int c, int max) {
+            if (c >= 0 && c < max) {
+                return c;
+            }
+            switch (policy) {
+                case CLAMP:
+                    return c < 0 ? 0 : max - 1;
+                case MIRROR:
+                    return Stencil.mirror(c, max);
+                default:
+                    return -1;
+            }
+        }
+
+        private void write(int ox, int oy, int oz, int w, int h, int d, int t, int i5) {
+            int rx = kx / 2;
+            int ry = ky / 2;
+            int rz = kz / 2;
+            int taps = kx * ky * kz;
+            int base = (i5 * maxT + t) * maxZ;
+            for (int z = 0; z < d; z++) {
+                int vz = oz + z;
+                for (int y = 0; y < h; y++) {
+                    int vy = oy + y;
+                    int xStart = 0;
+                    int xEnd = w;
+                    if (trim) {
+                        if (vz < rz || vz >= maxZ - rz || vy < ry || vy >= maxY - ry) {
+                            continue;
+                        }
+                        xStart = Math.max(0, rx - ox);
+                        xEnd = Math.min(w, maxX - rx - ox);
+                    }
+                    int src = (z * ly + y) * lx;
+                    int out = ((base + vz) * maxY + vy) * maxX + ox;
+                    for (int x = xStart; x < xEnd; x++) {
+                        double value = tile[src + x];
+                        if (mask != null) {
+                            long maskCount = Math.round(countTile[src + x]);
+                            if ((maskCount != 0) && (maskCount != taps)) {
+                                value /= maskTile[src + x];
+                            }
+                        }
+                        dest[out + x] = (float) value;
+                    }
+                }
+            }
+        }
+    }
+}
@@ -22,6 +22,20 @@ class FilteredIndexedVolumeArray extends IndexedVolumeArray {
                 array.getMaxTime(), array.getMaxI5(), array.getIndex2Space());
         this.filter = filter;
         this.array = array;
+        updateOffsets();
+    }
+
+    /**
+     * Use the same index equation as the source so indices can be passed
+     * straight through to it.
+     */
+    @Override
+    public int getIndex(int x, int y, int z, int time, int i5) {
+        if (array == null) {
+            // still in the super constructor
+            return super.getIndex(x, y, z, time, i5);
+        }
+        return array.getIndex(x, y, z, time, i5);
     }
 
     @Override
@@ -44,6 +58,19 @@ class FilteredIndexedVolumeArray extends IndexedVolumeArray {
         throw new UnsupportedOperationException("Filtered volumes are immutable!");
     }
 
+    /**
+     * The data lives in array, so changes to it count as changes to this.
+     */
+    @Override
+    public int getModCount() {
+        return array.getModCount();
+    }
+
+    @Override
+    public void markModified() {
+        array.markModified();
+    }
+
     @Override
     public DataType getNaturalType() {
         return array.getNaturalType();
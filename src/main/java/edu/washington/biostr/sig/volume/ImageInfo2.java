@@ -66,6 +66,7 @@ public class ImageInfo2 {
     private Point3f ul = new Point3f();
     float width, height;
     private Orientation orientation;
+    private boolean parallel;
 
     /**
      * Create and initialize the given ImageInfo2.
@@ -225,10 +226,9 @@ public class ImageInfo2 {
      * @return The image
      */
     public BufferedImage getImage(Interpolation interpolation, boolean alpha) {
-        return array.getImage(ul, right, down, 0, 0,
+        return getImage(interpolation, alpha,
                 (int) Math.ceil(right.length() / mmPerPixel),
-                (int) Math.ceil(down.length() / mmPerPixel), alpha, 1f,
-                getTable(), null, interpolation);
+                (int) Math.ceil(down.length() / mmPerPixel));
     }
 
     /**
@@ -241,10 +241,57 @@ public class ImageInfo2 {
      */
     public BufferedImage getImage(Interpolation interpolation, 
             BufferedImage img) {
+        if (parallel) {
+            return array.getImageParallel(ul, right, down, 0, 0,
+                    img, 1f, getTable(), null, interpolation, null, 0);
+        }
         return array.getImage(ul, right, down, 0, 0,
                 img, 1f, getTable(), null, interpolation);
     }
 
+    /**
+     * Generate a BufferedImage in parallel, giving up if a newer frame is
+     * started before it is done.
+     * @param interpolation Linear or Nearest Neighbor
+     * @param img The image into which to put the data
+     * @param generation Tracks the newest frame
+     * @param frame The frame this image is for
+     * @return The image, or null if the frame was superseded.
+     */
+    public BufferedImage getImage(Interpolation interpolation,
+            BufferedImage img, RenderGeneration generation, int frame) {
+        return array.getImageParallel(ul, right, down, 0, 0,
+                img, 1f, getTable(), null, interpolation, generation, frame);
+    }
+
+    private BufferedImage getImage(Interpolation interpolation, boolean alpha, int width, int height) {
+        if (parallel) {
+            BufferedImage img = new BufferedImage(width, height,
+                    alpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+            return array.getImageParallel(ul, right, down, 0, 0,
+                    img, 1f, getTable(), null, interpolation, null, 0);
+        }
+        return array.getImage(ul, right, down, 0, 0, width, height, alpha, 1f,
+                getTable(), null, interpolation);
+    }
+
+    /**
+     * @return true if the images are rendered in parallel.
+     */
+    public boolean isParallel() {
+        return parallel;
+    }
+
+    /**
+     * Render the images in strips of rows on the shared rendering pool.  The
+     * images are the same either way, this just spreads the work over every
+     * processor (false by default).
+     * @param parallel
+     */
+    public void setParallel(boolean parallel) {
+        this.parallel = parallel;
+    }
+
     /**
      * Get the color table.
      * @return The color table or generate a default one if it has not been set.
@@ -708,10 +755,9 @@ public class ImageInfo2 {
         if (res <= 0) {
             res = mmPerPixel;
         }
-        return array.getImage(ul, right, down, 0, 0,
+        return getImage(interpolation, alpha,
                 (int) Math.ceil(right.length() / res),
-                (int) Math.ceil(down.length() / res), alpha, 1f,
-                getTable(), null, interpolation);
+                (int) Math.ceil(down.length() / res));
     }
 
     @Override
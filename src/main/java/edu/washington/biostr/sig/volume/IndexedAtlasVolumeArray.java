@@ -53,6 +53,7 @@ public class IndexedAtlasVolumeArray extends IndexedVolumeArray {
         for (AtlasElement ae : atlas.values()) {
             id2atlas.put(ae.getUniqueId(), ae);
         }
+        updateOffsets();
     }
     
     /**
@@ -77,6 +78,20 @@ public class IndexedAtlasVolumeArray extends IndexedVolumeArray {
         for (AtlasElement ae : atlas) {
             abbrev2atlas.put(ae.getAbbreviation(), ae);
         }
+        updateOffsets();
+    }
+
+    /**
+     * Use the same index equation as the source so indices can be passed
+     * straight through to it.
+     */
+    @Override
+    public int getIndex(int x, int y, int z, int time, int i5) {
+        if (backing == null) {
+            // still in the super constructor
+            return super.getIndex(x, y, z, time, i5);
+        }
+        return backing.getIndex(x, y, z, time, i5);
     }
 
     /**
@@ -194,6 +209,19 @@ public class IndexedAtlasVolumeArray extends IndexedVolumeArray {
         backing.setData(index, value);
     }
 
+    /**
+     * The data lives in backing, so changes to it count as changes to this.
+     */
+    @Override
+    public int getModCount() {
+        return backing.getModCount();
+    }
+
+    @Override
+    public void markModified() {
+        backing.markModified();
+    }
+
     @Override
     public DataType getNaturalType() {
         return DataType.TYPE_RGB;
@@ -20,8 +20,6 @@ public class IndexedIterator
     private int z;
     private int t;
     private int i5;
-    private int yskip = 0;
-    private int zskip = 0;
     private int minX;
     private int minY;
     private int minZ;
@@ -35,12 +33,14 @@ public class IndexedIterator
     private int in;
     private int forward;
     private int nextI5;
-    private int maxindex;
-    private int minIndex;
     private IndexedVolumeArray data;
+    private Stencil stencil;
+    private int[] stencilOffsets;
 
     /**
-     * The first call to next will return the data at (x,y,z,t,i5).
+     * The iterator starts at (x,y,z,t,i5), so the first call to next will
+     * return the data after it.  x may be -1 to start just before the
+     * beginning of a row.
      * @param x
      * @param y
      * @param z
@@ -50,35 +50,40 @@ public class IndexedIterator
      */
     protected IndexedIterator(int x, int y, int z, int t, int i5,
             IndexedVolumeArray data) {
-        this.index = data.getIndex(x, y, z, t, i5);
         this.data = data;
         this.x = x;
         this.y = y;
         this.z = z;
         this.t = t;
+        this.i5 = i5;
 
         maxX = data.getMaxX() - 1;
         maxY = data.getMaxY() - 1;
         maxZ = data.getMaxZ() - 1;
         maxT = data.getMaxTime() - 1;
         maxI5 = data.getMaxI5() - 1;
-        maxindex = data.getIndex(maxX, maxY, maxZ, maxT, maxI5);
-        minIndex = data.getIndex(minX, minY, minZ, 0, 0);
 
-        down = data.getIndex(0, 1, 0, 0, 0);
-        right = data.getIndex(1, 0, 0, 0, 0);
-        in = data.getIndex(0, 0, 1, 0, 0);
-        forward = data.getIndex(0, 0, 0, 1, 0);
+        right = data.xStride;
+        down = data.yStride;
+        in = data.zStride;
+        forward = data.tStride;
+        nextI5 = data.i5Stride;
+        if (x < 0) {
+            this.index = data.getIndex(x + 1, y, z, t, i5) - right;
+        } else {
+            this.index = data.getIndex(x, y, z, t, i5);
+        }
     }
 
     /**
-     * Put this image at (0,0,0,time)
+     * Put this iterator just before (minX,minY,minZ,time,i5) so the next
+     * call to next returns that voxel.
      */
     public void reset() {
-        index = minIndex + forward * t;
-        x = minX;
+        x = minX - 1;
         y = minY;
         z = minZ;
+        index = data.getIndex(minX, minY, minZ, t, i5) - right;
     }
 
     /**
@@ -174,9 +179,10 @@ public class IndexedIterator
     }
 
     private final int goPrev() {
-        index--;
         if (x > minX) {
             x--;
+            index -= right;
+            return index;
         } else if (y > minY) {
             x = maxX;
             y--;
@@ -189,39 +195,85 @@ public class IndexedIterator
             y = maxY;
             z = maxZ;
             t--;
+        } else if (i5 > 0) {
+            x = maxX;
+            y = maxY;
+            z = maxZ;
+            t = maxT;
+            i5--;
         } else {
             throw new NoSuchElementException("Index out of bounds");
         }
+        index = data.getIndex(x, y, z, t, i5);
         return index;
     }
 
     public final int goNext() {
-        index++;
         if (x < maxX) {
             x++;
+            index += right;
+            return index;
         } else if (y < maxY) {
             x = minX;
-            index += yskip;
             y++;
         } else if (z < maxZ) {
             x = minX;
             y = minY;
-            index += zskip;
             z++;
         } else if (t < maxT) {
             x = minX;
             y = minY;
             z = minZ;
             t++;
-            index = data.getIndex(x, y, z, t, i5);
+        } else if (i5 < maxI5) {
+            x = minX;
+            y = minY;
+            z = minZ;
+            t = 0;
+            i5++;
         } else {
             throw new NoSuchElementException("Index out of bounds: (" + x + ", " +
                     y + ", " + z + ", " + t + "), " +
                     index);
         }
+        index = data.getIndex(x, y, z, t, i5);
         return index;
     }
 
+    /**
+     * @return The index that goPrev() would move to, without moving.
+     */
+    private int prevIndex() {
+        if (x > minX) {
+            return index - right;
+        } else if (y > minY) {
+            return data.getIndex(maxX, y - 1, z, t, i5);
+        } else if (z > minZ) {
+            return data.getIndex(maxX, maxY, z - 1, t, i5);
+        } else if (t > 0) {
+            return data.getIndex(maxX, maxY, maxZ, t - 1, i5);
+        } else {
+            return data.getIndex(maxX, maxY, maxZ, maxT, i5 - 1);
+        }
+    }
+
+    /**
+     * @return The index that goNext() would move to, without moving.
+     */
+    private int nextIndex() {
+        if (x < maxX) {
+            return index + right;
+        } else if (y < maxY) {
+            return data.getIndex(minX, y + 1, z, t, i5);
+        } else if (z < maxZ) {
+            return data.getIndex(minX, minY, z + 1, t, i5);
+        } else if (t < maxT) {
+            return data.getIndex(minX, minY, minZ, t + 1, i5);
+        } else {
+            return data.getIndex(minX, minY, minZ, 0, i5 + 1);
+        }
+    }
+
     public DataType getNaturalType() {
         return data.getNaturalType();
     }
@@ -239,19 +291,19 @@ public class IndexedIterator
     }
 
     public boolean hasPrev() {
-        return index > minIndex;
+        return x > minX || y > minY || z > minZ || t > 0 || i5 > 0;
     }
 
     public Object peakPrev() {
-        return new Double(data.getDouble(index - 1));
+        return new Double(data.getDouble(prevIndex()));
     }
 
     public int peakPrevInt() {
-        return data.getInt(index - 1);
+        return data.getInt(prevIndex());
     }
 
     public double peakPrevDouble() {
-        return data.getDouble(index - 1);
+        return data.getDouble(prevIndex());
     }
 
     public Object next() {
@@ -267,15 +319,15 @@ public class IndexedIterator
     }
 
     public Object peakNext() {
-        return new Double(data.getDouble(index + 1));
+        return new Double(data.getDouble(nextIndex()));
     }
 
     public int peakNextInt() {
-        return data.getInt(index + 1);
+        return data.getInt(nextIndex());
     }
 
     public double peakNextDouble() {
-        return data.getDouble(index + 1);
+        return data.getDouble(nextIndex());
     }
 
     public Object right() {
@@ -464,7 +516,7 @@ public class IndexedIterator
     }
 
     public boolean hasForward() {
-        return (t <= maxT);
+        return (t < maxT);
     }
 
     public Object peakForward() {
@@ -507,6 +559,27 @@ public class IndexedIterator
         return data.getDouble(index - forward);
     }
 
+    /**
+     * Read the neighbourhood of the current voxel without moving.  The index
+     * offsets of the stencil are kept between calls, so reading the same
+     * stencil at every voxel only range checks near the edge of the volume.
+     * @param stencil The neighbours to read
+     * @param policy How to read neighbours outside of the volume
+     * @param values Where to put the values, or null to allocate an array.
+     * @return values, filled in stencil order
+     */
+    public double[] peakStencil(Stencil stencil, EdgePolicy policy, double[] values) {
+        if (stencil != this.stencil) {
+            this.stencil = stencil;
+            this.stencilOffsets = stencil.getOffsets(data);
+        }
+        if (values == null) {
+            values = new double[stencil.size()];
+        }
+        stencil.gather(data, stencilOffsets, x, y, z, t, i5, index, policy, values);
+        return values;
+    }
+
     public int getX() {
         return x;
     }
@@ -524,7 +597,7 @@ public class IndexedIterator
     }
 
     public boolean hasNext() {
-        return index < maxindex;
+        return x < maxX || y < maxY || z < maxZ || t < maxT || i5 < maxI5;
     }
 
     public void remove() {
@@ -597,11 +670,11 @@ public class IndexedIterator
     }
 
     public double peakNextI5Double() {
-        return data.getDouble(index - nextI5);
+        return data.getDouble(index + nextI5);
     }
 
     public int peakNextI5Int() {
-        return data.getInt(index - nextI5);
+        return data.getInt(index + nextI5);
     }
 
     public Object nextI5() {
@@ -626,9 +699,9 @@ public class IndexedIterator
         try {
             goPrev();
         } catch (NoSuchElementException e) {
-            // in the rare case that we are at 0, 0, 0, 0, 0
-            this.index = -1;
-            this.x = minX;
+            // in the rare case that we are at the very first voxel
+            this.index -= right;
+            this.x--;
         }
     }
 
@@ -657,20 +730,8 @@ public class IndexedIterator
     	this.minX = x_min;
     	this.minY = y_min;
     	this.minZ = z_min;
-    	this.maxindex = data.getIndex(maxX, maxY, maxZ, maxT, maxI5);
-    	this.minIndex = data.getIndex(minX, minY, minZ, 0, 0);
-    	
-    	int i1 = data.getIndex(maxX, minY, minZ, 0, 0);
-    	int i2 = data.getIndex(minX, minY + 1, minZ, 0, 0);
-    	int i3 = data.getIndex(maxX, maxY, minZ, 0, 0);
-    	int i4 = data.getIndex(minX, minY, minZ + 1, 0, 0);
-    	yskip = i2 - i1 - 1;
-    	zskip = i4 - i3 - 1;
-		index = minIndex - 1;
-		x = minX - 1;
-		y = minY;
-		z = minZ;
 		i5 = 0;
 		t = 0;
+		reset();
     }
 }
@@ -1,8 +1,19 @@
 package edu.washington.biostr.sig.volume;
 
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.stream.DoubleStream;
+import java.util.stream.IntStream;
+import java.util.stream.StreamSupport;
+
 import javax.vecmath.Matrix4d;
 import javax.vecmath.Point3f;
 
+import org.eiderman.util.ParallelLoop;
+
 /**
  * This is a base class for image data as a single array.  It assumes that
  * we have an equation that converts the an index in the form of i,j,k,t to a
@@ -81,6 +92,40 @@ public abstract class IndexedVolumeArray
         return iterator(0, 0, 0, 0, 0);
     }
 
+    /**
+     * @return A spliterator over every voxel as a double that splits on z
+     * slabs and time points.
+     */
+    public VoxelSpliterator.OfDouble doubleSpliterator() {
+        return new VoxelSpliterator.OfDouble(this);
+    }
+
+    /**
+     * @return A spliterator over every voxel as an int that splits on z
+     * slabs and time points.
+     */
+    public VoxelSpliterator.OfInt intSpliterator() {
+        return new VoxelSpliterator.OfInt(this);
+    }
+
+    /**
+     * Stream every voxel as a double in the standard order (x fastest).  This
+     * does not box, and parallel() splits the volume on z slabs and time points.
+     * @return A sequential stream over the voxels.
+     */
+    public DoubleStream doubleStream() {
+        return StreamSupport.doubleStream(doubleSpliterator(), false);
+    }
+
+    /**
+     * Stream every voxel as an int in the standard order (x fastest).  This
+     * does not box, and parallel() splits the volume on z slabs and time points.
+     * @return A sequential stream over the voxels.
+     */
+    public IntStream intStream() {
+        return StreamSupport.intStream(intSpliterator(), false);
+    }
+
     public int getInt(int i, int j, int k, int time, int i5) {
         int index = getIndex(i, j, k, time, i5);
         if (index == -1) {
@@ -124,14 +169,68 @@ public abstract class IndexedVolumeArray
         }
         return (((i5 * maxTime + time) * maxZ + z) * maxY + y) * maxX + x;
     }
-    private int c0off = getIndex(0, 0, 0, 0, 0);
-    private int c1off = getIndex(1, 0, 0, 0, 0);
-    private int c2off = getIndex(0, 1, 0, 0, 0);
-    private int c3off = getIndex(1, 1, 0, 0, 0);
-    private int c4off = getIndex(0, 0, 1, 0, 0);
-    private int c5off = getIndex(1, 0, 1, 0, 0);
-    private int c6off = getIndex(0, 1, 1, 0, 0);
-    private int c7off = getIndex(1, 1, 1, 0, 0);
+    /**
+     * The distance in the index between neighbouring voxels along each
+     * dimension.  These are what let the bulk accessors and the iterator walk
+     * a row or a time course without calling getIndex() for every voxel.  A
+     * dimension of size 1 has a stride of 0 since it is never stepped along.
+     */
+    protected int xStride;
+    protected int yStride;
+    protected int zStride;
+    protected int tStride;
+    protected int i5Stride;
+    /**
+     * The smallest number of points worth interpolating on their own thread.
+     */
+    private static final int BATCH = 1024;
+    /**
+     * The number of points interpolateRun() finds the corners of at a time.
+     */
+    private static final int GATHER = 256;
+    private int c0off;
+    private int c1off;
+    private int c2off;
+    private int c3off;
+    private int c4off;
+    private int c5off;
+    private int c6off;
+    private int c7off;
+
+    {
+        updateOffsets();
+    }
+
+    /**
+     * Recompute the strides and the interpolation offsets from getIndex().
+     * These are computed while this class is being constructed, which is
+     * before a subclass has initialized its own fields, so a subclass that
+     * overrides getIndex() with an equation that depends on those fields must
+     * call this at the end of its constructor.
+     */
+    protected void updateOffsets() {
+        xStride = stride(1, 0, 0, 0, 0);
+        yStride = stride(0, 1, 0, 0, 0);
+        zStride = stride(0, 0, 1, 0, 0);
+        tStride = stride(0, 0, 0, 1, 0);
+        i5Stride = stride(0, 0, 0, 0, 1);
+        c0off = 0;
+        c1off = xStride;
+        c2off = yStride;
+        c3off = xStride + yStride;
+        c4off = zStride;
+        c5off = xStride + zStride;
+        c6off = yStride + zStride;
+        c7off = xStride + yStride + zStride;
+    }
+
+    private int stride(int x, int y, int z, int t, int i5) {
+        int next = getIndex(x, y, z, t, i5);
+        if (next < 0) {
+            return 0;
+        }
+        return next - getIndex(0, 0, 0, 0, 0);
+    }
 
     /**
      * This is a moderately more efficient way to interpolate.  It gets the
@@ -219,6 +318,194 @@ public abstract class IndexedVolumeArray
         return answer;
     }
 
+    /**
+     * Trilinearly interpolate a batch of points given in index coordinates.
+     * This gives the same answers as interpolate(x, y, z, time, i5) for each
+     * point, except that it always blends all 8 corners instead of snapping
+     * to a corner that is within EPSILON.  Points where interpolate() would
+     * return 0 (within 1 of the edge or outside) are 0 here too.<br>
+     * The inner loop has no branches and the typed subclasses read their
+     * backing array directly, so this is several times faster than calling
+     * interpolate() for each point.  Big batches are split across threads.
+     * @param x The x coordinates
+     * @param y The y coordinates
+     * @param z The z coordinates
+     * @param count The number of points
+     * @param time
+     * @param i5
+     * @param dest Where to put the values, or null to allocate an array.
+     * @return dest
+     */
+    public double[] interpolate(final float[] x, final float[] y, final float[] z, int count,
+            int time, int i5, double[] dest) {
+        if (dest == null) {
+            dest = new double[count];
+        }
+        checkBatch(x, y, z, count, dest.length);
+        if (!canInterpolate(time, i5)) {
+            Arrays.fill(dest, 0, count, 0);
+            return dest;
+        }
+        final int origin = getIndex(0, 0, 0, time, i5);
+        final double[] result = dest;
+        ParallelLoop.run(0, count, ParallelLoop.grain(count, BATCH), new ParallelLoop.Body() {
+
+            public void run(int start, int end) {
+                interpolateRun(x, y, z, start, end - start, origin, result, start);
+            }
+        });
+        return dest;
+    }
+
+    /**
+     * Trilinearly interpolate a batch of points given in index coordinates.
+     * See interpolate(float[], float[], float[], int, int, int, double[]).
+     * @param x The x coordinates
+     * @param y The y coordinates
+     * @param z The z coordinates
+     * @param count The number of points
+     * @param time
+     * @param i5
+     * @param dest Where to put the values, or null to allocate an array.
+     * @return dest
+     */
+    public float[] interpolate(final float[] x, final float[] y, final float[] z, int count,
+            int time, int i5, float[] dest) {
+        if (dest == null) {
+            dest = new float[count];
+        }
+        checkBatch(x, y, z, count, dest.length);
+        if (!canInterpolate(time, i5)) {
+            Arrays.fill(dest, 0, count, 0);
+            return dest;
+        }
+        final int origin = getIndex(0, 0, 0, time, i5);
+        final float[] result = dest;
+        ParallelLoop.run(0, count, ParallelLoop.grain(count, BATCH), new ParallelLoop.Body() {
+
+            public void run(int start, int end) {
+                double[] buffer = new double[Math.min(BATCH, end - start)];
+                for (int s = start; s < end; s += buffer.length) {
+                    int length = Math.min(buffer.length, end - s);
+                    interpolateRun(x, y, z, s, length, origin, buffer, 0);
+                    for (int i = 0; i < length; i++) {
+                        result[s + i] = (float) buffer[i];
+                    }
+                }
+            }
+        });
+        return dest;
+    }
+
+    private static void checkBatch(float[] x, float[] y, float[] z, int count, int destLength) {
+        if (count < 0 || x.length < count || y.length < count || z.length < count || destLength < count) {
+            throw new IllegalArgumentException("The coordinate and destination arrays must hold " +
+                    count + " points");
+        }
+    }
+
+    /**
+     * @return false if no point at time, i5 can be interpolated, so the
+     * batch is all 0.
+     */
+    private boolean canInterpolate(int time, int i5) {
+        return time >= 0 && time < maxTime && i5 >= 0 && i5 < maxI5 &&
+                maxX > 2 && maxY > 2 && maxZ > 2;
+    }
+
+    /**
+     * Interpolate count points starting at offset in xs, ys and zs into dest
+     * starting at destOffset.  The points are handled GATHER at a time: their
+     * corners and weights are found here, gatherCorners() reads the 8 voxels
+     * around each, and they are blended here, so the typed subclasses only
+     * override the reads.
+     * @param xs
+     * @param ys
+     * @param zs
+     * @param offset The first point
+     * @param count The number of points
+     * @param origin The index of (0, 0, 0) at the time and i5 of the points.
+     * @param dest
+     * @param destOffset
+     */
+    protected void interpolateRun(float[] xs, float[] ys, float[] zs, int offset, int count,
+            int origin, double[] dest, int destOffset) {
+        int block = Math.min(count, GATHER);
+        int[] corners = new int[block];
+        double[] wx = new double[block];
+        double[] wy = new double[block];
+        double[] wz = new double[block];
+        boolean[] inside = new boolean[block];
+        double[] values = new double[8 * block];
+        float lastX = maxX - 1;
+        float lastY = maxY - 1;
+        float lastZ = maxZ - 1;
+        for (int s = 0; s < count; s += block) {
+            int length = Math.min(block, count - s);
+            for (int n = 0; n < length; n++) {
+                float x = xs[offset + s + n];
+                float y = ys[offset + s + n];
+                float z = zs[offset + s + n];
+                boolean in = (x >= 1) & (x < lastX) & (y >= 1) & (y < lastY) & (z >= 1) & (z < lastZ);
+                // read points outside of the volume at (1,1,1) and throw the answer away
+                x = in ? x : 1;
+                y = in ? y : 1;
+                z = in ? z : 1;
+                int i = (int) x;
+                int j = (int) y;
+                int k = (int) z;
+                wx[n] = x - i;
+                wy[n] = y - j;
+                wz[n] = z - k;
+                corners[n] = origin + i * xStride + j * yStride + k * zStride;
+                inside[n] = in;
+            }
+            gatherCorners(corners, length, values);
+            for (int n = 0; n < length; n++) {
+                double fx = wx[n];
+                double fy = wy[n];
+                double fz = wz[n];
+                int v = 8 * n;
+                double c00 = values[v] + fx * (values[v + 1] - values[v]);
+                double c10 = values[v + 2] + fx * (values[v + 3] - values[v + 2]);
+                double c01 = values[v + 4] + fx * (values[v + 5] - values[v + 4]);
+                double c11 = values[v + 6] + fx * (values[v + 7] - values[v + 6]);
+                double c0 = c00 + fy * (c10 - c00);
+                double c1 = c01 + fy * (c11 - c01);
+                double value = c0 + fz * (c1 - c0);
+                dest[destOffset + s + n] = inside[n] ? value : 0;
+            }
+        }
+    }
+
+    /**
+     * Read the 8 voxels of the cell whose lowest corner is at each index in
+     * corners, in the order c, c + x, c + y, c + y + x, c + z, c + z + x,
+     * c + z + y, c + z + y + x (a step along an axis being its stride).  The
+     * values for corners[n] go in values[8 * n] to values[8 * n + 7].
+     * Subclasses override this to read their backing array directly.
+     * @param corners
+     * @param count The number of corners
+     * @param values
+     */
+    protected void gatherCorners(int[] corners, int count, double[] values) {
+        int ox = xStride;
+        int oy = yStride;
+        int oz = zStride;
+        for (int n = 0; n < count; n++) {
+            int c = corners[n];
+            int v = 8 * n;
+            values[v] = getDouble(c);
+            values[v + 1] = getDouble(c + ox);
+            values[v + 2] = getDouble(c + oy);
+            values[v + 3] = getDouble(c + oy + ox);
+            values[v + 4] = getDouble(c + oz);
+            values[v + 5] = getDouble(c + oz + ox);
+            values[v + 6] = getDouble(c + oz + oy);
+            values[v + 7] = getDouble(c + oz + oy + ox);
+        }
+    }
+
     @Override
     public void setData(int x, int y, int z, int t, int i5, double value) {
         int index = getIndex(x, y, z, t, i5);
@@ -242,20 +529,58 @@ public abstract class IndexedVolumeArray
         return new FilteredIndexedVolumeArray(this, filter);
     }
 
+    /**
+     * Check that the chunk described by the arguments to getSeries() or
+     * setSeries() lies inside of this volume and that rv can hold it.
+     * @throws IndexOutOfBoundsException if it does not fit.
+     */
+    private void checkSeries(int length, int offset, int x0, int y0, int z0, int t0, int i5_0,
+            int width, int height, int depth, int duration, int i5_count) {
+        checkBounds(x0, y0, z0, t0, i5_0, width, height, depth, duration, i5_count);
+        if (offset < 0 || offset + width * height * depth * duration * i5_count > length) {
+            throw new IndexOutOfBoundsException("Array too small: " + length + " at " + offset);
+        }
+    }
+
+    /**
+     * Check that the chunk lies inside of this volume.
+     * @throws IndexOutOfBoundsException if it does not.
+     */
+    private void checkBounds(int x0, int y0, int z0, int t0, int i5_0,
+            int width, int height, int depth, int duration, int i5_count) {
+        if (x0 < 0 || y0 < 0 || z0 < 0 || t0 < 0 || i5_0 < 0 ||
+                width < 0 || height < 0 || depth < 0 || duration < 0 || i5_count < 0 ||
+                x0 + width > maxX || y0 + height > maxY || z0 + depth > maxZ ||
+                t0 + duration > maxTime || i5_0 + i5_count > maxI5) {
+            throw new IndexOutOfBoundsException("Out of bounds: (" + x0 + "," + y0 + "," + z0 + "," + t0 + "," + i5_0 +
+                    ") + (" + width + "," + height + "," + depth + "," + duration + "," + i5_count + ")");
+        }
+    }
+
+    /**
+     * @return true if the chunk is a single voxel followed through time, in
+     * which case it is copied as one run along the time dimension.
+     */
+    private static boolean isTimeCourse(int width, int height, int depth) {
+        return width == 1 && height == 1 && depth == 1;
+    }
+
     @Override
     public int[] getSeries(int[] rv, int x0, int y0, int z0, int t0, int i5_0,
             int width, int height, int depth, int duration, int i5_count) {
+        checkSeries(rv.length, 0, x0, y0, z0, t0, i5_0, width, height, depth, duration, i5_count);
         int rindex = 0;
         for (int m = i5_0; m < i5_count + i5_0; m++) {
+            if (isTimeCourse(width, height, depth)) {
+                getRun(getIndex(x0, y0, z0, t0, m), tStride, rv, rindex, duration);
+                rindex += duration;
+                continue;
+            }
             for (int l = t0; l < duration + t0; l++) {
                 for (int k = z0; k < depth + z0; k++) {
                     for (int j = y0; j < height + y0; j++) {
-                        int index = getIndex(x0, j, k, l, m);
-                        for (int i = x0; i < width + x0; i++) {
-                            rv[rindex] = getInt(index);
-                            rindex++;
-                            index++;
-                        }
+                        getRun(getIndex(x0, j, k, l, m), xStride, rv, rindex, width);
+                        rindex += width;
                     }
                 }
             }
@@ -263,19 +588,254 @@ public abstract class IndexedVolumeArray
         return rv;
     }
 
+    @Override
+    public double[] getSeries(double[] rv, int x0, int y0, int z0, int t0, int i5_0,
+            int width, int height, int depth, int duration, int i5_count) {
+        checkSeries(rv.length, 0, x0, y0, z0, t0, i5_0, width, height, depth, duration, i5_count);
+        int rindex = 0;
+        for (int m = i5_0; m < i5_count + i5_0; m++) {
+            if (isTimeCourse(width, height, depth)) {
+                getRun(getIndex(x0, y0, z0, t0, m), tStride, rv, rindex, duration);
+                rindex += duration;
+                continue;
+            }
+            for (int l = t0; l < duration + t0; l++) {
+                for (int k = z0; k < depth + z0; k++) {
+                    for (int j = y0; j < height + y0; j++) {
+                        getRun(getIndex(x0, j, k, l, m), xStride, rv, rindex, width);
+                        rindex += width;
+                    }
+                }
+            }
+        }
+        return rv;
+    }
+
+    /**
+     * Extract a chunk from this volume as floats.  The layout of rv is the
+     * same as for getSeries(double[], ...), x changes fastest.
+     * @param rv Where to store the result.
+     * @param x0 First x
+     * @param y0  First y
+     * @param z0 First z
+     * @param t0 First t
+     * @param i5_0 First i5
+     * @param width Distance in x dir in voxels.
+     * @param height Distance in y dir in voxels.
+     * @param depth Distance in z dir in voxels.
+     * @param duration Distance in time dir in voxels.
+     * @param i5_count Distance in i5 dir in voxels.
+     * @return rv
+     */
+    public float[] getSeries(float[] rv, int x0, int y0, int z0, int t0, int i5_0,
+            int width, int height, int depth, int duration, int i5_count) {
+        return getSeries(rv, 0, x0, y0, z0, t0, i5_0, width, height, depth, duration, i5_count);
+    }
+
+    private float[] getSeries(float[] rv, int offset, int x0, int y0, int z0, int t0, int i5_0,
+            int width, int height, int depth, int duration, int i5_count) {
+        checkSeries(rv.length, offset, x0, y0, z0, t0, i5_0, width, height, depth, duration, i5_count);
+        int rindex = offset;
+        for (int m = i5_0; m < i5_count + i5_0; m++) {
+            if (isTimeCourse(width, height, depth)) {
+                getRun(getIndex(x0, y0, z0, t0, m), tStride, rv, rindex, duration);
+                rindex += duration;
+                continue;
+            }
+            for (int l = t0; l < duration + t0; l++) {
+                for (int k = z0; k < depth + z0; k++) {
+                    for (int j = y0; j < height + y0; j++) {
+                        getRun(getIndex(x0, j, k, l, m), xStride, rv, rindex, width);
+                        rindex += width;
+                    }
+                }
+            }
+        }
+        return rv;
+    }
+
+    /**
+     * Extract a chunk from this volume as shorts.  Values are narrowed the
+     * same way as getInt() followed by a cast to short.
+     * @param rv Where to store the result.
+     * @param x0 First x
+     * @param y0  First y
+     * @param z0 First z
+     * @param t0 First t
+     * @param i5_0 First i5
+     * @param width Distance in x dir in voxels.
+     * @param height Distance in y dir in voxels.
+     * @param depth Distance in z dir in voxels.
+     * @param duration Distance in time dir in voxels.
+     * @param i5_count Distance in i5 dir in voxels.
+     * @return rv
+     */
+    public short[] getSeries(short[] rv, int x0, int y0, int z0, int t0, int i5_0,
+            int width, int height, int depth, int duration, int i5_count) {
+        checkSeries(rv.length, 0, x0, y0, z0, t0, i5_0, width, height, depth, duration, i5_count);
+        int rindex = 0;
+        for (int m = i5_0; m < i5_count + i5_0; m++) {
+            if (isTimeCourse(width, height, depth)) {
+                getRun(getIndex(x0, y0, z0, t0, m), tStride, rv, rindex, duration);
+                rindex += duration;
+                continue;
+            }
+            for (int l = t0; l < duration + t0; l++) {
+                for (int k = z0; k < depth + z0; k++) {
+                    for (int j = y0; j < height + y0; j++) {
+                        getRun(getIndex(x0, j, k, l, m), xStride, rv, rindex, width);
+                        rindex += width;
+                    }
+                }
+            }
+        }
+        return rv;
+    }
+
+    /**
+     * Extract a chunk from this volume into a FloatBuffer starting at its
+     * current position.  The position is advanced past the copied values.
+     * Array backed buffers are filled directly, others one row at a time.
+     * @param rv Where to store the result.
+     * @param x0 First x
+     * @param y0  First y
+     * @param z0 First z
+     * @param t0 First t
+     * @param i5_0 First i5
+     * @param width Distance in x dir in voxels.
+     * @param height Distance in y dir in voxels.
+     * @param depth Distance in z dir in voxels.
+     * @param duration Distance in time dir in voxels.
+     * @param i5_count Distance in i5 dir in voxels.
+     * @return rv
+     */
+    public FloatBuffer getSeries(FloatBuffer rv, int x0, int y0, int z0, int t0, int i5_0,
+            int width, int height, int depth, int duration, int i5_count) {
+        int count = width * height * depth * duration * i5_count;
+        if (rv.remaining() < count) {
+            throw new BufferOverflowException();
+        }
+        if (rv.hasArray()) {
+            getSeries(rv.array(), rv.arrayOffset() + rv.position(),
+                    x0, y0, z0, t0, i5_0, width, height, depth, duration, i5_count);
+            rv.position(rv.position() + count);
+            return rv;
+        }
+        checkSeries(count, 0, x0, y0, z0, t0, i5_0, width, height, depth, duration, i5_count);
+        if (isTimeCourse(width, height, depth)) {
+            float[] row = new float[duration];
+            for (int m = i5_0; m < i5_count + i5_0; m++) {
+                getRun(getIndex(x0, y0, z0, t0, m), tStride, row, 0, duration);
+                rv.put(row);
+            }
+            return rv;
+        }
+        float[] row = new float[width];
+        for (int m = i5_0; m < i5_count + i5_0; m++) {
+            for (int l = t0; l < duration + t0; l++) {
+                for (int k = z0; k < depth + z0; k++) {
+                    for (int j = y0; j < height + y0; j++) {
+                        getRun(getIndex(x0, j, k, l, m), xStride, row, 0, width);
+                        rv.put(row);
+                    }
+                }
+            }
+        }
+        return rv;
+    }
+
+    /**
+     * Copy a single row (all x for the given y, z, t, i5) into rv.
+     * @param rv Where to store the result, must hold getMaxX() values.
+     * @param y
+     * @param z
+     * @param t
+     * @param i5
+     * @return rv
+     */
+    public float[] getRow(float[] rv, int y, int z, int t, int i5) {
+        return getSeries(rv, 0, y, z, t, i5, maxX, 1, 1, 1, 1);
+    }
+
+    /**
+     * Copy a single row (all x for the given y, z, t, i5) into rv.
+     * @param rv Where to store the result, must hold getMaxX() values.
+     * @param y
+     * @param z
+     * @param t
+     * @param i5
+     * @return rv
+     */
+    public double[] getRow(double[] rv, int y, int z, int t, int i5) {
+        return getSeries(rv, 0, y, z, t, i5, maxX, 1, 1, 1, 1);
+    }
+
+    /**
+     * Copy an axial plane (all x and y for the given z, t, i5) into rv.
+     * @param rv Where to store the result, must hold getMaxX() * getMaxY() values.
+     * @param z
+     * @param t
+     * @param i5
+     * @return rv
+     */
+    public float[] getPlane(float[] rv, int z, int t, int i5) {
+        return getSeries(rv, 0, 0, z, t, i5, maxX, maxY, 1, 1, 1);
+    }
+
+    /**
+     * Copy an axial plane (all x and y for the given z, t, i5) into rv.
+     * @param rv Where to store the result, must hold getMaxX() * getMaxY() values.
+     * @param z
+     * @param t
+     * @param i5
+     * @return rv
+     */
+    public double[] getPlane(double[] rv, int z, int t, int i5) {
+        return getSeries(rv, 0, 0, z, t, i5, maxX, maxY, 1, 1, 1);
+    }
+
+    /**
+     * Copy the values of a single voxel over all time points into rv.
+     * @param rv Where to store the result, must hold getMaxTime() values.
+     * @param x
+     * @param y
+     * @param z
+     * @param i5
+     * @return rv
+     */
+    public float[] getTimeCourse(float[] rv, int x, int y, int z, int i5) {
+        return getSeries(rv, x, y, z, 0, i5, 1, 1, 1, maxTime, 1);
+    }
+
+    /**
+     * Copy the values of a single voxel over all time points into rv.
+     * @param rv Where to store the result, must hold getMaxTime() values.
+     * @param x
+     * @param y
+     * @param z
+     * @param i5
+     * @return rv
+     */
+    public double[] getTimeCourse(double[] rv, int x, int y, int z, int i5) {
+        return getSeries(rv, x, y, z, 0, i5, 1, 1, 1, maxTime, 1);
+    }
+
+    @Override
     public void setSeries(int[] values, int x0, int y0, int z0, int t0, int i5_0,
             int width, int height, int depth, int duration, int i5_count) {
+        checkSeries(values.length, 0, x0, y0, z0, t0, i5_0, width, height, depth, duration, i5_count);
         int rindex = 0;
         for (int m = i5_0; m < i5_count + i5_0; m++) {
+            if (isTimeCourse(width, height, depth)) {
+                setRun(getIndex(x0, y0, z0, t0, m), tStride, values, rindex, duration);
+                rindex += duration;
+                continue;
+            }
             for (int l = t0; l < duration + t0; l++) {
                 for (int k = z0; k < depth + z0; k++) {
                     for (int j = y0; j < height + y0; j++) {
-                        int index = getIndex(x0, j, k, l, m);
-                        for (int i = x0; i < width + x0; i++) {
-                            setData(index, values[rindex]);
-                            rindex++;
-                            index++;
-                        }
+                        setRun(getIndex(x0, j, k, l, m), xStride, values, rindex, width);
+                        rindex += width;
                     }
                 }
             }
@@ -285,41 +845,300 @@ public abstract class IndexedVolumeArray
     @Override
     public void setSeries(double[] values, int x0, int y0, int z0, int t0, int i5_0,
             int width, int height, int depth, int duration, int i5_count) {
+        checkSeries(values.length, 0, x0, y0, z0, t0, i5_0, width, height, depth, duration, i5_count);
         int rindex = 0;
         for (int m = i5_0; m < i5_count + i5_0; m++) {
+            if (isTimeCourse(width, height, depth)) {
+                setRun(getIndex(x0, y0, z0, t0, m), tStride, values, rindex, duration);
+                rindex += duration;
+                continue;
+            }
             for (int l = t0; l < duration + t0; l++) {
                 for (int k = z0; k < depth + z0; k++) {
                     for (int j = y0; j < height + y0; j++) {
-                        int index = getIndex(x0, j, k, l, m);
-                        for (int i = x0; i < width + x0; i++) {
-                            setData(index, values[rindex]);
-                            rindex++;
-                            index++;
-                        }
+                        setRun(getIndex(x0, j, k, l, m), xStride, values, rindex, width);
+                        rindex += width;
                     }
                 }
             }
         }
     }
 
-    public double[] getSeries(double[] rv, int x0, int y0, int z0, int t0, int i5_0,
+    /**
+     * Hand every voxel to visitor in the standard order (x fastest).
+     * @param visitor
+     */
+    public void forEachVoxel(VoxelVisitor visitor) {
+        forEachVoxel(visitor, 0, 0, 0, 0, 0, maxX, maxY, maxZ, maxTime, maxI5);
+    }
+
+    /**
+     * Hand every voxel in a chunk to visitor, x changing fastest.  The chunk
+     * is described the same way as for getSeries().
+     * @param visitor
+     * @param x0 First x
+     * @param y0  First y
+     * @param z0 First z
+     * @param t0 First t
+     * @param i5_0 First i5
+     * @param width Distance in x dir in voxels.
+     * @param height Distance in y dir in voxels.
+     * @param depth Distance in z dir in voxels.
+     * @param duration Distance in time dir in voxels.
+     * @param i5_count Distance in i5 dir in voxels.
+     */
+    public void forEachVoxel(VoxelVisitor visitor, int x0, int y0, int z0, int t0, int i5_0,
             int width, int height, int depth, int duration, int i5_count) {
-        int rindex = 0;
+        checkBounds(x0, y0, z0, t0, i5_0, width, height, depth, duration, i5_count);
         for (int m = i5_0; m < i5_count + i5_0; m++) {
             for (int l = t0; l < duration + t0; l++) {
                 for (int k = z0; k < depth + z0; k++) {
                     for (int j = y0; j < height + y0; j++) {
-                        int index = getIndex(x0, j, k, l, m);
-                        for (int i = x0; i < width + x0; i++) {
-                            rv[rindex] = getDouble(index);
-                            rindex++;
-                            index++;
+                        visitRow(visitor, getIndex(x0, j, k, l, m), x0, width, j, k, l, m);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Hand every voxel where mask is set to visitor, x changing fastest.  mask
+     * must have the same x, y and z dimensions as this.  If it has a single
+     * time point it is used for every time point, otherwise it must have the
+     * same number of time points.  Only i5 = 0 of mask is used.
+     * @param visitor
+     * @param mask Which voxels to visit.
+     */
+    public void forEachVoxel(VoxelVisitor visitor, BitIndexedVolumeArray mask) {
+        if (mask.getMaxX() != maxX || mask.getMaxY() != maxY || mask.getMaxZ() != maxZ ||
+                (mask.getMaxTime() != 1 && mask.getMaxTime() != maxTime)) {
+            throw new IllegalArgumentException("The mask does not line up with this volume");
+        }
+        BitSet bits = (BitSet) mask.getDataArray();
+        for (int m = 0; m < maxI5; m++) {
+            for (int l = 0; l < maxTime; l++) {
+                int maskT = mask.getMaxTime() == 1 ? 0 : l;
+                for (int k = 0; k < maxZ; k++) {
+                    for (int j = 0; j < maxY; j++) {
+                        int maskRow = mask.getIndex(0, j, k, maskT, 0);
+                        int maskEnd = maskRow + maxX;
+                        int start = bits.nextSetBit(maskRow);
+                        if (start < 0 || start >= maskEnd) {
+                            continue;
+                        }
+                        int rowIndex = getIndex(0, j, k, l, m);
+                        // visit each run of set bits with the fast path
+                        while (start >= 0 && start < maskEnd) {
+                            int end = Math.min(bits.nextClearBit(start), maskEnd);
+                            int x = start - maskRow;
+                            visitRow(visitor, rowIndex + x * xStride, x, end - start, j, k, l, m);
+                            start = bits.nextSetBit(end);
                         }
                     }
                 }
             }
         }
-        return rv;
+    }
+
+    /**
+     * Hand width voxels of a row to visitor.  This is the inner loop of
+     * forEachVoxel(), subclasses that are backed by an array should override it
+     * with a loop over that array.
+     * @param visitor
+     * @param index The index of (x0, y, z, t, i5)
+     * @param x0 The first x
+     * @param width The number of voxels to visit.
+     * @param y
+     * @param z
+     * @param t
+     * @param i5
+     */
+    protected void visitRow(VoxelVisitor visitor, int index, int x0, int width,
+            int y, int z, int t, int i5) {
+        for (int x = x0; x < x0 + width; x++) {
+            visitor.visit(x, y, z, t, i5, index, getDouble(index));
+            index += xStride;
+        }
+    }
+
+    /**
+     * Copy length values, starting at index and stepping by stride, into dst.
+     * This is the primitive that all of the bulk accessors are built on.  The
+     * default implementation calls getDouble(index) for every value, subclasses
+     * that are backed by a primitive array should override it with
+     * System.arraycopy or a loop over that array.
+     * @param index The index of the first value
+     * @param stride The distance between values in the index
+     * @param dst The destination
+     * @param offset The first entry of dst to fill
+     * @param length The number of values to copy
+     */
+    protected void getRun(int index, int stride, double[] dst, int offset, int length) {
+        for (int i = 0; i < length; i++) {
+            dst[offset + i] = getDouble(index);
+            index += stride;
+        }
+    }
+
+    /**
+     * Same as getRun(int, int, double[], int, int) but narrowing to float.
+     */
+    protected void getRun(int index, int stride, float[] dst, int offset, int length) {
+        for (int i = 0; i < length; i++) {
+            dst[offset + i] = (float) getDouble(index);
+            index += stride;
+        }
+    }
+
+    /**
+     * Same as getRun(int, int, double[], int, int) but using getInt().
+     */
+    protected void getRun(int index, int stride, int[] dst, int offset, int length) {
+        for (int i = 0; i < length; i++) {
+            dst[offset + i] = getInt(index);
+            index += stride;
+        }
+    }
+
+    /**
+     * Same as getRun(int, int, double[], int, int) but using getInt() and
+     * narrowing to short.
+     */
+    protected void getRun(int index, int stride, short[] dst, int offset, int length) {
+        for (int i = 0; i < length; i++) {
+            dst[offset + i] = (short) getInt(index);
+            index += stride;
+        }
+    }
+
+    /**
+     * Same as getRun(int, int, double[], int, int) but rounding to long.
+     * Arrays that hold 64 bit integers override it so values above 2^53
+     * survive.
+     */
+    protected void getRun(int index, int stride, long[] dst, int offset, int length) {
+        for (int i = 0; i < length; i++) {
+            dst[offset + i] = Math.round(getDouble(index));
+            index += stride;
+        }
+    }
+
+    /**
+     * Copy length values from src into this volume, starting at index and
+     * stepping by stride.  The conversion is the same as setData(int, double).
+     * @param index The index of the first value
+     * @param stride The distance between values in the index
+     * @param src The source
+     * @param offset The first entry of src to copy
+     * @param length The number of values to copy
+     */
+    protected void setRun(int index, int stride, double[] src, int offset, int length) {
+        for (int i = 0; i < length; i++) {
+            setData(index, src[offset + i]);
+            index += stride;
+        }
+    }
+
+    /**
+     * Same as setRun(int, int, double[], int, int) but using setData(int, int).
+     */
+    protected void setRun(int index, int stride, int[] src, int offset, int length) {
+        for (int i = 0; i < length; i++) {
+            setData(index, src[offset + i]);
+            index += stride;
+        }
+    }
+
+    /**
+     * Same as setRun(int, int, double[], int, int) but from longs.  Arrays
+     * that hold 64 bit integers override it so values above 2^53 survive.
+     */
+    protected void setRun(int index, int stride, long[] src, int offset, int length) {
+        for (int i = 0; i < length; i++) {
+            setData(index, (double) src[offset + i]);
+            index += stride;
+        }
+    }
+
+    /**
+     * Write the data in the standard order (x changes fastest, then y, z, t
+     * and i5) using the encoding for getType(), no matter how getIndex() lays
+     * it out.  Arrays with their own index equation can implement write()
+     * with this.
+     * @param out Where to write the data.
+     * @throws IOException
+     */
+    protected void writeInOrder(ByteEncoder out) throws IOException {
+        DataType type = getType();
+        int[] irow = new int[maxX];
+        float[] frow = new float[maxX];
+        double[] drow = new double[maxX];
+        long[] lrow = type == DataType.TYPE_LONG ? new long[maxX] : null;
+        for (int m = 0; m < maxI5; m++) {
+            for (int l = 0; l < maxTime; l++) {
+                for (int k = 0; k < maxZ; k++) {
+                    for (int j = 0; j < maxY; j++) {
+                        int index = getIndex(0, j, k, l, m);
+                        switch (type) {
+                            case TYPE_BYTE:
+                            case TYPE_UBYTE:
+                                getRun(index, xStride, irow, 0, maxX);
+                                for (int value : irow) {
+                                    out.write((byte) value);
+                                }
+                                break;
+                            case TYPE_SHORT:
+                                getRun(index, xStride, irow, 0, maxX);
+                                for (int value : irow) {
+                                    out.write((short) value);
+                                }
+                                break;
+                            case TYPE_USHORT:
+                                getRun(index, xStride, irow, 0, maxX);
+                                for (int value : irow) {
+                                    out.write((char) value);
+                                }
+                                break;
+                            case TYPE_INT:
+                                getRun(index, xStride, irow, 0, maxX);
+                                for (int value : irow) {
+                                    out.write(value);
+                                }
+                                break;
+                            case TYPE_RGB:
+                                getRun(index, xStride, irow, 0, maxX);
+                                for (int value : irow) {
+                                    out.getOut().write(value >> 16);
+                                    out.getOut().write(value >> 8);
+                                    out.getOut().write(value);
+                                }
+                                break;
+                            case TYPE_LONG:
+                                getRun(index, xStride, lrow, 0, maxX);
+                                for (long value : lrow) {
+                                    out.write(value);
+                                }
+                                break;
+                            case TYPE_FLOAT:
+                                getRun(index, xStride, frow, 0, maxX);
+                                for (float value : frow) {
+                                    out.write(value);
+                                }
+                                break;
+                            case TYPE_DOUBLE:
+                                getRun(index, xStride, drow, 0, maxX);
+                                for (double value : drow) {
+                                    out.write(value);
+                                }
+                                break;
+                            default:
+                                throw new UnsupportedOperationException("Cannot write " + type);
+                        }
+                    }
+                }
+            }
+        }
+        out.getOut().flush();
     }
 
     public abstract void setData(int index, double value);
@@ -8,5 +8,13 @@ package edu.washington.biostr.sig.volume;
 public enum Interpolation {
 
     LINEAR,
-    NEAREST_NEIGHBOR;
+    NEAREST_NEIGHBOR,
+    /**
+     * Cubic B-spline through the voxels.  See BSplineCoefficients.
+     */
+    CUBIC_BSPLINE,
+    /**
+     * Windowed sinc with a 3 voxel Lanczos window.  See Lanczos.
+     */
+    LANCZOS;
 }
@@ -1,8 +1,12 @@
 package edu.washington.biostr.sig.volume;
 
+import java.util.Arrays;
+
 import javax.vecmath.Matrix4d;
 import javax.vecmath.Vector3d;
 
+import org.eiderman.util.ParallelLoop;
+
 /**
  * This class handles 3D kernel application to 3D data sets.  This code is based on the Kernel3D
  * created by Eider Moore, and updated to be compatable with the current BrainJ3D codebase.
@@ -15,6 +19,12 @@ public class Kernel3D {
     private int width;
     private int height;
     private int depth;
+    /**
+     * The kernels along x, y and z whose outer product is kernel, or null if kernel does not factor that way.
+     */
+    private float[] kernelX;
+    private float[] kernelY;
+    private float[] kernelZ;
 
     /**
      * Create a new 3D filter kernel using the specified 1D array as the kernel. 
@@ -37,6 +47,90 @@ public class Kernel3D {
             throw new IllegalArgumentException(
                     "The size of the filter kernel data is not equal to the size specified by height, width, and depth");
         }
+        factor();
+    }
+
+    /**
+     * Create a separable 3D filter kernel, the outer product of a 1D kernel along each axis.  Separable kernels are
+     * applied as three 1D passes, which takes width + height + depth multiplications per voxel instead of
+     * width * height * depth.
+     * @param kernelX the kernel along x, it must have an odd length
+     * @param kernelY the kernel along y, it must have an odd length
+     * @param kernelZ the kernel along z, it must have an odd length
+     * @return a separable 3D filter kernel
+     */
+    public static Kernel3D createSeparable(float[] kernelX, float[] kernelY, float[] kernelZ) {
+        int width = kernelX.length;
+        int height = kernelY.length;
+        int depth = kernelZ.length;
+        float[] kernel = new float[width * height * depth];
+        int index = 0;
+        for (int k = 0; k < depth; k++) {
+            for (int j = 0; j < height; j++) {
+                for (int i = 0; i < width; i++) {
+                    kernel[index++] = kernelX[i] * kernelY[j] * kernelZ[k];
+                }
+            }
+        }
+        Kernel3D rv = new Kernel3D(width, height, depth, kernel);
+        rv.kernelX = kernelX.clone();
+        rv.kernelY = kernelY.clone();
+        rv.kernelZ = kernelZ.clone();
+        return rv;
+    }
+
+    /**
+     * Look for 1D kernels whose outer product is this kernel.  If there are any, then they are the lines along each
+     * axis through the largest tap, scaled so that their product gives back that tap.  Gaussians always factor.
+     */
+    private void factor() {
+        int peak = 0;
+        for (int i = 1; i < kernel.length; i++) {
+            if (Math.abs(kernel[i]) > Math.abs(kernel[peak])) {
+                peak = i;
+            }
+        }
+        float c = kernel[peak];
+        if (c == 0) {
+            return;
+        }
+        int x0 = peak % width;
+        int y0 = (peak / width) % height;
+        int z0 = peak / (width * height);
+        float[] kx = new float[width];
+        float[] ky = new float[height];
+        float[] kz = new float[depth];
+        for (int i = 0; i < width; i++) {
+            kx[i] = kernel[i + width * (y0 + height * z0)];
+        }
+        for (int j = 0; j < height; j++) {
+            ky[j] = kernel[x0 + width * (j + height * z0)] / c;
+        }
+        for (int k = 0; k < depth; k++) {
+            kz[k] = kernel[x0 + width * (y0 + height * k)] / c;
+        }
+        double tolerance = 1e-5 * Math.abs(c);
+        int index = 0;
+        for (int k = 0; k < depth; k++) {
+            for (int j = 0; j < height; j++) {
+                for (int i = 0; i < width; i++) {
+                    if (Math.abs(kernel[index++] - (double) kx[i] * ky[j] * kz[k]) > tolerance) {
+                        return;
+                    }
+                }
+            }
+        }
+        kernelX = kx;
+        kernelY = ky;
+        kernelZ = kz;
+    }
+
+    /**
+     * @return true if this kernel is the outer product of a kernel along each axis, so it is applied one axis at a
+     * time.
+     */
+    public boolean isSeparable() {
+        return kernelX != null;
     }
 
     private static double calcGaussian(double x, double y, double z, double stdDev) {
@@ -196,7 +290,7 @@ public class Kernel3D {
      * @return the value of the kernel at the specified index
      */
     public float getKernelValue(int x, int y, int z) {
-        return kernel[x + height * (y + depth * z)];
+        return kernel[x + width * (y + height * z)];
     }
 
     public int getDepth() {
@@ -267,7 +361,7 @@ public class Kernel3D {
      * @return A filtered array
      */
     public VolumeArray applyAdd(VolumeArray volArray, boolean testForInterrupt) {
-        return this.applyAdd(volArray, null, false);
+        return this.applyAdd(volArray, null, testForInterrupt);
     }
 
     /**
@@ -290,119 +384,413 @@ public class Kernel3D {
         return this.applyAdd((IndexedVolumeArray) volArray, (IndexedVolumeArray) maskArray, testForInterrupt);
     }
 
+    /**
+     * Applies this filter kernel to every voxel of a Volume Array.  Voxels near the edge read neighbours that fall
+     * outside of the volume according to <code>policy</code>.
+     * @param volArray the source data to filter
+     * @param policy how to read source data outside of the volume
+     * @return A filtered array
+     */
+    public VolumeArray applyAdd(VolumeArray volArray, EdgePolicy policy) {
+        String validationError = validateArrays(volArray, null);
+        if (validationError != null) {
+            throw new IllegalArgumentException(validationError);
+        }
+        if (policy == null) {
+            throw new IllegalArgumentException("policy cannot be null");
+        }
+
+        return this.applyAdd((IndexedVolumeArray) volArray, null, policy, false);
+    }
+
     private VolumeArray applyAdd(IndexedVolumeArray volArray, IndexedVolumeArray maskArray, boolean testForInterrupt) {
+        return applyAdd(volArray, maskArray, null, testForInterrupt);
+    }
+
+    /**
+     * Kernels that are large compared to the volume are applied in the frequency domain when FFTConvolution's cost
+     * model says that is cheaper.  Otherwise separable kernels are applied one axis at a time, and other kernels read
+     * their taps through a Stencil, so voxels whose whole neighbourhood is inside the volume find their neighbours by
+     * adding precomputed index offsets instead of calling getIndex() for every tap.  Every path runs in parallel.
+     * @param policy how to read source data outside of the volume, or null to leave the edges at 0.  Ignored when
+     * there is a mask.
+     */
+    private VolumeArray applyAdd(IndexedVolumeArray volArray, IndexedVolumeArray maskArray, EdgePolicy policy,
+            boolean testForInterrupt) {
         final int maxX = volArray.getMaxX();
         final int maxY = volArray.getMaxY();
         final int maxZ = volArray.getMaxZ();
         final int maxT = volArray.getMaxTime();
         final int maxI5 = volArray.getMaxI5();
-        final int size = maxX * maxY * maxZ * maxT;
-
-        final int xEnd;
-        final int yEnd;
-        final int zEnd;
-        final int xStart;
-        final int yStart;
-        final int zStart;
-
-        final boolean useTforMask;
-        final boolean use5forMask;
-
-        if (maskArray == null) {
-            xEnd = maxX - width / 2;
-            yEnd = maxY - height / 2;
-            zEnd = maxZ - depth / 2;
-            xStart = width / 2;
-            yStart = height / 2;
-            zStart = depth / 2;
-            useTforMask = false;
-            use5forMask = false;
+        final int size = maxX * maxY * maxZ * maxT * maxI5;
+
+        // the work runs on the pool's threads, so they watch the thread that called this
+        Thread caller = testForInterrupt ? Thread.currentThread() : null;
+        float[] floatArray = new float[size];
+        boolean finished;
+        FFTConvolution fft = FFTConvolution.plan(this, volArray, maskArray != null);
+        if (fft != null) {
+            finished = fft.apply(volArray, maskArray, policy, caller, floatArray);
+        } else if (isSeparable()) {
+            finished = applySeparable(volArray, maskArray, policy, caller, floatArray);
         } else {
-            xEnd = maxX;
-            yEnd = maxY;
-            zEnd = maxZ;
-            xStart = 0;
-            yStart = 0;
-            zStart = 0;
-            useTforMask = (maskArray.getMaxTime() > 0);
-            use5forMask = (maskArray.getMaxI5() > 0);
+            finished = applyStencil(volArray, maskArray, policy, caller, floatArray);
+        }
+        if (!finished) {
+            System.out.println("applyAdd(...) interrputed, cancelling...");
+            return null;
         }
 
-        final float[] floatArray = new float[size];
-
-        for (int i5 = 0; i5 < maxI5; i5++) {
-            final int i5Mask = use5forMask ? i5 : 0;
-            for (int t = 0; t < maxT; t++) {
-                final int tMask = useTforMask ? t : 0;
-
-                for (int z = zStart; z < zEnd; z++) {
-                    for (int y = yStart; y < yEnd; y++) {
-                        for (int x = xStart; x < xEnd; x++) {
-                            float result = 0.0f;
-                            final int index = volArray.getIndex(x, y, z, t, i5);
+        Matrix4d index2Space = new Matrix4d(volArray.getIndex2Space());
+        return new FloatIndexedVolumeArray(maxX, maxY, maxZ, maxT, maxI5, index2Space, floatArray);
+    }
 
-                            if (maskArray == null) {
-                                for (int zK = 0; zK < depth; zK++) {
-                                    final int zPos = z + zK - (depth / 2);
+    private static boolean isInterrupted(Thread caller) {
+        return caller != null && caller.isInterrupted();
+    }
 
-                                    for (int yK = 0; yK < height; yK++) {
-                                        final int yPos = y + yK - (height / 2);
+    /**
+     * Apply every tap of the kernel to each voxel, one z plane per task.
+     * @return false if caller was interrupted
+     */
+    private boolean applyStencil(final IndexedVolumeArray volArray, final IndexedVolumeArray maskArray,
+            final EdgePolicy policy, final Thread caller, final float[] floatArray) {
+        final int maxX = volArray.getMaxX();
+        final int maxY = volArray.getMaxY();
+        final int maxZ = volArray.getMaxZ();
+        final int maxT = volArray.getMaxTime();
+        final int planes = maxZ * maxT * volArray.getMaxI5();
 
-                                        for (int xK = 0; xK < width; xK++) {
-                                            final int xPos = x + xK - (width / 2);
-                                            final int posIndex = volArray.getIndex(xPos, yPos, zPos, t, i5);
+        final Stencil stencil = Stencil.box(width, height, depth);
+        final int[] offsets = stencil.getOffsets(volArray);
 
-                                            result += volArray.getDouble(posIndex) * getKernelValue(xK, yK, zK);
-                                        }
-                                    }
-                                }
-                            } else {
+        if (maskArray == null) {
+            final Stencil.Visitor visitor = new Stencil.Visitor() {
+
+                public void visit(int x, int y, int z, int t, int i5, int index, double[] values) {
+                    float result = 0.0f;
+                    for (int k = 0; k < values.length; k++) {
+                        result += values[k] * kernel[k];
+                    }
+                    floatArray[(((i5 * maxT + t) * maxZ + z) * maxY + y) * maxX + x] = result;
+                }
+            };
+            ParallelLoop.run(0, planes, ParallelLoop.grain(planes, 1), new ParallelLoop.Body() {
+
+                public void run(int start, int end) {
+                    for (int p = start; p < end && !isInterrupted(caller); p++) {
+                        int z = p % maxZ;
+                        int t = (p / maxZ) % maxT;
+                        int i5 = p / (maxZ * maxT);
+                        stencil.forEach(volArray, t, i5, z, z + 1, policy, visitor);
+                    }
+                }
+            });
+        } else {
+            final int[] maskOffsets = stencil.getOffsets(maskArray);
+            final boolean useTforMask = (maskArray.getMaxTime() > 1);
+            final boolean use5forMask = (maskArray.getMaxI5() > 1);
+
+            ParallelLoop.run(0, planes, ParallelLoop.grain(planes, 1), new ParallelLoop.Body() {
+
+                public void run(int start, int end) {
+                    for (int p = start; p < end && !isInterrupted(caller); p++) {
+                        final int z = p % maxZ;
+                        final int t = (p / maxZ) % maxT;
+                        final int i5 = p / (maxZ * maxT);
+                        final int tMask = useTforMask ? t : 0;
+                        final int i5Mask = use5forMask ? i5 : 0;
+
+                        for (int y = 0; y < maxY; y++) {
+                            for (int x = 0; x < maxX; x++) {
+                                float result = 0.0f;
+                                final int index = volArray.getIndex(x, y, z, t, i5);
+                                final int maskBase = maskArray.getIndex(x, y, z, tMask, i5Mask);
+                                final boolean interior = stencil.isInterior(volArray, x, y, z);
                                 int maskCount = 0;
                                 float kernelSum = 0.0f;
 
-                                for (int zK = 0; zK < depth; zK++) {
-                                    final int zPos = z + zK - (depth / 2);
-
-                                    for (int yK = 0; yK < height; yK++) {
-                                        final int yPos = y + yK - (height / 2);
-
-                                        for (int xK = 0; xK < width; xK++) {
-                                            final int xPos = x + xK - (width / 2);
-                                            final int posIndex = volArray.getIndex(xPos, yPos, zPos, t, i5);
-                                            final int maskIndex = useTforMask ? posIndex : maskArray.getIndex(xPos, yPos, zPos, tMask, i5Mask);
-
-                                            if ((posIndex > -1) && (maskArray.getInt(maskIndex) != 0)) {
-                                                maskCount++;
-                                                final float kernelValue = getKernelValue(xK, yK, zK);
-                                                kernelSum += kernelValue;
-                                                final float value = (float) (volArray.getDouble(posIndex) * kernelValue);
-                                                result += value;
-                                            }
-                                        }
+                                for (int k = 0; k < offsets.length; k++) {
+                                    final int xPos = x + stencil.getDX(k);
+                                    final int yPos = y + stencil.getDY(k);
+                                    final int zPos = z + stencil.getDZ(k);
+                                    final int posIndex = interior ? index + offsets[k] : volArray.getIndex(xPos, yPos, zPos, t, i5);
+                                    final int maskIndex = interior ? maskBase + maskOffsets[k] : maskArray.getIndex(xPos, yPos, zPos, tMask, i5Mask);
+
+                                    if ((posIndex > -1) && (maskArray.getInt(maskIndex) != 0)) {
+                                        maskCount++;
+                                        final float kernelValue = kernel[k];
+                                        kernelSum += kernelValue;
+                                        final float value = (float) (volArray.getDouble(posIndex) * kernelValue);
+                                        result += value;
                                     }
                                 }
 
-                                if ((maskCount != 0) && (maskCount != this.kernel.length)) {
-                                    //double factor = ((double) this.kernel.length) / maskCount;
+                                if ((maskCount != 0) && (maskCount != kernel.length)) {
                                     result /= kernelSum;
                                 }
-                            } // end maskArray == null;
 
-                            floatArray[index] = result;
-                        } // end x
+                                floatArray[(((i5 * maxT + t) * maxZ + z) * maxY + y) * maxX + x] = result;
+                            } // end x
+                        } // end y
+                    } // end plane
+                }
+            });
+        }
+        return !isInterrupted(caller);
+    }
+
+    /**
+     * Apply kernelX, kernelY and kernelZ one after the other.  The x and y passes are run one z plane per task and
+     * leave their results in floatArray, then the z pass is run one row of x per task on top of them.<br>
+     * With a mask the masked data, the mask and the mask's voxel count are each filtered, which gives the same
+     * sums as the per-voxel loop in applyStencil(): the sum of the kernel times the data under the mask, the sum of
+     * the kernel under the mask and the number of taps under the mask.
+     * @return false if caller was interrupted
+     */
+    private boolean applySeparable(final IndexedVolumeArray volArray, final IndexedVolumeArray maskArray,
+            EdgePolicy policy, final Thread caller, final float[] floatArray) {
+        final int maxX = volArray.getMaxX();
+        final int maxY = volArray.getMaxY();
+        final int maxZ = volArray.getMaxZ();
+        final int maxT = volArray.getMaxTime();
+        final int maxI5 = volArray.getMaxI5();
+        final int planeSize = maxX * maxY;
+        final boolean masked = maskArray != null;
+        final boolean trimEdges = !masked && policy == null;
+        final EdgePolicy edges = masked || policy == null ? EdgePolicy.ZERO : policy;
+        final int taps = kernel.length;
+        final int rx = width / 2;
+        final int ry = height / 2;
+        final int rz = depth / 2;
+
+        final float[] sumArray = masked ? new float[planeSize * maxZ] : null;
+        final float[] countArray = masked ? new float[planeSize * maxZ] : null;
+        final float[] onesX = ones(width);
+        final float[] onesY = ones(height);
+        final float[] onesZ = ones(depth);
+        int lastTMask = -1;
+        int lastI5Mask = -1;
+
+        for (int i5 = 0; i5 < maxI5; i5++) {
+            for (int t = 0; t < maxT; t++) {
+                final int time = t;
+                final int i5Index = i5;
+                final int base = (i5 * maxT + t) * maxZ * planeSize;
+                final int tMask = masked && maskArray.getMaxTime() > 1 ? t : 0;
+                final int i5Mask = masked && maskArray.getMaxI5() > 1 ? i5 : 0;
+                // the filtered mask only has to be found again if the mask changes
+                final boolean newMask = masked && (tMask != lastTMask || i5Mask != lastI5Mask);
+                lastTMask = tMask;
+                lastI5Mask = i5Mask;
+
+                ParallelLoop.run(0, maxZ, ParallelLoop.grain(maxZ, 1), new ParallelLoop.Body() {
+
+                    public void run(int start, int end) {
+                        LineBuffers buffers = new LineBuffers(maxX, maxY, maxZ, rx, ry, rz);
+                        double[] plane = new double[planeSize];
+                        double[] mask = masked ? new double[planeSize] : null;
+                        for (int z = start; z < end && !isInterrupted(caller); z++) {
+                            volArray.getSeries(plane, 0, 0, z, time, i5Index, maxX, maxY, 1, 1, 1);
+                            if (masked) {
+                                maskArray.getSeries(mask, 0, 0, z, tMask, i5Mask, maxX, maxY, 1, 1, 1);
+                                for (int i = 0; i < planeSize; i++) {
+                                    // masked out voxels are skipped, not multiplied, so NaNs there don't leak in
+                                    mask[i] = mask[i] != 0 ? 1 : 0;
+                                    plane[i] = mask[i] != 0 ? plane[i] : 0;
+                                }
+                                if (newMask) {
+                                    buffers.filterPlane(mask, kernelX, kernelY, edges, sumArray, z * planeSize);
+                                    buffers.filterPlane(mask, onesX, onesY, edges, countArray, z * planeSize);
+                                }
+                            }
+                            buffers.filterPlane(plane, kernelX, kernelY, edges, floatArray, base + z * planeSize);
+                        }
+                    }
+                });
+                if (isInterrupted(caller)) {
+                    return false;
+                }
+
+                ParallelLoop.run(0, maxY, ParallelLoop.grain(maxY, 1), new ParallelLoop.Body() {
 
-                        if (testForInterrupt && Thread.currentThread().isInterrupted()) {
-                            System.out.println("applyAdd(...) interrputed, cancelling...");
-                            return null;
+                    public void run(int start, int end) {
+                        LineBuffers buffers = new LineBuffers(maxX, maxY, maxZ, rx, ry, rz);
+                        for (int y = start; y < end && !isInterrupted(caller); y++) {
+                            buffers.filterColumns(floatArray, base, y, kernelZ, edges);
+                            if (!masked) {
+                                if (trimEdges) {
+                                    trimRows(floatArray, base, y, maxX, maxY, maxZ, rx, ry, rz);
+                                }
+                                continue;
+                            }
+                            if (newMask) {
+                                buffers.filterColumns(sumArray, 0, y, kernelZ, edges);
+                                buffers.filterColumns(countArray, 0, y, onesZ, edges);
+                            }
+                            for (int z = 0; z < maxZ; z++) {
+                                int row = (z * maxY + y) * maxX;
+                                for (int x = 0; x < maxX; x++) {
+                                    int maskCount = Math.round(countArray[row + x]);
+                                    if ((maskCount != 0) && (maskCount != taps)) {
+                                        floatArray[base + row + x] /= sumArray[row + x];
+                                    }
+                                }
+                            }
                         }
-                    } // end y
-                } // end z
-            } // end t
+                    }
+                });
+                if (isInterrupted(caller)) {
+                    return false;
+                }
+            }
         }
+        return true;
+    }
 
-        Matrix4d index2Space = new Matrix4d(volArray.getIndex2Space());
-        return new FloatIndexedVolumeArray(maxX, maxY, maxZ, maxT, maxI5, index2Space, floatArray);
+    private static float[] ones(int length) {
+        float[] rv = new float[length];
+        Arrays.fill(rv, 1);
+        return rv;
+    }
 
+    /**
+     * Zero the voxels in row y of every z plane that the kernel does not fit around.
+     */
+    private static void trimRows(float[] data, int base, int y, int maxX, int maxY, int maxZ,
+            int rx, int ry, int rz) {
+        boolean yEdge = y < ry || y >= maxY - ry;
+        for (int z = 0; z < maxZ; z++) {
+            int row = base + (z * maxY + y) * maxX;
+            if (yEdge || z < rz || z >= maxZ - rz) {
+                Arrays.fill(data, row, row + maxX, 0);
+            } else {
+                Arrays.fill(data, row, row + Math.min(rx, maxX), 0);
+                Arrays.fill(data, row + Math.max(maxX - rx, 0), row + maxX, 0);
+            }
+        }
+    }
+
+    /**
+     * The scratch space for the 1D passes of a separable kernel.  Each task makes its own and reuses it for every
+     * plane or row it is handed.<br>
+     * The lines are padded by the radius of the kernel at each end, and several lines are interleaved so that the
+     * y and z passes walk through memory in x order.
+     */
+    private static class LineBuffers {
+
+        private final int maxX;
+        private final int maxY;
+        private final int maxZ;
+        private final int rx;
+        private final int ry;
+        private final int rz;
+        private final double[] lineX;
+        private final double[] outX;
+        private final double[] lineY;
+        private final double[] outY;
+        private final double[] lineZ;
+        private final double[] outZ;
+
+        LineBuffers(int maxX, int maxY, int maxZ, int rx, int ry, int rz) {
+            this.maxX = maxX;
+            this.maxY = maxY;
+            this.maxZ = maxZ;
+            this.rx = rx;
+            this.ry = ry;
+            this.rz = rz;
+            lineX = new double[maxX + 2 * rx];
+            outX = new double[maxX];
+            lineY = new double[(maxY + 2 * ry) * maxX];
+            outY = new double[maxY * maxX];
+            lineZ = new double[(maxZ + 2 * rz) * maxX];
+            outZ = new double[maxZ * maxX];
+        }
+
+        /**
+         * Filter plane along x with kx and then along y with ky and put the result in dest starting at offset.
+         */
+        void filterPlane(double[] plane, float[] kx, float[] ky, EdgePolicy policy, float[] dest, int offset) {
+            for (int y = 0; y < maxY; y++) {
+                System.arraycopy(plane, y * maxX, lineX, rx, maxX);
+                correlate(lineX, maxX, 1, kx, policy, outX);
+                System.arraycopy(outX, 0, lineY, (y + ry) * maxX, maxX);
+            }
+            correlate(lineY, maxY, maxX, ky, policy, outY);
+            for (int i = 0; i < outY.length; i++) {
+                dest[offset + i] = (float) outY[i];
+            }
+        }
+
+        /**
+         * Filter row y of every z plane of data along z with kz, in place.
+         */
+        void filterColumns(float[] data, int base, int y, float[] kz, EdgePolicy policy) {
+            for (int z = 0; z < maxZ; z++) {
+                int row = base + (z * maxY + y) * maxX;
+                int line = (z + rz) * maxX;
+                for (int x = 0; x < maxX; x++) {
+                    lineZ[line + x] = data[row + x];
+                }
+            }
+            correlate(lineZ, maxZ, maxX, kz, policy, outZ);
+            for (int z = 0; z < maxZ; z++) {
+                int row = base + (z * maxY + y) * maxX;
+                int line = z * maxX;
+                for (int x = 0; x < maxX; x++) {
+                    data[row + x] = (float) outZ[line + x];
+                }
+            }
+        }
+
+        /**
+         * Correlate k with count interleaved lines of n values: value i of line j is at line[(i + r) * count + j],
+         * where r is the radius of k.  The r values before and after each line are filled in according to policy
+         * first.  Value i of line j of the result goes to out[i * count + j].
+         */
+        private static void correlate(double[] line, int n, int count, float[] k, EdgePolicy policy, double[] out) {
+            int r = k.length / 2;
+            for (int i = -r; i < 0; i++) {
+                pad(line, n, count, r, i, policy);
+            }
+            for (int i = n; i < n + r; i++) {
+                pad(line, n, count, r, i, policy);
+            }
+            Arrays.fill(out, 0, n * count, 0);
+            for (int i = 0; i < n; i++) {
+                int dest = i * count;
+                for (int tap = 0; tap < k.length; tap++) {
+                    double weight = k[tap];
+                    if (weight == 0) {
+                        continue;
+                    }
+                    int src = (i + tap) * count;
+                    for (int j = 0; j < count; j++) {
+                        out[dest + j] += weight * line[src + j];
+                    }
+                }
+            }
+        }
+
+        /**
+         * Fill in value i, which is outside of 0 &lt;= i &lt; n, of each line.
+         */
+        private static void pad(double[] line, int n, int count, int r, int i, EdgePolicy policy) {
+            int dest = (i + r) * count;
+            int src;
+            switch (policy) {
+                case CLAMP:
+                    src = i < 0 ? 0 : n - 1;
+                    break;
+                case MIRROR:
+                    src = Stencil.mirror(i, n);
+                    break;
+                default:
+                    Arrays.fill(line, dest, dest + count, 0);
+                    return;
+            }
+            System.arraycopy(line, (src + r) * count, line, dest, count);
+        }
     }
 
     private static String validateArrays(VolumeArray volArray, VolumeArray maskArray) {
@@ -414,14 +802,14 @@ public class Kernel3D {
             return "Type of volArray is incompatable";
         }
 
-        if (!Kernel3D.canApply(maskArray)) {
-            return "Type of maskArray is incompatable";
-        }
-
         if (maskArray == null) {
             return null;
         }
 
+        if (!Kernel3D.canApply(maskArray)) {
+            return "Type of maskArray is incompatable";
+        }
+
         if ((volArray.getMaxX() != maskArray.getMaxX()) || (volArray.getMaxY() != maskArray.getMaxY()) || (volArray.getMaxZ() != maskArray.getMaxZ())) {
             return "Dimensions do not agree";
         }
@@ -0,0 +1,140 @@
+package edu.washington.biostr.sig.volume;
+
+/**
+ * Windowed sinc interpolation with a Lanczos window 3 voxels wide, used for
+ * Interpolation.LANCZOS.  Each sample blends the 6 x 6 x 6 voxels around
+ * it.  The weights are separable, so only 6 are computed per axis, and they
+ * are normalized to sum to 1 so flat regions stay flat.  Voxels past the
+ * edge are mirrored back in.<br>
+ * The weights and the offsets of the voxels they apply to are kept between
+ * calls and only recomputed for an axis when its coordinate changes, so a
+ * row of samples along x recomputes just the x weights.  IndexedVolumeArrays
+ * are read by index like the linear interpolation.  Because of that state a
+ * Lanczos must only be used by one thread at a time.
+ * @author Eider Moore
+ * @version 1.0
+ */
+public class Lanczos implements VoxelSampler {
+
+    /**
+     * The half width of the window in voxels.
+     */
+    public static final int RADIUS = 3;
+    private static final int TAPS = 2 * RADIUS;
+    private final VolumeArray volume;
+    private final IndexedVolumeArray indexed;
+    private final int maxX;
+    private final int maxY;
+    private final int maxZ;
+    private final double[] wx = new double[TAPS];
+    private final double[] wy = new double[TAPS];
+    private final double[] wz = new double[TAPS];
+    /**
+     * The mirrored coordinates of the voxels under the weights, multiplied by
+     * the stride when the volume is indexed.
+     */
+    private final int[] xs = new int[TAPS];
+    private final int[] ys = new int[TAPS];
+    private final int[] zs = new int[TAPS];
+    private float lastX = Float.NaN;
+    private float lastY = Float.NaN;
+    private float lastZ = Float.NaN;
+
+    /**
+     * @param volume The volume to sample
+     */
+    public Lanczos(VolumeArray volume) {
+        this.volume = volume;
+        this.indexed = volume instanceof IndexedVolumeArray ? (IndexedVolumeArray) volume : null;
+        this.maxX = volume.getMaxX();
+        this.maxY = volume.getMaxY();
+        this.maxZ = volume.getMaxZ();
+    }
+
+    /**
+     * Interpolate the volume at (x,y,z) in voxel coordinates.
+     * @param x
+     * @param y
+     * @param z
+     * @param time
+     * @param i5
+     * @return The value, or 0 if (x,y,z,time,i5) is outside of the volume.
+     */
+    public double sample(float x, float y, float z, int time, int i5) {
+        if (!(x >= 0 && x <= maxX - 1 && y >= 0 && y <= maxY - 1 && z >= 0 && z <= maxZ - 1) ||
+                time < 0 || time >= volume.getMaxTime() || i5 < 0 || i5 >= volume.getMaxI5()) {
+            return 0;
+        }
+        if (x != lastX) {
+            axis(x, maxX, indexed == null ? 1 : indexed.xStride, wx, xs);
+            lastX = x;
+        }
+        if (y != lastY) {
+            axis(y, maxY, indexed == null ? 1 : indexed.yStride, wy, ys);
+            lastY = y;
+        }
+        if (z != lastZ) {
+            axis(z, maxZ, indexed == null ? 1 : indexed.zStride, wz, zs);
+            lastZ = z;
+        }
+        double answer = 0;
+        if (indexed != null) {
+            int origin = indexed.getIndex(0, 0, 0, time, i5);
+            for (int dz = 0; dz < TAPS; dz++) {
+                int pz = origin + zs[dz];
+                double plane = 0;
+                for (int dy = 0; dy < TAPS; dy++) {
+                    int py = pz + ys[dy];
+                    double row = 0;
+                    for (int dx = 0; dx < TAPS; dx++) {
+                        row += wx[dx] * indexed.getDouble(py + xs[dx]);
+                    }
+                    plane += wy[dy] * row;
+                }
+                answer += wz[dz] * plane;
+            }
+        } else {
+            for (int dz = 0; dz < TAPS; dz++) {
+                double plane = 0;
+                for (int dy = 0; dy < TAPS; dy++) {
+                    double row = 0;
+                    for (int dx = 0; dx < TAPS; dx++) {
+                        row += wx[dx] * volume.getDouble(xs[dx], ys[dy], zs[dz], time, i5);
+                    }
+                    plane += wy[dy] * row;
+                }
+                answer += wz[dz] * plane;
+            }
+        }
+        return answer;
+    }
+
+    /**
+     * Fill in the normalized weights of the voxels from floor(c) - RADIUS + 1
+     * to floor(c) + RADIUS and their mirrored coordinates times stride.
+     */
+    private static void axis(float c, int max, int stride, double[] w, int[] at) {
+        int floor = (int) c;
+        double t = c - floor;
+        double sum = 0;
+        for (int n = 0; n < TAPS; n++) {
+            w[n] = kernel(t - (n - RADIUS + 1));
+            sum += w[n];
+            at[n] = Stencil.mirror(floor - RADIUS + 1 + n, max) * stride;
+        }
+        for (int n = 0; n < TAPS; n++) {
+            w[n] /= sum;
+        }
+    }
+
+    private static double kernel(double d) {
+        if (d == 0) {
+            return 1;
+        }
+        if (d <= -RADIUS || d >= RADIUS) {
+            return 0;
+        }
+        double pd = Math.PI * d;
+        return RADIUS * Math.sin(pd) * Math.sin(pd / RADIUS) / (pd * pd);
+    }
+}
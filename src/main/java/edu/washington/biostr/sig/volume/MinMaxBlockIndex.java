@@ -0,0 +1,393 @@
+package edu.washington.biostr.sig.volume;
+
+import java.util.Arrays;
+
+import org.eiderman.util.ParallelLoop;
+
+import edu.washington.biostr.sig.volume.colors.ColorLookupTable;
+
+/**
+ * The minimum and maximum of a volume over blocks of voxels, for skipping
+ * the parts of a volume that can't matter.  A cube in marching cubes can only
+ * produce triangles if the isovalue falls between its corners, and a ray
+ * only picks up color where the color table isn't transparent, so checking a
+ * block's range first lets both skip most of a typical brain or mask.<br>
+ * The leaves are blocks of LEAF x LEAF x LEAF cells, where cell (x, y, z) is
+ * the cube between voxels (x, y, z) and (x + 1, y + 1, z + 1).  So a leaf
+ * includes the voxels on both of its faces, and anything that interpolates
+ * inside of a leaf only reads values covered by its range.  Above the leaves
+ * each level halves the number of blocks along each axis (a shallow octree),
+ * up to a single block for the whole volume.<br>
+ * NaNs are left out of the ranges, so a block of only NaNs has a minimum of
+ * +infinity and a maximum of -infinity.  get() caches the index on the volume
+ * until its data changes.
+ * @author Eider Moore
+ * @version 1.0
+ */
+public class MinMaxBlockIndex {
+
+    /**
+     * The number of cells along each side of a leaf.
+     */
+    public static final int LEAF = 8;
+    private static final int LEAF_SHIFT = 3;
+    private final int time;
+    private final int i5;
+    private final int[] countX;
+    private final int[] countY;
+    private final int[] countZ;
+    private final double[][] min;
+    private final double[][] max;
+    /**
+     * Whether each leaf has a NaN in it.
+     */
+    private final boolean[] nan;
+
+    /**
+     * Identifies the index of one time point with VolumeArray.putDerived().
+     */
+    private static class Key {
+
+        private final int time;
+        private final int i5;
+
+        Key(int time, int i5) {
+            this.time = time;
+            this.i5 = i5;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return time == other.time && i5 == other.i5;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * time + i5 + MinMaxBlockIndex.class.hashCode();
+        }
+    }
+
+    private MinMaxBlockIndex(int maxX, int maxY, int maxZ, int time, int i5) {
+        this.time = time;
+        this.i5 = i5;
+        int levels = 1;
+        int x = leaves(maxX);
+        int y = leaves(maxY);
+        int z = leaves(maxZ);
+        while (x > 1 || y > 1 || z > 1) {
+            x = (x + 1) / 2;
+            y = (y + 1) / 2;
+            z = (z + 1) / 2;
+            levels++;
+        }
+        countX = new int[levels];
+        countY = new int[levels];
+        countZ = new int[levels];
+        min = new double[levels][];
+        max = new double[levels][];
+        countX[0] = leaves(maxX);
+        countY[0] = leaves(maxY);
+        countZ[0] = leaves(maxZ);
+        for (int level = 0; level < levels; level++) {
+            if (level > 0) {
+                countX[level] = (countX[level - 1] + 1) / 2;
+                countY[level] = (countY[level - 1] + 1) / 2;
+                countZ[level] = (countZ[level - 1] + 1) / 2;
+            }
+            int size = countX[level] * countY[level] * countZ[level];
+            min[level] = new double[size];
+            max[level] = new double[size];
+        }
+        nan = new boolean[min[0].length];
+    }
+
+    /**
+     * @return The number of leaves needed to cover the cells along an axis
+     * with size voxels.
+     */
+    private static int leaves(int size) {
+        return Math.max(1, (size - 1 + LEAF - 1) >> LEAF_SHIFT);
+    }
+
+    /**
+     * Get the index for one time point of volume, computing it only if the
+     * data has changed since it was last computed.
+     * @param volume
+     * @param time
+     * @param i5
+     * @return The index
+     */
+    public static MinMaxBlockIndex get(VolumeArray volume, int time, int i5) {
+        Key key = new Key(time, i5);
+        MinMaxBlockIndex index = (MinMaxBlockIndex) volume.getDerived(key);
+        if (index == null) {
+            int modCount = volume.getModCount();
+            index = compute(volume, time, i5);
+            volume.putDerived(key, index, modCount);
+        }
+        return index;
+    }
+
+    /**
+     * Compute the index for one time point of volume without looking at or
+     * changing the cache.  The slabs of leaves are read in parallel, a plane
+     * at a time.
+     * @param volume
+     * @param time
+     * @param i5
+     * @return The index
+     */
+    public static MinMaxBlockIndex compute(final VolumeArray volume, final int time, final int i5) {
+        if (time < 0 || time >= volume.getMaxTime() || i5 < 0 || i5 >= volume.getMaxI5()) {
+            throw new IllegalArgumentException("(" + time + "," + i5 + ") is not inside of the volume");
+        }
+        final int maxX = volume.getMaxX();
+        final int maxY = volume.getMaxY();
+        final int maxZ = volume.getMaxZ();
+        final MinMaxBlockIndex index = new MinMaxBlockIndex(maxX, maxY, maxZ, time, i5);
+        final int cx = index.countX[0];
+        final int cy = index.countY[0];
+        final int cz = index.countZ[0];
+        final double[] min = index.min[0];
+        final double[] max = index.max[0];
+        Arrays.fill(min, Double.POSITIVE_INFINITY);
+        Arrays.fill(max, Double.NEGATIVE_INFINITY);
+        ParallelLoop.run(0, cz, ParallelLoop.grain(cz, 1), new ParallelLoop.Body() {
+
+            public void run(int start, int end) {
+                double[] plane = new double[maxX * maxY];
+                // the range of each row over each leaf along x
+                double[] rowMin = new double[cx];
+                double[] rowMax = new double[cx];
+                boolean[] rowNaN = new boolean[cx];
+                for (int bz = start; bz < end; bz++) {
+                    int lastZ = Math.min(maxZ - 1, (bz + 1) << LEAF_SHIFT);
+                    for (int z = bz << LEAF_SHIFT; z <= lastZ; z++) {
+                        volume.getSeries(plane, 0, 0, z, time, i5, maxX, maxY, 1, 1, 1);
+                        for (int y = 0; y < maxY; y++) {
+                            int row = y * maxX;
+                            for (int bx = 0; bx < cx; bx++) {
+                                double lo = Double.POSITIVE_INFINITY;
+                                double hi = Double.NEGATIVE_INFINITY;
+                                boolean hasNaN = false;
+                                int lastX = Math.min(maxX - 1, (bx + 1) << LEAF_SHIFT);
+                                for (int x = bx << LEAF_SHIFT; x <= lastX; x++) {
+                                    double value = plane[row + x];
+                                    if (value < lo) {
+                                        lo = value;
+                                    }
+                                    if (value > hi) {
+                                        hi = value;
+                                    }
+                                    if (value != value) {
+                                        hasNaN = true;
+                                    }
+                                }
+                                rowMin[bx] = lo;
+                                rowMax[bx] = hi;
+                                rowNaN[bx] = hasNaN;
+                            }
+                            // a row on a boundary belongs to the leaves on both sides
+                            int by = Math.min(cy - 1, y >> LEAF_SHIFT);
+                            add(index, rowMin, rowMax, rowNaN, by, bz);
+                            if ((y & (LEAF - 1)) == 0 && by > 0 && by == y >> LEAF_SHIFT) {
+                                add(index, rowMin, rowMax, rowNaN, by - 1, bz);
+                            }
+                        }
+                    }
+                }
+            }
+        });
+        for (int level = 1; level < index.min.length; level++) {
+            index.merge(level);
+        }
+        return index;
+    }
+
+    private static void add(MinMaxBlockIndex index, double[] rowMin, double[] rowMax, boolean[] rowNaN,
+            int by, int bz) {
+        int cx = index.countX[0];
+        int offset = (bz * index.countY[0] + by) * cx;
+        double[] min = index.min[0];
+        double[] max = index.max[0];
+        for (int bx = 0; bx < cx; bx++) {
+            if (rowMin[bx] < min[offset + bx]) {
+                min[offset + bx] = rowMin[bx];
+            }
+            if (rowMax[bx] > max[offset + bx]) {
+                max[offset + bx] = rowMax[bx];
+            }
+            index.nan[offset + bx] |= rowNaN[bx];
+        }
+    }
+
+    /**
+     * Fill a level from the one below it.
+     */
+    private void merge(int level) {
+        int cx = countX[level];
+        int cy = countY[level];
+        int cz = countZ[level];
+        int lx = countX[level - 1];
+        int ly = countY[level - 1];
+        int lz = countZ[level - 1];
+        double[] lowerMin = min[level - 1];
+        double[] lowerMax = max[level - 1];
+        for (int bz = 0; bz < cz; bz++) {
+            for (int by = 0; by < cy; by++) {
+                for (int bx = 0; bx < cx; bx++) {
+                    double lo = Double.POSITIVE_INFINITY;
+                    double hi = Double.NEGATIVE_INFINITY;
+                    for (int z = 2 * bz; z < Math.min(lz, 2 * bz + 2); z++) {
+                        for (int y = 2 * by; y < Math.min(ly, 2 * by + 2); y++) {
+                            for (int x = 2 * bx; x < Math.min(lx, 2 * bx + 2); x++) {
+                                int child = (z * ly + y) * lx + x;
+                                lo = Math.min(lo, lowerMin[child]);
+                                hi = Math.max(hi, lowerMax[child]);
+                            }
+                        }
+                    }
+                    int i = (bz * cy + by) * cx + bx;
+                    min[level][i] = lo;
+                    max[level][i] = hi;
+                }
+            }
+        }
+    }
+
+    public int getTime() {
+        return time;
+    }
+
+    public int getI5() {
+        return i5;
+    }
+
+    /**
+     * @return The number of levels, where level 0 is the leaves and the last
+     * level is a single block.
+     */
+    public int getLevels() {
+        return min.length;
+    }
+
+    /**
+     * @return The number of cells along each side of a block on level.
+     */
+    public int getBlockSize(int level) {
+        return LEAF << level;
+    }
+
+    public int getCountX(int level) {
+        return countX[level];
+    }
+
+    public int getCountY(int level) {
+        return countY[level];
+    }
+
+    public int getCountZ(int level) {
+        return countZ[level];
+    }
+
+    /**
+     * @return The leaf (along x) of the cell that starts at voxel x.
+     */
+    public int getLeafX(int x) {
+        return Math.min(countX[0] - 1, Math.max(0, x >> LEAF_SHIFT));
+    }
+
+    /**
+     * @return The leaf (along y) of the cell that starts at voxel y.
+     */
+    public int getLeafY(int y) {
+        return Math.min(countY[0] - 1, Math.max(0, y >> LEAF_SHIFT));
+    }
+
+    /**
+     * @return The leaf (along z) of the cell that starts at voxel z.
+     */
+    public int getLeafZ(int z) {
+        return Math.min(countZ[0] - 1, Math.max(0, z >> LEAF_SHIFT));
+    }
+
+    /**
+     * @return The smallest value (other than NaN) in block (bx, by, bz) of
+     * level.
+     */
+    public double getMin(int level, int bx, int by, int bz) {
+        return min[level][(bz * countY[level] + by) * countX[level] + bx];
+    }
+
+    /**
+     * @return The largest value (other than NaN) in block (bx, by, bz) of
+     * level.
+     */
+    public double getMax(int level, int bx, int by, int bz) {
+        return max[level][(bz * countY[level] + by) * countX[level] + bx];
+    }
+
+    /**
+     * @return Whether leaf (bx, by, bz) has a NaN in it.
+     */
+    public boolean hasNaN(int bx, int by, int bz) {
+        return nan[(bz * countY[0] + by) * countX[0] + bx];
+    }
+
+    /**
+     * Find the leaves where every voxel is on the same side of the band
+     * between low and high: all inside of it (with no NaNs) or all below it
+     * or all above it.  No cell inside of such a leaf can have a surface for
+     * the band, whether or not the ends of the band count as inside.
+     * @param low The bottom of the band
+     * @param high The top of the band
+     * @return One flag per leaf, in x then y then z order.
+     */
+    public boolean[] findUniformLeaves(double low, double high) {
+        double[] lo = min[0];
+        double[] hi = max[0];
+        boolean[] uniform = new boolean[lo.length];
+        for (int i = 0; i < uniform.length; i++) {
+            uniform[i] = hi[i] < low || lo[i] > high || (!nan[i] && lo[i] > low && hi[i] < high);
+        }
+        return uniform;
+    }
+
+    /**
+     * Find the blocks on every level where table is transparent for the
+     * whole range of values.  A block is only marked if all of its children
+     * are, so a ray can step up the levels to skip as much as it can.
+     * @param table The color table
+     * @return One array of flags per level, each in x then y then z order.
+     */
+    public boolean[][] findTransparentBlocks(ColorLookupTable table) {
+        boolean[][] transparent = new boolean[min.length][];
+        transparent[0] = new boolean[min[0].length];
+        for (int i = 0; i < transparent[0].length; i++) {
+            transparent[0][i] = table.isTransparent(min[0][i], max[0][i]);
+        }
+        for (int level = 1; level < min.length; level++) {
+            int cx = countX[level];
+            int cy = countY[level];
+            int lx = countX[level - 1];
+            int ly = countY[level - 1];
+            int lz = countZ[level - 1];
+            transparent[level] = new boolean[min[level].length];
+            Arrays.fill(transparent[level], true);
+            for (int z = 0; z < lz; z++) {
+                for (int y = 0; y < ly; y++) {
+                    for (int x = 0; x < lx; x++) {
+                        if (!transparent[level - 1][(z * ly + y) * lx + x]) {
+                            transparent[level][((z / 2) * cy + y / 2) * cx + x / 2] = false;
+                        }
+                    }
+                }
+            }
+        }
+        return transparent;
+    }
+}
@@ -64,6 +64,21 @@ public class MirroredVolumeArray extends IndexedVolumeArray
       myva.setData(myIndex(index), value);
    }
 
+   /**
+    * The data lives in myva, so changes to it count as changes to this.
+    */
+   @Override
+   public int getModCount()
+   {
+      return myva.getModCount();
+   }
+
+   @Override
+   public void markModified()
+   {
+      myva.markModified();
+   }
+
    @Override
    public DataType getNaturalType()
    {
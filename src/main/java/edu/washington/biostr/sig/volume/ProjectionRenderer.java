@@ -0,0 +1,327 @@
+package edu.washington.biostr.sig.volume;
+
+import java.awt.image.BufferedImage;
+
+import javax.vecmath.Matrix3d;
+import javax.vecmath.Matrix4d;
+import javax.vecmath.Point3d;
+import javax.vecmath.Vector3d;
+
+import org.eiderman.util.ParallelLoop;
+
+import edu.washington.biostr.sig.volume.colors.ColorLookupTable;
+
+/**
+ * Render maximum, minimum or average intensity projections of a volume.
+ * Every pixel casts a ray through the volume and walks it with a
+ * VoxelTraversal, so each voxel on the ray is read exactly once and nothing
+ * is interpolated or allocated per ray.  For maximum and minimum projections
+ * a ray jumps over the blocks of the MinMaxBlockIndex that can't beat what
+ * it has already found.  The image is split into tiles that are rendered in
+ * parallel.<br>
+ * The view is a matrix that takes (column + 0.5, row + 0.5, depth) to mm.
+ * Its first two columns are the size of a pixel along the image's right and
+ * down directions and its third column is the direction the rays travel.
+ * createView() makes one that fits the whole volume in the image.
+ * @author Eider Moore
+ * @version 1.0
+ */
+public class ProjectionRenderer {
+
+    public enum Mode {
+
+        /**
+         * The largest value on the ray (MIP).
+         */
+        MAXIMUM,
+        /**
+         * The smallest value on the ray (MinIP).
+         */
+        MINIMUM,
+        /**
+         * The mean of the values on the ray, weighted by how far the ray
+         * travels through each voxel.
+         */
+        AVERAGE
+    }
+    private static final int TILE = 32;
+    private final VolumeArray volume;
+    private final Mode mode;
+
+    /**
+     * @param volume The volume to project
+     * @param mode How to combine the values along a ray.
+     */
+    public ProjectionRenderer(VolumeArray volume, Mode mode) {
+        if (mode == null) {
+            throw new IllegalArgumentException("mode can not be null");
+        }
+        this.volume = volume;
+        this.mode = mode;
+    }
+
+    public VolumeArray getVolume() {
+        return volume;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * Make a view that looks along the third column of rotation with the
+     * first column to the right and the second column down, scaled and
+     * centred so the whole volume fits in a width x height image.
+     * @param volume The volume to look at
+     * @param rotation The right, down and viewing directions in mm as columns.
+     * @param width The width of the image in pixels
+     * @param height The height of the image in pixels
+     * @return A view for project() and render().
+     */
+    public static Matrix4d createView(VolumeArray volume, Matrix3d rotation, int width, int height) {
+        Vector3d right = new Vector3d();
+        Vector3d down = new Vector3d();
+        Vector3d forward = new Vector3d();
+        rotation.getColumn(0, right);
+        rotation.getColumn(1, down);
+        rotation.getColumn(2, forward);
+        right.normalize();
+        down.normalize();
+        forward.normalize();
+        Matrix4d index2space = volume.getIndex2Space();
+        double minR = Double.POSITIVE_INFINITY;
+        double maxR = Double.NEGATIVE_INFINITY;
+        double minD = Double.POSITIVE_INFINITY;
+        double maxD = Double.NEGATIVE_INFINITY;
+        Point3d center = new Point3d();
+        Point3d corner = new Point3d();
+        for (int i = 0; i < 8; i++) {
+            corner.set((i & 1) == 0 ? -0.5 : volume.getMaxX() - 0.5,
+                    (i & 2) == 0 ? -0.5 : volume.getMaxY() - 0.5,
+                    (i & 4) == 0 ? -0.5 : volume.getMaxZ() - 0.5);
+            index2space.transform(corner);
+            center.add(corner);
+            double r = right.x * corner.x + right.y * corner.y + right.z * corner.z;
+            double d = down.x * corner.x + down.y * corner.y + down.z * corner.z;
+            minR = Math.min(minR, r);
+            maxR = Math.max(maxR, r);
+            minD = Math.min(minD, d);
+            maxD = Math.max(maxD, d);
+        }
+        center.scale(1.0 / 8);
+        double scale = Math.max((maxR - minR) / width, (maxD - minD) / height);
+        right.scale(scale);
+        down.scale(scale);
+        Matrix4d view = new Matrix4d();
+        view.setColumn(0, right.x, right.y, right.z, 0);
+        view.setColumn(1, down.x, down.y, down.z, 0);
+        view.setColumn(2, forward.x, forward.y, forward.z, 0);
+        view.setColumn(3, center.x - right.x * width / 2 - down.x * height / 2,
+                center.y - right.y * width / 2 - down.y * height / 2,
+                center.z - right.z * width / 2 - down.z * height / 2, 1);
+        return view;
+    }
+
+    /**
+     * Project the volume into an array of values, one per pixel in row
+     * order.  Pixels whose rays miss the volume (or only pass through NaNs)
+     * are NaN.
+     * @param view Takes (column + 0.5, row + 0.5, depth) to mm.
+     * @param width The width of the image in pixels
+     * @param height The height of the image in pixels
+     * @param time The time point to project
+     * @param i5 The i5 point to project
+     * @param dest Where to put the values, or null to allocate them.
+     * @return dest
+     */
+    public float[] project(Matrix4d view, final int width, final int height, final int time, final int i5,
+            float[] dest) {
+        if (time < 0 || time >= volume.getMaxTime() || i5 < 0 || i5 >= volume.getMaxI5()) {
+            throw new IllegalArgumentException("(" + time + "," + i5 + ") is not inside of the volume");
+        }
+        if (dest == null) {
+            dest = new float[width * height];
+        } else if (dest.length < width * height) {
+            throw new IllegalArgumentException("dest is too small for a " + width + "x" + height + " image");
+        }
+        final float[] values = dest;
+        // pixel to index space
+        final Matrix4d m = new Matrix4d(volume.getSpace2Index());
+        m.mul(view);
+        // every voxel counts toward an average, so only the extremes can skip blocks
+        final MinMaxBlockIndex blocks = mode == Mode.AVERAGE ? null : MinMaxBlockIndex.get(volume, time, i5);
+        final int tilesX = (width + TILE - 1) / TILE;
+        final int tiles = tilesX * ((height + TILE - 1) / TILE);
+        ParallelLoop.run(0, tiles, ParallelLoop.grain(tiles, 1), new ParallelLoop.Body() {
+
+            public void run(int start, int end) {
+                VoxelTraversal traversal = new VoxelTraversal(volume);
+                for (int tile = start; tile < end; tile++) {
+                    int x0 = (tile % tilesX) * TILE;
+                    int y0 = (tile / tilesX) * TILE;
+                    int xe = Math.min(width, x0 + TILE);
+                    int ye = Math.min(height, y0 + TILE);
+                    for (int py = y0; py < ye; py++) {
+                        for (int px = x0; px < xe; px++) {
+                            double u = px + 0.5;
+                            double v = py + 0.5;
+                            values[py * width + px] = (float) cast(traversal, blocks,
+                                    m.m00 * u + m.m01 * v + m.m03,
+                                    m.m10 * u + m.m11 * v + m.m13,
+                                    m.m20 * u + m.m21 * v + m.m23,
+                                    time, i5, m.m02, m.m12, m.m22);
+                        }
+                    }
+                }
+            }
+        });
+        return values;
+    }
+
+    /**
+     * Combine the values along one ray.  Each time the ray enters a new leaf
+     * of blocks it jumps past the largest block that can't change the answer.
+     */
+    private double cast(VoxelTraversal traversal, MinMaxBlockIndex blocks, double ox, double oy, double oz,
+            int time, int i5, double dx, double dy, double dz) {
+        if (!traversal.start(ox, oy, oz, dx, dy, dz, Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY)) {
+            return Double.NaN;
+        }
+        IndexedVolumeArray indexed = null;
+        int base = 0;
+        if (volume instanceof IndexedVolumeArray) {
+            indexed = (IndexedVolumeArray) volume;
+            base = indexed.getIndex(0, 0, 0, time, i5);
+        }
+        double rv = Double.NaN;
+        double weight = 0;
+        int leafX = -1;
+        int leafY = -1;
+        int leafZ = -1;
+        while (traversal.next()) {
+            if (blocks != null && rv == rv) {
+                int bx = blocks.getLeafX(traversal.getX());
+                int by = blocks.getLeafY(traversal.getY());
+                int bz = blocks.getLeafZ(traversal.getZ());
+                if (bx != leafX || by != leafY || bz != leafZ) {
+                    leafX = bx;
+                    leafY = by;
+                    leafZ = bz;
+                    int level = skipLevel(blocks, bx, by, bz, rv);
+                    if (level >= 0) {
+                        int size = blocks.getBlockSize(level);
+                        double exit = Math.min(exit(ox, dx, bx >> level, size),
+                                Math.min(exit(oy, dy, by >> level, size), exit(oz, dz, bz >> level, size)));
+                        exit = Math.max(exit, traversal.getExit());
+                        if (!traversal.start(ox, oy, oz, dx, dy, dz, exit, Double.POSITIVE_INFINITY)) {
+                            break;
+                        }
+                        continue;
+                    }
+                }
+            }
+            double value;
+            if (indexed != null) {
+                value = indexed.getDouble(base + traversal.getOffset());
+            } else {
+                value = volume.getDouble(traversal.getX(), traversal.getY(), traversal.getZ(), time, i5);
+            }
+            if (value != value) {
+                continue;
+            }
+            switch (mode) {
+                case MAXIMUM:
+                    if (!(value <= rv)) {
+                        rv = value;
+                    }
+                    break;
+                case MINIMUM:
+                    if (!(value >= rv)) {
+                        rv = value;
+                    }
+                    break;
+                default:
+                    double length = traversal.getLength();
+                    rv = weight == 0 ? value * length : rv + value * length;
+                    weight += length;
+            }
+        }
+        if (mode == Mode.AVERAGE) {
+            return weight > 0 ? rv / weight : Double.NaN;
+        }
+        return rv;
+    }
+
+    /**
+     * @return The highest level of the block around leaf (bx, by, bz) whose
+     * values can't change rv, or -1 if even the leaf might.
+     */
+    private int skipLevel(MinMaxBlockIndex blocks, int bx, int by, int bz, double rv) {
+        int level = -1;
+        while (level + 1 < blocks.getLevels()) {
+            int next = level + 1;
+            if (mode == Mode.MAXIMUM) {
+                if (!(blocks.getMax(next, bx >> next, by >> next, bz >> next) <= rv)) {
+                    break;
+                }
+            } else if (!(blocks.getMin(next, bx >> next, by >> next, bz >> next) >= rv)) {
+                break;
+            }
+            level = next;
+        }
+        return level;
+    }
+
+    /**
+     * @return The ray parameter where origin + t * direction leaves the
+     * voxels of block along an axis, which start at block * size.
+     */
+    private static double exit(double origin, double direction, int block, int size) {
+        if (direction > 0) {
+            return (block * size + size - 0.5 - origin) / direction;
+        } else if (direction < 0) {
+            return (block * size - 0.5 - origin) / direction;
+        }
+        return Double.POSITIVE_INFINITY;
+    }
+
+    /**
+     * Render a new RGB image of the projection.
+     * @see #render(Matrix4d, int, int, BufferedImage, ColorLookupTable)
+     */
+    public BufferedImage render(Matrix4d view, int width, int height, int time, int i5,
+            ColorLookupTable table) {
+        return render(view, time, i5, new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB), table);
+    }
+
+    /**
+     * Render the projection into img, coloring the values with table.  Pixels
+     * whose rays miss the volume are set to 0, which is black in an RGB image
+     * such as the one render(view, width, height, ...) makes, and transparent
+     * if img has an alpha channel.
+     * @param view Takes (column + 0.5, row + 0.5, depth) to mm.
+     * @param time The time point to project
+     * @param i5 The i5 point to project
+     * @param img The image to fill, which sets the size of the projection.
+     * @param table The table to convert values to colors.
+     * @return img
+     */
+    public BufferedImage render(Matrix4d view, int time, int i5, BufferedImage img,
+            final ColorLookupTable table) {
+        final int width = img.getWidth();
+        final int height = img.getHeight();
+        final float[] values = project(view, width, height, time, i5, null);
+        final int[] pixels = new int[values.length];
+        ParallelLoop.run(0, height, ParallelLoop.grain(height, 8), new ParallelLoop.Body() {
+
+            public void run(int start, int end) {
+                for (int i = start * width; i < end * width; i++) {
+                    float value = values[i];
+                    pixels[i] = value != value ? 0 : table.getColor(value);
+                }
+            }
+        });
+        img.setRGB(0, 0, width, height, pixels, 0, width);
+        return img;
+    }
+}
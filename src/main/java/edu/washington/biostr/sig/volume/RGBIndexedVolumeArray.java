@@ -75,6 +75,25 @@ public class RGBIndexedVolumeArray extends IntIndexedVolumeArray {
         return getInt(quickRoundPositive(x), quickRoundPositive(y), quickRoundPositive(z), time, i5);
     }
 
+    /**
+     * Batches use nearest neighbor too, so colors are never blended as ints.
+     */
+    @Override
+    protected void interpolateRun(float[] xs, float[] ys, float[] zs, int offset, int count,
+            int origin, double[] dest, int destOffset) {
+        for (int n = 0; n < count; n++) {
+            int i = quickRoundPositive(xs[offset + n]);
+            int j = quickRoundPositive(ys[offset + n]);
+            int k = quickRoundPositive(zs[offset + n]);
+            if (xs[offset + n] >= -.5f && i < maxX && ys[offset + n] >= -.5f && j < maxY &&
+                    zs[offset + n] >= -.5f && k < maxZ) {
+                dest[destOffset + n] = getInt(origin + i * xStride + j * yStride + k * zStride);
+            } else {
+                dest[destOffset + n] = 0;
+            }
+        }
+    }
+
     /**
      * 
      * @param x
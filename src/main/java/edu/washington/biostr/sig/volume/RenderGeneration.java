@@ -0,0 +1,52 @@
+package edu.washington.biostr.sig.volume;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Numbers the frames requested from a view so a rendering that a newer
+ * request has superseded can stop early.  Start each frame with next() and
+ * hand the number it returns to the rendering, which checks isCurrent() as it
+ * goes:
+ * <pre>
+ * int frame = generation.next();
+ * if (volume.renderIntoParallel(..., bounds, generation, frame) != null) {
+ *     repaint();
+ * }
+ * </pre>
+ * One generation is shared by everything drawn into the same view.
+ * @author Eider Moore
+ * @version 1.0
+ */
+public class RenderGeneration {
+
+    private final AtomicInteger current = new AtomicInteger();
+
+    /**
+     * Start a new frame, superseding any frame that is still rendering.
+     * @return The number of the new frame.
+     */
+    public int next() {
+        return current.incrementAndGet();
+    }
+
+    /**
+     * @return The number of the newest frame.
+     */
+    public int get() {
+        return current.get();
+    }
+
+    /**
+     * @return true if no newer frame has been started since frame.
+     */
+    public boolean isCurrent(int frame) {
+        return current.get() == frame;
+    }
+
+    /**
+     * Stop whatever is rendering without starting a new frame.
+     */
+    public void cancel() {
+        current.incrementAndGet();
+    }
+}
@@ -0,0 +1,423 @@
+package edu.washington.biostr.sig.volume;
+
+import java.io.IOException;
+
+import javax.vecmath.Matrix4d;
+
+import org.eiderman.util.ParallelLoop;
+
+/**
+ * View another IndexedVolumeArray with its spatial axes permuted and flipped,
+ * without copying it.  Axis i of this runs along axis getAxis(i) of the
+ * backing array, backwards if isFlipped(i).  MirroredVolumeArray is the
+ * special case of flipping x, although it also doubles the volume.<br>
+ * getIndex() hands out the backing array's own indices, which are still a
+ * linear function of x, y and z (with negative strides along flipped axes),
+ * so the iterator, the bulk accessors and interpolation all work unchanged
+ * with offsets recomputed for the new axes.  The transform is composed with
+ * the permutation so every voxel keeps its mm coordinates.<br>
+ * Orientations are written the way radiologists do, with a letter for the
+ * direction each of x, y and z increases towards in the NIfTI (RAS+) world:
+ * R or L, A or P, and S or I.  So toCanonical() gives an RAS view of LPI or
+ * PSL data straight from its sform or qform.  When a copy is really needed
+ * toStandardLayout() makes one in cache sized tiles in parallel.
+ * @author Eider Moore
+ * @version 1.0
+ */
+public class ReorientedVolumeArray extends IndexedVolumeArray {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The edge length of the square tiles copied by toStandardLayout().
+     */
+    private static final int BLOCK = 64;
+    private static final String POSITIVE = "RAS";
+    private static final String NEGATIVE = "LPI";
+    private static final int[][] PERMUTATIONS = {
+        {0, 1, 2}, {0, 2, 1}, {1, 0, 2}, {1, 2, 0}, {2, 0, 1}, {2, 1, 0}
+    };
+    private final IndexedVolumeArray backing;
+    private final int[] axes;
+    private final boolean[] flips;
+    /**
+     * For each axis of the backing array, the axis of this that runs along it.
+     */
+    private final int[] sources;
+    private final int[] backingMax;
+
+    /**
+     * @param backing The volume to view
+     * @param axes For x, y and z of this, the axis of backing (0 for x, 1 for
+     * y and 2 for z) it runs along.  This must be a permutation of 0, 1, 2.
+     * @param flips For x, y and z of this, whether it runs backwards along
+     * its axis of backing.
+     */
+    public ReorientedVolumeArray(IndexedVolumeArray backing, int[] axes, boolean[] flips) {
+        super(size(backing, axes, 0), size(backing, axes, 1), size(backing, axes, 2),
+                backing.getMaxTime(), backing.getMaxI5(), compose(backing, axes, flips));
+        this.backing = backing;
+        this.axes = axes.clone();
+        this.flips = flips.clone();
+        sources = new int[3];
+        for (int i = 0; i < 3; i++) {
+            sources[axes[i]] = i;
+        }
+        backingMax = new int[]{backing.getMaxX(), backing.getMaxY(), backing.getMaxZ()};
+        updateOffsets();
+    }
+
+    /**
+     * View backing in the given orientation.
+     * @param backing The volume to view
+     * @param orientation Three letters, one of R or L, one of A or P and one
+     * of S or I, for example "RAS" or "LPI".
+     * @return The view.
+     */
+    public static ReorientedVolumeArray reorient(IndexedVolumeArray backing, String orientation) {
+        int[] target = parse(orientation);
+        int[] current = parse(getOrientation(backing.getIndex2Space()));
+        int[] axes = new int[3];
+        boolean[] flips = new boolean[3];
+        for (int i = 0; i < 3; i++) {
+            for (int j = 0; j < 3; j++) {
+                if (Math.abs(current[j]) == Math.abs(target[i])) {
+                    axes[i] = j;
+                    flips[i] = current[j] != target[i];
+                }
+            }
+        }
+        return new ReorientedVolumeArray(backing, axes, flips);
+    }
+
+    /**
+     * @param backing The volume to view
+     * @return backing with x increasing to the right, y to the front and z to
+     * the top (RAS), as closely as its transform allows.
+     */
+    public static ReorientedVolumeArray toCanonical(IndexedVolumeArray backing) {
+        return reorient(backing, POSITIVE);
+    }
+
+    /**
+     * Find the world direction that each index axis is closest to.  For an
+     * oblique transform the axes are matched to the world directions so
+     * that the cosines between them are as large as possible in total.
+     * @param index2space A transform from indices to mm in the NIfTI world
+     * @return The orientation, such as "RAS" or "LPI".
+     */
+    public static String getOrientation(Matrix4d index2space) {
+        double[][] cosines = new double[3][3];
+        for (int j = 0; j < 3; j++) {
+            double length = 0;
+            for (int w = 0; w < 3; w++) {
+                length += index2space.getElement(w, j) * index2space.getElement(w, j);
+            }
+            length = Math.sqrt(length);
+            for (int w = 0; w < 3; w++) {
+                cosines[w][j] = length == 0 ? 0 : index2space.getElement(w, j) / length;
+            }
+        }
+        int[] best = PERMUTATIONS[0];
+        double bestScore = -1;
+        for (int[] p : PERMUTATIONS) {
+            double score = Math.abs(cosines[p[0]][0]) + Math.abs(cosines[p[1]][1]) + Math.abs(cosines[p[2]][2]);
+            if (score > bestScore) {
+                bestScore = score;
+                best = p;
+            }
+        }
+        StringBuilder rv = new StringBuilder(3);
+        for (int j = 0; j < 3; j++) {
+            int w = best[j];
+            rv.append(cosines[w][j] < 0 ? NEGATIVE.charAt(w) : POSITIVE.charAt(w));
+        }
+        return rv.toString();
+    }
+
+    /**
+     * @return For each letter, 1 + the world axis, negated for L, P and I.
+     */
+    private static int[] parse(String orientation) {
+        if (orientation == null || orientation.length() != 3) {
+            throw new IllegalArgumentException("Not an orientation: " + orientation);
+        }
+        int[] rv = new int[3];
+        boolean[] seen = new boolean[3];
+        for (int i = 0; i < 3; i++) {
+            char c = Character.toUpperCase(orientation.charAt(i));
+            int w = POSITIVE.indexOf(c);
+            rv[i] = w + 1;
+            if (w < 0) {
+                w = NEGATIVE.indexOf(c);
+                rv[i] = -(w + 1);
+            }
+            if (w < 0 || seen[w]) {
+                throw new IllegalArgumentException("Not an orientation: " + orientation);
+            }
+            seen[w] = true;
+        }
+        return rv;
+    }
+
+    private static int size(IndexedVolumeArray backing, int[] axes, int axis) {
+        boolean valid = axes.length == 3;
+        for (int i = 0; valid && i < 3; i++) {
+            valid = axes[i] >= 0 && axes[i] < 3 && axes[i] != axes[(i + 1) % 3];
+        }
+        if (!valid) {
+            throw new IllegalArgumentException("The axes must be a permutation of 0, 1 and 2");
+        }
+        switch (axes[axis]) {
+            case 0:
+                return backing.getMaxX();
+            case 1:
+                return backing.getMaxY();
+            default:
+                return backing.getMaxZ();
+        }
+    }
+
+    /**
+     * @return The backing transform times the map from indices of this to
+     * indices of backing.
+     */
+    private static Matrix4d compose(IndexedVolumeArray backing, int[] axes, boolean[] flips) {
+        if (flips.length != 3) {
+            throw new IllegalArgumentException("There must be a flip for each of x, y and z");
+        }
+        int[] max = {backing.getMaxX(), backing.getMaxY(), backing.getMaxZ()};
+        Matrix4d map = new Matrix4d();
+        for (int i = 0; i < 3; i++) {
+            map.setElement(axes[i], i, flips[i] ? -1 : 1);
+            map.setElement(axes[i], 3, flips[i] ? max[axes[i]] - 1 : 0);
+        }
+        map.setElement(3, 3, 1);
+        Matrix4d rv = new Matrix4d(backing.getIndex2Space());
+        rv.mul(map);
+        return rv;
+    }
+
+    /**
+     * @return The volume this is a view of.
+     */
+    public IndexedVolumeArray getBackingArray() {
+        return backing;
+    }
+
+    /**
+     * @param axis 0, 1 or 2 for x, y or z of this
+     * @return The axis of the backing array it runs along.
+     */
+    public int getAxis(int axis) {
+        return axes[axis];
+    }
+
+    /**
+     * @param axis 0, 1 or 2 for x, y or z of this
+     * @return true if it runs backwards along its axis of the backing array.
+     */
+    public boolean isFlipped(int axis) {
+        return flips[axis];
+    }
+
+    @Override
+    public int getIndex(int x, int y, int z, int time, int i5) {
+        if (backing == null) {
+            // still in the super constructor
+            return super.getIndex(x, y, z, time, i5);
+        }
+        if ((x >= maxX) || (y >= maxY) || (z >= maxZ) || (time >= maxTime) ||
+                (x < 0) || (y < 0) || (z < 0) || (time < 0) || (i5 < 0) || (i5 >= maxI5)) {
+            return -1;
+        }
+        return backing.getIndex(coordinate(0, x, y, z), coordinate(1, x, y, z), coordinate(2, x, y, z), time, i5);
+    }
+
+    /**
+     * @return The coordinate along axis of the backing array of (x, y, z).
+     */
+    private int coordinate(int axis, int x, int y, int z) {
+        int i = sources[axis];
+        int c = i == 0 ? x : (i == 1 ? y : z);
+        return flips[i] ? backingMax[axis] - 1 - c : c;
+    }
+
+    @Override
+    public int getInt(int index) {
+        return backing.getInt(index);
+    }
+
+    @Override
+    public double getDouble(int index) {
+        return backing.getDouble(index);
+    }
+
+    @Override
+    public void setData(int index, double value) {
+        backing.setData(index, value);
+    }
+
+    @Override
+    public void setData(int index, int value) {
+        backing.setData(index, value);
+    }
+
+    @Override
+    protected void getRun(int index, int stride, double[] dst, int offset, int length) {
+        backing.getRun(index, stride, dst, offset, length);
+    }
+
+    @Override
+    protected void getRun(int index, int stride, float[] dst, int offset, int length) {
+        backing.getRun(index, stride, dst, offset, length);
+    }
+
+    @Override
+    protected void getRun(int index, int stride, int[] dst, int offset, int length) {
+        backing.getRun(index, stride, dst, offset, length);
+    }
+
+    @Override
+    protected void getRun(int index, int stride, short[] dst, int offset, int length) {
+        backing.getRun(index, stride, dst, offset, length);
+    }
+
+    @Override
+    protected void getRun(int index, int stride, long[] dst, int offset, int length) {
+        backing.getRun(index, stride, dst, offset, length);
+    }
+
+    @Override
+    protected void setRun(int index, int stride, double[] src, int offset, int length) {
+        backing.setRun(index, stride, src, offset, length);
+    }
+
+    @Override
+    protected void setRun(int index, int stride, int[] src, int offset, int length) {
+        backing.setRun(index, stride, src, offset, length);
+    }
+
+    @Override
+    protected void setRun(int index, int stride, long[] src, int offset, int length) {
+        backing.setRun(index, stride, src, offset, length);
+    }
+
+    /**
+     * The data lives in backing, so changes to it count as changes to this.
+     */
+    @Override
+    public int getModCount() {
+        return backing.getModCount();
+    }
+
+    @Override
+    public void markModified() {
+        backing.markModified();
+    }
+
+    /**
+     * This holds the same values as backing, so it has the same range, and
+     * follows it as the data changes.
+     */
+    @Override
+    public double getImageMin() {
+        return backing.getImageMin();
+    }
+
+    /**
+     * @see #getImageMin()
+     */
+    @Override
+    public double getImageMax() {
+        return backing.getImageMax();
+    }
+
+    @Override
+    public void setMinMax(boolean highRes) {
+        backing.setMinMax(highRes);
+    }
+
+    @Override
+    protected void setMinMax(double min, double max) {
+        backing.setMinMax(min, max);
+    }
+
+    @Override
+    public DataType getNaturalType() {
+        return backing.getNaturalType();
+    }
+
+    @Override
+    public DataType getType() {
+        return backing.getType();
+    }
+
+    @Override
+    public void write(ByteEncoder out) throws IOException {
+        writeInOrder(out);
+    }
+
+    /**
+     * The data array of backing, in its own order.
+     */
+    @Override
+    public Object getDataArray() {
+        return backing.getDataArray();
+    }
+
+    /**
+     * Copy this view into a new volume in the standard layout (x fastest).
+     * Each plane is copied in BLOCK x BLOCK tiles, so the strided reads of
+     * the backing array stay in cache however its axes are permuted, and the
+     * tiles are spread over the processors.
+     * @return A new volume with the same type, data and transform as this.
+     */
+    public IndexedVolumeArray toStandardLayout() {
+        final IndexedVolumeArray dest = (IndexedVolumeArray) VolumeArrayFactory.createVolumeDataBuffer(
+                getIndex2Space(), maxX, maxY, maxZ, maxTime, maxI5, getType());
+        final boolean wide = getType() == DataType.TYPE_LONG;
+        final boolean integral = getType() != DataType.TYPE_FLOAT && getType() != DataType.TYPE_DOUBLE && !wide;
+        final int xBlocks = (maxX + BLOCK - 1) / BLOCK;
+        final int yBlocks = (maxY + BLOCK - 1) / BLOCK;
+        int tiles = xBlocks * yBlocks * maxZ * maxTime * maxI5;
+        // neighbouring rows of a binary volume can share a word of the BitSet
+        int grain = getType() == DataType.TYPE_BINARY ? tiles : ParallelLoop.grain(tiles, 4);
+        ParallelLoop.run(0, tiles, grain, new ParallelLoop.Body() {
+
+            public void run(int start, int end) {
+                int[] irow = new int[BLOCK];
+                double[] drow = new double[BLOCK];
+                long[] lrow = wide ? new long[BLOCK] : null;
+                for (int tile = start; tile < end; tile++) {
+                    int x0 = (tile % xBlocks) * BLOCK;
+                    int y0 = ((tile / xBlocks) % yBlocks) * BLOCK;
+                    int plane = tile / (xBlocks * yBlocks);
+                    int z = plane % maxZ;
+                    int t = (plane / maxZ) % maxTime;
+                    int i5 = plane / (maxZ * maxTime);
+                    int width = Math.min(BLOCK, maxX - x0);
+                    int yEnd = Math.min(maxY, y0 + BLOCK);
+                    for (int y = y0; y < yEnd; y++) {
+                        int from = getIndex(x0, y, z, t, i5);
+                        int to = dest.getIndex(x0, y, z, t, i5);
+                        if (integral) {
+                            backing.getRun(from, xStride, irow, 0, width);
+                            dest.setRun(to, 1, irow, 0, width);
+                        } else if (wide) {
+                            // longs are copied as longs so values above 2^53 survive
+                            backing.getRun(from, xStride, lrow, 0, width);
+                            dest.setRun(to, 1, lrow, 0, width);
+                        } else {
+                            backing.getRun(from, xStride, drow, 0, width);
+                            dest.setRun(to, 1, drow, 0, width);
+                        }
+                    }
+                }
+            }
+        });
+        dest.markModified();
+        dest.setMinMax(getImageMin(), getImageMax());
+        return dest;
+    }
+}
@@ -0,0 +1,196 @@
+package edu.washington.biostr.sig.volume;
+
+import javax.vecmath.Matrix4d;
+
+import org.eiderman.util.ParallelLoop;
+
+/**
+ * Resample a volume onto another grid.  The target grid is given by its
+ * dimensions and its index2space transform, so it can be any affine grid:
+ * a different voxel size, a different field of view or a rotated one.<br>
+ * The transform from target indices to source indices is composed once.
+ * Along a row the source coordinates move by a fixed step, so they are
+ * found by addition instead of a matrix multiply per voxel.  Each row is
+ * sampled into a buffer and written to the target in one setRun(), and the
+ * z slabs of the target are spread across the shared fork join pool.  Each
+ * slab gets its own VoxelSampler, so the B-spline coefficients are looked
+ * up and the Lanczos buffers are made once per slab, not once per voxel.
+ * @author Eider Moore
+ * @version 1.0
+ */
+public class Resampler {
+
+    private Resampler() {
+    }
+
+    /**
+     * Resample source onto a new grid.  Every time point and i5 is
+     * resampled.
+     * @param source The volume to resample
+     * @param index2space The index to space transform of the new grid
+     * @param maxX The size of the new grid
+     * @param maxY
+     * @param maxZ
+     * @param type The data type of the result
+     * @param interpolation How to find values between source voxels
+     * @return The new volume
+     */
+    public static VolumeArray resample(VolumeArray source, Matrix4d index2space,
+            int maxX, int maxY, int maxZ, DataType type, Interpolation interpolation) {
+        VolumeArray target = VolumeArrayFactory.createVolumeDataBuffer(new Matrix4d(index2space),
+                maxX, maxY, maxZ, source.getMaxTime(), source.getMaxI5(), type);
+        resampleInto(source, target, interpolation);
+        return target;
+    }
+
+    /**
+     * Fill target with the values of source at the location of each target
+     * voxel.  Target voxels that fall outside of source get 0.  target must
+     * have the same number of time points and i5 as source.
+     * @param source The volume to resample
+     * @param target The grid to fill
+     * @param interpolation How to find values between source voxels
+     */
+    public static void resampleInto(final VolumeArray source, final VolumeArray target,
+            final Interpolation interpolation) {
+        if (source.getMaxTime() != target.getMaxTime() || source.getMaxI5() != target.getMaxI5()) {
+            throw new IllegalArgumentException("The source and target must have the same time points and i5");
+        }
+        if (interpolation == null) {
+            throw new IllegalArgumentException("interpolation cannot be null");
+        }
+        // target index -> space -> source index
+        final Matrix4d t2s = new Matrix4d();
+        t2s.mul(source.getSpace2Index(), target.getIndex2Space());
+        final int maxX = target.getMaxX();
+        final int maxY = target.getMaxY();
+        final int maxZ = target.getMaxZ();
+        final int maxTime = target.getMaxTime();
+        final int maxI5 = target.getMaxI5();
+        ParallelLoop.run(0, maxZ, ParallelLoop.grain(maxZ, 1), new ParallelLoop.Body() {
+
+            public void run(int start, int end) {
+                float[] xs = new float[maxX];
+                float[] ys = new float[maxX];
+                float[] zs = new float[maxX];
+                double[] row = new double[maxX];
+                VoxelSampler sampler = source.getSampler(interpolation);
+                for (int z = start; z < end; z++) {
+                    for (int y = 0; y < maxY; y++) {
+                        fillCoordinates(t2s, y, z, xs, ys, zs);
+                        for (int i5 = 0; i5 < maxI5; i5++) {
+                            for (int t = 0; t < maxTime; t++) {
+                                sampleRow(source, sampler, xs, ys, zs, t, i5, interpolation, row);
+                                writeRow(target, y, z, t, i5, row);
+                            }
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Sample depth z planes of a target grid starting at z0 without building
+     * the target volume.  This is for writing a resampled volume a piece at a
+     * time.
+     * @param source The volume to resample
+     * @param index2space The index to space transform of the target grid
+     * @param maxX The width of the target grid
+     * @param maxY The height of the target grid
+     * @param z0 The first plane
+     * @param depth The number of planes
+     * @param t The time point of source to sample
+     * @param i5 The i5 of source to sample
+     * @param interpolation How to find values between source voxels
+     * @param dest Where to put the values (x fastest, then y, then z), or
+     * null to allocate an array.
+     * @return dest
+     */
+    public static double[] resampleSlab(VolumeArray source, Matrix4d index2space, int maxX, int maxY,
+            int z0, int depth, int t, int i5, Interpolation interpolation, double[] dest) {
+        if (dest == null) {
+            dest = new double[maxX * maxY * depth];
+        }
+        Matrix4d t2s = new Matrix4d();
+        t2s.mul(source.getSpace2Index(), index2space);
+        float[] xs = new float[maxX];
+        float[] ys = new float[maxX];
+        float[] zs = new float[maxX];
+        double[] row = new double[maxX];
+        VoxelSampler sampler = source.getSampler(interpolation);
+        int index = 0;
+        for (int z = z0; z < z0 + depth; z++) {
+            for (int y = 0; y < maxY; y++) {
+                fillCoordinates(t2s, y, z, xs, ys, zs);
+                sampleRow(source, sampler, xs, ys, zs, t, i5, interpolation, row);
+                System.arraycopy(row, 0, dest, index, maxX);
+                index += maxX;
+            }
+        }
+        return dest;
+    }
+
+    /**
+     * Find the source coordinates of every voxel in row y, z of the target.
+     */
+    private static void fillCoordinates(Matrix4d t2s, int y, int z,
+            float[] xs, float[] ys, float[] zs) {
+        double x0 = t2s.m01 * y + t2s.m02 * z + t2s.m03;
+        double y0 = t2s.m11 * y + t2s.m12 * z + t2s.m13;
+        double z0 = t2s.m21 * y + t2s.m22 * z + t2s.m23;
+        for (int x = 0; x < xs.length; x++) {
+            xs[x] = (float) x0;
+            ys[x] = (float) y0;
+            zs[x] = (float) z0;
+            x0 += t2s.m00;
+            y0 += t2s.m10;
+            z0 += t2s.m20;
+        }
+    }
+
+    /**
+     * Sample source at each of the coordinates into row.  Linear and nearest
+     * neighbor have their own loops, everything else goes through sampler.
+     * @param sampler source.getSampler(interpolation), made once by the caller
+     * for all of the rows it samples.
+     */
+    static void sampleRow(VolumeArray source, VoxelSampler sampler, float[] xs, float[] ys, float[] zs,
+            int t, int i5, Interpolation interpolation, double[] row) {
+        int length = row.length;
+        if (interpolation == Interpolation.LINEAR && source instanceof IndexedVolumeArray &&
+                source.supportsLookupTable()) {
+            ((IndexedVolumeArray) source).interpolate(xs, ys, zs, length, t, i5, row);
+        } else if (interpolation == Interpolation.NEAREST_NEIGHBOR) {
+            float maxX = source.getMaxX() - .5f;
+            float maxY = source.getMaxY() - .5f;
+            float maxZ = source.getMaxZ() - .5f;
+            for (int x = 0; x < length; x++) {
+                float sx = xs[x];
+                float sy = ys[x];
+                float sz = zs[x];
+                if (sx >= -.5f && sx < maxX && sy >= -.5f && sy < maxY && sz >= -.5f && sz < maxZ) {
+                    row[x] = source.getDouble(VolumeArray.quickRoundPositive(sx),
+                            VolumeArray.quickRoundPositive(sy), VolumeArray.quickRoundPositive(sz), t, i5);
+                } else {
+                    row[x] = 0;
+                }
+            }
+        } else {
+            for (int x = 0; x < length; x++) {
+                row[x] = sampler.sample(xs[x], ys[x], zs[x], t, i5);
+            }
+        }
+    }
+
+    static void writeRow(VolumeArray target, int y, int z, int t, int i5, double[] row) {
+        if (target instanceof IndexedVolumeArray) {
+            IndexedVolumeArray indexed = (IndexedVolumeArray) target;
+            indexed.setRun(indexed.getIndex(0, y, z, t, i5), indexed.xStride, row, 0, row.length);
+        } else {
+            for (int x = 0; x < row.length; x++) {
+                target.setData(x, y, z, t, i5, row[x]);
+            }
+        }
+    }
+}
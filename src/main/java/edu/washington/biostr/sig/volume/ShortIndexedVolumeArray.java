@@ -59,11 +59,96 @@ class ShortIndexedVolumeArray
     public void setData(int index, double value) {
         short v = (short) Math.round(value);
         array[index] = v;
+        markModified();
     }
 
     @Override
     public void setData(int index, int value) {
         array[index] = (short) value;
+        markModified();
+    }
+
+    @Override
+    protected void getRun(int index, int stride, double[] dst, int offset, int length) {
+        for (int i = 0; i < length; i++) {
+            dst[offset + i] = array[index];
+            index += stride;
+        }
+    }
+
+    @Override
+    protected void getRun(int index, int stride, float[] dst, int offset, int length) {
+        for (int i = 0; i < length; i++) {
+            dst[offset + i] = array[index];
+            index += stride;
+        }
+    }
+
+    @Override
+    protected void getRun(int index, int stride, int[] dst, int offset, int length) {
+        for (int i = 0; i < length; i++) {
+            dst[offset + i] = array[index];
+            index += stride;
+        }
+    }
+
+    @Override
+    protected void getRun(int index, int stride, short[] dst, int offset, int length) {
+        if (stride == 1) {
+            System.arraycopy(array, index, dst, offset, length);
+            return;
+        }
+        for (int i = 0; i < length; i++) {
+            dst[offset + i] = array[index];
+            index += stride;
+        }
+    }
+
+    @Override
+    protected void setRun(int index, int stride, double[] src, int offset, int length) {
+        for (int i = 0; i < length; i++) {
+            array[index] = (short) Math.round(src[offset + i]);
+            index += stride;
+        }
+        markModified();
+    }
+
+    @Override
+    protected void setRun(int index, int stride, int[] src, int offset, int length) {
+        for (int i = 0; i < length; i++) {
+            array[index] = (short) src[offset + i];
+            index += stride;
+        }
+        markModified();
+    }
+
+    @Override
+    protected void gatherCorners(int[] corners, int count, double[] values) {
+        int ox = xStride;
+        int oy = yStride;
+        int oz = zStride;
+        for (int n = 0; n < count; n++) {
+            int c = corners[n];
+            int v = 8 * n;
+            values[v] = array[c];
+            values[v + 1] = array[c + ox];
+            values[v + 2] = array[c + oy];
+            values[v + 3] = array[c + oy + ox];
+            values[v + 4] = array[c + oz];
+            values[v + 5] = array[c + oz + ox];
+            values[v + 6] = array[c + oz + oy];
+            values[v + 7] = array[c + oz + oy + ox];
+        }
+    }
+
+    @Override
+    protected void visitRow(VoxelVisitor visitor, int index, int x0, int width,
+            int y, int z, int t, int i5) {
+        int stride = xStride;
+        for (int x = x0; x < x0 + width; x++) {
+            visitor.visit(x, y, z, t, i5, index, array[index]);
+            index += stride;
+        }
     }
 
     @Override
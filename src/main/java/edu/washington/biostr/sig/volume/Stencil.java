@@ -0,0 +1,356 @@
+package edu.washington.biostr.sig.volume;
+
+/**
+ * A fixed set of neighbours around a voxel, given as x, y and z offsets.
+ * Stencils are used by filters, morphology and labelling code that needs to
+ * read the same neighbourhood around every voxel.<br>
+ * The offsets are turned into index offsets once per volume with
+ * getOffsets(), so a voxel whose whole neighbourhood is inside the volume
+ * (an interior voxel) reads its neighbours with one addition each and no
+ * range checks.  Only the thin shell of voxels near the edge goes through
+ * getIndex() and the EdgePolicy.<br>
+ * Neighbours are always handed out in the order the offsets were given.
+ * @author Eider Moore
+ * @version 1.0
+ */
+public class Stencil {
+
+    /**
+     * Handed the neighbourhood of each voxel by forEach().
+     */
+    public interface Visitor {
+
+        /**
+         * @param x
+         * @param y
+         * @param z
+         * @param t
+         * @param i5
+         * @param index The index of the voxel in the volume.
+         * @param values The value of each neighbour in stencil order.  The
+         * array is reused for the next voxel.
+         */
+        public void visit(int x, int y, int z, int t, int i5, int index, double[] values);
+    }
+
+    private final int[] dx;
+    private final int[] dy;
+    private final int[] dz;
+    /** How far the stencil reaches in the negative direction on each axis. */
+    private final int loX;
+    private final int loY;
+    private final int loZ;
+    /** How far the stencil reaches in the positive direction on each axis. */
+    private final int hiX;
+    private final int hiY;
+    private final int hiZ;
+
+    /**
+     * Create a stencil from parallel arrays of offsets.
+     * @param dx
+     * @param dy
+     * @param dz
+     */
+    public Stencil(int[] dx, int[] dy, int[] dz) {
+        if (dx.length != dy.length || dx.length != dz.length) {
+            throw new IllegalArgumentException("The offset arrays must be the same length");
+        }
+        this.dx = dx.clone();
+        this.dy = dy.clone();
+        this.dz = dz.clone();
+        int lx = 0, ly = 0, lz = 0, hx = 0, hy = 0, hz = 0;
+        for (int i = 0; i < dx.length; i++) {
+            lx = Math.max(lx, -dx[i]);
+            ly = Math.max(ly, -dy[i]);
+            lz = Math.max(lz, -dz[i]);
+            hx = Math.max(hx, dx[i]);
+            hy = Math.max(hy, dy[i]);
+            hz = Math.max(hz, dz[i]);
+        }
+        loX = lx;
+        loY = ly;
+        loZ = lz;
+        hiX = hx;
+        hiY = hy;
+        hiZ = hz;
+    }
+
+    /**
+     * The face (6), face and edge (18) or full (26) neighbours of a voxel.
+     * The voxel itself is not included.
+     * @param connectivity 6, 18 or 26
+     * @return The stencil
+     */
+    public static Stencil connectivity(int connectivity) {
+        if (connectivity != 6 && connectivity != 18 && connectivity != 26) {
+            throw new IllegalArgumentException("Connectivity must be 6, 18 or 26: " + connectivity);
+        }
+        int[] dx = new int[connectivity];
+        int[] dy = new int[connectivity];
+        int[] dz = new int[connectivity];
+        int n = 0;
+        for (int k = -1; k <= 1; k++) {
+            for (int j = -1; j <= 1; j++) {
+                for (int i = -1; i <= 1; i++) {
+                    int distance = Math.abs(i) + Math.abs(j) + Math.abs(k);
+                    if (distance == 0 || (distance == 2 && connectivity == 6) ||
+                            (distance == 3 && connectivity != 26)) {
+                        continue;
+                    }
+                    dx[n] = i;
+                    dy[n] = j;
+                    dz[n] = k;
+                    n++;
+                }
+            }
+        }
+        return new Stencil(dx, dy, dz);
+    }
+
+    /**
+     * Every offset in a width x height x depth box centered on the voxel, in
+     * the same order as a Kernel3D (x fastest, then y, then z).
+     * @param width An odd number
+     * @param height An odd number
+     * @param depth An odd number
+     * @return The stencil
+     */
+    public static Stencil box(int width, int height, int depth) {
+        return fromMask(width, height, depth, null);
+    }
+
+    /**
+     * The offsets in a width x height x depth box centered on the voxel where
+     * mask is true, x fastest, then y, then z.
+     * @param width An odd number
+     * @param height An odd number
+     * @param depth An odd number
+     * @param mask width * height * depth flags (x fastest), or null for all.
+     * @return The stencil
+     */
+    public static Stencil fromMask(int width, int height, int depth, boolean[] mask) {
+        if ((width % 2 != 1) || (height % 2 != 1) || (depth % 2 != 1)) {
+            throw new IllegalArgumentException("The width, depth and height must be odd");
+        }
+        if (mask != null && mask.length != width * height * depth) {
+            throw new IllegalArgumentException("The mask must have width * height * depth entries");
+        }
+        int count = 0;
+        for (int i = 0; i < width * height * depth; i++) {
+            if (mask == null || mask[i]) {
+                count++;
+            }
+        }
+        int[] dx = new int[count];
+        int[] dy = new int[count];
+        int[] dz = new int[count];
+        int n = 0;
+        int m = 0;
+        for (int k = -(depth / 2); k <= depth / 2; k++) {
+            for (int j = -(height / 2); j <= height / 2; j++) {
+                for (int i = -(width / 2); i <= width / 2; i++) {
+                    if (mask == null || mask[m]) {
+                        dx[n] = i;
+                        dy[n] = j;
+                        dz[n] = k;
+                        n++;
+                    }
+                    m++;
+                }
+            }
+        }
+        return new Stencil(dx, dy, dz);
+    }
+
+    /**
+     * @return The number of neighbours.
+     */
+    public int size() {
+        return dx.length;
+    }
+
+    public int getDX(int i) {
+        return dx[i];
+    }
+
+    public int getDY(int i) {
+        return dy[i];
+    }
+
+    public int getDZ(int i) {
+        return dz[i];
+    }
+
+    /**
+     * Find the index offset of each neighbour in data.  Adding these to the
+     * index of an interior voxel gives the index of its neighbours.
+     * @param data
+     * @return The offsets in stencil order
+     */
+    public int[] getOffsets(IndexedVolumeArray data) {
+        int[] offsets = new int[dx.length];
+        for (int i = 0; i < offsets.length; i++) {
+            offsets[i] = dx[i] * data.xStride + dy[i] * data.yStride + dz[i] * data.zStride;
+        }
+        return offsets;
+    }
+
+    /**
+     * @param data
+     * @param x
+     * @param y
+     * @param z
+     * @return true if every neighbour of (x,y,z) is inside of data.
+     */
+    public boolean isInterior(VolumeArray data, int x, int y, int z) {
+        return x >= loX && x < data.getMaxX() - hiX &&
+                y >= loY && y < data.getMaxY() - hiY &&
+                z >= loZ && z < data.getMaxZ() - hiZ;
+    }
+
+    /**
+     * Read the neighbours of (x,y,z,t,i5) into values.
+     * @param data
+     * @param offsets The result of getOffsets(data)
+     * @param x
+     * @param y
+     * @param z
+     * @param t
+     * @param i5
+     * @param index The index of (x,y,z,t,i5) in data
+     * @param policy How to read neighbours outside of the volume
+     * @param values Where to put the result, at least size() long.
+     */
+    public void gather(IndexedVolumeArray data, int[] offsets, int x, int y, int z, int t, int i5,
+            int index, EdgePolicy policy, double[] values) {
+        if (isInterior(data, x, y, z)) {
+            for (int i = 0; i < offsets.length; i++) {
+                values[i] = data.getDouble(index + offsets[i]);
+            }
+        } else {
+            gatherEdge(data, x, y, z, t, i5, policy, values);
+        }
+    }
+
+    private void gatherEdge(IndexedVolumeArray data, int x, int y, int z, int t, int i5,
+            EdgePolicy policy, double[] values) {
+        int maxX = data.getMaxX();
+        int maxY = data.getMaxY();
+        int maxZ = data.getMaxZ();
+        for (int i = 0; i < dx.length; i++) {
+            int px = x + dx[i];
+            int py = y + dy[i];
+            int pz = z + dz[i];
+            if (px < 0 || px >= maxX || py < 0 || py >= maxY || pz < 0 || pz >= maxZ) {
+                switch (policy) {
+                    case ZERO:
+                        values[i] = 0;
+                        continue;
+                    case CLAMP:
+                        px = clamp(px, maxX);
+                        py = clamp(py, maxY);
+                        pz = clamp(pz, maxZ);
+                        break;
+                    case MIRROR:
+                        px = mirror(px, maxX);
+                        py = mirror(py, maxY);
+                        pz = mirror(pz, maxZ);
+                        break;
+                }
+            }
+            values[i] = data.getDouble(data.getIndex(px, py, pz, t, i5));
+        }
+    }
+
+    private static int clamp(int c, int max) {
+        return c < 0 ? 0 : (c >= max ? max - 1 : c);
+    }
+
+    static int mirror(int c, int max) {
+        if (max == 1) {
+            return 0;
+        }
+        int period = 2 * (max - 1);
+        c = Math.abs(c) % period;
+        return c < max ? c : period - c;
+    }
+
+    /**
+     * Hand the neighbourhood of every voxel in data to visitor.
+     * @param data
+     * @param policy How to read neighbours outside of the volume, or null to
+     * skip the voxels whose neighbourhood isn't entirely inside.
+     * @param visitor
+     */
+    public void forEach(IndexedVolumeArray data, EdgePolicy policy, Visitor visitor) {
+        for (int i5 = 0; i5 < data.getMaxI5(); i5++) {
+            for (int t = 0; t < data.getMaxTime(); t++) {
+                forEach(data, t, i5, 0, data.getMaxZ(), policy, visitor);
+            }
+        }
+    }
+
+    /**
+     * Hand the neighbourhood of every voxel in zStart &lt;= z &lt; zEnd at time
+     * t and i5 to visitor.  Different z ranges may be run at the same time on
+     * different threads as long as the visitor allows it.<br>
+     * Each row is split into the edge voxels, which are read through
+     * getIndex(), and the interior run in between, which is read with the
+     * precomputed offsets and no range checks.
+     * @param data
+     * @param t
+     * @param i5
+     * @param zStart The first z (inclusive)
+     * @param zEnd The last z (exclusive)
+     * @param policy How to read neighbours outside of the volume, or null to
+     * skip the voxels whose neighbourhood isn't entirely inside.
+     * @param visitor
+     */
+    public void forEach(IndexedVolumeArray data, int t, int i5, int zStart, int zEnd,
+            EdgePolicy policy, Visitor visitor) {
+        int maxX = data.getMaxX();
+        int maxY = data.getMaxY();
+        int maxZ = data.getMaxZ();
+        int[] offsets = getOffsets(data);
+        double[] values = new double[offsets.length];
+        int xStride = data.xStride;
+        // the interior run of each row, which may be empty
+        int xFirst = Math.min(loX, maxX);
+        int xLast = Math.max(xFirst, maxX - hiX);
+        for (int z = zStart; z < zEnd; z++) {
+            boolean zInside = z >= loZ && z < maxZ - hiZ;
+            for (int y = 0; y < maxY; y++) {
+                boolean inside = zInside && y >= loY && y < maxY - hiY;
+                int rowIndex = data.getIndex(0, y, z, t, i5);
+                if (!inside) {
+                    if (policy != null) {
+                        for (int x = 0; x < maxX; x++) {
+                            gatherEdge(data, x, y, z, t, i5, policy, values);
+                            visitor.visit(x, y, z, t, i5, rowIndex + x * xStride, values);
+                        }
+                    }
+                    continue;
+                }
+                if (policy != null) {
+                    for (int x = 0; x < xFirst; x++) {
+                        gatherEdge(data, x, y, z, t, i5, policy, values);
+                        visitor.visit(x, y, z, t, i5, rowIndex + x * xStride, values);
+                    }
+                }
+                for (int x = xFirst; x < xLast; x++) {
+                    int index = rowIndex + x * xStride;
+                    for (int i = 0; i < offsets.length; i++) {
+                        values[i] = data.getDouble(index + offsets[i]);
+                    }
+                    visitor.visit(x, y, z, t, i5, index, values);
+                }
+                if (policy != null) {
+                    for (int x = xLast; x < maxX; x++) {
+                        gatherEdge(data, x, y, z, t, i5, policy, values);
+                        visitor.visit(x, y, z, t, i5, rowIndex + x * xStride, values);
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,251 @@
+package edu.washington.biostr.sig.volume;
+
+import java.io.IOException;
+
+import javax.vecmath.Matrix4d;
+import javax.vecmath.Point3i;
+
+/**
+ * A box cut out of another IndexedVolumeArray without copying it.  Voxel
+ * (0, 0, 0) of this is voxel (x0, y0, z0) of the backing array, and every
+ * time point and 5th dimension is kept.<br>
+ * getIndex() hands out the backing array's own indices, so the values are
+ * read and written in place and the bulk accessors, the iterator,
+ * forEachVoxel(), the streams and interpolation all run on the crop through
+ * the backing array's fast paths.  The transform is shifted by the origin so
+ * a voxel has the same mm coordinates here as in the backing array.
+ * write() produces the crop in the standard order, so it can be saved like
+ * any other volume.
+ * @author Eider Moore
+ * @version 1.0
+ */
+public class SubVolumeArray extends IndexedVolumeArray {
+
+    private static final long serialVersionUID = 1L;
+    private final IndexedVolumeArray backing;
+    private final int x0;
+    private final int y0;
+    private final int z0;
+    /**
+     * True once the range has been asked for, see getImageMin().
+     */
+    private boolean rangeKnown;
+    /**
+     * getModCount() when the range was last found.
+     */
+    private int rangeModCount;
+
+    /**
+     * @param backing The volume to crop
+     * @param x0 The first x of the crop in backing
+     * @param y0 The first y of the crop in backing
+     * @param z0 The first z of the crop in backing
+     * @param width The number of voxels along x
+     * @param height The number of voxels along y
+     * @param depth The number of voxels along z
+     */
+    public SubVolumeArray(IndexedVolumeArray backing, int x0, int y0, int z0, int width, int height, int depth) {
+        super(width, height, depth, backing.getMaxTime(), backing.getMaxI5(),
+                shift(backing.getIndex2Space(), x0, y0, z0));
+        if (x0 < 0 || y0 < 0 || z0 < 0 || width < 1 || height < 1 || depth < 1 ||
+                x0 + width > backing.getMaxX() || y0 + height > backing.getMaxY() ||
+                z0 + depth > backing.getMaxZ()) {
+            throw new IllegalArgumentException("(" + x0 + "," + y0 + "," + z0 + ") + (" + width + "," + height +
+                    "," + depth + ") is not inside of the volume");
+        }
+        this.backing = backing;
+        this.x0 = x0;
+        this.y0 = y0;
+        this.z0 = z0;
+        updateOffsets();
+    }
+
+    /**
+     * Crop the box between min and max, grown by margin voxels on every side
+     * and clipped to the volume.  This is handy for cutting out a lesion or a
+     * component before heavy processing.
+     * @param backing The volume to crop
+     * @param min The smallest x, y and z to keep
+     * @param max The largest x, y and z to keep
+     * @param margin The number of voxels to add around the box
+     * @return The crop.
+     */
+    public static SubVolumeArray around(IndexedVolumeArray backing, Point3i min, Point3i max, int margin) {
+        int xs = Math.max(0, min.x - margin);
+        int ys = Math.max(0, min.y - margin);
+        int zs = Math.max(0, min.z - margin);
+        int xe = Math.min(backing.getMaxX() - 1, max.x + margin);
+        int ye = Math.min(backing.getMaxY() - 1, max.y + margin);
+        int ze = Math.min(backing.getMaxZ() - 1, max.z + margin);
+        return new SubVolumeArray(backing, xs, ys, zs, xe - xs + 1, ye - ys + 1, ze - zs + 1);
+    }
+
+    private static Matrix4d shift(Matrix4d index2space, int x0, int y0, int z0) {
+        Matrix4d origin = new Matrix4d();
+        origin.setIdentity();
+        origin.m03 = x0;
+        origin.m13 = y0;
+        origin.m23 = z0;
+        Matrix4d rv = new Matrix4d(index2space);
+        rv.mul(origin);
+        return rv;
+    }
+
+    /**
+     * @return The volume this is cut out of.
+     */
+    public IndexedVolumeArray getBackingArray() {
+        return backing;
+    }
+
+    /**
+     * @return Where voxel (0, 0, 0) of this is in the backing array.
+     */
+    public Point3i getOrigin() {
+        return new Point3i(x0, y0, z0);
+    }
+
+    @Override
+    public int getIndex(int x, int y, int z, int time, int i5) {
+        if (backing == null) {
+            // still in the super constructor
+            return super.getIndex(x, y, z, time, i5);
+        }
+        if ((x >= maxX) || (y >= maxY) || (z >= maxZ) || (time >= maxTime) ||
+                (x < 0) || (y < 0) || (z < 0) || (time < 0) || (i5 < 0) || (i5 >= maxI5)) {
+            return -1;
+        }
+        return backing.getIndex(x + x0, y + y0, z + z0, time, i5);
+    }
+
+    @Override
+    public int getInt(int index) {
+        return backing.getInt(index);
+    }
+
+    @Override
+    public double getDouble(int index) {
+        return backing.getDouble(index);
+    }
+
+    @Override
+    public void setData(int index, double value) {
+        backing.setData(index, value);
+    }
+
+    @Override
+    public void setData(int index, int value) {
+        backing.setData(index, value);
+    }
+
+    @Override
+    protected void getRun(int index, int stride, double[] dst, int offset, int length) {
+        backing.getRun(index, stride, dst, offset, length);
+    }
+
+    @Override
+    protected void getRun(int index, int stride, float[] dst, int offset, int length) {
+        backing.getRun(index, stride, dst, offset, length);
+    }
+
+    @Override
+    protected void getRun(int index, int stride, int[] dst, int offset, int length) {
+        backing.getRun(index, stride, dst, offset, length);
+    }
+
+    @Override
+    protected void getRun(int index, int stride, short[] dst, int offset, int length) {
+        backing.getRun(index, stride, dst, offset, length);
+    }
+
+    @Override
+    protected void getRun(int index, int stride, long[] dst, int offset, int length) {
+        backing.getRun(index, stride, dst, offset, length);
+    }
+
+    @Override
+    protected void setRun(int index, int stride, double[] src, int offset, int length) {
+        backing.setRun(index, stride, src, offset, length);
+    }
+
+    @Override
+    protected void setRun(int index, int stride, int[] src, int offset, int length) {
+        backing.setRun(index, stride, src, offset, length);
+    }
+
+    @Override
+    protected void setRun(int index, int stride, long[] src, int offset, int length) {
+        backing.setRun(index, stride, src, offset, length);
+    }
+
+    @Override
+    protected void visitRow(VoxelVisitor visitor, int index, int first, int width,
+            int y, int z, int t, int i5) {
+        backing.visitRow(visitor, index, first, width, y, z, t, i5);
+    }
+
+    /**
+     * The data lives in backing, so changes to it count as changes to this.
+     */
+    @Override
+    public int getModCount() {
+        return backing.getModCount();
+    }
+
+    @Override
+    public void markModified() {
+        backing.markModified();
+    }
+
+    /**
+     * The range of the crop isn't known until it is asked for, so making a
+     * crop doesn't read any of it.  It is found again if the backing data has
+     * changed since.
+     */
+    @Override
+    public double getImageMin() {
+        checkRange();
+        return super.getImageMin();
+    }
+
+    /**
+     * @see #getImageMin()
+     */
+    @Override
+    public double getImageMax() {
+        checkRange();
+        return super.getImageMax();
+    }
+
+    private void checkRange() {
+        int modCount = getModCount();
+        if (!rangeKnown || modCount != rangeModCount) {
+            rangeKnown = true;
+            rangeModCount = modCount;
+            setMinMax(false);
+        }
+    }
+
+    @Override
+    public DataType getNaturalType() {
+        return backing.getNaturalType();
+    }
+
+    @Override
+    public DataType getType() {
+        return backing.getType();
+    }
+
+    @Override
+    public void write(ByteEncoder out) throws IOException {
+        writeInOrder(out);
+    }
+
+    /**
+     * The whole of the backing array's data, not just the crop.
+     */
+    @Override
+    public Object getDataArray() {
+        return backing.getDataArray();
+    }
+}
@@ -0,0 +1,382 @@
+package edu.washington.biostr.sig.volume;
+
+import java.io.IOException;
+
+import org.eiderman.util.ParallelLoop;
+
+/**
+ * Hold a 4D (or 5D) volume with time as the fastest changing dimension so
+ * the time course of each voxel is contiguous in memory.  This is the layout
+ * to use for voxel-wise time series analysis, where the standard layout puts
+ * consecutive time points maxX * maxY * maxZ entries apart.  Optionally i5
+ * is the next fastest dimension so every value for a voxel is contiguous.<br>
+ * The data is kept in an ordinary typed IndexedVolumeArray with the same
+ * dimensions, but that array's own index equation is ignored and this class
+ * supplies the time major one.  Everything built on getIndex() (interpolation,
+ * the iterator, getSeries() and friends) keeps working, and write() still
+ * produces the standard order.
+ * @author Eider Moore
+ * @version 1.0
+ */
+public class TimeMajorVolumeArray extends IndexedVolumeArray {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The edge length of the square tiles used by the transpose.  A tile of
+     * doubles is 32k, which keeps both the source and destination tile in L1/L2.
+     */
+    private static final int BLOCK = 64;
+    private final IndexedVolumeArray backing;
+    private final boolean i5Fast;
+
+    /**
+     * Wrap data that is already in time major order.
+     * @param backing A typed array with the same dimensions whose data array
+     * holds the values in time major order.
+     * @param i5Fast If true, i5 is the second fastest dimension, otherwise it
+     * is the slowest.
+     */
+    public TimeMajorVolumeArray(IndexedVolumeArray backing, boolean i5Fast) {
+        super(backing.getMaxX(), backing.getMaxY(), backing.getMaxZ(),
+                backing.getMaxTime(), backing.getMaxI5(), backing.getIndex2Space());
+        this.backing = backing;
+        this.i5Fast = i5Fast;
+        updateOffsets();
+    }
+
+    /**
+     * Copy a volume into a new time major volume.  If source is a plain typed
+     * array in the standard layout this is a cache blocked transpose run in
+     * parallel, otherwise it falls back to copying one time course at a time.
+     * @param source The volume to copy.
+     * @param i5Fast If true, i5 is the second fastest dimension, otherwise it
+     * is the slowest.
+     * @return A time major copy of source.
+     */
+    public static TimeMajorVolumeArray transpose(IndexedVolumeArray source, boolean i5Fast) {
+        IndexedVolumeArray dest = createLike(source);
+        int voxels = source.getMaxX() * source.getMaxY() * source.getMaxZ();
+        int groups = i5Fast ? 1 : source.getMaxI5();
+        int rows = i5Fast ? source.getMaxI5() * source.getMaxTime() : source.getMaxTime();
+        TimeMajorVolumeArray rv = new TimeMajorVolumeArray(dest, i5Fast);
+        if (isPlainStandard(source) && source.getDataArray().getClass() == dest.getDataArray().getClass()) {
+            transpose(source.getDataArray(), dest.getDataArray(), groups, rows, voxels);
+            dest.markModified();
+        } else {
+            copyTimeCourses(source, rv);
+        }
+        dest.setMinMax(source.getImageMin(), source.getImageMax());
+        return rv;
+    }
+
+    /**
+     * Copy this volume back into the standard layout (x fastest).
+     * @return A new volume with the same data in the standard layout.
+     */
+    public IndexedVolumeArray toStandardLayout() {
+        IndexedVolumeArray dest = createLike(this);
+        int voxels = maxX * maxY * maxZ;
+        int groups = i5Fast ? 1 : maxI5;
+        int rows = i5Fast ? maxI5 * maxTime : maxTime;
+        if (isPlainArray(backing) && isPlainStandard(dest) && backing.getDataArray().getClass() == dest.getDataArray().getClass()) {
+            transpose(backing.getDataArray(), dest.getDataArray(), groups, voxels, rows);
+            dest.markModified();
+        } else {
+            copyTimeCourses(this, dest);
+        }
+        dest.setMinMax(getImageMin(), getImageMax());
+        return dest;
+    }
+
+    /**
+     * @return true if i5 is the second fastest dimension rather than the slowest.
+     */
+    public boolean isI5Fast() {
+        return i5Fast;
+    }
+
+    /**
+     * @return The array that holds the data in time major order.
+     */
+    public IndexedVolumeArray getBackingArray() {
+        return backing;
+    }
+
+    @Override
+    public int getIndex(int x, int y, int z, int time, int i5) {
+        if ((x >= maxX) || (y >= maxY) || (z >= maxZ) || (time >= maxTime) ||
+                (x < 0) || (y < 0) || (z < 0) || (time < 0) || (i5 < 0) || (i5 >= maxI5)) {
+            return -1;
+        }
+        if (i5Fast) {
+            return (((z * maxY + y) * maxX + x) * maxI5 + i5) * maxTime + time;
+        }
+        return (((i5 * maxZ + z) * maxY + y) * maxX + x) * maxTime + time;
+    }
+
+    @Override
+    public int getInt(int index) {
+        return backing.getInt(index);
+    }
+
+    @Override
+    public double getDouble(int index) {
+        return backing.getDouble(index);
+    }
+
+    @Override
+    public void setData(int index, double value) {
+        backing.setData(index, value);
+    }
+
+    @Override
+    public void setData(int index, int value) {
+        backing.setData(index, value);
+    }
+
+    @Override
+    protected void getRun(int index, int stride, double[] dst, int offset, int length) {
+        backing.getRun(index, stride, dst, offset, length);
+    }
+
+    @Override
+    protected void getRun(int index, int stride, float[] dst, int offset, int length) {
+        backing.getRun(index, stride, dst, offset, length);
+    }
+
+    @Override
+    protected void getRun(int index, int stride, int[] dst, int offset, int length) {
+        backing.getRun(index, stride, dst, offset, length);
+    }
+
+    @Override
+    protected void getRun(int index, int stride, short[] dst, int offset, int length) {
+        backing.getRun(index, stride, dst, offset, length);
+    }
+
+    @Override
+    protected void getRun(int index, int stride, long[] dst, int offset, int length) {
+        backing.getRun(index, stride, dst, offset, length);
+    }
+
+    @Override
+    protected void setRun(int index, int stride, double[] src, int offset, int length) {
+        backing.setRun(index, stride, src, offset, length);
+    }
+
+    @Override
+    protected void setRun(int index, int stride, int[] src, int offset, int length) {
+        backing.setRun(index, stride, src, offset, length);
+    }
+
+    @Override
+    protected void setRun(int index, int stride, long[] src, int offset, int length) {
+        backing.setRun(index, stride, src, offset, length);
+    }
+
+    /**
+     * The data lives in backing, so changes to it count as changes to this.
+     */
+    @Override
+    public int getModCount() {
+        return backing.getModCount();
+    }
+
+    @Override
+    public void markModified() {
+        backing.markModified();
+    }
+
+    /**
+     * This holds the same values as backing, so it has the same range, and
+     * follows it as the data changes.
+     */
+    @Override
+    public double getImageMin() {
+        return backing.getImageMin();
+    }
+
+    /**
+     * @see #getImageMin()
+     */
+    @Override
+    public double getImageMax() {
+        return backing.getImageMax();
+    }
+
+    @Override
+    public void setMinMax(boolean highRes) {
+        backing.setMinMax(highRes);
+    }
+
+    @Override
+    protected void setMinMax(double min, double max) {
+        backing.setMinMax(min, max);
+    }
+
+    @Override
+    public DataType getNaturalType() {
+        return backing.getNaturalType();
+    }
+
+    @Override
+    public DataType getType() {
+        return backing.getType();
+    }
+
+    @Override
+    public void write(ByteEncoder out) throws IOException {
+        writeInOrder(out);
+    }
+
+    /**
+     * The data array, in time major order.
+     */
+    @Override
+    public Object getDataArray() {
+        return backing.getDataArray();
+    }
+
+    private static IndexedVolumeArray createLike(VolumeArray source) {
+        return (IndexedVolumeArray) VolumeArrayFactory.createVolumeDataBuffer(source.getIndex2Space(),
+                source.getMaxX(), source.getMaxY(), source.getMaxZ(),
+                source.getMaxTime(), source.getMaxI5(), source.getType());
+    }
+
+    /**
+     * The slow path for layouts or types that can't be transposed directly.
+     */
+    private static void copyTimeCourses(IndexedVolumeArray from, IndexedVolumeArray to) {
+        double[] course = new double[from.getMaxTime()];
+        for (int m = 0; m < from.getMaxI5(); m++) {
+            for (int k = 0; k < from.getMaxZ(); k++) {
+                for (int j = 0; j < from.getMaxY(); j++) {
+                    for (int i = 0; i < from.getMaxX(); i++) {
+                        from.getTimeCourse(course, i, j, k, m);
+                        to.setSeries(course, i, j, k, 0, m, 1, 1, 1, course.length, 1);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @return true if the data array of source holds exactly its values, as
+     * opposed to a wrapper that filters or remaps them.
+     */
+    private static boolean isPlainArray(IndexedVolumeArray source) {
+        return source instanceof ByteIndexedVolumeArray || source instanceof ShortIndexedVolumeArray ||
+                source instanceof CharIndexedVolumeArray || source instanceof IntIndexedVolumeArray ||
+                source instanceof LongIndexedVolumeArray || source instanceof FloatIndexedVolumeArray ||
+                source instanceof DoubleIndexedVolumeArray;
+    }
+
+    /**
+     * @return true if the data array of source holds exactly its values in the
+     * standard layout, so it can be read directly.
+     */
+    private static boolean isPlainStandard(IndexedVolumeArray source) {
+        if (!isPlainArray(source)) {
+            return false;
+        }
+        int maxX = source.getMaxX();
+        int maxY = source.getMaxY();
+        int maxZ = source.getMaxZ();
+        int maxTime = source.getMaxTime();
+        return source.getIndex(0, 0, 0, 0, 0) == 0 &&
+                source.getIndex(maxX - 1, maxY - 1, maxZ - 1, maxTime - 1, source.getMaxI5() - 1) ==
+                maxX * maxY * maxZ * maxTime * source.getMaxI5() - 1 &&
+                (maxX == 1 || source.xStride == 1) &&
+                (maxY == 1 || source.yStride == maxX) &&
+                (maxZ == 1 || source.zStride == maxX * maxY) &&
+                (maxTime == 1 || source.tStride == maxX * maxY * maxZ);
+    }
+
+    /**
+     * Transpose each of groups consecutive rows x cols matrices in src into
+     * cols x rows matrices in dest, one BLOCK x BLOCK tile at a time.  The
+     * tiles are spread over the processors.
+     */
+    private static void transpose(final Object src, final Object dest, final int groups,
+            final int rows, final int cols) {
+        final int rowBlocks = (rows + BLOCK - 1) / BLOCK;
+        final int colBlocks = (cols + BLOCK - 1) / BLOCK;
+        int tiles = groups * rowBlocks * colBlocks;
+        ParallelLoop.run(0, tiles, ParallelLoop.grain(tiles, 4), new ParallelLoop.Body() {
+
+            public void run(int start, int end) {
+                for (int tile = start; tile < end; tile++) {
+                    int g = tile / (rowBlocks * colBlocks);
+                    int r0 = (tile / colBlocks) % rowBlocks * BLOCK;
+                    int c0 = tile % colBlocks * BLOCK;
+                    transposeTile(src, dest, g * rows * cols, rows, cols,
+                            r0, Math.min(r0 + BLOCK, rows), c0, Math.min(c0 + BLOCK, cols));
+                }
+            }
+        });
+    }
+
+    private static void transposeTile(Object src, Object dest, int base, int rows, int cols,
+            int r0, int r1, int c0, int c1) {
+        if (src instanceof float[]) {
+            float[] s = (float[]) src;
+            float[] d = (float[]) dest;
+            for (int r = r0; r < r1; r++) {
+                for (int c = c0; c < c1; c++) {
+                    d[base + c * rows + r] = s[base + r * cols + c];
+                }
+            }
+        } else if (src instanceof short[]) {
+            short[] s = (short[]) src;
+            short[] d = (short[]) dest;
+            for (int r = r0; r < r1; r++) {
+                for (int c = c0; c < c1; c++) {
+                    d[base + c * rows + r] = s[base + r * cols + c];
+                }
+            }
+        } else if (src instanceof double[]) {
+            double[] s = (double[]) src;
+            double[] d = (double[]) dest;
+            for (int r = r0; r < r1; r++) {
+                for (int c = c0; c < c1; c++) {
+                    d[base + c * rows + r] = s[base + r * cols + c];
+                }
+            }
+        } else if (src instanceof int[]) {
+            int[] s = (int[]) src;
+            int[] d = (int[]) dest;
+            for (int r = r0; r < r1; r++) {
+                for (int c = c0; c < c1; c++) {
+                    d[base + c * rows + r] = s[base + r * cols + c];
+                }
+            }
+        } else if (src instanceof byte[]) {
+            byte[] s = (byte[]) src;
+            byte[] d = (byte[]) dest;
+            for (int r = r0; r < r1; r++) {
+                for (int c = c0; c < c1; c++) {
+                    d[base + c * rows + r] = s[base + r * cols + c];
+                }
+            }
+        } else if (src instanceof char[]) {
+            char[] s = (char[]) src;
+            char[] d = (char[]) dest;
+            for (int r = r0; r < r1; r++) {
+                for (int c = c0; c < c1; c++) {
+                    d[base + c * rows + r] = s[base + r * cols + c];
+                }
+            }
+        } else if (src instanceof long[]) {
+            long[] s = (long[]) src;
+            long[] d = (long[]) dest;
+            for (int r = r0; r < r1; r++) {
+                for (int c = c0; c < c1; c++) {
+                    d[base + c * rows + r] = s[base + r * cols + c];
+                }
+            }
+        } else {
+            throw new IllegalArgumentException("Cannot transpose " + src.getClass());
+        }
+    }
+}
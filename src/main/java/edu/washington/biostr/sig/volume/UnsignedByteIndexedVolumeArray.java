@@ -49,5 +49,73 @@ public class UnsignedByteIndexedVolumeArray extends ByteIndexedVolumeArray {
     @Override
     public void setData(int index, int value) {
         getDataArray()[index] = (byte) (value & 0xff);
+        markModified();
+    }
+
+    @Override
+    protected void getRun(int index, int stride, double[] dst, int offset, int length) {
+        byte[] array = getDataArray();
+        for (int i = 0; i < length; i++) {
+            dst[offset + i] = array[index] & 0xff;
+            index += stride;
+        }
+    }
+
+    @Override
+    protected void getRun(int index, int stride, float[] dst, int offset, int length) {
+        byte[] array = getDataArray();
+        for (int i = 0; i < length; i++) {
+            dst[offset + i] = array[index] & 0xff;
+            index += stride;
+        }
+    }
+
+    @Override
+    protected void getRun(int index, int stride, int[] dst, int offset, int length) {
+        byte[] array = getDataArray();
+        for (int i = 0; i < length; i++) {
+            dst[offset + i] = array[index] & 0xff;
+            index += stride;
+        }
+    }
+
+    @Override
+    protected void getRun(int index, int stride, short[] dst, int offset, int length) {
+        byte[] array = getDataArray();
+        for (int i = 0; i < length; i++) {
+            dst[offset + i] = (short) (array[index] & 0xff);
+            index += stride;
+        }
+    }
+
+    @Override
+    protected void gatherCorners(int[] corners, int count, double[] values) {
+        byte[] array = getDataArray();
+        int ox = xStride;
+        int oy = yStride;
+        int oz = zStride;
+        for (int n = 0; n < count; n++) {
+            int c = corners[n];
+            int v = 8 * n;
+            values[v] = array[c] & 0xff;
+            values[v + 1] = array[c + ox] & 0xff;
+            values[v + 2] = array[c + oy] & 0xff;
+            values[v + 3] = array[c + oy + ox] & 0xff;
+            values[v + 4] = array[c + oz] & 0xff;
+            values[v + 5] = array[c + oz + ox] & 0xff;
+            values[v + 6] = array[c + oz + oy] & 0xff;
+            values[v + 7] = array[c + oz + oy + ox] & 0xff;
+        }
+    }
+
+    @Override
+    protected void visitRow(VoxelVisitor visitor, int index, int x0, int width,
+            int y, int z, int t, int i5) {
+        byte[] array = getDataArray();
+        int stride = xStride;
+        for (int x = x0; x < x0 + width; x++) {
+            visitor.visit(x, y, z, t, i5, index, array[index] & 0xff);
+            index += stride;
+        }
     }
 }
@@ -4,14 +4,20 @@ import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
 import java.io.IOException;
 import java.io.Serializable;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
 import javax.vecmath.Matrix3f;
 import javax.vecmath.Matrix4d;
 import javax.vecmath.Point3f;
 import javax.vecmath.Vector3f;
 
+import org.eiderman.util.ParallelLoop;
+
 import edu.washington.biostr.sig.volume.colors.ColorLookupTable;
 import edu.washington.biostr.sig.volume.colors.ColorTransformTable;
 
@@ -39,6 +45,10 @@ public abstract class VolumeArray implements Serializable, Iterable<Object> {
      * Used for comparing doubles to almost 0.
      */
     protected static final double EPSILON = .005;
+    /**
+     * The seed used when approximating the min and max.
+     */
+    private static final long SAMPLE_SEED = 0x5EED;
 
     /**
      * Aligned with the X axis
@@ -113,6 +123,27 @@ public abstract class VolumeArray implements Serializable, Iterable<Object> {
     protected final int maxI5;
     protected double imageMax;
     protected double imageMin;
+    /**
+     * Twice the count of changes to the data, plus 1 if markModified() has
+     * been called since getModCount() last looked.  Writers only ever set
+     * the low bit, so parallel setData() calls don't race on an increment,
+     * and getModCount() clears the bit and counts the change in one step, so
+     * it needs no lock and can't be seen half done.
+     */
+    private final AtomicInteger modState = new AtomicInteger();
+    /**
+     * True while the range asked for by setMinMax(false) hasn't been found.
+     */
+    private transient volatile boolean rangePending;
+    private transient Map<Object, Object> derived;
+    /**
+     * A Lanczos for getValueVoxels() to reuse.  It holds no data, only the
+     * weights of the last point, so it stays good when the data changes.
+     */
+    private transient volatile Lanczos spareLanczos;
+    private static final AtomicReferenceFieldUpdater<VolumeArray, Lanczos> SPARE_LANCZOS =
+            AtomicReferenceFieldUpdater.newUpdater(VolumeArray.class, Lanczos.class, "spareLanczos");
+    private transient int derivedModCount;
 
     
     private Plane[] box;
@@ -216,6 +247,9 @@ public abstract class VolumeArray implements Serializable, Iterable<Object> {
      * @return
      */
     public double getImageMax() {
+        if (rangePending) {
+            approximateMinMax();
+        }
         return imageMax;
     }
 
@@ -224,33 +258,132 @@ public abstract class VolumeArray implements Serializable, Iterable<Object> {
      * @return
      */
     public double getImageMin() {
+        if (rangePending) {
+            approximateMinMax();
+        }
         return imageMin;
     }
 
+    /**
+     * @return A count that changes every time the data changes.
+     */
+    public int getModCount() {
+        while (true) {
+            int state = modState.get();
+            if ((state & 1) == 0) {
+                return state >>> 1;
+            }
+            if (modState.compareAndSet(state, state + 1)) {
+                return (state + 1) >>> 1;
+            }
+        }
+    }
+
+    /**
+     * Record that the data changed, for instance after writing directly to
+     * getDataArray().  This discards any cached results.  Every setData() and
+     * setRun() calls it after writing.  Once the change is recorded it is only a
+     * read, so parallel writers calling it for every voxel share the cache
+     * line instead of storing to it over and over.
+     */
+    public void markModified() {
+        int state = modState.get();
+        if ((state & 1) == 0) {
+            // if this fails another writer has already set the bit
+            modState.compareAndSet(state, state | 1);
+        }
+    }
+
+    /**
+     * Get a result that was computed from the data and stored with
+     * putDerived(), such as statistics or a histogram.
+     * @param key Identifies the result
+     * @return The result, or null if there isn't one or the data has changed
+     * since it was computed.
+     */
+    public synchronized Object getDerived(Object key) {
+        if (derived == null || derivedModCount != getModCount()) {
+            return null;
+        }
+        return derived.get(key);
+    }
+
+    /**
+     * Store a result computed from the data so it can be reused until the
+     * data changes.
+     * @param key Identifies the result
+     * @param value The result
+     * @param modCount getModCount() from before the result was computed.  If
+     * the data has changed since then the result is not stored.
+     */
+    public synchronized void putDerived(Object key, Object value, int modCount) {
+        int current = getModCount();
+        if (modCount != current) {
+            return;
+        }
+        if (derived == null || derivedModCount != current) {
+            derived = new HashMap<Object, Object>();
+            derivedModCount = current;
+        }
+        derived.put(key, value);
+    }
+
     /**
      * Set the minimum and maximum for the image.  It should only traverse the
      * image once.<br>
-     * Implementation Note: This uses the iterator to iterate over the entire
-     * image and will store the min and max as doubles.
+     * Implementation Note: The exact min and max come from VolumeStatistics,
+     * which is computed in parallel and cached until the data changes.  If
+     * highRes is true the statistics are always recomputed.  The approximation
+     * uses cached statistics if there are any.  Otherwise it doesn't touch
+     * the data until getImageMin() or getImageMax() is first called, and then
+     * uses the exact statistics of a small volume or a fixed random sample of
+     * a large one, so it gives the same answer every time.
      * @param highRes if true, find the real min and max.  If false then approximate it.
      */
     public void setMinMax(boolean highRes) {
+        VolumeStatistics stats;
+        if (highRes) {
+            stats = VolumeStatistics.refresh(this);
+        } else {
+            stats = VolumeStatistics.getCached(this);
+        }
+        if (stats == null) {
+            rangePending = true;
+        } else if (stats.getCount() > 0) {
+            setMinMax(stats.getMin(), stats.getMax());
+        } else {
+            setMinMax(Double.MAX_VALUE, -Double.MAX_VALUE);
+        }
+    }
+
+    /**
+     * Set the minimum and maximum for the image to known values, for instance
+     * ones copied from the volume this one was made from.
+     * @param min The smallest value in the image
+     * @param max The largest value in the image
+     */
+    protected void setMinMax(double min, double max) {
+        this.imageMax = max;
+        this.imageMin = min;
+        rangePending = false;
+    }
+
+    /**
+     * Find the range that setMinMax(false) put off.
+     */
+    private void approximateMinMax() {
         double max = -Double.MAX_VALUE;
         double min = Double.MAX_VALUE;
         double value;
         int SAMPLE_SIZE = 10000;
-        if (highRes || maxX * maxY * maxZ * maxTime <= SAMPLE_SIZE * 2) {
-            for (VolumeArrayIterator it = iterator(); it.hasNext();) {
-                value = it.nextDouble();
-                if (value > max) {
-                    max = value;
-                }
-                if (value < min) {
-                    min = value;
-                }
+        if (maxX * maxY * maxZ * maxTime * maxI5 <= SAMPLE_SIZE * 2) {
+            VolumeStatistics stats = VolumeStatistics.get(this);
+            if (stats.getCount() > 0) {
+                max = stats.getMax();
+                min = stats.getMin();
             }
         } else {
-            Iterator<Double> it = randomSampling(SAMPLE_SIZE);
+            Iterator<Double> it = randomSampling(SAMPLE_SIZE, SAMPLE_SEED);
             while (it.hasNext()) {
                 value = it.next();
                 if (value > max) {
@@ -261,8 +394,7 @@ public abstract class VolumeArray implements Serializable, Iterable<Object> {
                 }
             }
         }
-        this.imageMax = max;
-        this.imageMin = min;
+        setMinMax(min, max);
     }
 
     /**
@@ -739,6 +871,21 @@ public abstract class VolumeArray implements Serializable, Iterable<Object> {
             int time, int i5, BufferedImage img,
             float alphaV, ColorLookupTable table,
             ColorTransformTable colorTransform, Interpolation interpolation) {
+        return getImageRows(upperleftIn, rightIn, downIn, time, i5, img, alphaV, table, colorTransform,
+                interpolation, 0, img.getHeight());
+    }
+
+    /**
+     * Fill rows firstRow to lastRow - 1 of img the way getImage() does.  Each
+     * row only depends on its own number, so the rows can be filled in any
+     * order or at the same time.
+     */
+    private BufferedImage getImageRows(Point3f upperleftIn, Vector3f rightIn,
+            Vector3f downIn,
+            int time, int i5, BufferedImage img,
+            float alphaV, ColorLookupTable table,
+            ColorTransformTable colorTransform, Interpolation interpolation,
+            int firstRow, int lastRow) {
 
         // create copies of upperleft, right and down and put them in index space.
         Point3f upperleft = new Point3f(upperleftIn);
@@ -776,11 +923,12 @@ public abstract class VolumeArray implements Serializable, Iterable<Object> {
                     }    
          */
         int alphaInt = getFloatAnd(alphaV);
+        VoxelSampler sampler = highOrderSampler(interpolation);
         if (colorTransform == null) {
             if (supportsLookupTable()) {
                 //value = table.getColor(getValueVoxels(cur.x, cur.y, cur.z, time, i5, interpolation));
                 if (Interpolation.NEAREST_NEIGHBOR.equals(interpolation)) {
-                    for (int i = 0; i < height; i++) {
+                    for (int i = firstRow; i < lastRow; i++) {
                         v1.scale(((float) i) / height, down);
                         cur.add(upperleft, v1);
                             for (int j = 0; j < width; j++) {
@@ -791,11 +939,11 @@ public abstract class VolumeArray implements Serializable, Iterable<Object> {
                         img.setRGB(0, i, width, 1, row, 0, width);
                     }    
                 } else {
-                    for (int i = 0; i < height; i++) {
+                    for (int i = firstRow; i < lastRow; i++) {
                         v1.scale(((float) i) / height, down);
                         cur.add(upperleft, v1);
                             for (int j = 0; j < width; j++) {
-                                int value = table.getColor(interpolate(cur.x, cur.y, cur.z, time, i5));
+                                int value = table.getColor(sampleVoxels(sampler, cur.x, cur.y, cur.z, time, i5));
                                 row[j] = value;
                                 cur.add(widthStep);
                             }
@@ -805,7 +953,7 @@ public abstract class VolumeArray implements Serializable, Iterable<Object> {
             } else {
                 // value = getValueVoxelsInt(cur.x, cur.y, cur.z, time, i5, interpolation) & alphaInt;
                 if (Interpolation.NEAREST_NEIGHBOR.equals(interpolation)) {
-                    for (int i = 0; i < height; i++) {
+                    for (int i = firstRow; i < lastRow; i++) {
                         v1.scale(((float) i) / height, down);
                         cur.add(upperleft, v1);
                             for (int j = 0; j < width; j++) {
@@ -816,7 +964,7 @@ public abstract class VolumeArray implements Serializable, Iterable<Object> {
                         img.setRGB(0, i, width, 1, row, 0, width);
                     }                     
                 } else {
-                    for (int i = 0; i < height; i++) {
+                    for (int i = firstRow; i < lastRow; i++) {
                         v1.scale(((float) i) / height, down);
                         cur.add(upperleft, v1);
                             for (int j = 0; j < width; j++) {
@@ -832,7 +980,7 @@ public abstract class VolumeArray implements Serializable, Iterable<Object> {
             if (supportsLookupTable()) {
                 // value = colorTransform.get(table.getColor(getValueVoxels(cur.x, cur.y, cur.z, time, i5, interpolation)));
                 if (Interpolation.NEAREST_NEIGHBOR.equals(interpolation)) {
-                    for (int i = 0; i < height; i++) {
+                    for (int i = firstRow; i < lastRow; i++) {
                         v1.scale(((float) i) / height, down);
                         cur.add(upperleft, v1);
                             for (int j = 0; j < width; j++) {
@@ -843,11 +991,11 @@ public abstract class VolumeArray implements Serializable, Iterable<Object> {
                         img.setRGB(0, i, width, 1, row, 0, width);
                     }                     
                 } else {
-                    for (int i = 0; i < height; i++) {
+                    for (int i = firstRow; i < lastRow; i++) {
                         v1.scale(((float) i) / height, down);
                         cur.add(upperleft, v1);
                             for (int j = 0; j < width; j++) {
-                                int value = colorTransform.get(table.getColor(interpolate(cur.x, cur.y, cur.z, time, i5)));
+                                int value = colorTransform.get(table.getColor(sampleVoxels(sampler, cur.x, cur.y, cur.z, time, i5)));
                                 row[j] = value;
                                 cur.add(widthStep);
                             }
@@ -857,7 +1005,7 @@ public abstract class VolumeArray implements Serializable, Iterable<Object> {
             } else {
                 // value = colorTransform.get(getValueVoxelsInt(cur.x, cur.y, cur.z, time, i5, interpolation)) & alphaInt;
                 if (Interpolation.NEAREST_NEIGHBOR.equals(interpolation)) {
-                    for (int i = 0; i < height; i++) {
+                    for (int i = firstRow; i < lastRow; i++) {
                         v1.scale(((float) i) / height, down);
                         cur.add(upperleft, v1);
                             for (int j = 0; j < width; j++) {
@@ -868,7 +1016,7 @@ public abstract class VolumeArray implements Serializable, Iterable<Object> {
                         img.setRGB(0, i, width, 1, row, 0, width);
                     }                     
                 } else {
-                    for (int i = 0; i < height; i++) {
+                    for (int i = firstRow; i < lastRow; i++) {
                         v1.scale(((float) i) / height, down);
                         cur.add(upperleft, v1);
                             for (int j = 0; j < width; j++) {
@@ -979,6 +1127,7 @@ public abstract class VolumeArray implements Serializable, Iterable<Object> {
          */
         final int x = bounds.x;
         final int y = bounds.y;
+        VoxelSampler sampler = highOrderSampler(interpolation);
         if (colorTransform == null) {
             if (supportsLookupTable()) {
                 //value = table.getColor(getValueVoxels(cur.x, cur.y, cur.z, time, i5, interpolation));
@@ -1004,7 +1153,7 @@ public abstract class VolumeArray implements Serializable, Iterable<Object> {
                         cur.add(upperleft, v2);
                         cur.add(v1);
                             for (int j = x; j < width; j++) {
-                                int value = table.getColor(interpolate(cur.x, cur.y, cur.z, time, i5));
+                                int value = table.getColor(sampleVoxels(sampler, cur.x, cur.y, cur.z, time, i5));
                                 row[j] = blend(row[j], value, alphaV);
                                 cur.add(widthStep);
                             }
@@ -1068,7 +1217,7 @@ public abstract class VolumeArray implements Serializable, Iterable<Object> {
                         cur.add(upperleft, v2);
                         cur.add(v1);
                             for (int j = x; j < width; j++) {
-                                int value = colorTransform.get(table.getColor(interpolate(cur.x, cur.y, cur.z, time, i5)));
+                                int value = colorTransform.get(table.getColor(sampleVoxels(sampler, cur.x, cur.y, cur.z, time, i5)));
                                 row[j] = blend(row[j], value, alphaV);
                                 cur.add(widthStep);
                             }
@@ -1111,6 +1260,126 @@ public abstract class VolumeArray implements Serializable, Iterable<Object> {
         return img;
     }
 
+    /**
+     * The number of rows the parallel renderers hand to a task at a time.
+     */
+    private static final int STRIP_ROWS = 16;
+
+    /**
+     * getImage() split into strips of rows that are rendered in parallel on
+     * the shared pool.  The pixels are the same as getImage() gives.<br>
+     * If generation is given, each strip checks that frame is still the
+     * current frame before it starts, so a rendering that a newer request has
+     * superseded stops early.
+     * @param upperleftIn
+     * @param rightIn
+     * @param downIn
+     * @param time The time point to focus on
+     * @param i5 The i5 point to focus on
+     * @param img The image to put this into
+     * @param alphaV if alpha is supported, use alphaV (between 0 and 1).
+     * @param table The table to convert values to RGB, must be specified for non RGB images.
+     * @param colorTransform Used to transform RGB values to new colors.
+     * @param interpolation Nearest Neighbor or Linear
+     * @param generation Tracks the newest frame, or null to never stop early.
+     * @param frame The frame this rendering is for.
+     * @return img, or null if the frame was superseded.
+     */
+    public BufferedImage getImageParallel(final Point3f upperleftIn, final Vector3f rightIn,
+            final Vector3f downIn,
+            final int time, final int i5, final BufferedImage img,
+            final float alphaV, final ColorLookupTable table,
+            final ColorTransformTable colorTransform, final Interpolation interpolation,
+            final RenderGeneration generation, final int frame) {
+        final int height = img.getHeight();
+        renderStrips(0, height, time, i5, img, interpolation, generation, frame, new ParallelLoop.Body() {
+
+            public void run(int start, int end) {
+                getImageRows(upperleftIn, rightIn, downIn, time, i5, img, alphaV, table, colorTransform,
+                        interpolation, start, end);
+            }
+        });
+        return generation == null || generation.isCurrent(frame) ? img : null;
+    }
+
+    /**
+     * renderInto() split into strips of rows that are rendered in parallel on
+     * the shared pool.  The pixels are the same as renderInto() gives.<br>
+     * If generation is given, each strip checks that frame is still the
+     * current frame before it starts, so a rendering that a newer request has
+     * superseded stops early (leaving part of bounds untouched).
+     * @param upperleftIn
+     * @param rightIn
+     * @param downIn
+     * @param time The time point to focus on
+     * @param i5 The i5 point to focus on
+     * @param img The image to blend this into
+     * @param alphaV if alpha is supported, use alphaV (between 0 and 1).
+     * @param table The table to convert values to RGB, must be specified for non RGB images.
+     * @param colorTransform Used to transform RGB values to new colors.
+     * @param interpolation Nearest Neighbor or Linear
+     * @param bounds restricted bounds in the image space
+     * @param generation Tracks the newest frame, or null to never stop early.
+     * @param frame The frame this rendering is for.
+     * @return img, or null if the frame was superseded.
+     */
+    public BufferedImage renderIntoParallel(final Point3f upperleftIn, final Vector3f rightIn,
+            final Vector3f downIn,
+            final int time, final int i5, final BufferedImage img,
+            final float alphaV, final ColorLookupTable table,
+            final ColorTransformTable colorTransform, final Interpolation interpolation,
+            final Rectangle bounds, final RenderGeneration generation, final int frame) {
+        if (bounds.x < 0 || bounds.y < 0 || bounds.x + bounds.width > img.getWidth() ||
+                bounds.y + bounds.height > img.getHeight()) {
+            throw new IllegalArgumentException("Bounds extends past image " + bounds + " " + img);
+        }
+        renderStrips(bounds.y, bounds.y + bounds.height, time, i5, img, interpolation, generation, frame,
+                new ParallelLoop.Body() {
+
+            public void run(int start, int end) {
+                renderInto(upperleftIn, rightIn, downIn, time, i5, img, alphaV, table, colorTransform,
+                        interpolation, new Rectangle(bounds.x, start, bounds.width, end - start));
+            }
+        });
+        return generation == null || generation.isCurrent(frame) ? img : null;
+    }
+
+    /**
+     * Hand rows first to last - 1 to rows in strips, skipping the strips
+     * that start after frame has been superseded.  Images that aren't
+     * stored as packed ints are filled in one piece, as converting to their
+     * pixels isn't safe from several threads.
+     */
+    private void renderStrips(final int first, final int last, int time, int i5, BufferedImage img,
+            Interpolation interpolation, final RenderGeneration generation, final int frame,
+            final ParallelLoop.Body rows) {
+        int type = img.getType();
+        if (type != BufferedImage.TYPE_INT_ARGB && type != BufferedImage.TYPE_INT_RGB &&
+                type != BufferedImage.TYPE_INT_ARGB_PRE) {
+            if (generation == null || generation.isCurrent(frame)) {
+                rows.run(first, last);
+            }
+            return;
+        }
+        if (interpolation == Interpolation.CUBIC_BSPLINE && supportsLookupTable()) {
+            // compute the coefficients once here instead of in every strip
+            BSplineCoefficients.get(this).prepare(time, i5);
+        }
+        int strips = (last - first + STRIP_ROWS - 1) / STRIP_ROWS;
+        ParallelLoop.run(0, strips, 1, new ParallelLoop.Body() {
+
+            public void run(int start, int end) {
+                for (int strip = start; strip < end; strip++) {
+                    if (generation != null && !generation.isCurrent(frame)) {
+                        return;
+                    }
+                    int row = first + strip * STRIP_ROWS;
+                    rows.run(row, Math.min(last, row + STRIP_ROWS));
+                }
+            }
+        });
+    }
+
     /**
      * Transform p from mm to voxel indices and call getValueVoxels
      * @param p The location in mm.
@@ -1134,17 +1403,91 @@ public abstract class VolumeArray implements Serializable, Iterable<Object> {
      * @param i5 Nifti supports up to 5 dimensions, but usually this is 0
      * @param in
      * @return the value at (x,y,z,time,i5) after interpolating
+     * @see #getSampler(Interpolation)
      */
     public double getValueVoxels(float x, float y, float z, int time, int i5, Interpolation in) {
         if (in == Interpolation.NEAREST_NEIGHBOR) {
             return getValueNearestNeighbor(x, y, z, time, i5);
         } else if (in == Interpolation.LINEAR) {
             return interpolate(x, y, z, time, i5);
+        } else if (in == Interpolation.CUBIC_BSPLINE || in == Interpolation.LANCZOS) {
+            if (!supportsLookupTable()) {
+                // packed colors can't be blended channel by channel this way
+                return interpolate(x, y, z, time, i5);
+            }
+            if (in == Interpolation.CUBIC_BSPLINE) {
+                return BSplineCoefficients.get(this).sample(x, y, z, time, i5);
+            }
+            // borrow the spare sampler, or make one if another thread has it
+            Lanczos lanczos = SPARE_LANCZOS.getAndSet(this, null);
+            if (lanczos == null) {
+                lanczos = new Lanczos(this);
+            }
+            double value = lanczos.sample(x, y, z, time, i5);
+            spareLanczos = lanczos;
+            return value;
         } else {
             throw new IllegalArgumentException();
         }
     }
 
+    /**
+     * Get a sampler that gives the same answers as getValueVoxels() with in.
+     * Whatever the interpolation needs, such as the B-spline coefficients, is
+     * looked up once by the sampler instead of for every point, so loops over
+     * many points should use this.  Each thread needs its own sampler.
+     * @param in
+     * @return The sampler
+     */
+    public VoxelSampler getSampler(Interpolation in) {
+        if (in == Interpolation.NEAREST_NEIGHBOR) {
+            return new VoxelSampler() {
+
+                public double sample(float x, float y, float z, int time, int i5) {
+                    return getValueNearestNeighbor(x, y, z, time, i5);
+                }
+            };
+        } else if (in == Interpolation.CUBIC_BSPLINE && supportsLookupTable()) {
+            return BSplineCoefficients.get(this);
+        } else if (in == Interpolation.LANCZOS && supportsLookupTable()) {
+            return new Lanczos(this);
+        } else if (in == Interpolation.LINEAR || in == Interpolation.CUBIC_BSPLINE ||
+                in == Interpolation.LANCZOS) {
+            // packed colors can't be blended channel by channel, so they are linear
+            return new VoxelSampler() {
+
+                public double sample(float x, float y, float z, int time, int i5) {
+                    return interpolate(x, y, z, time, i5);
+                }
+            };
+        } else {
+            throw new IllegalArgumentException();
+        }
+    }
+
+    /**
+     * @return The sampler the rendering loops use for in, or null if they
+     * should call interpolate() directly.
+     */
+    private VoxelSampler highOrderSampler(Interpolation in) {
+        if (in == Interpolation.CUBIC_BSPLINE || in == Interpolation.LANCZOS) {
+            return getSampler(in);
+        }
+        return null;
+    }
+
+    /**
+     * Used by the rendering loops for anything other than nearest neighbor,
+     * so they keep calling interpolate() directly for linear interpolation.
+     * @param sampler From highOrderSampler()
+     */
+    private double sampleVoxels(VoxelSampler sampler, float x, float y, float z, int time, int i5) {
+        if (sampler != null) {
+            return sampler.sample(x, y, z, time, i5);
+        }
+        return interpolate(x, y, z, time, i5);
+    }
+
     private int blend(int dst, int src, float alphaV) {
         int rd = (dst >> 16) & 0xff;
         int gd = (dst >> 8) & 0xff;
@@ -1338,10 +1681,24 @@ public abstract class VolumeArray implements Serializable, Iterable<Object> {
      * @return an iterator with size iterations that takes random values from the volume.
      */
     public Iterator<Double> randomSampling(final int size) {
+        return randomSampling(size, new Random());
+    }
+
+    /**
+     * Get a repeatable random sample of the voxels.  The same seed always
+     * picks the same voxels.
+     * @param size The number of samples
+     * @param seed The seed for the random number generator.
+     * @return size random samples.
+     */
+    public Iterator<Double> randomSampling(final int size, long seed) {
+        return randomSampling(size, new Random(seed));
+    }
+
+    private Iterator<Double> randomSampling(final int size, final Random random) {
         return new Iterator<Double>() {
 
             int index = 0;
-            Random random = new Random();
 
             public void remove() {
                 throw new UnsupportedOperationException("Remove is not supported!");
@@ -1490,7 +1847,7 @@ public abstract class VolumeArray implements Serializable, Iterable<Object> {
                 for (int k = z0; k < depth + z0; k++) {
                     for (int j = y0; j < height + y0; j++) {
                         for (int i = x0; i < width + x0; i++) {
-                            setData(i, j, k, i, m, values[index]);
+                            setData(i, j, k, l, m, values[index]);
                             index++;
                         }
                     }
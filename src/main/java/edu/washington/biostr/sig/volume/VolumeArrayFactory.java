@@ -55,6 +55,9 @@ public class VolumeArrayFactory {
         } else if (data instanceof char[]) {
             return new CharIndexedVolumeArray(maxX, maxY, maxZ, maxTime, maxI5,
                     index2space, (char[]) data);
+        } else if (data instanceof long[]) {
+            return new LongIndexedVolumeArray(maxX, maxY, maxZ, maxTime, maxI5,
+                    index2space, (long[]) data);
         } else {
             throw new IllegalArgumentException(
                     "Please choose a type from ImageData. bad: " + data.getClass());
@@ -80,6 +83,19 @@ public class VolumeArrayFactory {
                 index2space, data);
     }
 
+    /**
+     * Copy a volume into one that stores time as the fastest changing
+     * dimension, which makes reading the time course of a voxel cheap.
+     * @param source The volume to copy.
+     * @param i5Fast If true, i5 changes second fastest, otherwise slowest.
+     * @return A time major copy of source.
+     * @see TimeMajorVolumeArray
+     */
+    public static TimeMajorVolumeArray getTimeMajorBuffer(IndexedVolumeArray source,
+            boolean i5Fast) {
+        return TimeMajorVolumeArray.transpose(source, i5Fast);
+    }
+
 //   public static VolumeArray getVolumeDataBuffer(Matrix4d index2space,
 //                                                 byte[] data, int xMax,
 //                                                 int yMax, int zMax,
@@ -127,7 +143,7 @@ public class VolumeArrayFactory {
             int yMax, int zMax,
             int maxTime, int maxI5, DataType dataType) {
         Object data;
-        int len = xMax * yMax * zMax * maxTime;
+        int len = xMax * yMax * zMax * maxTime * maxI5;
         switch (dataType) {
             case TYPE_BINARY:
                 data = new BitSet(len);
@@ -150,6 +166,9 @@ public class VolumeArrayFactory {
             case TYPE_USHORT:
                 data = new char[len];
                 break;
+            case TYPE_LONG:
+                data = new long[len];
+                break;
             case TYPE_UBYTE:
                 return new UnsignedByteIndexedVolumeArray(xMax, yMax, zMax, maxTime, maxI5,
                         index2space, new byte[len]);
@@ -0,0 +1,265 @@
+package edu.washington.biostr.sig.volume;
+
+import java.util.BitSet;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.eiderman.util.ParallelLoop;
+
+/**
+ * A histogram of the values in a volume that answers percentile and quantile
+ * queries without sorting a copy of the data.<br>
+ * Integer volumes get one bin per value, so their quantiles are exact (as
+ * long as the range of values is reasonable).  Floating point values are
+ * binned on the top 16 bits of their single precision representation, so
+ * each bin is about 0.8% of the magnitude of the values in it no matter how
+ * wide the range is.  One extreme voxel therefore can't swallow the rest of
+ * the data into a single bin.  Quantiles are interpolated within a bin.  NaN
+ * voxels are left out.<br>
+ * The volume is read one z plane at a time in parallel.  Each task fills a
+ * histogram that no other running task is using, and hands it on to a later
+ * task when it is done, so there are only as many as there are tasks running
+ * at once.  They are summed at the end.
+ * @author Eider Moore
+ * @version 1.0
+ */
+public class VolumeHistogram {
+
+    /**
+     * The key used to cache the unmasked histogram with VolumeArray.putDerived().
+     */
+    private static final Object KEY = VolumeHistogram.class;
+    /**
+     * The widest range of integers that gets one bin per value.
+     */
+    private static final int MAX_EXACT_BINS = 1 << 20;
+    /**
+     * The number of bits of a float's representation used for its bin.
+     */
+    private static final int FLOAT_BITS = 16;
+    private static final int FLOAT_SHIFT = 32 - FLOAT_BITS;
+    private static final int FLOAT_BINS = 1 << FLOAT_BITS;
+    private final long[] bins;
+    private final double min;
+    private final double max;
+    private final boolean exact;
+    private final long count;
+
+    private VolumeHistogram(long[] bins, double min, double max, boolean exact) {
+        this.bins = bins;
+        this.min = min;
+        this.max = max;
+        this.exact = exact;
+        long total = 0;
+        for (long bin : bins) {
+            total += bin;
+        }
+        this.count = total;
+    }
+
+    /**
+     * Get the histogram of every voxel in volume.  It is cached on the volume
+     * until its data changes.
+     * @param volume
+     * @return The histogram
+     */
+    public static VolumeHistogram get(VolumeArray volume) {
+        VolumeHistogram hist = (VolumeHistogram) volume.getDerived(KEY);
+        if (hist == null) {
+            int modCount = volume.getModCount();
+            hist = compute(volume, null);
+            volume.putDerived(KEY, hist, modCount);
+        }
+        return hist;
+    }
+
+    /**
+     * Compute the histogram of the voxels in volume where mask is set.
+     * @param volume
+     * @param mask Which voxels to count, or null for all of them.  It must
+     * have the same x, y and z dimensions as volume and either a single time
+     * point or as many as volume.
+     * @return The histogram
+     */
+    public static VolumeHistogram compute(final VolumeArray volume, final BitIndexedVolumeArray mask) {
+        final int maxX = volume.getMaxX();
+        final int maxY = volume.getMaxY();
+        final int maxZ = volume.getMaxZ();
+        final int maxTime = volume.getMaxTime();
+        if (mask != null && (mask.getMaxX() != maxX || mask.getMaxY() != maxY ||
+                mask.getMaxZ() != maxZ || (mask.getMaxTime() != 1 && mask.getMaxTime() != maxTime))) {
+            throw new IllegalArgumentException("The mask does not line up with the volume");
+        }
+        VolumeStatistics stats = VolumeStatistics.get(volume);
+        final double min = stats.getCount() == 0 ? 0 : stats.getMin();
+        final double max = stats.getCount() == 0 ? 0 : stats.getMax();
+        final boolean exact = volume.getNaturalType() == DataType.TYPE_INT &&
+                max - min + 1 <= MAX_EXACT_BINS;
+        final int size = exact ? (int) (max - min) + 1 : FLOAT_BINS;
+        final long[] bins = new long[size];
+        final BitSet bits = mask == null ? null : (BitSet) mask.getDataArray();
+        final Queue<long[]> locals = new ConcurrentLinkedQueue<long[]>();
+        int planes = maxZ * maxTime * volume.getMaxI5();
+        ParallelLoop.run(0, planes, ParallelLoop.grain(planes, 1), new ParallelLoop.Body() {
+
+            public void run(int start, int end) {
+                long[] local = locals.poll();
+                if (local == null) {
+                    local = new long[size];
+                }
+                double[] plane = new double[maxX * maxY];
+                for (int p = start; p < end; p++) {
+                    int z = p % maxZ;
+                    int t = (p / maxZ) % maxTime;
+                    int i5 = p / (maxZ * maxTime);
+                    volume.getSeries(plane, 0, 0, z, t, i5, maxX, maxY, 1, 1, 1);
+                    int maskBase = bits == null ? 0 :
+                            mask.getIndex(0, 0, z, mask.getMaxTime() == 1 ? 0 : t, 0);
+                    for (int i = 0; i < plane.length; i++) {
+                        double value = plane[i];
+                        if (value != value || (bits != null && !bits.get(maskBase + i))) {
+                            continue;
+                        }
+                        if (exact) {
+                            local[(int) (value - min)]++;
+                        } else {
+                            local[floatBin(value)]++;
+                        }
+                    }
+                }
+                locals.add(local);
+            }
+        });
+        for (long[] local : locals) {
+            for (int i = 0; i < size; i++) {
+                bins[i] += local[i];
+            }
+        }
+        return new VolumeHistogram(bins, min, max, exact);
+    }
+
+    /**
+     * Map value to a bin so that the order of the bins matches the order of
+     * the values.  The bits of a float sort like a signed int for positive
+     * values and in reverse for negative ones, so the magnitude bits of
+     * negative values are flipped first.
+     */
+    private static int floatBin(double value) {
+        int bits = Float.floatToIntBits((float) value);
+        bits ^= (bits >> 31) & 0x7fffffff;
+        return (bits >> FLOAT_SHIFT) + FLOAT_BINS / 2;
+    }
+
+    /**
+     * The inverse of floatBin(), the smallest value in the bin.
+     */
+    private static double floatBinStart(int bin) {
+        int bits = (bin - FLOAT_BINS / 2) << FLOAT_SHIFT;
+        bits ^= (bits >> 31) & 0x7fffffff;
+        return Float.intBitsToFloat(bits);
+    }
+
+    /**
+     * Find the value that fraction q of the counted voxels are at or below.
+     * @param q A fraction in [0, 1]
+     * @return The value, or NaN if no voxels were counted.
+     */
+    public double quantile(double q) {
+        if (q < 0 || q > 1) {
+            throw new IllegalArgumentException("Quantiles must be in [0, 1]: " + q);
+        }
+        if (count == 0) {
+            return Double.NaN;
+        }
+        double rank = q * (count - 1);
+        long below = 0;
+        for (int i = 0; i < bins.length; i++) {
+            if (bins[i] == 0) {
+                continue;
+            }
+            if (below + bins[i] > rank) {
+                if (exact) {
+                    return min + i;
+                }
+                // spread the voxels evenly over the bin
+                double start = Math.max(min, getBinStart(i));
+                double end = Math.min(max, getBinEnd(i));
+                return start + (end - start) * (rank - below + 0.5) / bins[i];
+            }
+            below += bins[i];
+        }
+        return max;
+    }
+
+    /**
+     * Find the value that p percent of the counted voxels are at or below.
+     * @param p A percentage in [0, 100]
+     * @return The value, or NaN if no voxels were counted.
+     */
+    public double percentile(double p) {
+        return quantile(p / 100);
+    }
+
+    /**
+     * @return The number of voxels counted.
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * @return The number of bins.
+     */
+    public int getBinCount() {
+        return bins.length;
+    }
+
+    /**
+     * @param bin
+     * @return The number of voxels in the bin.
+     */
+    public long getBin(int bin) {
+        return bins[bin];
+    }
+
+    /**
+     * @param bin
+     * @return The smallest value that goes in the bin.
+     */
+    public double getBinStart(int bin) {
+        return exact ? min + bin : floatBinStart(bin);
+    }
+
+    /**
+     * @param bin
+     * @return The value just past the largest value that goes in the bin.
+     */
+    public double getBinEnd(int bin) {
+        if (exact) {
+            return min + bin + 1;
+        }
+        double end = bin + 1 < FLOAT_BINS ? floatBinStart(bin + 1) : Double.POSITIVE_INFINITY;
+        return Double.isNaN(end) ? Double.POSITIVE_INFINITY : end;
+    }
+
+    /**
+     * @return true if there is one bin per integer value.
+     */
+    public boolean isExact() {
+        return exact;
+    }
+
+    /**
+     * @return The smallest value in the volume.
+     */
+    public double getMin() {
+        return min;
+    }
+
+    /**
+     * @return The largest value in the volume.
+     */
+    public double getMax() {
+        return max;
+    }
+}
@@ -0,0 +1,526 @@
+package edu.washington.biostr.sig.volume;
+
+import java.awt.image.BufferedImage;
+
+import javax.vecmath.Matrix4d;
+
+import org.eiderman.util.ParallelLoop;
+
+import edu.washington.biostr.sig.volume.colors.ColorLookupTable;
+
+/**
+ * Direct volume rendering by ray casting.  Every pixel casts a ray through
+ * the volume, samples it at a fixed spacing with trilinear interpolation,
+ * colors each sample with a ColorLookupTable and composites the samples
+ * front to back.  A ray stops as soon as it is (almost) opaque, and it jumps
+ * over the blocks of the MinMaxBlockIndex whose whole range of values the
+ * table makes transparent.<br>
+ * The alpha of a color is the opacity of one voxel's worth of the ray, so a
+ * ColorScheme with setAlpha(0.05) gives a translucent cloud while an opaque
+ * scheme above a threshold gives a surface, with no mesh to rebuild when the
+ * threshold changes.  Samples can be shaded by the gradient of the volume
+ * with a light at the eye.<br>
+ * The view follows ProjectionRenderer: it takes (column + 0.5, row + 0.5,
+ * depth) to mm, and ProjectionRenderer.createView() makes one that fits the
+ * volume.  The image is split into tiles that are rendered in parallel
+ * on the ForkJoinPool, which balances the cheap tiles (empty space) against
+ * the expensive ones.  renderProgressive() renders coarse passes first so an
+ * interactive view can show something while the full image is made.
+ * @author Eider Moore
+ * @version 1.0
+ */
+public class VolumeRenderer {
+
+    /**
+     * Told about each pass of renderProgressive().
+     */
+    public interface Listener {
+
+        /**
+         * @param img The image, which now holds the pass.
+         * @param subsample The size of the blocks of pixels that share a ray
+         * in this pass (1 for the full resolution pass).
+         * @return false to stop rendering.
+         */
+        boolean rendered(BufferedImage img, int subsample);
+    }
+    private static final int TILE = 32;
+    /**
+     * The accumulated opacity at which a ray stops.
+     */
+    private static final double OPAQUE = 0.98;
+    private final VolumeArray volume;
+    private final ColorLookupTable table;
+    private double sampleDistance = 0.5;
+    private boolean shading = true;
+    private double ambient = 0.3;
+
+    /**
+     * @param volume The volume to render
+     * @param table Gives the color and opacity of each value.
+     */
+    public VolumeRenderer(VolumeArray volume, ColorLookupTable table) {
+        if (table == null) {
+            throw new IllegalArgumentException("table can not be null");
+        }
+        this.volume = volume;
+        this.table = table;
+    }
+
+    public VolumeArray getVolume() {
+        return volume;
+    }
+
+    public ColorLookupTable getTable() {
+        return table;
+    }
+
+    public double getSampleDistance() {
+        return sampleDistance;
+    }
+
+    /**
+     * Set the distance between samples along a ray in voxels (0.5 by
+     * default).  Opacity is corrected for it, so changing it changes the
+     * quality and speed but not the overall look.
+     * @param sampleDistance
+     */
+    public void setSampleDistance(double sampleDistance) {
+        if (!(sampleDistance > 0)) {
+            throw new IllegalArgumentException("The sample distance must be > 0: " + sampleDistance);
+        }
+        this.sampleDistance = sampleDistance;
+    }
+
+    public boolean isShading() {
+        return shading;
+    }
+
+    /**
+     * Turn gradient shading on or off (on by default).
+     * @param shading
+     */
+    public void setShading(boolean shading) {
+        this.shading = shading;
+    }
+
+    public double getAmbient() {
+        return ambient;
+    }
+
+    /**
+     * Set how bright a surface facing away from the light is, between 0 and
+     * 1 (0.3 by default).
+     * @param ambient
+     */
+    public void setAmbient(double ambient) {
+        if (ambient < 0 || ambient > 1) {
+            throw new IllegalArgumentException("ambient must be between 0 and 1: " + ambient);
+        }
+        this.ambient = ambient;
+    }
+
+    /**
+     * Render a new ARGB image, where the background is transparent.
+     * @see #render(Matrix4d, int, int, BufferedImage)
+     */
+    public BufferedImage render(Matrix4d view, int width, int height, int time, int i5) {
+        return render(view, time, i5, new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB));
+    }
+
+    /**
+     * Render the volume into img at full resolution.  If img has alpha the
+     * background is transparent, otherwise it is black.
+     * @param view Takes (column + 0.5, row + 0.5, depth) to mm.
+     * @param time The time point to render
+     * @param i5 The i5 point to render
+     * @param img The image to fill, which sets the size of the rendering.
+     * @return img
+     */
+    public BufferedImage render(Matrix4d view, int time, int i5, BufferedImage img) {
+        return render(view, time, i5, img, 1);
+    }
+
+    /**
+     * Render the volume into img casting one ray for each subsample x
+     * subsample block of pixels.
+     * @param view Takes (column + 0.5, row + 0.5, depth) to mm.
+     * @param time The time point to render
+     * @param i5 The i5 point to render
+     * @param img The image to fill, which sets the size of the rendering.
+     * @param subsample The size of the blocks, 1 for full resolution.
+     * @return img
+     */
+    public BufferedImage render(Matrix4d view, int time, int i5, BufferedImage img, int subsample) {
+        if (subsample < 1) {
+            throw new IllegalArgumentException("subsample must be >= 1: " + subsample);
+        }
+        Caster caster = new Caster(view, time, i5, img.getColorModel().hasAlpha());
+        int[] pixels = new int[img.getWidth() * img.getHeight()];
+        caster.render(pixels, img.getWidth(), img.getHeight(), subsample);
+        img.setRGB(0, 0, img.getWidth(), img.getHeight(), pixels, 0, img.getWidth());
+        return img;
+    }
+
+    /**
+     * Render the volume into img in passes, starting with one ray for every
+     * 2^(levels - 1) pixels across and halving that each pass down to full
+     * resolution.  The listener is told after each pass.
+     * @param view Takes (column + 0.5, row + 0.5, depth) to mm.
+     * @param time The time point to render
+     * @param i5 The i5 point to render
+     * @param img The image to fill, which sets the size of the rendering.
+     * @param levels The number of passes
+     * @param listener Told about each pass, may be null.
+     * @return img
+     */
+    public BufferedImage renderProgressive(Matrix4d view, int time, int i5, BufferedImage img,
+            int levels, Listener listener) {
+        if (levels < 1) {
+            throw new IllegalArgumentException("levels must be >= 1: " + levels);
+        }
+        Caster caster = new Caster(view, time, i5, img.getColorModel().hasAlpha());
+        int[] pixels = new int[img.getWidth() * img.getHeight()];
+        for (int subsample = 1 << (levels - 1); subsample >= 1; subsample /= 2) {
+            caster.render(pixels, img.getWidth(), img.getHeight(), subsample);
+            img.setRGB(0, 0, img.getWidth(), img.getHeight(), pixels, 0, img.getWidth());
+            if (listener != null && !listener.rendered(img, subsample)) {
+                break;
+            }
+        }
+        return img;
+    }
+
+    /**
+     * Everything about one rendering that is the same for every ray.
+     */
+    private class Caster {
+
+        private final int time;
+        private final int i5;
+        private final boolean alpha;
+        private final int maxX;
+        private final int maxY;
+        private final int maxZ;
+        private final IndexedVolumeArray indexed;
+        private final int base;
+        private final int xStride;
+        private final int yStride;
+        private final int zStride;
+        /**
+         * Pixel to index space.
+         */
+        private final Matrix4d m;
+        /**
+         * The step along the ray in units of the direction.
+         */
+        private final double step;
+        /**
+         * The opacity of a sample for each alpha in the table, corrected for
+         * the sample distance.
+         */
+        private final double[] opacity = new double[256];
+        /**
+         * The direction of the light in index space, for dotting with
+         * gradients in index space.
+         */
+        private final double lx;
+        private final double ly;
+        private final double lz;
+        /**
+         * space2index * space2index', to get the length of a gradient in mm.
+         */
+        private final double[] metric = new double[9];
+        private final MinMaxBlockIndex blocks;
+        /**
+         * The blocks of each level where every value is transparent.
+         */
+        private final boolean[][] transparent;
+
+        Caster(Matrix4d view, int time, int i5, boolean alpha) {
+            if (time < 0 || time >= volume.getMaxTime() || i5 < 0 || i5 >= volume.getMaxI5()) {
+                throw new IllegalArgumentException("(" + time + "," + i5 + ") is not inside of the volume");
+            }
+            this.time = time;
+            this.i5 = i5;
+            this.alpha = alpha;
+            maxX = volume.getMaxX();
+            maxY = volume.getMaxY();
+            maxZ = volume.getMaxZ();
+            if (volume instanceof IndexedVolumeArray) {
+                indexed = (IndexedVolumeArray) volume;
+                base = indexed.getIndex(0, 0, 0, time, i5);
+                xStride = indexed.xStride;
+                yStride = indexed.yStride;
+                zStride = indexed.zStride;
+            } else {
+                indexed = null;
+                base = 0;
+                xStride = 0;
+                yStride = 0;
+                zStride = 0;
+            }
+            blocks = MinMaxBlockIndex.get(volume, time, i5);
+            transparent = blocks.findTransparentBlocks(table);
+            Matrix4d space2index = volume.getSpace2Index();
+            m = new Matrix4d(space2index);
+            m.mul(view);
+            step = sampleDistance / Math.sqrt(m.m02 * m.m02 + m.m12 * m.m12 + m.m22 * m.m22);
+            for (int a = 0; a < 256; a++) {
+                opacity[a] = 1 - Math.pow(1 - a / 255.0, sampleDistance);
+            }
+            // the light is at the eye, so it shines along the view direction (in mm)
+            double vx = view.m02;
+            double vy = view.m12;
+            double vz = view.m22;
+            double length = Math.sqrt(vx * vx + vy * vy + vz * vz);
+            vx /= length;
+            vy /= length;
+            vz /= length;
+            // a gradient g in index space is S' g in mm, so (S' g) . v = g . (S v)
+            lx = space2index.m00 * vx + space2index.m01 * vy + space2index.m02 * vz;
+            ly = space2index.m10 * vx + space2index.m11 * vy + space2index.m12 * vz;
+            lz = space2index.m20 * vx + space2index.m21 * vy + space2index.m22 * vz;
+            for (int i = 0; i < 3; i++) {
+                for (int j = 0; j < 3; j++) {
+                    metric[i * 3 + j] = space2index.getElement(i, 0) * space2index.getElement(j, 0) +
+                            space2index.getElement(i, 1) * space2index.getElement(j, 1) +
+                            space2index.getElement(i, 2) * space2index.getElement(j, 2);
+                }
+            }
+        }
+
+        /**
+         * Fill pixels, casting a ray through the centre of each subsample x
+         * subsample block.
+         */
+        void render(final int[] pixels, final int width, final int height, final int subsample) {
+            final int tile = Math.max(TILE, subsample);
+            final int tilesX = (width + tile - 1) / tile;
+            final int tiles = tilesX * ((height + tile - 1) / tile);
+            ParallelLoop.run(0, tiles, ParallelLoop.grain(tiles, 1), new ParallelLoop.Body() {
+
+                public void run(int start, int end) {
+                    for (int t = start; t < end; t++) {
+                        int x0 = (t % tilesX) * tile;
+                        int y0 = (t / tilesX) * tile;
+                        int xe = Math.min(width, x0 + tile);
+                        int ye = Math.min(height, y0 + tile);
+                        for (int py = y0; py < ye; py += subsample) {
+                            int pye = Math.min(ye, py + subsample);
+                            for (int px = x0; px < xe; px += subsample) {
+                                int pxe = Math.min(xe, px + subsample);
+                                int color = cast((px + pxe) * 0.5, (py + pye) * 0.5);
+                                for (int y = py; y < pye; y++) {
+                                    for (int x = px; x < pxe; x++) {
+                                        pixels[y * width + x] = color;
+                                    }
+                                }
+                            }
+                        }
+                    }
+                }
+            });
+        }
+
+        /**
+         * Cast the ray through the pixel coordinate (u, v).
+         * @return The composited color.
+         */
+        private int cast(double u, double v) {
+            double ox = m.m00 * u + m.m01 * v + m.m03;
+            double oy = m.m10 * u + m.m11 * v + m.m13;
+            double oz = m.m20 * u + m.m21 * v + m.m23;
+            double dx = m.m02;
+            double dy = m.m12;
+            double dz = m.m22;
+            // clip to the centres of the outside voxels with the slab test
+            double[] range = {Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY};
+            if (!clip(ox, dx, maxX, range) || !clip(oy, dy, maxY, range) || !clip(oz, dz, maxZ, range)) {
+                return 0;
+            }
+            double enter = range[0];
+            double exit = range[1];
+            double r = 0;
+            double g = 0;
+            double b = 0;
+            double a = 0;
+            for (double t = enter; t <= exit; t += step) {
+                double x = ox + t * dx;
+                double y = oy + t * dy;
+                double z = oz + t * dz;
+                int level = transparentLevel(x, y, z);
+                if (level >= 0) {
+                    int size = blocks.getBlockSize(level);
+                    double skip = Math.min(exit(ox, dx, blocks.getLeafX((int) x) >> level, size),
+                            Math.min(exit(oy, dy, blocks.getLeafY((int) y) >> level, size),
+                            exit(oz, dz, blocks.getLeafZ((int) z) >> level, size)));
+                    // the last sample in the block, so the next one is past it
+                    t = Math.max(t, enter + Math.floor((skip - enter) / step) * step);
+                    continue;
+                }
+                double value = sample(x, y, z);
+                if (value != value) {
+                    continue;
+                }
+                int argb = table.getColor(value);
+                double sampleAlpha = opacity[argb >>> 24];
+                if (sampleAlpha == 0) {
+                    continue;
+                }
+                double weight = (1 - a) * sampleAlpha;
+                if (shading) {
+                    weight *= shade(x, y, z);
+                }
+                r += weight * ((argb >> 16) & 255);
+                g += weight * ((argb >> 8) & 255);
+                b += weight * (argb & 255);
+                a += (1 - a) * sampleAlpha;
+                if (a >= OPAQUE) {
+                    break;
+                }
+            }
+            if (alpha) {
+                if (a == 0) {
+                    return 0;
+                }
+                // the color is premultiplied by a
+                return ((int) (a * 255 + 0.5) << 24) | (clamp(r / a) << 16) | (clamp(g / a) << 8) | clamp(b / a);
+            }
+            return 0xff000000 | (clamp(r) << 16) | (clamp(g) << 8) | clamp(b);
+        }
+
+        /**
+         * @return The highest level of the transparent block around (x, y, z),
+         * or -1 if its leaf isn't transparent.
+         */
+        private int transparentLevel(double x, double y, double z) {
+            int bx = blocks.getLeafX((int) x);
+            int by = blocks.getLeafY((int) y);
+            int bz = blocks.getLeafZ((int) z);
+            int level = -1;
+            while (level + 1 < transparent.length) {
+                int next = level + 1;
+                int block = ((bz >> next) * blocks.getCountY(next) + (by >> next)) * blocks.getCountX(next) +
+                        (bx >> next);
+                if (!transparent[next][block]) {
+                    break;
+                }
+                level = next;
+            }
+            return level;
+        }
+
+        /**
+         * @return The ray parameter where origin + t * direction leaves the
+         * cells of block along an axis, which start at block * size.
+         */
+        private double exit(double origin, double direction, int block, int size) {
+            if (direction > 0) {
+                return ((block + 1) * size - origin) / direction;
+            } else if (direction < 0) {
+                return (block * size - origin) / direction;
+            }
+            return Double.POSITIVE_INFINITY;
+        }
+
+        private int clamp(double c) {
+            return Math.min(255, (int) (c + 0.5));
+        }
+
+        /**
+         * Clip range to where origin + t * direction is in [0, max - 1].
+         * @return false if nothing is left.
+         */
+        private boolean clip(double origin, double direction, int max, double[] range) {
+            if (direction == 0) {
+                return origin >= 0 && origin <= max - 1;
+            }
+            double t0 = -origin / direction;
+            double t1 = (max - 1 - origin) / direction;
+            if (t0 > t1) {
+                double swap = t0;
+                t0 = t1;
+                t1 = swap;
+            }
+            range[0] = Math.max(range[0], t0);
+            range[1] = Math.min(range[1], t1);
+            return range[0] <= range[1];
+        }
+
+        /**
+         * The brightness at (x, y, z) from the angle between the gradient
+         * and the light, lighting both sides of a surface.
+         */
+        private double shade(double x, double y, double z) {
+            double gx = sample(x + 1, y, z) - sample(x - 1, y, z);
+            double gy = sample(x, y + 1, z) - sample(x, y - 1, z);
+            double gz = sample(x, y, z + 1) - sample(x, y, z - 1);
+            double length = gx * (metric[0] * gx + metric[1] * gy + metric[2] * gz) +
+                    gy * (metric[3] * gx + metric[4] * gy + metric[5] * gz) +
+                    gz * (metric[6] * gx + metric[7] * gy + metric[8] * gz);
+            if (!(length > 1e-12)) {
+                // flat (or NaN), so there is no surface to shade
+                return 1;
+            }
+            double diffuse = Math.abs(gx * lx + gy * ly + gz * lz) / Math.sqrt(length);
+            return ambient + (1 - ambient) * Math.min(1, diffuse);
+        }
+
+        /**
+         * Trilinear interpolation with the edges of the volume repeated
+         * outwards.
+         */
+        private double sample(double x, double y, double z) {
+            x = Math.min(maxX - 1, Math.max(0, x));
+            y = Math.min(maxY - 1, Math.max(0, y));
+            z = Math.min(maxZ - 1, Math.max(0, z));
+            int i = Math.min(maxX - 2, (int) x);
+            int j = Math.min(maxY - 2, (int) y);
+            int k = Math.min(maxZ - 2, (int) z);
+            // a dimension of 1 voxel
+            i = Math.max(0, i);
+            j = Math.max(0, j);
+            k = Math.max(0, k);
+            double fx = x - i;
+            double fy = y - j;
+            double fz = z - k;
+            int i1 = Math.min(maxX - 1, i + 1);
+            int j1 = Math.min(maxY - 1, j + 1);
+            int k1 = Math.min(maxZ - 1, k + 1);
+            double c000, c100, c010, c110, c001, c101, c011, c111;
+            if (indexed != null) {
+                int x0 = i * xStride;
+                int x1 = i1 * xStride;
+                int y0 = base + j * yStride;
+                int y1 = base + j1 * yStride;
+                int z0 = k * zStride;
+                int z1 = k1 * zStride;
+                c000 = indexed.getDouble(x0 + y0 + z0);
+                c100 = indexed.getDouble(x1 + y0 + z0);
+                c010 = indexed.getDouble(x0 + y1 + z0);
+                c110 = indexed.getDouble(x1 + y1 + z0);
+                c001 = indexed.getDouble(x0 + y0 + z1);
+                c101 = indexed.getDouble(x1 + y0 + z1);
+                c011 = indexed.getDouble(x0 + y1 + z1);
+                c111 = indexed.getDouble(x1 + y1 + z1);
+            } else {
+                c000 = volume.getDouble(i, j, k, time, i5);
+                c100 = volume.getDouble(i1, j, k, time, i5);
+                c010 = volume.getDouble(i, j1, k, time, i5);
+                c110 = volume.getDouble(i1, j1, k, time, i5);
+                c001 = volume.getDouble(i, j, k1, time, i5);
+                c101 = volume.getDouble(i1, j, k1, time, i5);
+                c011 = volume.getDouble(i, j1, k1, time, i5);
+                c111 = volume.getDouble(i1, j1, k1, time, i5);
+            }
+            double c00 = c000 + fx * (c100 - c000);
+            double c10 = c010 + fx * (c110 - c010);
+            double c01 = c001 + fx * (c101 - c001);
+            double c11 = c011 + fx * (c111 - c011);
+            double c0 = c00 + fy * (c10 - c00);
+            double c1 = c01 + fy * (c11 - c01);
+            return c0 + fz * (c1 - c0);
+        }
+    }
+}
@@ -0,0 +1,297 @@
+package edu.washington.biostr.sig.volume;
+
+import org.eiderman.util.ParallelLoop;
+
+/**
+ * Summary statistics of a volume: the minimum, maximum, mean, variance,
+ * number of non zero voxels and number of NaN voxels, both for each time
+ * point and for the whole volume.  NaN voxels are counted but otherwise
+ * ignored.<br>
+ * Everything is found in a single pass that reads one z plane at a time and
+ * runs the planes in parallel.  The partial results are merged in plane order
+ * so the answer does not depend on how the work was split.  get() caches the
+ * result on the volume until its data changes.
+ * @author Eider Moore
+ * @version 1.0
+ */
+public class VolumeStatistics {
+
+    /**
+     * The key used to cache the statistics with VolumeArray.putDerived().
+     */
+    private static final Object KEY = VolumeStatistics.class;
+    private final Accumulator total;
+    private final Accumulator[] times;
+
+    private VolumeStatistics(Accumulator total, Accumulator[] times) {
+        this.total = total;
+        this.times = times;
+    }
+
+    /**
+     * Get the statistics for volume, computing them only if the data has
+     * changed since they were last computed.
+     * @param volume
+     * @return The statistics
+     */
+    public static VolumeStatistics get(VolumeArray volume) {
+        VolumeStatistics stats = getCached(volume);
+        if (stats == null) {
+            stats = refresh(volume);
+        }
+        return stats;
+    }
+
+    /**
+     * @param volume
+     * @return The cached statistics for volume or null if there aren't any
+     * that match the current data.
+     */
+    public static VolumeStatistics getCached(VolumeArray volume) {
+        return (VolumeStatistics) volume.getDerived(KEY);
+    }
+
+    /**
+     * Compute the statistics for volume and cache them, even if there are
+     * cached statistics already.
+     * @param volume
+     * @return The statistics
+     */
+    public static VolumeStatistics refresh(VolumeArray volume) {
+        int modCount = volume.getModCount();
+        VolumeStatistics stats = compute(volume);
+        volume.putDerived(KEY, stats, modCount);
+        return stats;
+    }
+
+    /**
+     * Compute the statistics for volume without looking at or changing the
+     * cache.
+     * @param volume
+     * @return The statistics
+     */
+    public static VolumeStatistics compute(final VolumeArray volume) {
+        final int maxX = volume.getMaxX();
+        final int maxY = volume.getMaxY();
+        final int maxZ = volume.getMaxZ();
+        final int maxTime = volume.getMaxTime();
+        int planes = maxZ * maxTime * volume.getMaxI5();
+        final Accumulator[] partial = new Accumulator[planes];
+        ParallelLoop.run(0, planes, ParallelLoop.grain(planes, 1), new ParallelLoop.Body() {
+
+            public void run(int start, int end) {
+                double[] plane = new double[maxX * maxY];
+                for (int p = start; p < end; p++) {
+                    int z = p % maxZ;
+                    int t = (p / maxZ) % maxTime;
+                    int i5 = p / (maxZ * maxTime);
+                    volume.getSeries(plane, 0, 0, z, t, i5, maxX, maxY, 1, 1, 1);
+                    Accumulator acc = new Accumulator();
+                    for (double value : plane) {
+                        acc.add(value);
+                    }
+                    partial[p] = acc;
+                }
+            }
+        });
+        Accumulator[] times = new Accumulator[maxTime];
+        for (int t = 0; t < maxTime; t++) {
+            times[t] = new Accumulator();
+        }
+        for (int p = 0; p < planes; p++) {
+            times[(p / maxZ) % maxTime].add(partial[p]);
+        }
+        Accumulator total = new Accumulator();
+        for (Accumulator time : times) {
+            total.add(time);
+        }
+        return new VolumeStatistics(total, times);
+    }
+
+    /**
+     * @return The smallest value, or NaN if every voxel is NaN.
+     */
+    public double getMin() {
+        return total.getMin();
+    }
+
+    /**
+     * @return The largest value, or NaN if every voxel is NaN.
+     */
+    public double getMax() {
+        return total.getMax();
+    }
+
+    /**
+     * @return The mean value.
+     */
+    public double getMean() {
+        return total.mean;
+    }
+
+    /**
+     * @return The population variance.
+     */
+    public double getVariance() {
+        return total.getVariance();
+    }
+
+    /**
+     * @return The population standard deviation.
+     */
+    public double getStandardDeviation() {
+        return Math.sqrt(getVariance());
+    }
+
+    /**
+     * @return The number of voxels that are not NaN.
+     */
+    public long getCount() {
+        return total.count;
+    }
+
+    /**
+     * @return The number of voxels that are neither 0 nor NaN.
+     */
+    public long getNonZeroCount() {
+        return total.nonZero;
+    }
+
+    /**
+     * @return The number of NaN voxels.
+     */
+    public long getNaNCount() {
+        return total.nan;
+    }
+
+    /**
+     * @return The number of time points.
+     */
+    public int getTimeCount() {
+        return times.length;
+    }
+
+    /**
+     * @param t The time point
+     * @return The smallest value at time t.
+     */
+    public double getMin(int t) {
+        return times[t].getMin();
+    }
+
+    /**
+     * @param t The time point
+     * @return The largest value at time t.
+     */
+    public double getMax(int t) {
+        return times[t].getMax();
+    }
+
+    /**
+     * @param t The time point
+     * @return The mean value at time t.
+     */
+    public double getMean(int t) {
+        return times[t].mean;
+    }
+
+    /**
+     * @param t The time point
+     * @return The population variance at time t.
+     */
+    public double getVariance(int t) {
+        return times[t].getVariance();
+    }
+
+    /**
+     * @param t The time point
+     * @return The number of voxels at time t that are not NaN.
+     */
+    public long getCount(int t) {
+        return times[t].count;
+    }
+
+    /**
+     * @param t The time point
+     * @return The number of voxels at time t that are neither 0 nor NaN.
+     */
+    public long getNonZeroCount(int t) {
+        return times[t].nonZero;
+    }
+
+    /**
+     * @param t The time point
+     * @return The number of NaN voxels at time t.
+     */
+    public long getNaNCount(int t) {
+        return times[t].nan;
+    }
+
+    @Override
+    public String toString() {
+        return "VolumeStatistics: min=" + getMin() + " max=" + getMax() + " mean=" + getMean() +
+                " sd=" + getStandardDeviation() + " nonzero=" + getNonZeroCount() + " nan=" + getNaNCount();
+    }
+
+    /**
+     * Running statistics using Welford's update for single values and Chan et
+     * al.'s formula to merge two sets, which keeps the variance accurate.
+     */
+    private static class Accumulator {
+
+        long count;
+        long nonZero;
+        long nan;
+        double mean;
+        double m2;
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+
+        void add(double value) {
+            if (Double.isNaN(value)) {
+                nan++;
+                return;
+            }
+            if (value != 0) {
+                nonZero++;
+            }
+            if (value < min) {
+                min = value;
+            }
+            if (value > max) {
+                max = value;
+            }
+            count++;
+            double delta = value - mean;
+            mean += delta / count;
+            m2 += delta * (value - mean);
+        }
+
+        void add(Accumulator other) {
+            nan += other.nan;
+            if (other.count == 0) {
+                return;
+            }
+            nonZero += other.nonZero;
+            min = Math.min(min, other.min);
+            max = Math.max(max, other.max);
+            long n = count + other.count;
+            double delta = other.mean - mean;
+            mean += delta * other.count / n;
+            m2 += other.m2 + delta * delta * ((double) count * other.count / n);
+            count = n;
+        }
+
+        double getMin() {
+            return count == 0 ? Double.NaN : min;
+        }
+
+        double getMax() {
+            return count == 0 ? Double.NaN : max;
+        }
+
+        double getVariance() {
+            return count == 0 ? Double.NaN : m2 / count;
+        }
+    }
+}
@@ -46,12 +46,14 @@ public class VolumeUtil {
     }
 
     /**
-     * Resample an image.
+     * Resample an image.  Voxel (0, 0, 0) of the result is centered on the
+     * lowest corner.  See Resampler for the details.
      * @param array The volume to resample
      * @param datatype one of VolumeArray's datatypes
      * @param corner1 one corner of a hexahedron (like a cube)
      * @param corner2 corner opposite corner1 of a hexahedron (like a cube)
      * @param voxelDim the dimension of one voxel in mm
+     * @param interpolation How to find values between voxels of array
      * @return a new VolumeArray as above
      */
     public static VolumeArray resample(VolumeArray array, DataType datatype,
@@ -77,29 +79,7 @@ public class VolumeUtil {
         Matrix4d mat = new Matrix4d(transform);
         VolumeArray result = VolumeArrayFactory.createVolumeDataBuffer(
                 mat, vWidth, vHeight, vDepth, vDuration, vi5, datatype);
-        float x = xMin;
-        float y = yMin;
-        float z = zMin;
-        Point3f p = new Point3f();
-        for (int m = 0; m < vi5; m++) {
-            for (int l = 0; l < vDuration; l++) {
-                for (int k = 1; k <= vDepth; k++) {
-                    for (int j = 1; j <= vHeight; j++) {
-                        for (int i = 1; i <= vWidth; i++) {
-                            p.set(x, y, z);
-                            result.setData(i, j, k, l, m,
-                                    array.getValueMM(p, l, m, interpolation));
-                            x += voxelDim.x;
-                        }
-                        x = xMin;
-                        y += voxelDim.y;
-                    }
-                    y = yMin;
-                    z += voxelDim.z;
-                }
-                z = zMin;
-            }
-        }
+        Resampler.resampleInto(array, result, interpolation);
 
         return result;
     }
@@ -0,0 +1,25 @@
+package edu.washington.biostr.sig.volume;
+
+/**
+ * A VoxelSampler reads a volume between its voxels with one kind of
+ * interpolation.  Get one with VolumeArray.getSampler() before a loop over
+ * many points, so whatever the interpolation needs is looked up once rather
+ * than for every point.  Unless an implementation says otherwise, a sampler
+ * may keep scratch state between calls and should only be used by one
+ * thread.
+ * @author Eider Moore
+ * @version 1
+ */
+public interface VoxelSampler {
+
+    /**
+     * Interpolate at (x,y,z) in voxel coordinates.
+     * @param x
+     * @param y
+     * @param z
+     * @param time
+     * @param i5
+     * @return The value, or 0 if (x,y,z,time,i5) is outside of the volume.
+     */
+    public double sample(float x, float y, float z, int time, int i5);
+}
@@ -0,0 +1,279 @@
+package edu.washington.biostr.sig.volume;
+
+import java.util.Spliterator;
+import java.util.function.DoubleConsumer;
+import java.util.function.IntConsumer;
+
+/**
+ * Split an IndexedVolumeArray into pieces for parallel streams.  The volume
+ * is treated as a sequence of rows (one row is every x for a given y, z, t,
+ * i5) and splits always fall on a row.  When more than one plane (every x
+ * and y for a z, t, i5) remains the split falls on a plane instead, so each
+ * piece is a run of z slabs and time points.<br>
+ * While a value is being handed to the consumer, getX(), getY(), getZ(),
+ * getTime(), getI5() and getIndex() describe the voxel it came from, so
+ * code that holds on to the spliterator can find where it is without
+ * allocating anything.
+ * @author Eider Moore
+ * @version 1.0
+ */
+public abstract class VoxelSpliterator {
+
+    protected final IndexedVolumeArray data;
+    private final int maxX;
+    private final int maxY;
+    private final int maxZ;
+    private final int maxTime;
+    /** The row of the next voxel. */
+    protected int row;
+    /** The row after the last one this covers. */
+    protected int rowEnd;
+    /** The x of the next voxel. */
+    protected int nextX;
+    protected int rowIndex;
+    protected int x;
+    protected int y;
+    protected int z;
+    protected int t;
+    protected int i5;
+    protected int index;
+
+    /**
+     * Cover rows start &lt;= row &lt; end of data.
+     * @param data The source
+     * @param start The first row
+     * @param end The row after the last.
+     */
+    protected VoxelSpliterator(IndexedVolumeArray data, int start, int end) {
+        this.data = data;
+        this.maxX = data.getMaxX();
+        this.maxY = data.getMaxY();
+        this.maxZ = data.getMaxZ();
+        this.maxTime = data.getMaxTime();
+        this.row = start;
+        this.rowEnd = end;
+        this.x = -1;
+    }
+
+    /**
+     * @return The number of rows in data.
+     */
+    protected static int rowCount(IndexedVolumeArray data) {
+        return data.getMaxY() * data.getMaxZ() * data.getMaxTime() * data.getMaxI5();
+    }
+
+    /**
+     * Move y, z, t, i5 and rowIndex to the given row.
+     */
+    protected final void setRow(int r) {
+        y = r % maxY;
+        int plane = r / maxY;
+        z = plane % maxZ;
+        t = (plane / maxZ) % maxTime;
+        i5 = plane / (maxZ * maxTime);
+        rowIndex = data.getIndex(0, y, z, t, i5);
+    }
+
+    /**
+     * Step to the next voxel, which must exist.
+     */
+    protected final void advance() {
+        if (nextX == 0) {
+            setRow(row);
+        }
+        x = nextX;
+        index = rowIndex + x * data.xStride;
+        nextX++;
+        if (nextX == maxX) {
+            nextX = 0;
+            row++;
+        }
+    }
+
+    /**
+     * Pick the row to split at, or -1 if this is too small to split.
+     */
+    protected final int splitRow() {
+        int lo = nextX == 0 ? row : row + 1;
+        if (rowEnd - lo < 2) {
+            return -1;
+        }
+        int firstPlane = lo / maxY;
+        int lastPlane = (rowEnd - 1) / maxY;
+        if (lastPlane > firstPlane) {
+            return (firstPlane + lastPlane + 1) / 2 * maxY;
+        }
+        return (lo + rowEnd) >>> 1;
+    }
+
+    public long estimateSize() {
+        return (long) (rowEnd - row) * maxX - nextX;
+    }
+
+    public int characteristics() {
+        return Spliterator.ORDERED | Spliterator.SIZED | Spliterator.SUBSIZED |
+                Spliterator.NONNULL;
+    }
+
+    /**
+     * @return x of the current voxel.
+     */
+    public int getX() {
+        return x;
+    }
+
+    /**
+     * @return y of the current voxel.
+     */
+    public int getY() {
+        return y;
+    }
+
+    /**
+     * @return z of the current voxel.
+     */
+    public int getZ() {
+        return z;
+    }
+
+    /**
+     * @return time of the current voxel.
+     */
+    public int getTime() {
+        return t;
+    }
+
+    /**
+     * @return i5 of the current voxel.
+     */
+    public int getI5() {
+        return i5;
+    }
+
+    /**
+     * @return The index in data of the current voxel.
+     */
+    public int getIndex() {
+        return index;
+    }
+
+    /**
+     * Hand out the voxels as doubles.
+     */
+    public static class OfDouble extends VoxelSpliterator implements Spliterator.OfDouble {
+
+        private double[] buffer;
+
+        /**
+         * Cover the whole volume.
+         * @param data The source
+         */
+        public OfDouble(IndexedVolumeArray data) {
+            this(data, 0, rowCount(data));
+        }
+
+        protected OfDouble(IndexedVolumeArray data, int start, int end) {
+            super(data, start, end);
+        }
+
+        public boolean tryAdvance(DoubleConsumer action) {
+            if (row >= rowEnd) {
+                return false;
+            }
+            advance();
+            action.accept(data.getDouble(index));
+            return true;
+        }
+
+        @Override
+        public void forEachRemaining(DoubleConsumer action) {
+            if (buffer == null) {
+                buffer = new double[data.getMaxX()];
+            }
+            int stride = data.xStride;
+            while (row < rowEnd) {
+                setRow(row);
+                data.getRun(rowIndex, stride, buffer, 0, buffer.length);
+                for (x = nextX; x < buffer.length; x++) {
+                    index = rowIndex + x * stride;
+                    action.accept(buffer[x]);
+                }
+                x--;
+                nextX = 0;
+                row++;
+            }
+        }
+
+        public VoxelSpliterator.OfDouble trySplit() {
+            int mid = splitRow();
+            if (mid < 0) {
+                return null;
+            }
+            VoxelSpliterator.OfDouble prefix = new VoxelSpliterator.OfDouble(data, row, mid);
+            prefix.nextX = nextX;
+            row = mid;
+            nextX = 0;
+            return prefix;
+        }
+    }
+
+    /**
+     * Hand out the voxels as ints.
+     */
+    public static class OfInt extends VoxelSpliterator implements Spliterator.OfInt {
+
+        private int[] buffer;
+
+        /**
+         * Cover the whole volume.
+         * @param data The source
+         */
+        public OfInt(IndexedVolumeArray data) {
+            this(data, 0, rowCount(data));
+        }
+
+        protected OfInt(IndexedVolumeArray data, int start, int end) {
+            super(data, start, end);
+        }
+
+        public boolean tryAdvance(IntConsumer action) {
+            if (row >= rowEnd) {
+                return false;
+            }
+            advance();
+            action.accept(data.getInt(index));
+            return true;
+        }
+
+        @Override
+        public void forEachRemaining(IntConsumer action) {
+            if (buffer == null) {
+                buffer = new int[data.getMaxX()];
+            }
+            int stride = data.xStride;
+            while (row < rowEnd) {
+                setRow(row);
+                data.getRun(rowIndex, stride, buffer, 0, buffer.length);
+                for (x = nextX; x < buffer.length; x++) {
+                    index = rowIndex + x * stride;
+                    action.accept(buffer[x]);
+                }
+                x--;
+                nextX = 0;
+                row++;
+            }
+        }
+
+        public VoxelSpliterator.OfInt trySplit() {
+            int mid = splitRow();
+            if (mid < 0) {
+                return null;
+            }
+            VoxelSpliterator.OfInt prefix = new VoxelSpliterator.OfInt(data, row, mid);
+            prefix.nextX = nextX;
+            row = mid;
+            nextX = 0;
+            return prefix;
+        }
+    }
+}
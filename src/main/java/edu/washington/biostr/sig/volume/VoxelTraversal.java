@@ -0,0 +1,219 @@
+package edu.washington.biostr.sig.volume;
+
+/**
+ * Walk the voxels that a ray passes through, in order, with the 3D DDA of
+ * Amanatides and Woo.  Each step crosses one voxel boundary, so finding the
+ * next voxel takes a comparison and an addition instead of an intersection
+ * or an interpolation.<br>
+ * Everything is in index coordinates, where voxel (x, y, z) is the cube of
+ * side 1 centred on (x, y, z).  A traversal is reused for every ray (one per
+ * thread), so walking a ray allocates nothing:
+ * <pre>
+ * if (traversal.start(ox, oy, oz, dx, dy, dz, 0, Float.POSITIVE_INFINITY)) {
+ *     while (traversal.next()) {
+ *         value = volume.getDouble(base + traversal.getOffset());
+ *     }
+ * }
+ * </pre>
+ * The offset is the change in index from voxel (0, 0, 0), so for an
+ * IndexedVolumeArray adding it to getIndex(0, 0, 0, time, i5) gives the
+ * voxel's index.  For other volumes use getX(), getY() and getZ().
+ * @author Eider Moore
+ * @version 1.0
+ */
+public class VoxelTraversal {
+
+    private final int maxX;
+    private final int maxY;
+    private final int maxZ;
+    private final int xStride;
+    private final int yStride;
+    private final int zStride;
+    private int x;
+    private int y;
+    private int z;
+    private int offset;
+    private int stepX;
+    private int stepY;
+    private int stepZ;
+    /**
+     * The ray parameter where the ray next crosses a boundary along each axis.
+     */
+    private double nextX;
+    private double nextY;
+    private double nextZ;
+    /**
+     * The change in the ray parameter between boundaries along each axis.
+     */
+    private double deltaX;
+    private double deltaY;
+    private double deltaZ;
+    private double enter;
+    private double exit;
+    private double end;
+    private boolean first;
+    private boolean done = true;
+
+    /**
+     * @param volume The volume whose grid to walk.  If it is an
+     * IndexedVolumeArray getOffset() follows its index, otherwise it is 0.
+     */
+    public VoxelTraversal(VolumeArray volume) {
+        maxX = volume.getMaxX();
+        maxY = volume.getMaxY();
+        maxZ = volume.getMaxZ();
+        if (volume instanceof IndexedVolumeArray) {
+            IndexedVolumeArray indexed = (IndexedVolumeArray) volume;
+            xStride = indexed.xStride;
+            yStride = indexed.yStride;
+            zStride = indexed.zStride;
+        } else {
+            xStride = 0;
+            yStride = 0;
+            zStride = 0;
+        }
+    }
+
+    /**
+     * Start walking the ray origin + t * direction for t between tMin and
+     * tMax.
+     * @return false if that part of the ray misses the volume, in which case
+     * next() returns false.
+     */
+    public boolean start(double ox, double oy, double oz, double dx, double dy, double dz,
+            double tMin, double tMax) {
+        done = true;
+        // clip to the box with the slab test
+        enter = tMin;
+        end = tMax;
+        if (!clip(ox, dx, maxX) || !clip(oy, dy, maxY) || !clip(oz, dz, maxZ)) {
+            return false;
+        }
+        if (Double.isInfinite(enter) || Double.isInfinite(end)) {
+            // a direction of 0 with no limits on t
+            return false;
+        }
+        // find the voxel half way through the first step so rounding at the boundary can't pick a neighbour
+        double t = enter + Math.min(1e-4, (end - enter) / 2);
+        x = Math.min(maxX - 1, Math.max(0, (int) Math.floor(ox + t * dx + 0.5)));
+        y = Math.min(maxY - 1, Math.max(0, (int) Math.floor(oy + t * dy + 0.5)));
+        z = Math.min(maxZ - 1, Math.max(0, (int) Math.floor(oz + t * dz + 0.5)));
+        offset = x * xStride + y * yStride + z * zStride;
+        stepX = dx > 0 ? 1 : (dx < 0 ? -1 : 0);
+        stepY = dy > 0 ? 1 : (dy < 0 ? -1 : 0);
+        stepZ = dz > 0 ? 1 : (dz < 0 ? -1 : 0);
+        deltaX = stepX == 0 ? Double.POSITIVE_INFINITY : 1 / Math.abs(dx);
+        deltaY = stepY == 0 ? Double.POSITIVE_INFINITY : 1 / Math.abs(dy);
+        deltaZ = stepZ == 0 ? Double.POSITIVE_INFINITY : 1 / Math.abs(dz);
+        nextX = stepX == 0 ? Double.POSITIVE_INFINITY : (x + 0.5 * stepX - ox) / dx;
+        nextY = stepY == 0 ? Double.POSITIVE_INFINITY : (y + 0.5 * stepY - oy) / dy;
+        nextZ = stepZ == 0 ? Double.POSITIVE_INFINITY : (z + 0.5 * stepZ - oz) / dz;
+        exit = enter;
+        first = true;
+        done = false;
+        return true;
+    }
+
+    /**
+     * Clip enter and end to where origin + t * direction is in
+     * [-0.5, max - 0.5].
+     * @return false if nothing is left.
+     */
+    private boolean clip(double origin, double direction, int max) {
+        double low = -0.5;
+        double high = max - 0.5;
+        if (direction == 0) {
+            return origin >= low && origin < high && enter < end;
+        }
+        double t0 = (low - origin) / direction;
+        double t1 = (high - origin) / direction;
+        if (t0 > t1) {
+            double swap = t0;
+            t0 = t1;
+            t1 = swap;
+        }
+        enter = Math.max(enter, t0);
+        end = Math.min(end, t1);
+        return enter < end;
+    }
+
+    /**
+     * Move to the next voxel along the ray.
+     * @return false once the ray has left the volume (or the range given to
+     * start()).
+     */
+    public boolean next() {
+        if (done) {
+            return false;
+        }
+        if (first) {
+            first = false;
+        } else {
+            if (exit >= end) {
+                done = true;
+                return false;
+            }
+            enter = exit;
+            if (nextX <= nextY && nextX <= nextZ) {
+                x += stepX;
+                offset += stepX * xStride;
+                nextX += deltaX;
+            } else if (nextY <= nextZ) {
+                y += stepY;
+                offset += stepY * yStride;
+                nextY += deltaY;
+            } else {
+                z += stepZ;
+                offset += stepZ * zStride;
+                nextZ += deltaZ;
+            }
+            if (x < 0 || y < 0 || z < 0 || x >= maxX || y >= maxY || z >= maxZ) {
+                done = true;
+                return false;
+            }
+        }
+        exit = Math.max(enter, Math.min(end, Math.min(nextX, Math.min(nextY, nextZ))));
+        return true;
+    }
+
+    public int getX() {
+        return x;
+    }
+
+    public int getY() {
+        return y;
+    }
+
+    public int getZ() {
+        return z;
+    }
+
+    /**
+     * @return The change in index from voxel (0, 0, 0) to the current voxel.
+     */
+    public int getOffset() {
+        return offset;
+    }
+
+    /**
+     * @return The ray parameter where the ray enters the current voxel.
+     */
+    public double getEnter() {
+        return enter;
+    }
+
+    /**
+     * @return The ray parameter where the ray leaves the current voxel.
+     */
+    public double getExit() {
+        return exit;
+    }
+
+    /**
+     * @return How much of the ray, in units of the direction, is in the
+     * current voxel.
+     */
+    public double getLength() {
+        return exit - enter;
+    }
+}
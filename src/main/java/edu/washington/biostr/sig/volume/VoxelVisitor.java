@@ -0,0 +1,23 @@
+package edu.washington.biostr.sig.volume;
+
+/**
+ * A VoxelVisitor is handed every voxel of a volume by
+ * IndexedVolumeArray.forEachVoxel() along with where it is.  Nothing is
+ * allocated per voxel, so this is the cheapest way to walk a whole volume.
+ * @author Eider Moore
+ * @version 1
+ */
+public interface VoxelVisitor {
+
+    /**
+     * Called once for each voxel.
+     * @param x
+     * @param y
+     * @param z
+     * @param t
+     * @param i5
+     * @param index The index of the voxel in the volume.
+     * @param value The value at the voxel.
+     */
+    public void visit(int x, int y, int z, int t, int i5, int index, double value);
+}
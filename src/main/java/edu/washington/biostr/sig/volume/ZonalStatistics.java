@@ -0,0 +1,339 @@
+package edu.washington.biostr.sig.volume;
+
+import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import javax.vecmath.Point3d;
+
+import org.eiderman.util.ParallelLoop;
+
+/**
+ * Statistics of a data volume within every region of one or more atlases,
+ * found in a single pass over the data.<br>
+ * Each z plane of every atlas is read once and then every time point of the
+ * data at that plane, so all the regions of all the atlases cost one read of
+ * the data.  For 4D data this gives the mean time course of every region.
+ * The planes are run in parallel, each piece keeps its own accumulators
+ * keyed by label, and the pieces are merged in plane order so the answer
+ * doesn't depend on how the work was split.<br>
+ * The atlases must have the same x, y and z dimensions as the data.  Their
+ * first time point is used for every time point of the data, and only the
+ * first 5th dimension of the data is read.  NaN voxels are left out.
+ * @author Eider Moore
+ * @version 1.0
+ */
+public class ZonalStatistics {
+
+    private final IndexedAtlasVolumeArray[] atlases;
+    private final List<Int2ObjectMap<Zone>> zones;
+    private final int times;
+
+    private ZonalStatistics(IndexedAtlasVolumeArray[] atlases, List<Int2ObjectMap<Zone>> zones, int times) {
+        this.atlases = atlases;
+        this.zones = zones;
+        this.times = times;
+    }
+
+    /**
+     * Find the statistics of data within every labelled region of atlases.
+     * @param data
+     * @param atlases
+     * @return The statistics
+     */
+    public static ZonalStatistics compute(final VolumeArray data, final IndexedAtlasVolumeArray... atlases) {
+        final int maxX = data.getMaxX();
+        final int maxY = data.getMaxY();
+        final int maxZ = data.getMaxZ();
+        final int maxT = data.getMaxTime();
+        final int planeSize = maxX * maxY;
+        for (IndexedAtlasVolumeArray atlas : atlases) {
+            if (atlas.getMaxX() != maxX || atlas.getMaxY() != maxY || atlas.getMaxZ() != maxZ) {
+                throw new IllegalArgumentException("The atlas does not line up with the data");
+            }
+        }
+        // each task fills in the slot of its first plane
+        final List<List<Int2ObjectMap<Zone>>> partial =
+                new ArrayList<List<Int2ObjectMap<Zone>>>(Collections.<List<Int2ObjectMap<Zone>>>nCopies(maxZ, null));
+        ParallelLoop.run(0, maxZ, ParallelLoop.grain(maxZ, 1), new ParallelLoop.Body() {
+
+            public void run(int start, int end) {
+                List<Int2ObjectMap<Zone>> local = newZoneMaps(atlases.length);
+                int[][] labels = new int[atlases.length][planeSize];
+                double[] plane = new double[planeSize];
+                for (int z = start; z < end; z++) {
+                    for (int a = 0; a < atlases.length; a++) {
+                        atlases[a].getBacking().getSeries(labels[a], 0, 0, z, 0, 0, maxX, maxY, 1, 1, 1);
+                    }
+                    for (int t = 0; t < maxT; t++) {
+                        data.getSeries(plane, 0, 0, z, t, 0, maxX, maxY, 1, 1, 1);
+                        for (int a = 0; a < atlases.length; a++) {
+                            int[] label = labels[a];
+                            Zone zone = null;
+                            for (int i = 0; i < planeSize; i++) {
+                                double value = plane[i];
+                                if (label[i] == 0 || value != value) {
+                                    continue;
+                                }
+                                // neighbouring voxels are usually in the same region
+                                if (zone == null || zone.label != label[i]) {
+                                    zone = local.get(a).get(label[i]);
+                                    if (zone == null) {
+                                        zone = new Zone(label[i], atlases[a].lookup(label[i]), maxT);
+                                        local.get(a).put(label[i], zone);
+                                    }
+                                }
+                                zone.add(t, value, i % maxX, i / maxX, z);
+                            }
+                        }
+                    }
+                }
+                partial.set(start, local);
+            }
+        });
+
+        List<Int2ObjectMap<Zone>> zones = newZoneMaps(atlases.length);
+        for (List<Int2ObjectMap<Zone>> local : partial) {
+            if (local == null) {
+                continue;
+            }
+            for (int a = 0; a < atlases.length; a++) {
+                for (Zone zone : local.get(a).values()) {
+                    Zone total = zones.get(a).get(zone.label);
+                    if (total == null) {
+                        zones.get(a).put(zone.label, zone);
+                    } else {
+                        total.add(zone);
+                    }
+                }
+            }
+        }
+        return new ZonalStatistics(atlases.clone(), zones, maxT);
+    }
+
+    /**
+     * @return An empty map from label to Zone for each atlas.
+     */
+    private static List<Int2ObjectMap<Zone>> newZoneMaps(int atlases) {
+        List<Int2ObjectMap<Zone>> rv = new ArrayList<Int2ObjectMap<Zone>>(atlases);
+        for (int a = 0; a < atlases; a++) {
+            rv.add(new Int2ObjectOpenHashMap<Zone>());
+        }
+        return rv;
+    }
+
+    /**
+     * @return The number of time points.
+     */
+    public int getTimeCount() {
+        return times;
+    }
+
+    /**
+     * @param atlas The index of an atlas in the list passed to compute()
+     * @return The regions of the atlas that have at least one voxel that isn't
+     * NaN.
+     */
+    public Collection<Zone> getZones(int atlas) {
+        return Collections.unmodifiableCollection(zones.get(atlas).values());
+    }
+
+    /**
+     * @param atlas The index of an atlas in the list passed to compute()
+     * @param label The value of the region in the atlas's backing volume
+     * @return The region or null if it has no voxels.
+     */
+    public Zone getZone(int atlas, int label) {
+        return zones.get(atlas).get(label);
+    }
+
+    /**
+     * @param atlas The index of an atlas in the list passed to compute()
+     * @return The atlas
+     */
+    public IndexedAtlasVolumeArray getAtlas(int atlas) {
+        return atlases[atlas];
+    }
+
+    /**
+     * The statistics of one region at each time point.  The centroid is in
+     * voxel indices.  The mean and variance use Welford's update for single
+     * values and Chan et al.'s formula to merge two pieces, as in
+     * VolumeStatistics, so the variance stays accurate when the mean is large
+     * compared to the spread.
+     */
+    public static class Zone {
+
+        private final int label;
+        private final AtlasElement element;
+        private final long[] count;
+        private final double[] mean;
+        private final double[] m2;
+        private final double[] min;
+        private final double[] max;
+        private final double[] sumX;
+        private final double[] sumY;
+        private final double[] sumZ;
+
+        Zone(int label, AtlasElement element, int times) {
+            this.label = label;
+            this.element = element;
+            count = new long[times];
+            mean = new double[times];
+            m2 = new double[times];
+            min = new double[times];
+            max = new double[times];
+            sumX = new double[times];
+            sumY = new double[times];
+            sumZ = new double[times];
+            Arrays.fill(min, Double.POSITIVE_INFINITY);
+            Arrays.fill(max, Double.NEGATIVE_INFINITY);
+        }
+
+        void add(int t, double value, int x, int y, int z) {
+            count[t]++;
+            double delta = value - mean[t];
+            mean[t] += delta / count[t];
+            m2[t] += delta * (value - mean[t]);
+            if (value < min[t]) {
+                min[t] = value;
+            }
+            if (value > max[t]) {
+                max[t] = value;
+            }
+            sumX[t] += x;
+            sumY[t] += y;
+            sumZ[t] += z;
+        }
+
+        void add(Zone other) {
+            for (int t = 0; t < count.length; t++) {
+                if (other.count[t] == 0) {
+                    continue;
+                }
+                long n = count[t] + other.count[t];
+                double delta = other.mean[t] - mean[t];
+                mean[t] += delta * other.count[t] / n;
+                m2[t] += other.m2[t] + delta * delta * ((double) count[t] * other.count[t] / n);
+                count[t] = n;
+                min[t] = Math.min(min[t], other.min[t]);
+                max[t] = Math.max(max[t], other.max[t]);
+                sumX[t] += other.sumX[t];
+                sumY[t] += other.sumY[t];
+                sumZ[t] += other.sumZ[t];
+            }
+        }
+
+        /**
+         * @return The value of the region in the atlas's backing volume.
+         */
+        public int getLabel() {
+            return label;
+        }
+
+        /**
+         * @return The structure, or null if the atlas doesn't name this label.
+         */
+        public AtlasElement getElement() {
+            return element;
+        }
+
+        /**
+         * @param t The time point
+         * @return The number of voxels counted at time t.
+         */
+        public long getCount(int t) {
+            return count[t];
+        }
+
+        /**
+         * @param t The time point
+         * @return The sum of the values at time t.
+         */
+        public double getSum(int t) {
+            return mean[t] * count[t];
+        }
+
+        /**
+         * @param t The time point
+         * @return The sum of the squares of the values at time t.
+         */
+        public double getSumOfSquares(int t) {
+            return m2[t] + mean[t] * mean[t] * count[t];
+        }
+
+        /**
+         * @param t The time point
+         * @return The mean value at time t, or NaN if no voxels were counted.
+         */
+        public double getMean(int t) {
+            return count[t] == 0 ? Double.NaN : mean[t];
+        }
+
+        /**
+         * @return The mean value at each time point.
+         */
+        public double[] getMeans() {
+            double[] rv = new double[count.length];
+            for (int t = 0; t < rv.length; t++) {
+                rv[t] = getMean(t);
+            }
+            return rv;
+        }
+
+        /**
+         * @param t The time point
+         * @return The population variance at time t.
+         */
+        public double getVariance(int t) {
+            return count[t] == 0 ? Double.NaN : m2[t] / count[t];
+        }
+
+        /**
+         * @param t The time point
+         * @return The population standard deviation at time t.
+         */
+        public double getStandardDeviation(int t) {
+            return Math.sqrt(getVariance(t));
+        }
+
+        /**
+         * @param t The time point
+         * @return The smallest value at time t, or NaN if no voxels were
+         * counted.
+         */
+        public double getMin(int t) {
+            return count[t] == 0 ? Double.NaN : min[t];
+        }
+
+        /**
+         * @param t The time point
+         * @return The largest value at time t, or NaN if no voxels were
+         * counted.
+         */
+        public double getMax(int t) {
+            return count[t] == 0 ? Double.NaN : max[t];
+        }
+
+        /**
+         * @param t The time point
+         * @return The mean position, in voxel indices, of the voxels counted
+         * at time t.
+         */
+        public Point3d getCentroid(int t) {
+            return new Point3d(sumX[t] / count[t], sumY[t] / count[t], sumZ[t] / count[t]);
+        }
+
+        @Override
+        public String toString() {
+            return (element == null ? Integer.toString(label) : element.getAbbreviation()) +
+                    ": n=" + count[0] + " mean=" + getMean(0) + " sd=" + getStandardDeviation(0) +
+                    " min=" + getMin(0) + " max=" + getMax(0);
+        }
+    }
+}
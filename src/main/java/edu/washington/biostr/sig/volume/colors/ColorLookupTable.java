@@ -113,6 +113,7 @@ public class ColorLookupTable {
         if (value < min) {
             value = min;
         }
+        pvisible = null;
         if (value >= 0) {
             pcolors[(int) (multiplier * value)] = color;
         } else {
@@ -138,6 +139,7 @@ public class ColorLookupTable {
         if (high <= low) {
             return;
         }
+        pvisible = null;
         double value = 0;
         for (int i = low; i < high; i++) {
             if (positive) {
@@ -164,6 +166,7 @@ public class ColorLookupTable {
         } else if (!positive && (high > ncolors.length)) {
             high = ncolors.length;
         }
+        pvisible = null;
         for (int i = low; i < high; i++) {
             if (positive) {
                 pcolors[i] = defaultValue;
@@ -174,6 +177,54 @@ public class ColorLookupTable {
     }
     private boolean positiveSet = false;
     private boolean negativeSet = false;
+    /**
+     * Running counts of the colors that are not completely transparent, for
+     * isTransparent().  They are built when needed and dropped whenever a
+     * color changes.
+     */
+    private int[] pvisible;
+    private int[] nvisible;
+
+    /**
+     * Check whether every value between low and high gets a completely
+     * transparent color, so a renderer can skip a region of the volume whose
+     * values all fall below the threshold.
+     * @param low The smallest value in the region
+     * @param high The largest value in the region
+     * @return true if getColor() has an alpha of 0 for all of [low, high]
+     * (or if low > high).
+     */
+    public synchronized boolean isTransparent(double low, double high) {
+        if (!(low <= high)) {
+            return true;
+        }
+        if (pvisible == null) {
+            pvisible = countVisible(pcolors);
+            nvisible = countVisible(ncolors);
+        }
+        low = Math.max(min, Math.min(max, low));
+        high = Math.max(min, Math.min(max, high));
+        int visible = 0;
+        if (high >= 0) {
+            int from = (int) (multiplier * Math.max(0, low));
+            int to = (int) (multiplier * high);
+            visible += pvisible[to + 1] - pvisible[from];
+        }
+        if (low < 0) {
+            int from = (int) (multiplier * -Math.min(0, high));
+            int to = (int) (multiplier * -low);
+            visible += nvisible[to + 1] - nvisible[from];
+        }
+        return visible == 0;
+    }
+
+    private static int[] countVisible(int[] colors) {
+        int[] count = new int[colors.length + 1];
+        for (int i = 0; i < colors.length; i++) {
+            count[i + 1] = count[i] + ((colors[i] >>> 24) == 0 ? 0 : 1);
+        }
+        return count;
+    }
 
     /**
      * Set the positive values for this using the specified color scheme with
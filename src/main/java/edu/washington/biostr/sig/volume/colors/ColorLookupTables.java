@@ -1,7 +1,9 @@
 package edu.washington.biostr.sig.volume.colors;
 
+import edu.washington.biostr.sig.volume.BitIndexedVolumeArray;
 import edu.washington.biostr.sig.volume.DataType;
 import edu.washington.biostr.sig.volume.VolumeArray;
+import edu.washington.biostr.sig.volume.VolumeHistogram;
 
 /**
  * Provide a convenience method for generating a ColorLookupTable.
@@ -60,4 +62,60 @@ public class ColorLookupTables {
                 negative, array.getImageMin(), 0, array.getImageMin(),
                 1, array.getNaturalType().equals(DataType.TYPE_INT));    	
     }
+
+    /**
+     * Generate a color lookup table that is windowed on percentiles of the
+     * data instead of its minimum and maximum, so a few extreme voxels don't
+     * wash out the display.  Values above the high percentile get the top
+     * color and values below the low percentile the bottom negative color.
+     * @param positive The color scheme for positive values.
+     * @param negative The color scheme for negative values, may be null.
+     * @param array The data
+     * @param lowPercentile The percentile in [0, 100] to window negative values on.
+     * @param highPercentile The percentile in [0, 100] to window positive values on.
+     * @return A new table
+     */
+    public static ColorLookupTable getTable(ColorScheme positive, ColorScheme negative,
+            VolumeArray array, double lowPercentile, double highPercentile) {
+        return getTable(positive, negative, VolumeHistogram.get(array), lowPercentile, highPercentile,
+                array.getNaturalType().equals(DataType.TYPE_INT));
+    }
+
+    /**
+     * Same as getTable(ColorScheme, ColorScheme, VolumeArray, double, double)
+     * but only the voxels inside of mask are used to find the percentiles.
+     * @param positive The color scheme for positive values.
+     * @param negative The color scheme for negative values, may be null.
+     * @param array The data
+     * @param mask The voxels to use, see VolumeHistogram.compute().
+     * @param lowPercentile The percentile in [0, 100] to window negative values on.
+     * @param highPercentile The percentile in [0, 100] to window positive values on.
+     * @return A new table
+     */
+    public static ColorLookupTable getTable(ColorScheme positive, ColorScheme negative,
+            VolumeArray array, BitIndexedVolumeArray mask, double lowPercentile, double highPercentile) {
+        return getTable(positive, negative, VolumeHistogram.compute(array, mask), lowPercentile, highPercentile,
+                array.getNaturalType().equals(DataType.TYPE_INT));
+    }
+
+    /**
+     * Generate a color lookup table windowed on percentiles of a histogram.
+     * @param positive The color scheme for positive values.
+     * @param negative The color scheme for negative values, may be null.
+     * @param histogram The distribution of the data
+     * @param lowPercentile The percentile in [0, 100] to window negative values on.
+     * @param highPercentile The percentile in [0, 100] to window positive values on.
+     * @param integer If the data is stored as floats or integers.
+     * @return A new table
+     */
+    public static ColorLookupTable getTable(ColorScheme positive, ColorScheme negative,
+            VolumeHistogram histogram, double lowPercentile, double highPercentile, boolean integer) {
+        double max = Math.max(0, histogram.percentile(highPercentile));
+        double min = Math.min(0, histogram.percentile(lowPercentile));
+        if (histogram.getCount() == 0) {
+            max = 0;
+            min = 0;
+        }
+        return getTable(positive, max, 0, max, negative, min, 0, min, 1, integer);
+    }
 }
@@ -11,6 +11,7 @@ import java.util.List;
 import javax.vecmath.Point3f;
 import javax.vecmath.Vector3f;
 
+import edu.washington.biostr.sig.volume.MinMaxBlockIndex;
 import edu.washington.biostr.sig.volume.VolumeArray;
 import javax.vecmath.Matrix4d;
 import javax.vecmath.Point3i;
@@ -67,6 +68,9 @@ public abstract class MarchingIsosurface {
 
 	/**
 	 * March through the given region of the array array and generate a surface.
+	 * Cubes that lie in a leaf of the array's MinMaxBlockIndex where every
+	 * value is on the same side of the thresholds are skipped without reading
+	 * their corners.
 	 * 
 	 * @param array
 	 *            The source
@@ -117,14 +121,36 @@ public abstract class MarchingIsosurface {
 		double v7;
 		int id0, id1, id2, id3, id4, id5, id6, id7;
 		Matrix4d index2space = array.getIndex2Space();
+		// cubes inside of these leaves can't have any of the surface
+		MinMaxBlockIndex blocks = MinMaxBlockIndex.get(array, t, i5);
+		boolean[] uniform = blocks.findUniformLeaves(isoLow, isoHigh);
+		int leavesX = blocks.getCountX(0);
+		int leavesY = blocks.getCountY(0);
+		int maxX = array.getMaxX();
+		int maxY = array.getMaxY();
+		int maxZ = array.getMaxZ();
 
 		for (int k = start.z; k <= end.z; k += downscale) {
 			// if we are interrupted just give up.
 			if (Thread.currentThread().isInterrupted()) {
 				return null;
 			}
+			int bz = blocks.getLeafZ(k);
+			boolean zInLeaf = k + downscale < maxZ
+					&& k + downscale <= (bz + 1) * MinMaxBlockIndex.LEAF;
 			for (int j = start.y; j <= end.y; j += downscale) {
+				int by = blocks.getLeafY(j);
+				boolean yzInLeaf = zInLeaf && j + downscale < maxY
+						&& j + downscale <= (by + 1) * MinMaxBlockIndex.LEAF;
+				int row = (bz * leavesY + by) * leavesX;
 				for (int i = start.x; i <= end.x; i += downscale) {
+					if (yzInLeaf && i + downscale < maxX) {
+						int bx = blocks.getLeafX(i);
+						if (i + downscale <= (bx + 1) * MinMaxBlockIndex.LEAF
+								&& uniform[row + bx]) {
+							continue;
+						}
+					}
 					v7 = array.getDouble(i, j, k, t, i5);
 					p7.set(i, j, k);
 					index2space.transform(p7);
@@ -0,0 +1,196 @@
+package org.eiderman.util;
+
+/**
+ * A radix 2 fast Fourier transform for lengths that are a power of 2.  The
+ * real and imaginary parts are kept in separate arrays.  The forward
+ * transform is not scaled and the inverse is scaled by 1 / length, so one
+ * undoes the other.<br>
+ * An FFT only holds its tables, so one instance can be shared between
+ * threads.  FFT.Real keeps scratch space and can't be.
+ * @author Eider Moore
+ */
+public class FFT {
+
+    private final int n;
+    private final int[] reverse;
+    private final double[] cos;
+    private final double[] sin;
+
+    /**
+     * @param n The length of the transform, a power of 2.
+     */
+    public FFT(int n) {
+        if (n < 1 || (n & (n - 1)) != 0) {
+            throw new IllegalArgumentException("The length must be a power of 2: " + n);
+        }
+        this.n = n;
+        int bits = Integer.numberOfTrailingZeros(n);
+        reverse = new int[n];
+        for (int i = 0; i < n; i++) {
+            reverse[i] = bits == 0 ? 0 : Integer.reverse(i) >>> (32 - bits);
+        }
+        cos = new double[n / 2];
+        sin = new double[n / 2];
+        for (int i = 0; i < n / 2; i++) {
+            cos[i] = Math.cos(2 * Math.PI * i / n);
+            sin[i] = Math.sin(2 * Math.PI * i / n);
+        }
+    }
+
+    /**
+     * @param n
+     * @return The smallest power of 2 that is at least n.
+     */
+    public static int nextPowerOfTwo(int n) {
+        return n <= 1 ? 1 : Integer.highestOneBit(n - 1) << 1;
+    }
+
+    /**
+     * @return The length of the transform.
+     */
+    public int getLength() {
+        return n;
+    }
+
+    /**
+     * Transform the first n values of re and im in place.
+     * @param re The real parts
+     * @param im The imaginary parts
+     * @param inverse true for the inverse transform
+     */
+    public void transform(double[] re, double[] im, boolean inverse) {
+        for (int i = 0; i < n; i++) {
+            int j = reverse[i];
+            if (j > i) {
+                double swap = re[i];
+                re[i] = re[j];
+                re[j] = swap;
+                swap = im[i];
+                im[i] = im[j];
+                im[j] = swap;
+            }
+        }
+        double sign = inverse ? 1 : -1;
+        for (int size = 2; size <= n; size *= 2) {
+            int half = size / 2;
+            int step = n / size;
+            for (int i = 0; i < n; i += size) {
+                for (int j = 0; j < half; j++) {
+                    double wr = cos[j * step];
+                    double wi = sign * sin[j * step];
+                    int a = i + j;
+                    int b = a + half;
+                    double tr = re[b] * wr - im[b] * wi;
+                    double ti = re[b] * wi + im[b] * wr;
+                    re[b] = re[a] - tr;
+                    im[b] = im[a] - ti;
+                    re[a] += tr;
+                    im[a] += ti;
+                }
+            }
+        }
+        if (inverse) {
+            double scale = 1.0 / n;
+            for (int i = 0; i < n; i++) {
+                re[i] *= scale;
+                im[i] *= scale;
+            }
+        }
+    }
+
+    /**
+     * The transform of n real values, which is n / 2 + 1 complex values (the
+     * rest are their conjugates).  The even and odd values are packed into a
+     * complex transform of half the length and then pulled apart, which
+     * takes about half the work of a complex transform of length n.
+     */
+    public static class Real {
+
+        private final int n;
+        private final FFT half;
+        private final double[] re;
+        private final double[] im;
+        private final double[] cos;
+        private final double[] sin;
+
+        /**
+         * @param n The number of real values, a power of 2 that is at least 2.
+         */
+        public Real(int n) {
+            if (n < 2) {
+                throw new IllegalArgumentException("The length must be at least 2: " + n);
+            }
+            this.n = n;
+            half = new FFT(n / 2);
+            re = new double[n / 2];
+            im = new double[n / 2];
+            cos = new double[n / 2];
+            sin = new double[n / 2];
+            for (int i = 0; i < n / 2; i++) {
+                cos[i] = Math.cos(2 * Math.PI * i / n);
+                sin[i] = Math.sin(2 * Math.PI * i / n);
+            }
+        }
+
+        /**
+         * @return The number of real values.
+         */
+        public int getLength() {
+            return n;
+        }
+
+        /**
+         * Transform data[offset] to data[offset + n - 1] into outRe and
+         * outIm from outOffset to outOffset + n / 2.
+         */
+        public void forward(double[] data, int offset, double[] outRe, double[] outIm, int outOffset) {
+            int m = n / 2;
+            for (int j = 0; j < m; j++) {
+                re[j] = data[offset + 2 * j];
+                im[j] = data[offset + 2 * j + 1];
+            }
+            half.transform(re, im, false);
+            for (int k = 0; k <= m; k++) {
+                int a = k % m;
+                int b = (m - k) % m;
+                // the transforms of the even values (er, ei) and of the odd ones (or, oi)
+                double er = (re[a] + re[b]) / 2;
+                double ei = (im[a] - im[b]) / 2;
+                double or = (im[a] + im[b]) / 2;
+                double oi = -(re[a] - re[b]) / 2;
+                double wr = k < m ? cos[k] : -1;
+                double wi = k < m ? -sin[k] : 0;
+                outRe[outOffset + k] = er + wr * or - wi * oi;
+                outIm[outOffset + k] = ei + wr * oi + wi * or;
+            }
+        }
+
+        /**
+         * The inverse of forward(), which writes n real values to data
+         * starting at offset.
+         */
+        public void inverse(double[] inRe, double[] inIm, int inOffset, double[] data, int offset) {
+            int m = n / 2;
+            for (int k = 0; k < m; k++) {
+                double ar = inRe[inOffset + k];
+                double ai = inIm[inOffset + k];
+                double br = inRe[inOffset + m - k];
+                double bi = -inIm[inOffset + m - k];
+                double er = (ar + br) / 2;
+                double ei = (ai + bi) / 2;
+                double dr = (ar - br) / 2;
+                double di = (ai - bi) / 2;
+                // multiply the odd part by the inverse twiddle
+                double or = dr * cos[k] - di * sin[k];
+                double oi = dr * sin[k] + di * cos[k];
+                re[k] = er - oi;
+                im[k] = ei + or;
+            }
+            half.transform(re, im, true);
+            for (int j = 0; j < m; j++) {
+                data[offset + 2 * j] = re[j];
+                data[offset + 2 * j + 1] = im[j];
+            }
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package org.eiderman.util;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Run a loop over a range of integers in parallel.  The range is split in
+ * half until the pieces are no bigger than the grain and the pieces are run
+ * on a shared ForkJoinPool.  Loops that are started from inside of the pool
+ * join the running computation instead of blocking a worker, so nested loops
+ * are safe.
+ * @author Eider Moore
+ */
+public class ParallelLoop {
+
+    private static final ForkJoinPool POOL = new ForkJoinPool();
+
+    /**
+     * The body of a loop.  It is handed a piece of the range and must be safe
+     * to call from several threads at once on different pieces.
+     */
+    public interface Body {
+
+        /**
+         * Run the loop for start &lt;= i &lt; end.
+         * @param start The first value (inclusive)
+         * @param end The last value (exclusive)
+         */
+        public void run(int start, int end);
+    }
+
+    private ParallelLoop() {
+    }
+
+    /**
+     * @return The pool that the loops are run on.
+     */
+    public static ForkJoinPool getPool() {
+        return POOL;
+    }
+
+    /**
+     * Run body over start &lt;= i &lt; end in pieces of at most grain values.
+     * This returns once every piece is done.  If a piece throws an unchecked
+     * exception, it is rethrown here.
+     * @param start The first value (inclusive)
+     * @param end The last value (exclusive)
+     * @param grain The largest piece to hand to body, at least 1.
+     * @param body The loop body.
+     */
+    public static void run(int start, int end, int grain, Body body) {
+        if (grain < 1) {
+            throw new IllegalArgumentException("Grain must be positive: " + grain);
+        }
+        if (end - start <= grain || POOL.getParallelism() == 1) {
+            if (end > start) {
+                body.run(start, end);
+            }
+            return;
+        }
+        Task task = new Task(start, end, grain, body);
+        if (ForkJoinTask.inForkJoinPool()) {
+            task.invoke();
+        } else {
+            POOL.invoke(task);
+        }
+    }
+
+    /**
+     * Pick a grain that splits count values into roughly 4 pieces per
+     * processor, so uneven pieces still balance, but never less than min.
+     * @param count The number of values in the loop.
+     * @param min The smallest piece that is worth running on its own.
+     * @return the grain
+     */
+    public static int grain(int count, int min) {
+        int pieces = POOL.getParallelism() * 4;
+        return Math.max(Math.max(min, 1), (count + pieces - 1) / pieces);
+    }
+
+    private static class Task extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+        private final int start;
+        private final int end;
+        private final int grain;
+        private final Body body;
+
+        Task(int start, int end, int grain, Body body) {
+            this.start = start;
+            this.end = end;
+            this.grain = grain;
+            this.body = body;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - start <= grain) {
+                body.run(start, end);
+            } else {
+                int mid = (start + end) >>> 1;
+                invokeAll(new Task(start, mid, grain, body),
+                        new Task(mid, end, grain, body));
+            }
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package edu.washington.biostr.sig.volume;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import javax.vecmath.Matrix4d;
+
+import org.junit.Test;
+
+/**
+ * Check the slab parallel labelling against a flood fill of one component at
+ * a time.  The volume is deep enough to be cut into several slabs, and at
+ * these thresholds most components cross at least one cut.
+ * @author Eider Moore
+ */
+public class ConnectedComponentsTest {
+
+    private static final int MAX_X = 37;
+    private static final int MAX_Y = 29;
+    private static final int MAX_Z = 61;
+    private static final int MAX_T = 2;
+
+    private final float[] data;
+    private final FloatIndexedVolumeArray volume;
+
+    public ConnectedComponentsTest() {
+        Random random = new Random(41);
+        data = new float[MAX_X * MAX_Y * MAX_Z * MAX_T];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = random.nextFloat();
+        }
+        Matrix4d index2space = new Matrix4d();
+        index2space.setIdentity();
+        volume = new FloatIndexedVolumeArray(MAX_X, MAX_Y, MAX_Z, MAX_T, 1, index2space, data);
+    }
+
+    @Test
+    public void testConnectivity6() {
+        check(0.6, 6);
+        check(0.8, 6);
+    }
+
+    @Test
+    public void testConnectivity18() {
+        check(0.6, 18);
+        check(0.85, 18);
+    }
+
+    @Test
+    public void testConnectivity26() {
+        check(0.7, 26);
+        check(0.9, 26);
+    }
+
+    /**
+     * Label the volume both ways and check that the components are the same
+     * voxels, that they are numbered by decreasing size within each time
+     * point and that their sizes and peaks are right.
+     */
+    private void check(double threshold, int connectivity) {
+        ConnectedComponents components = ConnectedComponents.label(volume, threshold, connectivity);
+        IndexedVolumeArray labels = components.getAtlas().getBacking();
+        int[] expected = new int[data.length];
+        List<Integer> sizes = new ArrayList<Integer>();
+        int count = 0;
+        for (int t = 0; t < MAX_T; t++) {
+            List<Integer> timeSizes = new ArrayList<Integer>();
+            for (int z = 0; z < MAX_Z; z++) {
+                for (int y = 0; y < MAX_Y; y++) {
+                    for (int x = 0; x < MAX_X; x++) {
+                        int index = volume.getIndex(x, y, z, t, 0);
+                        if (data[index] > threshold && expected[index] == 0) {
+                            count++;
+                            timeSizes.add(fill(x, y, z, t, threshold, Stencil.connectivity(connectivity),
+                                    expected, count));
+                        }
+                    }
+                }
+            }
+            Collections.sort(timeSizes, Collections.reverseOrder());
+            sizes.addAll(timeSizes);
+        }
+        String message = "threshold " + threshold + ", connectivity " + connectivity;
+        assertEquals(message, count, components.getCount());
+
+        // the same voxels must be together, whatever their numbers
+        int[] toExpected = new int[count + 1];
+        for (int i = 0; i < data.length; i++) {
+            int label = labels.getInt(i);
+            assertEquals(message + " at " + i, expected[i] == 0, label == 0);
+            if (label != 0) {
+                assertTrue(message + " at " + i, toExpected[label] == 0 || toExpected[label] == expected[i]);
+                toExpected[label] = expected[i];
+            }
+        }
+
+        for (int label = 1; label <= count; label++) {
+            assertEquals(message + " size of " + label, (int) sizes.get(label - 1), components.getSize(label));
+            int[] peak = components.getPeakLocation(label);
+            int index = volume.getIndex(peak[0], peak[1], peak[2], peak[3], peak[4]);
+            assertEquals(message + " peak of " + label, label, labels.getInt(index));
+            assertEquals(message + " peak of " + label, data[index], components.getPeak(label), 0);
+        }
+        for (int i = 0; i < data.length; i++) {
+            int label = labels.getInt(i);
+            if (label != 0) {
+                assertTrue(message + " peak of " + label, data[i] <= components.getPeak(label));
+            }
+        }
+        // every component of the second time point comes after those of the first
+        int lastOfFirst = 0;
+        int firstOfSecond = Integer.MAX_VALUE;
+        for (int i = 0; i < data.length; i++) {
+            int label = labels.getInt(i);
+            if (label == 0) {
+                continue;
+            }
+            if (i < data.length / MAX_T) {
+                lastOfFirst = Math.max(lastOfFirst, label);
+            } else {
+                firstOfSecond = Math.min(firstOfSecond, label);
+            }
+        }
+        assertTrue(message, lastOfFirst < firstOfSecond);
+    }
+
+    /**
+     * Flood fill the component around (x, y, z, t) with label.
+     * @return the number of voxels in it
+     */
+    private int fill(int x, int y, int z, int t, double threshold, Stencil stencil, int[] dest, int label) {
+        ArrayDeque<int[]> queue = new ArrayDeque<int[]>();
+        dest[volume.getIndex(x, y, z, t, 0)] = label;
+        queue.add(new int[]{x, y, z});
+        int size = 0;
+        while (!queue.isEmpty()) {
+            int[] p = queue.poll();
+            size++;
+            for (int k = 0; k < stencil.size(); k++) {
+                int nx = p[0] + stencil.getDX(k);
+                int ny = p[1] + stencil.getDY(k);
+                int nz = p[2] + stencil.getDZ(k);
+                int index = volume.getIndex(nx, ny, nz, t, 0);
+                if (index >= 0 && data[index] > threshold && dest[index] == 0) {
+                    dest[index] = label;
+                    queue.add(new int[]{nx, ny, nz});
+                }
+            }
+        }
+        return size;
+    }
+}
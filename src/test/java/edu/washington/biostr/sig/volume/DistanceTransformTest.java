@@ -0,0 +1,148 @@
+package edu.washington.biostr.sig.volume;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.BitSet;
+import java.util.Random;
+
+import javax.vecmath.Matrix4d;
+
+import org.junit.Test;
+
+/**
+ * Check the distance maps against measuring the distance from every voxel to
+ * every other one.  The voxels are not cubes, so the scaling of each pass is
+ * covered too.
+ * @author Eider Moore
+ */
+public class DistanceTransformTest {
+
+    private static final int MAX_X = 19;
+    private static final int MAX_Y = 13;
+    private static final int MAX_Z = 11;
+    private static final int MAX_T = 2;
+    private static final double[] MM = {0.8, 1.5, 2.5};
+
+    private final Matrix4d index2space;
+
+    public DistanceTransformTest() {
+        index2space = new Matrix4d();
+        index2space.setIdentity();
+        index2space.m00 = MM[0];
+        index2space.m11 = MM[1];
+        index2space.m22 = MM[2];
+    }
+
+    @Test
+    public void testSparseMask() {
+        check(randomMask(40, 42, index2space));
+    }
+
+    @Test
+    public void testDenseMask() {
+        check(randomMask(2, 43, index2space));
+    }
+
+    @Test
+    public void testThreshold() {
+        Random random = new Random(44);
+        float[] data = new float[MAX_X * MAX_Y * MAX_Z * MAX_T];
+        BitSet bits = new BitSet();
+        for (int i = 0; i < data.length; i++) {
+            data[i] = random.nextFloat();
+            if (data[i] > 0.9) {
+                bits.set(i);
+            }
+        }
+        FloatIndexedVolumeArray volume = new FloatIndexedVolumeArray(MAX_X, MAX_Y, MAX_Z, MAX_T, 1, index2space,
+                data);
+        BitIndexedVolumeArray mask = new BitIndexedVolumeArray(MAX_X, MAX_Y, MAX_Z, MAX_T, 1, index2space, bits);
+        assertClose("distance", bruteForce(mask, true), DistanceTransform.distance(volume, 0.9));
+        assertClose("signed distance", signed(mask), DistanceTransform.signedDistance(volume, 0.9));
+    }
+
+    @Test
+    public void testPermutedAxes() {
+        // x runs along mm z, y along mm x and z along mm y, as in a sagittal acquisition
+        Matrix4d permuted = new Matrix4d();
+        permuted.setIdentity();
+        permuted.setColumn(0, 0, 0, -MM[0], 0);
+        permuted.setColumn(1, MM[1], 0, 0, 0);
+        permuted.setColumn(2, 0, MM[2], 0, 0);
+        check(randomMask(30, 45, permuted));
+    }
+
+    @Test
+    public void testEmptyMask() {
+        BitIndexedVolumeArray mask = new BitIndexedVolumeArray(4, 4, 4, 1, 1, index2space, new BitSet());
+        FloatIndexedVolumeArray distance = DistanceTransform.distance(mask);
+        for (int i = 0; i < 4 * 4 * 4; i++) {
+            assertTrue(Double.isInfinite(distance.getDouble(i)));
+        }
+    }
+
+    private static BitIndexedVolumeArray randomMask(int oneIn, long seed, Matrix4d index2space) {
+        Random random = new Random(seed);
+        BitSet bits = new BitSet();
+        for (int i = 0; i < MAX_X * MAX_Y * MAX_Z * MAX_T; i++) {
+            if (random.nextInt(oneIn) == 0) {
+                bits.set(i);
+            }
+        }
+        return new BitIndexedVolumeArray(MAX_X, MAX_Y, MAX_Z, MAX_T, 1, index2space, bits);
+    }
+
+    private void check(BitIndexedVolumeArray mask) {
+        assertClose("distance", bruteForce(mask, true), DistanceTransform.distance(mask));
+        assertClose("signed distance", signed(mask), DistanceTransform.signedDistance(mask));
+    }
+
+    private double[] signed(BitIndexedVolumeArray mask) {
+        double[] outside = bruteForce(mask, true);
+        double[] inside = bruteForce(mask, false);
+        for (int i = 0; i < outside.length; i++) {
+            outside[i] -= inside[i];
+        }
+        return outside;
+    }
+
+    /**
+     * @return The distance in mm from each voxel to the nearest voxel of the
+     * same time point that is in the mask (or out of it if in is false), which
+     * is 0 for those voxels.
+     */
+    private static double[] bruteForce(BitIndexedVolumeArray mask, boolean in) {
+        double[] rv = new double[MAX_X * MAX_Y * MAX_Z * MAX_T];
+        for (int t = 0; t < MAX_T; t++) {
+            for (int z = 0; z < MAX_Z; z++) {
+                for (int y = 0; y < MAX_Y; y++) {
+                    for (int x = 0; x < MAX_X; x++) {
+                        double best = Double.POSITIVE_INFINITY;
+                        for (int zz = 0; zz < MAX_Z; zz++) {
+                            for (int yy = 0; yy < MAX_Y; yy++) {
+                                for (int xx = 0; xx < MAX_X; xx++) {
+                                    if ((mask.getInt(xx, yy, zz, t, 0) != 0) == in) {
+                                        double dx = (x - xx) * MM[0];
+                                        double dy = (y - yy) * MM[1];
+                                        double dz = (z - zz) * MM[2];
+                                        best = Math.min(best, dx * dx + dy * dy + dz * dz);
+                                    }
+                                }
+                            }
+                        }
+                        rv[mask.getIndex(x, y, z, t, 0)] = Math.sqrt(best);
+                    }
+                }
+            }
+        }
+        return rv;
+    }
+
+    private static void assertClose(String message, double[] expected, FloatIndexedVolumeArray actual) {
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(message + " at " + i, expected[i], actual.getDouble(i),
+                    1e-5 * Math.max(1, Math.abs(expected[i])));
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package edu.washington.biostr.sig.volume;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import javax.vecmath.Matrix4d;
+
+import org.junit.Test;
+
+/**
+ * Check that applying a kernel in the frequency domain gives the same answer
+ * as adding up its taps one voxel at a time, for every edge policy and with
+ * a mask.  The volume is larger than a tile so the overlap between tiles is
+ * covered too.
+ * @author Eider Moore
+ */
+public class FFTConvolutionTest {
+
+    private static final int MAX_X = 53;
+    private static final int MAX_Y = 47;
+    private static final int MAX_Z = 39;
+    private static final int MAX_T = 2;
+
+    private final FloatIndexedVolumeArray volume;
+    private final FloatIndexedVolumeArray mask;
+    private final Kernel3D kernel;
+
+    public FFTConvolutionTest() {
+        Random random = new Random(39);
+        Matrix4d index2space = new Matrix4d();
+        index2space.setIdentity();
+        float[] data = new float[MAX_X * MAX_Y * MAX_Z * MAX_T];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = random.nextFloat() * 100;
+        }
+        volume = new FloatIndexedVolumeArray(MAX_X, MAX_Y, MAX_Z, MAX_T, 1, index2space, data);
+        float[] maskData = new float[MAX_X * MAX_Y * MAX_Z];
+        for (int i = 0; i < maskData.length; i++) {
+            maskData[i] = random.nextInt(4) == 0 ? 0 : 1;
+        }
+        mask = new FloatIndexedVolumeArray(MAX_X, MAX_Y, MAX_Z, 1, 1, index2space, maskData);
+        // random taps so the kernel isn't separable
+        float[] taps = new float[11 * 9 * 13];
+        for (int i = 0; i < taps.length; i++) {
+            taps[i] = random.nextFloat() + 0.2f;
+        }
+        kernel = new Kernel3D(11, 9, 13, taps);
+    }
+
+    @Test
+    public void testEdgePolicies() {
+        FFTConvolution plan = FFTConvolution.plan(kernel, volume, false);
+        assertNotNull("the kernel should be applied in the frequency domain", plan);
+        int[] tile = plan.getTileSize();
+        assertTrue("the volume should cover more than one tile",
+                tile[0] < MAX_X || tile[1] < MAX_Y || tile[2] < MAX_Z);
+        for (EdgePolicy policy : new EdgePolicy[]{null, EdgePolicy.ZERO, EdgePolicy.CLAMP, EdgePolicy.MIRROR}) {
+            float[] fft = new float[MAX_X * MAX_Y * MAX_Z * MAX_T];
+            assertTrue(plan.apply(volume, null, policy, null, fft));
+            assertClose(String.valueOf(policy), direct(null, policy), fft);
+        }
+    }
+
+    @Test
+    public void testMask() {
+        FFTConvolution plan = FFTConvolution.plan(kernel, volume, true);
+        assertNotNull("the kernel should be applied in the frequency domain", plan);
+        float[] fft = new float[MAX_X * MAX_Y * MAX_Z * MAX_T];
+        assertTrue(plan.apply(volume, mask, null, null, fft));
+        assertClose("mask", direct(mask, null), fft);
+    }
+
+    @Test
+    public void testApplyAdd() {
+        assertClose("applyAdd", direct(null, EdgePolicy.MIRROR),
+                (float[]) ((FloatIndexedVolumeArray) kernel.applyAdd(volume, EdgePolicy.MIRROR)).getDataArray());
+        assertClose("applyAdd with a mask", direct(mask, null),
+                (float[]) ((FloatIndexedVolumeArray) kernel.applyAdd(volume, mask)).getDataArray());
+    }
+
+    /**
+     * Add up the taps of the kernel around every voxel.  Without a mask,
+     * taps outside of the volume follow policy, and a null policy leaves
+     * voxels the kernel doesn't fit around at 0.  With a mask, taps outside
+     * of the volume or the mask are dropped and the rest are divided by the
+     * sum of the kernel that was used.
+     */
+    private float[] direct(VolumeArray mask, EdgePolicy policy) {
+        int w = kernel.getWidth();
+        int h = kernel.getHeight();
+        int d = kernel.getDepth();
+        float[] taps = kernel.getKernel();
+        float[] rv = new float[MAX_X * MAX_Y * MAX_Z * MAX_T];
+        for (int t = 0; t < MAX_T; t++) {
+            for (int z = 0; z < MAX_Z; z++) {
+                for (int y = 0; y < MAX_Y; y++) {
+                    for (int x = 0; x < MAX_X; x++) {
+                        boolean interior = x >= w / 2 && x < MAX_X - w / 2 && y >= h / 2 && y < MAX_Y - h / 2 &&
+                                z >= d / 2 && z < MAX_Z - d / 2;
+                        if (mask == null && policy == null && !interior) {
+                            continue;
+                        }
+                        double sum = 0;
+                        double kernelSum = 0;
+                        int count = 0;
+                        int k = 0;
+                        for (int dz = -d / 2; dz <= d / 2; dz++) {
+                            for (int dy = -h / 2; dy <= h / 2; dy++) {
+                                for (int dx = -w / 2; dx <= w / 2; dx++, k++) {
+                                    int px = x + dx;
+                                    int py = y + dy;
+                                    int pz = z + dz;
+                                    boolean inside = px >= 0 && px < MAX_X && py >= 0 && py < MAX_Y &&
+                                            pz >= 0 && pz < MAX_Z;
+                                    if (mask != null) {
+                                        if (inside && mask.getDouble(px, py, pz, 0, 0) != 0) {
+                                            sum += taps[k] * volume.getDouble(px, py, pz, t, 0);
+                                            kernelSum += taps[k];
+                                            count++;
+                                        }
+                                    } else if (inside) {
+                                        sum += taps[k] * volume.getDouble(px, py, pz, t, 0);
+                                    } else if (policy == EdgePolicy.CLAMP) {
+                                        sum += taps[k] * volume.getDouble(clamp(px, MAX_X), clamp(py, MAX_Y),
+                                                clamp(pz, MAX_Z), t, 0);
+                                    } else if (policy == EdgePolicy.MIRROR) {
+                                        sum += taps[k] * volume.getDouble(mirror(px, MAX_X), mirror(py, MAX_Y),
+                                                mirror(pz, MAX_Z), t, 0);
+                                    }
+                                }
+                            }
+                        }
+                        if (count != 0 && count != taps.length) {
+                            sum /= kernelSum;
+                        }
+                        rv[volume.getIndex(x, y, z, t, 0)] = (float) sum;
+                    }
+                }
+            }
+        }
+        return rv;
+    }
+
+    private static int clamp(int c, int max) {
+        return Math.min(Math.max(c, 0), max - 1);
+    }
+
+    private static int mirror(int c, int max) {
+        c = Math.abs(c);
+        return c < max ? c : 2 * (max - 1) - c;
+    }
+
+    /**
+     * The sums have about a thousand float terms, so compare them relative
+     * to their size.
+     */
+    private static void assertClose(String message, float[] expected, float[] actual) {
+        assertEquals(message, expected.length, actual.length);
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(message + " at " + i, expected[i], actual[i], 1e-4 * Math.max(1, Math.abs(expected[i])));
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package edu.washington.biostr.sig.volume;
+
+import java.util.Random;
+
+import javax.vecmath.Matrix4d;
+
+/**
+ * Compare the speed of interpolating one point at a time with
+ * interpolate(x, y, z, time, i5) against the batched interpolate() for each
+ * of the common data types.  It lives with the tests so it isn't shipped in
+ * the jar.  Run it with the test classes on the classpath:<br>
+ * java edu.washington.biostr.sig.volume.InterpolationBenchmark [size] [points]<br>
+ * and it prints the samples per second of each along with the largest
+ * difference between their answers.
+ * @author Eider Moore
+ * @version 1.0
+ */
+public class InterpolationBenchmark {
+
+    private static final int ROUNDS = 5;
+
+    /**
+     * @param args the size of the (cubic) volume and the number of points,
+     * which default to 128 and 4000000.
+     */
+    public static void main(String[] args) {
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : 128;
+        int points = args.length > 1 ? Integer.parseInt(args[1]) : 4000000;
+        Random random = new Random(42);
+        float[] x = new float[points];
+        float[] y = new float[points];
+        float[] z = new float[points];
+        for (int i = 0; i < points; i++) {
+            x[i] = random.nextFloat() * size;
+            y[i] = random.nextFloat() * size;
+            z[i] = random.nextFloat() * size;
+        }
+        Matrix4d index2space = new Matrix4d();
+        index2space.setIdentity();
+        int voxels = size * size * size;
+        float[] floats = new float[voxels];
+        short[] shorts = new short[voxels];
+        byte[] bytes = new byte[voxels];
+        for (int i = 0; i < voxels; i++) {
+            floats[i] = random.nextFloat() * 1000;
+            shorts[i] = (short) random.nextInt(4096);
+            bytes[i] = (byte) random.nextInt(256);
+        }
+        run("float", new FloatIndexedVolumeArray(size, size, size, 1, 1, index2space, floats), x, y, z);
+        run("short", new ShortIndexedVolumeArray(size, size, size, 1, 1, index2space, shorts), x, y, z);
+        run("unsigned byte", new UnsignedByteIndexedVolumeArray(size, size, size, 1, 1, index2space, bytes),
+                x, y, z);
+    }
+
+    private static void run(String name, IndexedVolumeArray volume, float[] x, float[] y, float[] z) {
+        int points = x.length;
+        double[] single = new double[points];
+        double[] batch = new double[points];
+        long bestSingle = Long.MAX_VALUE;
+        long bestBatch = Long.MAX_VALUE;
+        // the first rounds also warm up the JIT
+        for (int round = 0; round < ROUNDS; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < points; i++) {
+                single[i] = volume.interpolate(x[i], y[i], z[i], 0, 0);
+            }
+            bestSingle = Math.min(bestSingle, System.nanoTime() - start);
+            start = System.nanoTime();
+            volume.interpolate(x, y, z, points, 0, 0, batch);
+            bestBatch = Math.min(bestBatch, System.nanoTime() - start);
+        }
+        double difference = 0;
+        for (int i = 0; i < points; i++) {
+            difference = Math.max(difference, Math.abs(single[i] - batch[i]));
+        }
+        System.out.println(name + ": per point " + rate(points, bestSingle) + " samples/s, batched " +
+                rate(points, bestBatch) + " samples/s, largest difference " + difference);
+    }
+
+    private static long rate(int points, long nanos) {
+        return (long) (points / (nanos / 1e9));
+    }
+}
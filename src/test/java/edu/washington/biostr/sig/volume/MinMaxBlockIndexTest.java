@@ -0,0 +1,174 @@
+package edu.washington.biostr.sig.volume;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.util.Random;
+
+import javax.vecmath.Matrix3d;
+import javax.vecmath.Matrix4d;
+
+import org.junit.Test;
+
+import edu.washington.biostr.sig.volume.colors.BasicColorScheme;
+import edu.washington.biostr.sig.volume.colors.ColorLookupTable;
+import edu.washington.biostr.sig.volume.surface.MarchingCubes;
+import edu.washington.biostr.sig.volume.surface.Surface;
+
+/**
+ * Check that skipping blocks with the MinMaxBlockIndex doesn't change what
+ * marching cubes, the volume renderer or the projections produce.  Each is
+ * run on the volume and on a copy whose index says that every block holds
+ * every value, so nothing can be skipped, and the results must be
+ * identical.  The volume is a noisy blob with a few NaNs, and its sides are
+ * not multiples of the leaf size.
+ * @author Eider Moore
+ */
+public class MinMaxBlockIndexTest {
+
+    private static final int MAX_X = 61;
+    private static final int MAX_Y = 53;
+    private static final int MAX_Z = 45;
+
+    private final FloatIndexedVolumeArray volume;
+    private final FloatIndexedVolumeArray unskipped;
+
+    public MinMaxBlockIndexTest() {
+        Random random = new Random(49);
+        float[] data = new float[MAX_X * MAX_Y * MAX_Z];
+        double cx = (MAX_X - 1) / 2.0;
+        double cy = (MAX_Y - 1) / 2.0;
+        double cz = (MAX_Z - 1) / 2.0;
+        for (int z = 0; z < MAX_Z; z++) {
+            for (int y = 0; y < MAX_Y; y++) {
+                for (int x = 0; x < MAX_X; x++) {
+                    double q = (x - cx) * (x - cx) / (20 * 20) + (y - cy) * (y - cy) / (18 * 18) +
+                            (z - cz) * (z - cz) / (15 * 15);
+                    data[(z * MAX_Y + y) * MAX_X + x] = q < 1 ? (float) (100 * (1 - q) + random.nextFloat()) : 0;
+                }
+            }
+        }
+        for (int i = 0; i < 20; i++) {
+            data[random.nextInt(data.length)] = Float.NaN;
+        }
+        Matrix4d index2space = new Matrix4d();
+        index2space.setIdentity();
+        volume = new FloatIndexedVolumeArray(MAX_X, MAX_Y, MAX_Z, 1, 1, index2space, data);
+        unskipped = withoutSkipping(data.clone(), index2space);
+    }
+
+    /**
+     * @return A volume of data whose MinMaxBlockIndex is taken from a
+     * checkerboard of +/- Float.MAX_VALUE, so no block can ever be skipped.
+     */
+    private static FloatIndexedVolumeArray withoutSkipping(float[] data, Matrix4d index2space) {
+        float[] extremes = new float[data.length];
+        for (int i = 0; i < extremes.length; i++) {
+            int x = i % MAX_X;
+            int y = (i / MAX_X) % MAX_Y;
+            int z = i / (MAX_X * MAX_Y);
+            extremes[i] = (x + y + z) % 2 == 0 ? Float.MAX_VALUE : -Float.MAX_VALUE;
+        }
+        final MinMaxBlockIndex open = MinMaxBlockIndex.compute(
+                new FloatIndexedVolumeArray(MAX_X, MAX_Y, MAX_Z, 1, 1, index2space, extremes), 0, 0);
+        FloatIndexedVolumeArray rv = new FloatIndexedVolumeArray(MAX_X, MAX_Y, MAX_Z, 1, 1, index2space, data) {
+
+            @Override
+            public synchronized Object getDerived(Object key) {
+                Object value = super.getDerived(key);
+                return value instanceof MinMaxBlockIndex ? open : value;
+            }
+        };
+        // cache an index so that getDerived() has one to replace
+        MinMaxBlockIndex.get(rv, 0, 0);
+        return rv;
+    }
+
+    @Test
+    public void testRanges() {
+        MinMaxBlockIndex index = MinMaxBlockIndex.get(volume, 0, 0);
+        MinMaxBlockIndex open = MinMaxBlockIndex.get(unskipped, 0, 0);
+        assertTrue("the copy should have its own index", open != index);
+        assertEquals(-Float.MAX_VALUE, open.getMin(0, 0, 0, 0), 0);
+        assertEquals(Float.MAX_VALUE, open.getMax(0, 0, 0, 0), 0);
+        for (int level = 0; level < index.getLevels(); level++) {
+            int size = index.getBlockSize(level);
+            for (int bz = 0; bz < index.getCountZ(level); bz++) {
+                for (int by = 0; by < index.getCountY(level); by++) {
+                    for (int bx = 0; bx < index.getCountX(level); bx++) {
+                        double min = Double.POSITIVE_INFINITY;
+                        double max = Double.NEGATIVE_INFINITY;
+                        boolean nan = false;
+                        // a block covers its cells, so it includes the voxels on its far faces
+                        for (int z = bz * size; z <= Math.min(MAX_Z - 1, (bz + 1) * size); z++) {
+                            for (int y = by * size; y <= Math.min(MAX_Y - 1, (by + 1) * size); y++) {
+                                for (int x = bx * size; x <= Math.min(MAX_X - 1, (bx + 1) * size); x++) {
+                                    double value = volume.getDouble(x, y, z, 0, 0);
+                                    if (value != value) {
+                                        nan = true;
+                                    } else {
+                                        min = Math.min(min, value);
+                                        max = Math.max(max, value);
+                                    }
+                                }
+                            }
+                        }
+                        String block = "level " + level + " (" + bx + "," + by + "," + bz + ")";
+                        assertEquals(block, min, index.getMin(level, bx, by, bz), 0);
+                        assertEquals(block, max, index.getMax(level, bx, by, bz), 0);
+                        if (level == 0) {
+                            assertEquals(block, nan, index.hasNaN(bx, by, bz));
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testMarchingCubes() {
+        for (double isovalue : new double[]{0.5, 50, 99}) {
+            Surface expected = new MarchingCubes().extractSurface(unskipped, isovalue);
+            Surface actual = new MarchingCubes().extractSurface(volume, isovalue);
+            assertTrue("there should be a surface at " + isovalue, expected.getFaces().length > 0);
+            assertArrayEquals("faces at " + isovalue, expected.getFaces(), actual.getFaces());
+            assertArrayEquals("points at " + isovalue, expected.getPoints(), actual.getPoints(), 0);
+        }
+    }
+
+    @Test
+    public void testProjections() {
+        Matrix3d rotation = new Matrix3d();
+        rotation.rotY(0.4);
+        Matrix4d view = ProjectionRenderer.createView(volume, rotation, 96, 80);
+        for (ProjectionRenderer.Mode mode : new ProjectionRenderer.Mode[]{
+                    ProjectionRenderer.Mode.MAXIMUM, ProjectionRenderer.Mode.MINIMUM}) {
+            float[] expected = new ProjectionRenderer(unskipped, mode).project(view, 96, 80, 0, 0, null);
+            float[] actual = new ProjectionRenderer(volume, mode).project(view, 96, 80, 0, 0, null);
+            assertArrayEquals(mode.toString(), expected, actual, 0);
+        }
+    }
+
+    @Test
+    public void testVolumeRenderer() {
+        Matrix3d rotation = new Matrix3d();
+        rotation.rotX(-0.3);
+        Matrix4d view = ProjectionRenderer.createView(volume, rotation, 96, 80);
+        BufferedImage expected = new VolumeRenderer(unskipped, table()).render(view, 96, 80, 0, 0);
+        BufferedImage actual = new VolumeRenderer(volume, table()).render(view, 96, 80, 0, 0);
+        assertArrayEquals(expected.getRGB(0, 0, 96, 80, null, 0, 96), actual.getRGB(0, 0, 96, 80, null, 0, 96));
+    }
+
+    /**
+     * @return A table that is transparent below 40, so most of the volume
+     * can be skipped.
+     */
+    private static ColorLookupTable table() {
+        ColorLookupTable table = new ColorLookupTable(0.0, 110.0);
+        table.setPositive(new BasicColorScheme(Color.WHITE, 0.05), 40, 100);
+        return table;
+    }
+}